@@ -19,6 +19,10 @@
  */
 package majordodo.clientfacade;
 
+import java.util.Collections;
+import java.util.Map;
+import majordodo.task.CommitLatencyStats;
+
 /**
  * General view of the status of the broker
  *
@@ -36,6 +40,92 @@ public class BrokerStatusView {
     private long errorTasks;
     private long finishedTasks;
     private long runningTasks;
+    private long emptyScanHits;
+    private long emptyScanMisses;
+    private int taskPropertiesCacheSize;
+    private long taskPropertiesCacheHits;
+    private long taskPropertiesCacheMisses;
+    private long taskPropertiesCacheEvictions;
+    private long compactedFinishedTasks;
+    private long finishedTasksReclaimedMemory;
+    private Map<String, CommitLatencyStats.EditTypeLatency> commitLatencies = Collections.emptyMap();
+
+    public long getEmptyScanHits() {
+        return emptyScanHits;
+    }
+
+    public void setEmptyScanHits(long emptyScanHits) {
+        this.emptyScanHits = emptyScanHits;
+    }
+
+    public long getEmptyScanMisses() {
+        return emptyScanMisses;
+    }
+
+    public void setEmptyScanMisses(long emptyScanMisses) {
+        this.emptyScanMisses = emptyScanMisses;
+    }
+
+    public int getTaskPropertiesCacheSize() {
+        return taskPropertiesCacheSize;
+    }
+
+    public void setTaskPropertiesCacheSize(int taskPropertiesCacheSize) {
+        this.taskPropertiesCacheSize = taskPropertiesCacheSize;
+    }
+
+    public long getTaskPropertiesCacheHits() {
+        return taskPropertiesCacheHits;
+    }
+
+    public void setTaskPropertiesCacheHits(long taskPropertiesCacheHits) {
+        this.taskPropertiesCacheHits = taskPropertiesCacheHits;
+    }
+
+    public long getTaskPropertiesCacheMisses() {
+        return taskPropertiesCacheMisses;
+    }
+
+    public void setTaskPropertiesCacheMisses(long taskPropertiesCacheMisses) {
+        this.taskPropertiesCacheMisses = taskPropertiesCacheMisses;
+    }
+
+    public long getTaskPropertiesCacheEvictions() {
+        return taskPropertiesCacheEvictions;
+    }
+
+    public void setTaskPropertiesCacheEvictions(long taskPropertiesCacheEvictions) {
+        this.taskPropertiesCacheEvictions = taskPropertiesCacheEvictions;
+    }
+
+    public long getCompactedFinishedTasks() {
+        return compactedFinishedTasks;
+    }
+
+    public void setCompactedFinishedTasks(long compactedFinishedTasks) {
+        this.compactedFinishedTasks = compactedFinishedTasks;
+    }
+
+    public long getFinishedTasksReclaimedMemory() {
+        return finishedTasksReclaimedMemory;
+    }
+
+    /**
+     * Latency of the commit to the log, for each type of edit
+     *
+     * @return
+     */
+    public Map<String, CommitLatencyStats.EditTypeLatency> getCommitLatencies() {
+        return commitLatencies;
+    }
+
+    public void setCommitLatencies(Map<String, CommitLatencyStats.EditTypeLatency> commitLatencies) {
+        this.commitLatencies = commitLatencies;
+    }
+
+    public void setFinishedTasksReclaimedMemory(long finishedTasksReclaimedMemory) {
+        this.finishedTasksReclaimedMemory = finishedTasksReclaimedMemory;
+    }
 
     public long getDelayedTasks() {
         return delayedTasks;
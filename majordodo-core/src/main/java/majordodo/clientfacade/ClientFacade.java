@@ -23,6 +23,8 @@ import java.util.ArrayList;
 import majordodo.task.AddTaskResult;
 import majordodo.task.Broker;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Client API
@@ -91,6 +93,26 @@ public class ClientFacade {
         return broker.getBrokerStatus().getAllTasks();
     }
 
+    /**
+     * Returns a page of the tasks which match the query, in order of taskId
+     *
+     * @param query
+     * @return
+     */
+    public List<TaskStatusView> getTasks(TasksQuery query) {
+        return broker.getBrokerStatus().getTasks(query);
+    }
+
+    /**
+     * Counts the tasks which match the query, for each tasktype
+     *
+     * @param query
+     * @return
+     */
+    public Map<String, Long> countTasksByType(TasksQuery query) {
+        return broker.getBrokerStatus().countTasksByType(query);
+    }
+
     public List<WorkerStatusView> getAllWorkers() {
         return broker.getBrokerStatus().getAllWorkers();
     }
@@ -111,6 +133,44 @@ public class ClientFacade {
         return broker.getHeapStatusView();
     }
     
+    /**
+     * Status of the heap, without the list of tasks
+     *
+     * @return
+     */
+    public HeapStatusView getHeapStatusSummary() {
+        return broker.getHeapStatusSummary();
+    }
+
+    /**
+     * Reads a bounded slice of the tasks in the heap
+     *
+     * @param fromPosition
+     * @param max
+     * @param consumer
+     * @return the position to start the next slice from, or -1 if the end of the heap has been reached
+     */
+    public int scanHeap(int fromPosition, int max, Consumer<HeapStatusView.TaskStatus> consumer) {
+        return broker.scanHeap(fromPosition, max, consumer);
+    }
+
+    /**
+     * Visits the delayed tasks, without blocking the scheduler for the whole visit
+     *
+     * @param consumer
+     */
+    public void scanDelayedTasks(Consumer<DelayedTasksQueueView.TaskStatus> consumer) {
+        broker.scanDelayedTasks(consumer);
+    }
+
+    public List<Long> getTransactionIds() {
+        return broker.getBrokerStatus().getTransactionIds();
+    }
+
+    public List<TransactionStatus> getTransactions(List<Long> transactionIds) {
+        return broker.getBrokerStatus().getTransactions(transactionIds);
+    }
+
     public DelayedTasksQueueView getDelayedTasksQueueView() {
         return broker.getDelayedTasksQueueView();
     }
@@ -30,6 +30,87 @@ import java.util.List;
 public class HeapStatusView {
 
     private List<TaskStatus> tasks = new ArrayList<>();
+    private int size;
+    private int actualSize;
+    private int fragmentation;
+    private boolean compactionInProgress;
+    private long compactions;
+    private long compactionSteps;
+    private long lastCompactionPauseMicros;
+    private long maxCompactionPauseMicros;
+    private long totalCompactionPauseMicros;
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public int getActualSize() {
+        return actualSize;
+    }
+
+    public void setActualSize(int actualSize) {
+        this.actualSize = actualSize;
+    }
+
+    public int getFragmentation() {
+        return fragmentation;
+    }
+
+    public void setFragmentation(int fragmentation) {
+        this.fragmentation = fragmentation;
+    }
+
+    public boolean isCompactionInProgress() {
+        return compactionInProgress;
+    }
+
+    public void setCompactionInProgress(boolean compactionInProgress) {
+        this.compactionInProgress = compactionInProgress;
+    }
+
+    public long getCompactions() {
+        return compactions;
+    }
+
+    public void setCompactions(long compactions) {
+        this.compactions = compactions;
+    }
+
+    public long getCompactionSteps() {
+        return compactionSteps;
+    }
+
+    public void setCompactionSteps(long compactionSteps) {
+        this.compactionSteps = compactionSteps;
+    }
+
+    public long getLastCompactionPauseMicros() {
+        return lastCompactionPauseMicros;
+    }
+
+    public void setLastCompactionPauseMicros(long lastCompactionPauseMicros) {
+        this.lastCompactionPauseMicros = lastCompactionPauseMicros;
+    }
+
+    public long getMaxCompactionPauseMicros() {
+        return maxCompactionPauseMicros;
+    }
+
+    public void setMaxCompactionPauseMicros(long maxCompactionPauseMicros) {
+        this.maxCompactionPauseMicros = maxCompactionPauseMicros;
+    }
+
+    public long getTotalCompactionPauseMicros() {
+        return totalCompactionPauseMicros;
+    }
+
+    public void setTotalCompactionPauseMicros(long totalCompactionPauseMicros) {
+        this.totalCompactionPauseMicros = totalCompactionPauseMicros;
+    }
 
     public List<TaskStatus> getTasks() {
         return tasks;
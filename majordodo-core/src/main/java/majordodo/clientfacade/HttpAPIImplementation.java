@@ -19,23 +19,29 @@
  */
 package majordodo.clientfacade;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -53,6 +59,8 @@ import majordodo.task.Task;
 public class HttpAPIImplementation {
 
     private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Set<String> STREAMING_VIEWS = new HashSet<>(Arrays.asList("tasks", "tasksheap", "delayedqueue", "slots", "transactions"));
+    private static final int STREAMING_CHUNK_SIZE = 1000;
     private static final Logger LOGGER = Logger.getLogger(HttpAPIImplementation.class.getName());
 
     private static AuthenticatedUser login(HttpServletRequest req) {
@@ -94,6 +102,13 @@ public class HttpAPIImplementation {
         if (view == null) {
             view = "overview";
         }
+        if (broker != null && STREAMING_VIEWS.contains(view)) {
+            if (broker.getConfiguration().isApiCorsEnabled()) {
+                resp.setHeader("Access-Control-Allow-Origin", "*");
+            }
+            streamView(view, req, resp, broker);
+            return;
+        }
         Map<String, Object> resultMap = new HashMap<>();
         resultMap.put("ok", "true");
         if (broker == null) {
@@ -118,6 +133,23 @@ public class HttpAPIImplementation {
                     resultMap.put("errortasks", status.getErrorTasks());
                     resultMap.put("waitingtasks", status.getWaitingTasks());
                     resultMap.put("finishedtasks", status.getFinishedTasks());
+                    resultMap.put("emptyscanhits", status.getEmptyScanHits());
+                    resultMap.put("emptyscanmisses", status.getEmptyScanMisses());
+                    resultMap.put("taskpropertiescachesize", status.getTaskPropertiesCacheSize());
+                    resultMap.put("taskpropertiescachehits", status.getTaskPropertiesCacheHits());
+                    resultMap.put("taskpropertiescachemisses", status.getTaskPropertiesCacheMisses());
+                    resultMap.put("taskpropertiescacheevictions", status.getTaskPropertiesCacheEvictions());
+                    resultMap.put("compactedfinishedtasks", status.getCompactedFinishedTasks());
+                    resultMap.put("finishedtasksreclaimedmemory", status.getFinishedTasksReclaimedMemory());
+                    Map<String, Object> commitLatencies = new HashMap<>();
+                    status.getCommitLatencies().forEach((editType, latency) -> {
+                        Map<String, Object> l = new HashMap<>();
+                        l.put("count", latency.getCount());
+                        l.put("averagemicros", latency.getAverageMicros());
+                        l.put("maxmicros", latency.getMaxMicros());
+                        commitLatencies.put(editType, l);
+                    });
+                    resultMap.put("commitlatencies", commitLatencies);
                 } else {
                     resultMap.put("status", "not_started");
                     resultMap.put("version", Broker.VERSION());
@@ -147,38 +179,6 @@ public class HttpAPIImplementation {
                     resultMap.put("status", "not_started");
                 }
                 break;
-            case "tasksheap":
-                if (broker != null) {
-                    resultMap.put("tasksheap", broker.getClient().getHeapStatus());
-                    resultMap.put("status", broker.getClient().getBrokerStatus());
-                } else {
-                    resultMap.put("status", "not_started");
-                }
-                break;
-            case "delayedqueue":
-                if (broker != null) {
-                    resultMap.put("delayedqueue", broker.getClient().getDelayedTasksQueueView());
-                    resultMap.put("status", broker.getClient().getBrokerStatus());
-                } else {
-                    resultMap.put("status", "not_started");
-                }
-                break;
-            case "slots":
-                if (broker != null) {
-                    resultMap.put("slots", broker.getClient().getSlotsStatusView());
-                    resultMap.put("status", broker.getClient().getBrokerStatus());
-                } else {
-                    resultMap.put("status", "not_started");
-                }
-                break;
-            case "transactions":
-                if (broker != null) {
-                    resultMap.put("transactions", broker.getClient().getTransactionsStatusView());
-                    resultMap.put("status", broker.getClient().getBrokerStatus());
-                } else {
-                    resultMap.put("status", "not_started");
-                }
-                break;
             case "workers":
                 if (broker != null) {
                     resultMap.put("workers", broker.getClient().getAllWorkers());
@@ -219,98 +219,6 @@ public class HttpAPIImplementation {
                     resultMap.put("status", "not_started");
                 }
                 break;
-            case "tasks":
-                if (broker != null) {
-                    int max = 100;
-                    if (req.getParameter("max") != null) {
-                        max = Integer.parseInt(req.getParameter("max"));
-                    }
-                    String worker = req.getParameter("workerId");
-
-                    String tasktype = req.getParameter("tasktype");
-
-                    String status = req.getParameter("status");
-                    if (status == null) {
-                        status = "all";
-                    }
-                    String slot = req.getParameter("slot");
-
-                    String user = req.getParameter("userId");
-
-                    resultMap.put("max", max);
-                    List<Map<String, Object>> tt;
-                    Predicate<TaskStatusView> filterPred;
-                    Predicate<TaskStatusView> filterWorker;
-                    Predicate<TaskStatusView> filterTasktype;
-                    Predicate<TaskStatusView> filterSlots;
-                    Predicate<TaskStatusView> filterUser;
-                    switch (status) {
-                        case "all":
-                            filterPred = (t) -> true;
-                            break;
-                        case "waiting":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_WAITING;
-                            break;
-                        case "delayed":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_DELAYED;
-                            break;
-                        case "running":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_RUNNING;
-                            break;
-                        case "error":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_ERROR;
-                            break;
-                        case "finished":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_FINISHED;
-                            break;
-                        default:
-                            filterPred = (t) -> false;
-                    }
-
-                    if (worker != null && !worker.isEmpty()) {
-                        filterWorker = (t) -> {
-                            return worker.equalsIgnoreCase(t.getWorkerId());
-                        };
-                    } else {
-                        filterWorker = (t) -> true;
-                    }
-                    if (slot != null && !slot.isEmpty()) {
-                        filterSlots = (t) -> {
-                            return slot.equalsIgnoreCase(t.getSlot());
-                        };
-                    } else {
-                        filterSlots = (t) -> true;
-                    }
-
-                    if (user != null && !user.isEmpty()) {
-                        filterUser = (t) -> {
-                            return user.equalsIgnoreCase(t.getUser());
-                        };
-                    } else {
-                        filterUser = (t) -> true;
-                    }
-
-                    if (tasktype != null && !tasktype.isEmpty()) {
-                        filterTasktype = (t) -> {
-                            return tasktype.equalsIgnoreCase(t.getType());
-                        };
-                    } else {
-                        filterTasktype = (t) -> true;
-                    }
-
-                    tt = broker.getClient().getAllTasks().stream().filter(filterPred).filter(filterUser).filter(filterSlots).filter(filterWorker).filter(filterTasktype).limit(max).map(t -> {
-                        Map<String, Object> map = serializeTaskForClient(t);
-                        return map;
-                    }).collect(Collectors.toList());
-
-                    resultMap.put("tasks", tt);
-                    resultMap.put("count", tt.size());
-                    resultMap.put("status", broker.getClient().getBrokerStatus());
-                } else {
-                    resultMap.put("status", "not_started");
-                }
-                break;
-
             case "tasksoverview":
                 if (broker != null) {
                     String worker = req.getParameter("workerId");
@@ -319,56 +227,11 @@ public class HttpAPIImplementation {
                     if (filter == null) {
                         filter = "all";
                     }
-                    List<Map<String, Object>> tt;
-                    Predicate<TaskStatusView> filterPred;
-                    Predicate<TaskStatusView> filterWorker;
-                    Predicate<TaskStatusView> filterTasktype;
-                    switch (filter) {
-                        case "all":
-                            filterPred = (t) -> true;
-
-                            break;
-                        case "waiting":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_WAITING;
-                            break;
-                        case "delayed":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_DELAYED;
-                            break;
-                        case "running":
-                            filterPred = (t)
-                                -> t.getStatus() == Task.STATUS_RUNNING;
-                            break;
-                        case "error":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_ERROR;
-                            break;
-                        case "finished":
-                            filterPred = (t) -> t.getStatus() == Task.STATUS_FINISHED;
-                            break;
-                        default:
-                            filterPred = (t) -> false;
-                    }
-
-                    if (worker != null && !worker.isEmpty()) {
-                        filterWorker = (t) -> {
-                            return worker.equalsIgnoreCase(t.getWorkerId());
-                        };
-                    } else {
-                        filterWorker = (t) -> true;
-                    }
-
-                    if (tasktype != null && !tasktype.isEmpty()) {
-                        filterTasktype = (t) -> {
-                            return tasktype.equalsIgnoreCase(t.getType());
-                        };
-                    } else {
-                        filterTasktype = (t) -> true;
-                    }
-
-                    Map<String, Long> groupByTaskType = broker.getClient().getAllTasks().stream()
-                        .filter(filterPred).filter(filterWorker).filter(filterTasktype)
-                        .collect(
-                            Collectors.groupingBy(TaskStatusView::getType, Collectors.counting())
-                        );
+                    TasksQuery query = new TasksQuery();
+                    query.setStatus(parseStatusFilter(filter));
+                    query.setWorkerId(worker);
+                    query.setTaskType(tasktype);
+                    Map<String, Long> groupByTaskType = broker.getClient().countTasksByType(query);
 
                     resultMap.put("tasks", groupByTaskType);
                     resultMap.put("count", groupByTaskType.values().stream().collect(Collectors.summingLong((l) -> l)));
@@ -377,6 +240,14 @@ public class HttpAPIImplementation {
                     resultMap.put("status", "not_started");
                 }
                 break;
+            case "tasks":
+            case "tasksheap":
+            case "delayedqueue":
+            case "slots":
+            case "transactions":
+                // with a running broker these views are streamed, see streamView
+                resultMap.put("status", "not_started");
+                break;
 
         }
 
@@ -392,6 +263,187 @@ public class HttpAPIImplementation {
         }
     }
 
+    /**
+     * Writes views which can be large incrementally, straight to the output stream. Broker state is read in chunks of
+     * {@link #STREAMING_CHUNK_SIZE} items, so that locks are not held for the whole response. The response is
+     * compressed if the client accepts gzip
+     */
+    private static void streamView(String view, HttpServletRequest req, HttpServletResponse resp, Broker broker) throws IOException {
+        ClientFacade client = broker.getClient();
+        TasksQuery query = null;
+        if (view.equals("tasks")) {
+            // parse parameters before starting the response
+            query = parseTasksQuery(req);
+        }
+        resp.setContentType("application/json;charset=utf-8");
+        OutputStream out = resp.getOutputStream();
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            resp.setHeader("Content-Encoding", "gzip");
+            out = new GZIPOutputStream(out, 64 * 1024);
+        }
+        try (JsonGenerator json = MAPPER.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            json.writeStringField("ok", "true");
+            switch (view) {
+                case "tasks":
+                    writeTasks(json, client, query);
+                    break;
+                case "tasksheap": {
+                    HeapStatusView summary = client.getHeapStatusSummary();
+                    json.writeObjectFieldStart("tasksheap");
+                    json.writeArrayFieldStart("tasks");
+                    List<HeapStatusView.TaskStatus> chunk = new ArrayList<>(STREAMING_CHUNK_SIZE);
+                    int position = 0;
+                    while (position >= 0) {
+                        chunk.clear();
+                        position = client.scanHeap(position, STREAMING_CHUNK_SIZE, chunk::add);
+                        for (HeapStatusView.TaskStatus task : chunk) {
+                            json.writeObject(task);
+                        }
+                    }
+                    json.writeEndArray();
+                    writeFieldsExcept(json, summary, "tasks");
+                    json.writeEndObject();
+                    break;
+                }
+                case "delayedqueue": {
+                    json.writeObjectFieldStart("delayedqueue");
+                    json.writeArrayFieldStart("tasks");
+                    client.scanDelayedTasks(task -> {
+                        try {
+                            json.writeObject(task);
+                        } catch (IOException err) {
+                            throw new UncheckedIOException(err);
+                        }
+                    });
+                    json.writeEndArray();
+                    json.writeEndObject();
+                    break;
+                }
+                case "slots": {
+                    json.writeObjectFieldStart("slots");
+                    json.writeObjectFieldStart("busySlots");
+                    // live concurrent map, iteration does not need any lock
+                    for (Map.Entry<String, Long> slot : client.getSlotsStatusView().getBusySlots().entrySet()) {
+                        json.writeNumberField(slot.getKey(), slot.getValue());
+                    }
+                    json.writeEndObject();
+                    json.writeEndObject();
+                    break;
+                }
+                case "transactions": {
+                    json.writeObjectFieldStart("transactions");
+                    json.writeArrayFieldStart("transactions");
+                    List<Long> transactionIds = client.getTransactionIds();
+                    for (int i = 0; i < transactionIds.size(); i += STREAMING_CHUNK_SIZE) {
+                        List<Long> chunk = transactionIds.subList(i, Math.min(i + STREAMING_CHUNK_SIZE, transactionIds.size()));
+                        for (TransactionStatus transaction : client.getTransactions(chunk)) {
+                            json.writeObject(transaction);
+                        }
+                    }
+                    json.writeEndArray();
+                    json.writeEndObject();
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("view " + view + " is not streamed");
+            }
+            json.writeObjectField("status", client.getBrokerStatus());
+            json.writeEndObject();
+        } catch (UncheckedIOException err) {
+            throw err.getCause();
+        }
+    }
+
+    private static TasksQuery parseTasksQuery(HttpServletRequest req) {
+        int max = 100;
+        if (req.getParameter("max") != null) {
+            max = Integer.parseInt(req.getParameter("max"));
+        }
+        long fromTaskId = 0;
+        if (req.getParameter("fromTaskId") != null) {
+            fromTaskId = Long.parseLong(req.getParameter("fromTaskId"));
+        }
+        String status = req.getParameter("status");
+        if (status == null) {
+            status = "all";
+        }
+        TasksQuery query = new TasksQuery();
+        query.setStatus(parseStatusFilter(status));
+        query.setUserId(req.getParameter("userId"));
+        query.setWorkerId(req.getParameter("workerId"));
+        query.setTaskType(req.getParameter("tasktype"));
+        query.setSlot(req.getParameter("slot"));
+        query.setFromTaskId(fromTaskId);
+        query.setMax(max);
+        return query;
+    }
+
+    /**
+     * Writes the page of tasks requested by the query, reading it in chunks
+     */
+    private static void writeTasks(JsonGenerator json, ClientFacade client, TasksQuery query) throws IOException {
+        int max = query.getMax();
+        json.writeNumberField("max", max);
+        json.writeArrayFieldStart("tasks");
+        int count = 0;
+        long lastTaskId = -1;
+        while (count < max) {
+            int chunkSize = Math.min(STREAMING_CHUNK_SIZE, max - count);
+            query.setMax(chunkSize);
+            List<TaskStatusView> chunk = client.getTasks(query);
+            for (TaskStatusView task : chunk) {
+                json.writeObject(serializeTaskForClient(task));
+                lastTaskId = task.getTaskId();
+            }
+            count += chunk.size();
+            if (chunk.size() < chunkSize) {
+                break;
+            }
+            query.setFromTaskId(lastTaskId + 1);
+        }
+        json.writeEndArray();
+        json.writeNumberField("count", count);
+        if (count > 0 && count == max) {
+            // cursor for the next page
+            json.writeNumberField("nextTaskId", lastTaskId + 1);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeFieldsExcept(JsonGenerator json, Object bean, String excludedField) throws IOException {
+        Map<String, Object> fields = MAPPER.convertValue(bean, Map.class);
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (!field.getKey().equals(excludedField)) {
+                json.writeObjectField(field.getKey(), field.getValue());
+            }
+        }
+    }
+
+    /**
+     * Maps the status filter of the UI to a task status, null means any status
+     */
+    private static Integer parseStatusFilter(String filter) {
+        switch (filter) {
+            case "all":
+                return null;
+            case "waiting":
+                return Task.STATUS_WAITING;
+            case "delayed":
+                return Task.STATUS_DELAYED;
+            case "running":
+                return Task.STATUS_RUNNING;
+            case "error":
+                return Task.STATUS_ERROR;
+            case "finished":
+                return Task.STATUS_FINISHED;
+            default:
+                // no task has this status
+                return -1;
+        }
+    }
+
     private static Map<String, Object> serializeCodePoolForClient(CodePoolView t) {
         Map<String, Object> map = new HashMap<>();
         if (t == null) {
@@ -0,0 +1,99 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.clientfacade;
+
+/**
+ * Filters and cursor for a page of tasks. String filters are case insensitive, null filters match every task. Tasks
+ * are returned in order of taskId, starting from {@link #getFromTaskId() }
+ *
+ * @author enrico.olivelli
+ */
+public class TasksQuery {
+
+    private Integer status;
+    private String userId;
+    private String workerId;
+    private String taskType;
+    private String slot;
+    private long fromTaskId;
+    private int max = Integer.MAX_VALUE;
+
+    public Integer getStatus() {
+        return status;
+    }
+
+    public void setStatus(Integer status) {
+        this.status = status;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    public void setWorkerId(String workerId) {
+        this.workerId = workerId;
+    }
+
+    public String getTaskType() {
+        return taskType;
+    }
+
+    public void setTaskType(String taskType) {
+        this.taskType = taskType;
+    }
+
+    public String getSlot() {
+        return slot;
+    }
+
+    public void setSlot(String slot) {
+        this.slot = slot;
+    }
+
+    public long getFromTaskId() {
+        return fromTaskId;
+    }
+
+    public void setFromTaskId(long fromTaskId) {
+        this.fromTaskId = fromTaskId;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public void setMax(int max) {
+        this.max = max;
+    }
+
+    @Override
+    public String toString() {
+        return "TasksQuery{" + "status=" + status + ", userId=" + userId + ", workerId=" + workerId + ", taskType=" + taskType + ", slot=" + slot + ", fromTaskId=" + fromTaskId + ", max=" + max + '}';
+    }
+
+}
@@ -61,6 +61,7 @@ import majordodo.network.ConnectionRequestInfo;
 import majordodo.network.Message;
 import majordodo.network.netty.NettyBrokerLocator;
 import majordodo.task.BrokerStatusSnapshot;
+import majordodo.task.EditDurability;
 import majordodo.task.LogNotAvailableException;
 import majordodo.task.LogSequenceNumber;
 import majordodo.task.StatusChangesLog;
@@ -187,6 +188,8 @@ public class ReplicatedCommitLog extends StatusChangesLog {
     private class CommitFileWriter implements AutoCloseable {
 
         private LedgerHandle out;
+        // last ASYNC write, BookKeeper acknowledges writes in order
+        private AsyncWrite lastAsyncWrite;
 
         private CommitFileWriter() throws LogNotAvailableException {
             try {
@@ -245,11 +248,47 @@ public class ReplicatedCommitLog extends StatusChangesLog {
             }
         }
 
+        /**
+         * Writes an entry without waiting for the acknowledge of the bookies, see {@link EditDurability.Mode#ASYNC}.
+         * If the write fails later the broker cannot go on, as the edit has already been applied.
+         * <p>
+         * The ledger is never rolled here, so that the entries of a batch all belong to the current ledger: call
+         * {@link #openNewLedgerIfFull() } after their sequence numbers have been built
+         */
+        public long writeEntryAsync(StatusEdit edit) throws LogNotAvailableException, BKException.BKLedgerClosedException {
+            byte[] serialize = edit.serialize();
+            AsyncWrite write = new AsyncWrite();
+            long lastPushed = out.getLastAddPushed();
+            out.asyncAddEntry(serialize, write, null);
+            long res = out.getLastAddPushed();
+            if (res == lastPushed) {
+                // the write has been rejected immediately, for instance the ledger has been closed
+                LOGGER.log(Level.SEVERE, "async write rejected by ledger " + out);
+                throw new BKException.BKLedgerClosedException();
+            }
+            write.pushed();
+            lastAsyncWrite = write;
+            writtenBytes += serialize.length;
+            return res;
+        }
+
+        public void openNewLedgerIfFull() throws LogNotAvailableException {
+            if (writtenBytes > maxLogicalLogFileSize) {
+                LOGGER.log(Level.SEVERE, "{0} bytes written to ledger. need to open a new one", writtenBytes);
+                openNewLedger();
+            }
+        }
+
         public void close() throws LogNotAvailableException {
             if (out == null) {
                 return;
             }
             try {
+                if (lastAsyncWrite != null) {
+                    // closing the ledger would make pending writes fail
+                    lastAsyncWrite.await();
+                    lastAsyncWrite = null;
+                }
                 out.close();
             } catch (Exception err) {
                 throw new LogNotAvailableException(err);
@@ -331,6 +370,50 @@ public class ReplicatedCommitLog extends StatusChangesLog {
         }
     }
 
+    private final class AsyncWrite implements AsyncCallback.AddCallback {
+
+        private boolean pushed;
+        private boolean done;
+        private int rc = BKException.Code.OK;
+
+        @Override
+        public void addComplete(int rc, LedgerHandle lh, long entryId, Object ctx) {
+            boolean failed;
+            synchronized (this) {
+                this.rc = rc;
+                this.done = true;
+                notifyAll();
+                failed = pushed && rc != BKException.Code.OK;
+            }
+            if (failed) {
+                failed();
+            }
+        }
+
+        void pushed() {
+            boolean failed;
+            synchronized (this) {
+                pushed = true;
+                failed = done && rc != BKException.Code.OK;
+            }
+            if (failed) {
+                failed();
+            }
+        }
+
+        synchronized void await() throws InterruptedException {
+            while (!done) {
+                wait();
+            }
+        }
+
+        private void failed() {
+            BKException error = BKException.create(rc);
+            LOGGER.log(Level.SEVERE, "async write failed, an edit which has already been acknowledged has been lost", error);
+            signalBrokerFailed(error);
+        }
+    }
+
     private final ConnectionRequestInfo brokerConnectionRequestInfo = new ConnectionRequestInfo() {
         @Override
         public Set<Long> getRunningTaskIds() {
@@ -478,6 +561,7 @@ public class ReplicatedCommitLog extends StatusChangesLog {
         if (edits.isEmpty()) {
             return Collections.emptyList();
         }
+        long start = System.nanoTime();
         while (true) {
             if (closed) {
                 throw new LogNotAvailableException(new Exception("closed"));
@@ -488,12 +572,26 @@ public class ReplicatedCommitLog extends StatusChangesLog {
                     throw new LogNotAvailableException(new Exception("no ledger opened for writing"));
                 }
                 try {
-                    List<Long> newSequenceNumbers = writer.writeEntries(edits);
+                    List<Long> newSequenceNumbers;
+                    boolean waitForSync = durabilityPolicy.get(edits).isWaitForSync();
+                    if (waitForSync) {
+                        newSequenceNumbers = writer.writeEntries(edits);
+                    } else {
+                        newSequenceNumbers = new ArrayList<>(edits.size());
+                        for (StatusEdit edit : edits) {
+                            newSequenceNumbers.add(writer.writeEntryAsync(edit));
+                        }
+                    }
                     lastSequenceNumber = newSequenceNumbers.stream().max(Comparator.naturalOrder()).get();
                     List<LogSequenceNumber> res = new ArrayList<>();
                     for (Long newSequenceNumber : newSequenceNumbers) {
                         res.add(new LogSequenceNumber(currentLedgerId, newSequenceNumber));
                     }
+                    if (!waitForSync) {
+                        // the whole batch has been written to the current ledger
+                        writer.openNewLedgerIfFull();
+                    }
+                    recordCommitLatency(edits, start);
                     return res;
                 } catch (BKException.BKLedgerClosedException closed) {
                     LOGGER.log(Level.SEVERE, "ledger has been closed, need to open a new ledger", closed);
@@ -522,6 +620,9 @@ public class ReplicatedCommitLog extends StatusChangesLog {
 
     @Override
     public LogSequenceNumber logStatusEdit(StatusEdit edit) throws LogNotAvailableException {
+        long start = System.nanoTime();
+        // GROUP_COMMIT is handled like SYNC, bookies already group the writes to their journal
+        boolean waitForSync = durabilityPolicy.get(edit.editType).isWaitForSync();
         while (true) {
             if (closed) {
                 throw new LogNotAvailableException(new Exception("closed"));
@@ -532,9 +633,14 @@ public class ReplicatedCommitLog extends StatusChangesLog {
                     throw new LogNotAvailableException(new Exception("no ledger opened for writing"));
                 }
                 try {
-                    long newSequenceNumber = writer.writeEntry(edit);
+                    long newSequenceNumber = waitForSync ? writer.writeEntry(edit) : writer.writeEntryAsync(edit);
                     lastSequenceNumber = newSequenceNumber;
-                    return new LogSequenceNumber(currentLedgerId, newSequenceNumber);
+                    LogSequenceNumber res = new LogSequenceNumber(currentLedgerId, newSequenceNumber);
+                    if (!waitForSync) {
+                        writer.openNewLedgerIfFull();
+                    }
+                    recordCommitLatency(edit, start);
+                    return res;
                 } catch (BKException.BKLedgerClosedException closed) {
                     LOGGER.log(Level.SEVERE, "ledger has been closed, need to open a new ledger", closed);
                     Thread.sleep(1000);
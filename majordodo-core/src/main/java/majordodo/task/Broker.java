@@ -27,14 +27,15 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.DelayQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import majordodo.clientfacade.AddTaskRequest;
@@ -123,7 +124,8 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
 
     private final Workers workers;
     public final TasksHeap tasksHeap;
-    private final DelayQueue<Task> delayedTasksQueue = new DelayQueue<>();
+    private final TasksSchedulingPolicy schedulingPolicy;
+    private final DelayedTasksScheduler delayedTasksScheduler;
     private final BrokerStatus brokerStatus;
     private final StatusChangesLog log;
     private final ResourceUsageCounters globalResourceUsageCounters;
@@ -187,11 +189,19 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         this.client = new ClientFacade(this);
         this.brokerStatus = new BrokerStatus(log);
         this.tasksHeap = tasksHeap;
+        this.tasksHeap.setCompactionSegmentSize(configuration.getTasksHeapCompactionSegmentSize());
+        this.tasksHeap.setInsertStaging(configuration.isTasksHeapInsertStaging());
+        this.tasksHeap.setParallelScanThreshold(configuration.getTasksHeapParallelScanThreshold());
+        this.schedulingPolicy = createSchedulingPolicy(configuration.getSchedulingPolicy());
+        this.brokerStatus.setSchedulingPolicy(schedulingPolicy);
+        this.brokerStatus.setFinishedTasksCompactionThreshold(configuration.getFinishedTasksCompactionThreshold());
+        this.tasksHeap.setSchedulingPolicy(schedulingPolicy);
         this.log = log;
         this.log.setFailureListener(this);
         this.checkpointScheduler = new CheckpointScheduler(configuration, this);
         this.groupMapperScheduler = new ResourcesScheduler(configuration, this);
         this.finishedTaskCollectorScheduler = new FinishedTaskCollectorScheduler(configuration, this);
+        this.delayedTasksScheduler = new DelayedTasksScheduler(configuration, this);
         this.brokerStatusMonitor = new BrokerStatusMonitor(configuration, this);
         this.brokerLifeThread = new Thread(brokerLife, "broker-life");
         this.brokerLifeThread.setDaemon(true);
@@ -202,6 +212,37 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         this.globalResourceUsageCounters = new ResourceUsageCounters("global-" + brokerId);
     }
 
+    private static TasksSchedulingPolicy createSchedulingPolicy(String policy) {
+        if (policy == null || policy.isEmpty() || BrokerConfiguration.SCHEDULING_POLICY_NONE.equals(policy)) {
+            return null;
+        }
+        if (BrokerConfiguration.SCHEDULING_POLICY_FAIRSHARE.equals(policy)) {
+            return new WeightedFairSharePolicy();
+        }
+        try {
+            return (TasksSchedulingPolicy) Class.forName(policy, true, Broker.class.getClassLoader())
+                .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException err) {
+            throw new IllegalArgumentException("bad schedulingPolicy " + policy + ", valid values are "
+                + BrokerConfiguration.SCHEDULING_POLICY_NONE + ", " + BrokerConfiguration.SCHEDULING_POLICY_FAIRSHARE
+                + " or the name of a class which implements " + TasksSchedulingPolicy.class.getName(), err);
+        }
+    }
+
+    /**
+     * The cache of task properties, if configured. Use it in order to invalidate properties which changed
+     *
+     * @return the cache or null
+     */
+    public CachingTaskPropertiesMapperFunction getTaskPropertiesCache() {
+        TaskPropertiesMapperFunction function = tasksHeap.getTaskPropertiesMapperFunction();
+        return function instanceof CachingTaskPropertiesMapperFunction ? (CachingTaskPropertiesMapperFunction) function : null;
+    }
+
+    public TasksSchedulingPolicy getSchedulingPolicy() {
+        return schedulingPolicy;
+    }
+
     private boolean recoveryInProgress = false;
 
     public void start() {
@@ -263,18 +304,19 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                 brokerStatus.setReadonly(true);
                 Map<String, Long> busySlots = new HashMap<>();
                 Collection<Task> tasksAtBoot = brokerStatus.getTasksAtBoot();
+                List<Task> waitingTasksAtBoot = new ArrayList<>();
                 for (Task task : tasksAtBoot) {
                     switch (task.getStatus()) {
                         case Task.STATUS_WAITING:
                             LOGGER.log(Level.INFO, "Task {0}, {1}, user={2}, slot={3} is to be scheduled (status=waiting)", new Object[]{task.getTaskId(), task.getType(), task.getUserId(), task.getSlot()});
-                            tasksHeap.insertTask(task.getTaskId(), task.getType(), task.getUserId());
+                            waitingTasksAtBoot.add(task);
                             if (task.getSlot() != null && !task.getSlot().isEmpty()) {
                                 busySlots.put(task.getSlot(), task.getTaskId());
                             }
                             break;
                         case Task.STATUS_DELAYED:
                             LOGGER.log(Level.INFO, "Task {0}, {1}, user={2}, slot={3} is to be scheduled (status=delayed)", new Object[]{task.getTaskId(), task.getType(), task.getUserId(), task.getSlot()});
-                            delayedTasksQueue.add(task);
+                            delayedTasksScheduler.add(task);
                             if (task.getSlot() != null && !task.getSlot().isEmpty()) {
                                 busySlots.put(task.getSlot(), task.getTaskId());
                             }
@@ -291,6 +333,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
 
                     }
                 }
+                tasksHeap.insertTasks(waitingTasksAtBoot);
                 for (Transaction t : brokerStatus.getTransactionsAtBoot()) {
                     if (t.getPreparedTasks() != null) {
                         for (Task task : t.getPreparedTasks()) {
@@ -310,6 +353,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                 workers.start(brokerStatus, deadWorkerTasks,
                     workersConnectedAtBoot, globalResourceUsageCounters, tasksAtBoot, workersAtBoot);
                 started = true;
+                delayedTasksScheduler.start();
                 for (Map.Entry<String, Collection<Long>> workerTasksToRecovery : deadWorkerTasks.entrySet()) {
                     tasksNeedsRecoveryDueToWorkerDeath(workerTasksToRecovery.getValue(), workerTasksToRecovery.getKey());
                 }
@@ -323,7 +367,8 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                             // to other follower brokers
                             noop();
                         }
-                        resumeDelayedTasks();
+                        // merge inserts which were not picked up by any worker
+                        tasksHeap.drainStagedTasks();
                         if (externalProcessChecker != null) {
                             externalProcessChecker.call();
                         }
@@ -341,25 +386,55 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
 
     };
 
-    public void resumeDelayedTasks() throws LogNotAvailableException {
-        List<Task> tasksToResume = new ArrayList<>();
-        List<StatusEdit> edits = new ArrayList<>();
-        delayedTasksQueue.drainTo(tasksToResume, MAX_SIMULTANEOUS_RESUMED_TASKS);
-        for (Task task : tasksToResume) {
-            edits.add(StatusEdit.TASK_STATUS_CHANGE(task.getTaskId(), null, Task.STATUS_WAITING, null));
-        }
-        List<BrokerStatus.ModificationResult> results = brokerStatus.applyModifications(edits);
-        int i = 0;
-        for (BrokerStatus.ModificationResult mod : results) {
-            Task task = tasksToResume.get(i++);
-            if (mod.error == null) {
-                LOGGER.log(Level.FINER, "task {0} resumed", task.getTaskId());
-            } else {
-                //LOGGER.log(Level.SEVERE, String.format("fail to resume task %s (%s)", task.getTaskId(), mod.error));
-                throw new IllegalStateException(String.format("fail to resume task %s (%s)", task.getTaskId(), mod.error));
+    /**
+     * Moves delayed tasks to the waiting status, with batches of edits of at most
+     * {@link #MAX_SIMULTANEOUS_RESUMED_TASKS} tasks. Called by the {@link DelayedTasksScheduler}. Tasks which cannot be
+     * resumed are scheduled again one tick later, as they are no more in the scheduler
+     *
+     * @param tasksToResume
+     */
+    void resumeDelayedTasks(List<Task> tasksToResume) {
+        for (int from = 0; from < tasksToResume.size() && !stopped; from += MAX_SIMULTANEOUS_RESUMED_TASKS) {
+            List<Task> batch = new ArrayList<>(MAX_SIMULTANEOUS_RESUMED_TASKS);
+            for (Task task : tasksToResume.subList(from, Math.min(tasksToResume.size(), from + MAX_SIMULTANEOUS_RESUMED_TASKS))) {
+                // a task scheduled again after a failure may have changed its status meanwhile
+                if (task.getStatus() == Task.STATUS_DELAYED) {
+                    batch.add(task);
+                }
+            }
+            List<StatusEdit> edits = new ArrayList<>(batch.size());
+            for (Task task : batch) {
+                edits.add(StatusEdit.TASK_STATUS_CHANGE(task.getTaskId(), null, Task.STATUS_WAITING, null));
+            }
+            List<BrokerStatus.ModificationResult> results;
+            try {
+                results = brokerStatus.applyModifications(edits);
+            } catch (LogNotAvailableException error) {
+                LOGGER.log(Level.SEVERE, "cannot resume delayed tasks", error);
+                shutdown();
+                return;
+            } catch (RuntimeException error) {
+                // part of the batch may have been applied, the status cannot be trusted anymore
+                brokerFailed(error);
+                return;
+            }
+            List<Task> resumedTasks = new ArrayList<>(batch.size());
+            List<Task> failedTasks = new ArrayList<>();
+            int i = 0;
+            for (BrokerStatus.ModificationResult mod : results) {
+                Task task = batch.get(i++);
+                if (mod.error == null) {
+                    LOGGER.log(Level.FINER, "task {0} resumed", task.getTaskId());
+                    resumedTasks.add(task);
+                } else {
+                    LOGGER.log(Level.SEVERE, "fail to resume task {0} ({1}), retrying later", new Object[]{task.getTaskId(), mod.error});
+                    failedTasks.add(task);
+                }
+            }
+            tasksHeap.insertTasks(resumedTasks);
+            if (!failedTasks.isEmpty()) {
+                delayedTasksScheduler.retryLater(failedTasks);
             }
-            tasksHeap.insertTask(task.getTaskId(), task.getType(), task.getUserId());
-
         }
     }
 
@@ -378,6 +453,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         JVMBrokersRegistry.unregisterBroker(brokerId);
         this.brokerStatusMonitor.stop();
         this.finishedTaskCollectorScheduler.stop();
+        this.delayedTasksScheduler.stop();
         this.checkpointScheduler.stop();
         this.groupMapperScheduler.stop();
         this.workers.stop();
@@ -469,6 +545,90 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         return tasks;
     }
 
+    /**
+     * Assigns tasks to many workers at once: the heap is scanned only once and all the assignments are written to the
+     * log in a single batch. Assigned tasks are stored in each request, only the tasks whose assignment has been
+     * logged are kept: if the log is not available no task is left in the requests.
+     *
+     * @param requests
+     * @throws LogNotAvailableException
+     * @see TasksHeap#takeTasks(java.util.List, java.util.Map, majordodo.task.ResourceUsageCounters)
+     */
+    public void assignTasksToWorkers(List<WorkerTasksRequest> requests) throws LogNotAvailableException {
+        if (!started || requests.isEmpty()) {
+            return;
+        }
+        for (WorkerTasksRequest request : requests) {
+            if (request.maxThreadPerUserPerTaskTypePercent > 0) {
+                request.availableSpacePerUser = this.brokerStatus
+                    .collectMaxAvailableSpacePerUserOnWorker(request.workerId, request.maxThreadPerUserPerTaskTypePercent, request.availableSpace);
+            }
+        }
+        Map<String, Integer> globalResourceLimits = globalResourceLimitsConfiguration.getGlobalResourceLimits();
+        long start = System.currentTimeMillis();
+        tasksHeap.takeTasks(requests, globalResourceLimits, globalResourceUsageCounters);
+
+        long now = System.currentTimeMillis();
+        List<StatusEdit> edits = new ArrayList<>();
+        Map<Long, String[]> resourcesByTaskId = new HashMap<>();
+        int count = 0;
+        for (WorkerTasksRequest request : requests) {
+            for (AssignedTask entry : request.assignedTasks) {
+                long taskId = entry.taskid;
+                Task task = this.brokerStatus.getTask(taskId);
+                if (task != null) {
+                    StatusEdit edit = StatusEdit.ASSIGN_TASK_TO_WORKER(taskId, request.workerId, task.getAttempts() + 1, entry.resources);
+                    edits.add(edit);
+                    resourcesByTaskId.put(taskId, entry.resourceIds);
+                }
+            }
+            count += request.assignedTasks.size();
+        }
+        if (edits.isEmpty()) {
+            for (WorkerTasksRequest request : requests) {
+                request.assignedTasks = Collections.emptyList();
+            }
+            return;
+        }
+
+        List<BrokerStatus.ModificationResult> modifications;
+        try {
+            modifications = brokerStatus.applyModifications(edits);
+        } catch (LogNotAvailableException err) {
+            // the assignments have not been logged, the tasks must not be sent to the workers
+            for (WorkerTasksRequest request : requests) {
+                request.assignedTasks = Collections.emptyList();
+            }
+            throw err;
+        }
+
+        Set<Long> logged = new HashSet<>();
+        for (int i = 0; i < edits.size(); i++) {
+            if (modifications.get(i).sequenceNumber != null) {
+                StatusEdit edit = edits.get(i);
+                logged.add(edit.taskId);
+                String[] resourceIds = resourcesByTaskId.get(edit.taskId);
+                if (resourceIds != null) {
+                    globalResourceUsageCounters.useResources(resourceIds);
+                }
+            }
+        }
+        for (WorkerTasksRequest request : requests) {
+            if (!request.assignedTasks.isEmpty()) {
+                List<AssignedTask> assigned = new ArrayList<>(request.assignedTasks.size());
+                for (AssignedTask entry : request.assignedTasks) {
+                    if (logged.contains(entry.taskid)) {
+                        assigned.add(entry);
+                    }
+                }
+                request.assignedTasks = assigned;
+            }
+        }
+
+        long end = System.currentTimeMillis();
+        LOGGER.log(Level.FINER, "assignTasksToWorkers workers {4} count {3} take: {0}, assign:{1}, total:{2}", new Object[]{now - start, end - now, end - start, count, requests.size()});
+    }
+
     public void checkpoint() throws LogNotAvailableException {
         checkpoint(true);
     }
@@ -478,7 +638,8 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
     }
 
     void purgeTasks() {
-        Set<Long> expired = this.brokerStatus.purgeFinishedTasksAndSignalExpiredTasks(configuration.getFinishedTasksRetention(), configuration.getMaxExpiredTasksPerCycle());
+        Set<Long> expired = this.brokerStatus.purgeFinishedTasksAndSignalExpiredTasks(configuration.getFinishedTasksRetention(),
+            configuration.getMaxExpiredTasksPerCycle(), configuration.getFinishedTasksPurgeSliceSize());
         if (expired.isEmpty()) {
             return;
         }
@@ -538,18 +699,20 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
             throw new IllegalActionException(result.error);
         }
         List<Task> preparedtasks = (List<Task>) result.data;
+        List<Task> waitingTasks = new ArrayList<>(preparedtasks.size());
         for (Task task : preparedtasks) {
             switch (task.getStatus()) {
                 case Task.STATUS_WAITING:
-                    this.tasksHeap.insertTask(task.getTaskId(), task.getType(), task.getUserId());
+                    waitingTasks.add(task);
                     break;
                 case Task.STATUS_DELAYED:
-                    this.delayedTasksQueue.add(task);
+                    this.delayedTasksScheduler.add(task);
                     break;
                 default:
                     throw new IllegalStateException("Impossibile");
             }
         }
+        this.tasksHeap.insertTasks(waitingTasks);
 
     }
 
@@ -592,32 +755,98 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
         res.setDelayedTasks(brokerStatus.getStats().getDelayedTasks());
         res.setErrorTasks(brokerStatus.getStats().getErrorTasks());
         res.setFinishedTasks(brokerStatus.getStats().getFinishedTasks());
+        res.setCompactedFinishedTasks(brokerStatus.getStats().getCompactedFinishedTasks());
+        res.setFinishedTasksReclaimedMemory(brokerStatus.getStats().getFinishedTasksReclaimedMemory());
+        res.setCommitLatencies(log.getCommitLatencyStats().getLatencies());
+        res.setEmptyScanHits(tasksHeap.getEmptyScanHits());
+        res.setEmptyScanMisses(tasksHeap.getEmptyScanMisses());
+        CachingTaskPropertiesMapperFunction taskPropertiesCache = getTaskPropertiesCache();
+        if (taskPropertiesCache != null) {
+            res.setTaskPropertiesCacheSize(taskPropertiesCache.getSize());
+            res.setTaskPropertiesCacheHits(taskPropertiesCache.getHits());
+            res.setTaskPropertiesCacheMisses(taskPropertiesCache.getMisses());
+            res.setTaskPropertiesCacheEvictions(taskPropertiesCache.getEvictions());
+        }
         return res;
     }
 
     public HeapStatusView getHeapStatusView() {
-        HeapStatusView res = new HeapStatusView();
+        HeapStatusView res = getHeapStatusSummary();
         tasksHeap.scan((task) -> {
-            TaskStatus status = new TaskStatus();
-            status.setGroup(task.groupid);
-            status.setTaskId(task.taskid);
-            status.setTaskType(tasksHeap.resolveTaskType(task.tasktype));
-            res.getTasks().add(status);
+            res.getTasks().add(createHeapTaskStatus(task));
         });
         return res;
     }
 
+    /**
+     * Status of the heap, without the list of tasks
+     *
+     * @return
+     */
+    public HeapStatusView getHeapStatusSummary() {
+        HeapStatusView res = new HeapStatusView();
+        res.setSize(tasksHeap.getSize());
+        res.setActualSize(tasksHeap.getActualsize());
+        res.setFragmentation(tasksHeap.getFragmentation());
+        res.setCompactionInProgress(tasksHeap.isCompactionInProgress());
+        res.setCompactions(tasksHeap.getCompactions());
+        res.setCompactionSteps(tasksHeap.getCompactionSteps());
+        res.setLastCompactionPauseMicros(tasksHeap.getLastCompactionPauseMicros());
+        res.setMaxCompactionPauseMicros(tasksHeap.getMaxCompactionPauseMicros());
+        res.setTotalCompactionPauseMicros(tasksHeap.getTotalCompactionPauseMicros());
+        return res;
+    }
+
+    /**
+     * Reads a bounded slice of the tasks in the heap
+     *
+     * @param fromPosition
+     * @param max
+     * @param consumer
+     * @return the position to start the next slice from, or -1 if the end of the heap has been reached
+     * @see TasksHeap#scan(int, int, java.util.function.Consumer)
+     */
+    public int scanHeap(int fromPosition, int max, Consumer<TaskStatus> consumer) {
+        return tasksHeap.scan(fromPosition, max, (task) -> {
+            consumer.accept(createHeapTaskStatus(task));
+        });
+    }
+
+    private TaskStatus createHeapTaskStatus(TasksHeap.TaskEntry task) {
+        TaskStatus status = new TaskStatus();
+        status.setGroup(task.groupid);
+        status.setTaskId(task.taskid);
+        status.setTaskType(tasksHeap.resolveTaskType(task.tasktype));
+        return status;
+    }
+
     public DelayedTasksQueueView getDelayedTasksQueueView() {
         DelayedTasksQueueView res = new DelayedTasksQueueView();
-        delayedTasksQueue.forEach(task -> {
-            DelayedTasksQueueView.TaskStatus status = new DelayedTasksQueueView.TaskStatus();
-            status.setTaskId(task.getTaskId());
-            status.setDelay(task.getDelay(TimeUnit.MILLISECONDS));
-            res.getTasks().add(status);
+        delayedTasksScheduler.forEach(task -> {
+            res.getTasks().add(createDelayedTaskStatus(task));
         });
         return res;
     }
 
+    /**
+     * Visits the delayed tasks without holding the lock of the scheduler for the whole visit
+     *
+     * @param consumer
+     * @see DelayedTasksScheduler#scan(java.util.function.Consumer)
+     */
+    public void scanDelayedTasks(Consumer<DelayedTasksQueueView.TaskStatus> consumer) {
+        delayedTasksScheduler.scan(task -> {
+            consumer.accept(createDelayedTaskStatus(task));
+        });
+    }
+
+    private static DelayedTasksQueueView.TaskStatus createDelayedTaskStatus(Task task) {
+        DelayedTasksQueueView.TaskStatus status = new DelayedTasksQueueView.TaskStatus();
+        status.setTaskId(task.getTaskId());
+        status.setDelay(task.getDelay(TimeUnit.MILLISECONDS));
+        return status;
+    }
+
     public TransactionsStatusView getTransactionsStatusView() {
         TransactionsStatusView res = new TransactionsStatusView();
         res.setTransactions(brokerStatus.getAllTransactions());
@@ -726,7 +955,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                         this.tasksHeap.insertTask(taskId, request.taskType, request.userId);
                         break;
                     case Task.STATUS_DELAYED:
-                        this.delayedTasksQueue.add(newTask);
+                        this.delayedTasksScheduler.add(newTask);
                         break;
                     default:
                         throw new IllegalStateException("Impossibile");
@@ -756,6 +985,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
             LOGGER.log(Level.FINEST, "addTasks {0}", requests);
             LOGGER.log(Level.FINEST, "addTasks results {0}", batch);
         }
+        List<Task> waitingTasks = new ArrayList<>(size);
         for (int i = 0; i < size; i++) {
             StatusEdit addTask = edits.get(i);
             BrokerStatus.ModificationResult result = batch.get(i);
@@ -767,10 +997,10 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                 if (taskId > 0 && result.error == null && newTask != null) {
                     switch (newTask.getStatus()) {
                         case Task.STATUS_WAITING:
-                            this.tasksHeap.insertTask(taskId, addTask.taskType, addTask.userid);
+                            waitingTasks.add(newTask);
                             break;
                         case Task.STATUS_DELAYED:
-                            this.delayedTasksQueue.add(newTask);
+                            this.delayedTasksScheduler.add(newTask);
                             break;
                         default:
                             throw new IllegalStateException("Impossibile");
@@ -779,6 +1009,7 @@ public final class Broker implements AutoCloseable, JVMBrokerSupportInterface, B
                 res.add(new AddTaskResult(taskId, result.error));
             }
         }
+        this.tasksHeap.insertTasks(waitingTasks);
         return res;
     }
 
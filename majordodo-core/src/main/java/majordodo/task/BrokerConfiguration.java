@@ -74,6 +74,22 @@ public class BrokerConfiguration {
         this.finishedTasksRetention = finishedTasksRetention;
     }
 
+    private int finishedTasksCompactionThreshold = 0;
+
+    /**
+     * Parameters and results of finished tasks longer than this number of characters are kept compressed, by the
+     * thread which purges finished tasks. 0 means 'never compact'. Defaults to 0
+     *
+     * @return
+     */
+    public int getFinishedTasksCompactionThreshold() {
+        return finishedTasksCompactionThreshold;
+    }
+
+    public void setFinishedTasksCompactionThreshold(int finishedTasksCompactionThreshold) {
+        this.finishedTasksCompactionThreshold = finishedTasksCompactionThreshold;
+    }
+
     private int recomputeGroupsPeriod = 0;
 
     /**
@@ -120,6 +136,39 @@ public class BrokerConfiguration {
         this.finishedTasksPurgeSchedulerPeriod = finishedTasksPurgeSchedulerPeriod;
     }
 
+    private int finishedTasksPurgeSliceSize = BrokerStatus.DEFAULT_PURGE_SLICE_SIZE;
+
+    /**
+     * Maximum number of finished tasks purged from memory while holding the lock on the status of the broker, the
+     * purge goes on in the next slice. Defaults to 10000
+     *
+     * @return
+     */
+    public int getFinishedTasksPurgeSliceSize() {
+        return finishedTasksPurgeSliceSize;
+    }
+
+    public void setFinishedTasksPurgeSliceSize(int finishedTasksPurgeSliceSize) {
+        this.finishedTasksPurgeSliceSize = finishedTasksPurgeSliceSize;
+    }
+
+    private long delayedTasksTick = 10;
+
+    /**
+     * Resolution of the scheduler of delayed tasks, in milliseconds: tasks are resumed at most one tick after their
+     * requested start time. Defaults to 10 milliseconds
+     *
+     * @return
+     * @see DelayedTasksScheduler
+     */
+    public long getDelayedTasksTick() {
+        return delayedTasksTick;
+    }
+
+    public void setDelayedTasksTick(long delayedTasksTick) {
+        this.delayedTasksTick = delayedTasksTick;
+    }
+
     private int maxExpiredTasksPerCycle = 1000;
 
     /**
@@ -164,6 +213,153 @@ public class BrokerConfiguration {
         this.tasksHeapSize = tasksHeapSize;
     }
 
+    /**
+     * Use an {@link IndexedTasksHeap}, which keeps the waiting tasks indexed by group and task type, so that assigning
+     * tasks to a worker does not need to scan the whole heap
+     */
+    private boolean tasksHeapIndexed;
+
+    public boolean isTasksHeapIndexed() {
+        return tasksHeapIndexed;
+    }
+
+    public void setTasksHeapIndexed(boolean tasksHeapIndexed) {
+        this.tasksHeapIndexed = tasksHeapIndexed;
+    }
+
+    /**
+     * Layout of the slots of the tasks heap, see {@link TasksHeap#STORAGE_OBJECTS}, {@link TasksHeap#STORAGE_PRIMITIVE}
+     * and {@link TasksHeap#STORAGE_OFFHEAP}
+     */
+    private String tasksHeapStorage = TasksHeap.STORAGE_OBJECTS;
+
+    public String getTasksHeapStorage() {
+        return tasksHeapStorage;
+    }
+
+    public void setTasksHeapStorage(String tasksHeapStorage) {
+        this.tasksHeapStorage = tasksHeapStorage;
+    }
+
+    /**
+     * Maximum number of slots of the tasks heap which are compacted while a worker is waiting for tasks, compaction of
+     * large heaps is spread over many calls
+     */
+    private int tasksHeapCompactionSegmentSize = TasksHeap.DEFAULT_COMPACTION_SEGMENT_SIZE;
+
+    public int getTasksHeapCompactionSegmentSize() {
+        return tasksHeapCompactionSegmentSize;
+    }
+
+    public void setTasksHeapCompactionSegmentSize(int tasksHeapCompactionSegmentSize) {
+        this.tasksHeapCompactionSegmentSize = tasksHeapCompactionSegmentSize;
+    }
+
+    /**
+     * New tasks are appended to a lock-free queue and merged into the tasks heap by the next assignment of tasks to a
+     * worker, so that submitting a task never waits for the scheduler. See {@link TasksHeap#setInsertStaging(boolean)}
+     */
+    private boolean tasksHeapInsertStaging;
+
+    public boolean isTasksHeapInsertStaging() {
+        return tasksHeapInsertStaging;
+    }
+
+    public void setTasksHeapInsertStaging(boolean tasksHeapInsertStaging) {
+        this.tasksHeapInsertStaging = tasksHeapInsertStaging;
+    }
+
+    /**
+     * Maximum number of task properties cached by task type and user, 0 disables the cache. See
+     * {@link CachingTaskPropertiesMapperFunction}
+     */
+    private int taskPropertiesCacheSize;
+
+    public int getTaskPropertiesCacheSize() {
+        return taskPropertiesCacheSize;
+    }
+
+    public void setTaskPropertiesCacheSize(int taskPropertiesCacheSize) {
+        this.taskPropertiesCacheSize = taskPropertiesCacheSize;
+    }
+
+    /**
+     * Time to live of cached task properties, in milliseconds, 0 means that they are valid until invalidated
+     */
+    private long taskPropertiesCacheTtl;
+
+    public long getTaskPropertiesCacheTtl() {
+        return taskPropertiesCacheTtl;
+    }
+
+    public void setTaskPropertiesCacheTtl(long taskPropertiesCacheTtl) {
+        this.taskPropertiesCacheTtl = taskPropertiesCacheTtl;
+    }
+
+    /**
+     * Wraps the given function with a cache, if configured
+     *
+     * @param function
+     * @return
+     */
+    public TaskPropertiesMapperFunction applyTaskPropertiesCache(TaskPropertiesMapperFunction function) {
+        if (taskPropertiesCacheSize <= 0) {
+            return function;
+        }
+        return new CachingTaskPropertiesMapperFunction(function, taskPropertiesCacheSize, taskPropertiesCacheTtl);
+    }
+
+    /**
+     * Tasks are taken in order of insertion
+     */
+    public static final String SCHEDULING_POLICY_NONE = "none";
+    /**
+     * Users share running slots in proportion to their weight, see {@link WeightedFairSharePolicy}
+     */
+    public static final String SCHEDULING_POLICY_FAIRSHARE = "fairshare";
+
+    /**
+     * Policy which orders tasks of different users, {@link #SCHEDULING_POLICY_NONE},
+     * {@link #SCHEDULING_POLICY_FAIRSHARE} or the name of a class which implements {@link TasksSchedulingPolicy}
+     */
+    private String schedulingPolicy = SCHEDULING_POLICY_NONE;
+
+    public String getSchedulingPolicy() {
+        return schedulingPolicy;
+    }
+
+    public void setSchedulingPolicy(String schedulingPolicy) {
+        this.schedulingPolicy = schedulingPolicy;
+    }
+
+    /**
+     * Minimum size of the tasks heap which makes takeTasks scan it with many threads, zero disables parallel scans.
+     * See {@link TasksHeap#setParallelScanThreshold(int)}
+     */
+    private int tasksHeapParallelScanThreshold;
+
+    public int getTasksHeapParallelScanThreshold() {
+        return tasksHeapParallelScanThreshold;
+    }
+
+    public void setTasksHeapParallelScanThreshold(int tasksHeapParallelScanThreshold) {
+        this.tasksHeapParallelScanThreshold = tasksHeapParallelScanThreshold;
+    }
+
+    /**
+     * Assign tasks to all the workers which need them in a single round, with only one scan of the tasks heap and one
+     * write to the log. See {@link Broker#assignTasksToWorkers(java.util.List)}
+     */
+    private boolean coalescedSchedulingRounds;
+
+    public boolean isCoalescedSchedulingRounds() {
+        return coalescedSchedulingRounds;
+    }
+
+    public void setCoalescedSchedulingRounds(boolean coalescedSchedulingRounds) {
+        this.coalescedSchedulingRounds = coalescedSchedulingRounds;
+    }
+
     /**
      * Parallelism of worker assigment operations
      */
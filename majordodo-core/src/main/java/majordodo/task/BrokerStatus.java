@@ -20,19 +20,22 @@
 package majordodo.task;
 
 import majordodo.clientfacade.TaskStatusView;
+import majordodo.clientfacade.TasksQuery;
 import majordodo.clientfacade.WorkerStatusView;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -40,6 +43,7 @@ import majordodo.clientfacade.CodePoolView;
 import majordodo.clientfacade.TransactionStatus;
 import majordodo.codepools.CodePool;
 import majordodo.utils.IntCounter;
+import majordodo.utils.LongObjectHashMap;
 
 /**
  * Replicated status of the broker. Each broker, leader or follower, contains a copy of this status. The status is
@@ -50,12 +54,18 @@ import majordodo.utils.IntCounter;
 public final class BrokerStatus {
 
     private static final Logger LOGGER = Logger.getLogger(BrokerStatus.class.getName());
+    private static final int INITIAL_TASKS_CAPACITY = 1024;
 
-    private final Map<Long, Task> tasks = new HashMap<>();
-    private final Map<Long, Transaction> transactions = new HashMap<>();
+    // tasks are only modified holding both the write lock and tasksLock, lookups use optimistic reads of tasksLock
+    private final LongObjectHashMap<Task> tasks = new LongObjectHashMap<>(INITIAL_TASKS_CAPACITY);
+    private final StampedLock tasksLock = new StampedLock();
+    private final LongObjectHashMap<Transaction> transactions = new LongObjectHashMap<>(16);
 
-    private final Map<String, WorkerStatus> workers = new HashMap<>();
-    private final Map<String, CodePool> codePools = new HashMap<>();
+    // workers and codepools are only modified holding the write lock, but they are concurrent maps so that lookups do
+    // not need the lock
+
+    private final Map<String, WorkerStatus> workers = new ConcurrentHashMap<>();
+    private final Map<String, CodePool> codePools = new ConcurrentHashMap<>();
     private final AtomicLong newTaskId = new AtomicLong();
     private final AtomicLong newTransactionId = new AtomicLong();
     private long maxTaskId = -1;
@@ -66,7 +76,17 @@ public final class BrokerStatus {
     private final AtomicInteger checkpointsCount = new AtomicInteger();
     private final SlotsManager slotsManager = new SlotsManager();
     private final BrokerStatusStats stats = new BrokerStatusStats();
+    // waiting and delayed tasks with a deadline
+    private final TasksDeadlineIndex deadlines = new TasksDeadlineIndex();
+    // finished tasks, by creation time
+    private final FinishedTasksRetentionIndex finishedTasks = new FinishedTasksRetentionIndex();
+    private final WorkerRunningTasksIndex runningTasks = new WorkerRunningTasksIndex();
+    private final TasksSecondaryIndexes indexes = new TasksSecondaryIndexes();
     private boolean readonly;
+    private TasksSchedulingPolicy schedulingPolicy;
+    private int finishedTasksCompactionThreshold;
+    // finished tasks waiting for compaction, which runs outside of the lock
+    private final ConcurrentLinkedQueue<Task> tasksToCompact = new ConcurrentLinkedQueue<>();
 
     public boolean isReadonly() {
         return readonly;
@@ -84,6 +104,91 @@ public final class BrokerStatus {
         this.log = log;
     }
 
+    /**
+     * The policy will be notified of every task which starts or stops running, this must be set before the recovery of
+     * the status
+     *
+     * @param schedulingPolicy
+     */
+    public void setSchedulingPolicy(TasksSchedulingPolicy schedulingPolicy) {
+        this.schedulingPolicy = schedulingPolicy;
+    }
+
+    /**
+     * Finished tasks with a parameter or a result longer than this threshold are compacted, 0 disables compaction.
+     * Compaction is done by {@link #compactFinishedTasks() }
+     *
+     * @param finishedTasksCompactionThreshold
+     * @see BrokerConfiguration#getFinishedTasksCompactionThreshold()
+     */
+    public void setFinishedTasksCompactionThreshold(int finishedTasksCompactionThreshold) {
+        this.finishedTasksCompactionThreshold = finishedTasksCompactionThreshold;
+    }
+
+    private void taskStatusChange(Task task, int oldStatus, int newStatus) {
+        stats.taskStatusChange(oldStatus, newStatus);
+        if (oldStatus == -1) {
+            indexes.add(task, newStatus);
+        } else if (newStatus == -1) {
+            indexes.remove(task, oldStatus);
+        } else if (oldStatus != newStatus) {
+            indexes.statusChanged(task.getTaskId(), oldStatus, newStatus);
+        }
+        if (isFinal(newStatus) && !isFinal(oldStatus)) {
+            finishedTasks.add(task.getTaskId(), task.getCreatedTimestamp());
+            if (finishedTasksCompactionThreshold > 0) {
+                tasksToCompact.add(task);
+            }
+        }
+        if (task.getExecutionDeadline() > 0) {
+            boolean wasExpirable = isExpirable(oldStatus);
+            boolean expirable = isExpirable(newStatus);
+            if (expirable && !wasExpirable) {
+                deadlines.add(task.getTaskId(), task.getExecutionDeadline());
+            } else if (wasExpirable && !expirable) {
+                deadlines.remove(task.getTaskId(), task.getExecutionDeadline());
+            }
+        }
+        if (oldStatus == Task.STATUS_RUNNING) {
+            runningTasks.remove(task);
+        }
+        if (newStatus == Task.STATUS_RUNNING) {
+            runningTasks.add(task);
+        }
+        if (schedulingPolicy != null && oldStatus != newStatus) {
+            if (newStatus == Task.STATUS_RUNNING) {
+                schedulingPolicy.taskStarted(task.getUserId());
+            } else if (oldStatus == Task.STATUS_RUNNING) {
+                schedulingPolicy.taskStopped(task.getUserId());
+            }
+        }
+    }
+
+    /**
+     * Number of waiting or delayed tasks which have an execution deadline
+     *
+     * @return
+     */
+    int getTasksWithDeadlineCount() {
+        lock.readLock().lock();
+        try {
+            return deadlines.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static boolean isFinal(int status) {
+        return status == Task.STATUS_FINISHED || status == Task.STATUS_ERROR;
+    }
+
+    /**
+     * Only tasks which are not running can expire
+     */
+    private static boolean isExpirable(int status) {
+        return status == Task.STATUS_WAITING || status == Task.STATUS_DELAYED;
+    }
+
     public Map<String, Long> getActualSlots() {
         return slotsManager.getActualSlots();
     }
@@ -101,6 +206,39 @@ public final class BrokerStatus {
         return result;
     }
 
+    public List<Long> getTransactionIds() {
+        lock.readLock().lock();
+        try {
+            List<Long> result = new ArrayList<>(transactions.size());
+            transactions.forEach(transaction -> result.add(transaction.getTransactionId()));
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Status of the given transactions, transactions which are no more active are skipped
+     *
+     * @param transactionIds
+     * @return
+     */
+    public List<TransactionStatus> getTransactions(List<Long> transactionIds) {
+        List<TransactionStatus> result = new ArrayList<>(transactionIds.size());
+        lock.readLock().lock();
+        try {
+            for (Long transactionId : transactionIds) {
+                Transaction transaction = transactions.get(transactionId);
+                if (transaction != null) {
+                    result.add(createTransactionStatusView(transaction));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
     public List<WorkerStatusView> getAllWorkers() {
         List<WorkerStatusView> result = new ArrayList<>();
         lock.readLock().lock();
@@ -127,6 +265,41 @@ public final class BrokerStatus {
         return result;
     }
 
+    /**
+     * Returns a page of the tasks which match the query, reading the secondary indexes: only the returned tasks are
+     * materialized
+     *
+     * @param query
+     * @return
+     */
+    public List<TaskStatusView> getTasks(TasksQuery query) {
+        List<TaskStatusView> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            indexes.forEachMatchingTask(query, taskId -> {
+                result.add(createTaskStatusView(tasks.get(taskId)));
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Counts the tasks which match the query, for each tasktype. The cursor of the query is not used
+     *
+     * @param query
+     * @return
+     */
+    public Map<String, Long> countTasksByType(TasksQuery query) {
+        lock.readLock().lock();
+        try {
+            return indexes.countByTaskType(query);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     private TaskStatusView createTaskStatusView(Task task) {
         if (task == null) {
             return null;
@@ -325,54 +498,92 @@ public final class BrokerStatus {
 
     }
 
+    public static final int DEFAULT_PURGE_SLICE_SIZE = 10000;
+
+    /**
+     * Compresses the parameter and the result of the tasks which finished since the last call, without holding the
+     * lock. This method is called by the thread which purges finished tasks
+     */
+    public void compactFinishedTasks() {
+        int threshold = finishedTasksCompactionThreshold;
+        Task task;
+        while ((task = tasksToCompact.poll()) != null) {
+            if (threshold > 0) {
+                stats.taskCompacted(task.compactForRetention(threshold));
+            }
+        }
+    }
+
     public Set<Long> purgeFinishedTasksAndSignalExpiredTasks(int finishedTasksRetention, int maxExpiredPerCycle) {
+        return purgeFinishedTasksAndSignalExpiredTasks(finishedTasksRetention, maxExpiredPerCycle, DEFAULT_PURGE_SLICE_SIZE);
+    }
+
+    /**
+     * Purges from memory finished tasks created before the retention period and collects waiting tasks whose deadline
+     * expired. Finished tasks are purged in many steps, holding the lock for at most purgeSliceSize tasks each time
+     *
+     * @param finishedTasksRetention
+     * @param maxExpiredPerCycle
+     * @param purgeSliceSize
+     * @return the ids of the expired tasks
+     */
+    public Set<Long> purgeFinishedTasksAndSignalExpiredTasks(int finishedTasksRetention, int maxExpiredPerCycle, int purgeSliceSize) {
+        compactFinishedTasks();
         long now = System.currentTimeMillis();
         long finished_deadline = now - finishedTasksRetention;
 
         Set<Long> expired = new HashSet<>();
-        int expiredcount = 0;
         this.lock.writeLock().lock();
         try {
             // when running in FOLLOWER MODE we cannot expire tasks, but we need to remove them from memory, see MAJ-58
             boolean allowExpire = this.log.isLeader() && this.log.isWritable();
-            // tasks are only purged from memry, not from logs
-            // in case of broker restart it may re-appear
-            for (Iterator<Map.Entry<Long, Task>> it = tasks.entrySet().iterator(); it.hasNext();) {
-                Map.Entry<Long, Task> taskEntry = it.next();
-                Task t = taskEntry.getValue();
-                switch (t.getStatus()) {
-                    case Task.STATUS_WAITING:
-                    case Task.STATUS_DELAYED:
-                        if (expiredcount < maxExpiredPerCycle && allowExpire) {
-                            long taskdeadline = t.getExecutionDeadline();
-                            if (taskdeadline > 0 && taskdeadline < now) {
-                                expired.add(t.getTaskId());
-                                expiredcount++;
-                                LOGGER.log(Level.INFO, "task {0}, created at {1}, expired, deadline {2}", new Object[]{t.getTaskId(), new java.util.Date(t.getCreatedTimestamp()), new java.util.Date(taskdeadline)});
-                            }
-                        }
-                        break;
-                    case Task.STATUS_ERROR:
-                    case Task.STATUS_FINISHED:
-                        if (t.getCreatedTimestamp() < finished_deadline) {
-                            if (LOGGER.isLoggable(Level.FINER)) {
-                                LOGGER.log(Level.FINER, "purging finished task {0} slot {2}, created at {1}", new Object[]{t.getTaskId(), new java.util.Date(t.getCreatedTimestamp()), t.getSlot()});
-                            }                            
-                            it.remove();
-                            stats.taskStatusChange(t.getStatus(), -1);
-                        }
-                        break;
-                    default:
-                        // not interesting
-                        break;
+            if (allowExpire) {
+                List<Long> expiring = deadlines.collectExpired(now, maxExpiredPerCycle, taskId -> tasks.get(taskId).getExecutionDeadline() < now);
+                for (Long taskId : expiring) {
+                    Task t = tasks.get(taskId);
+                    expired.add(taskId);
+                    LOGGER.log(Level.INFO, "task {0}, created at {1}, expired, deadline {2}", new Object[]{taskId, new java.util.Date(t.getCreatedTimestamp()), new java.util.Date(t.getExecutionDeadline())});
                 }
             }
         } finally {
             this.lock.writeLock().unlock();
         }
+        // tasks are only purged from memry, not from logs
+        // in case of broker restart it may re-appear
+        boolean more = true;
+        while (more) {
+            this.lock.writeLock().lock();
+            try {
+                more = finishedTasks.purge(finished_deadline, purgeSliceSize, taskId -> purgeFinishedTask(taskId, finished_deadline));
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
         return expired;
     }
 
+    /**
+     * Removes a finished task from memory, if it was created before the deadline
+     *
+     * @return false if the task has to be purged later
+     */
+    private boolean purgeFinishedTask(long taskId, long finished_deadline) {
+        Task t = tasks.get(taskId);
+        if (t == null || !isFinal(t.getStatus())) {
+            // the index will be updated again if the task finishes
+            return true;
+        }
+        if (t.getCreatedTimestamp() >= finished_deadline) {
+            return false;
+        }
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.log(Level.FINER, "purging finished task {0} slot {2}, created at {1}", new Object[]{t.getTaskId(), new java.util.Date(t.getCreatedTimestamp()), t.getSlot()});
+        }
+        removeTask(taskId);
+        taskStatusChange(t, t.getStatus(), -1);
+        return true;
+    }
+
     public void followTheLeader() throws InterruptedException {
         try {
             log.requestLeadership();
@@ -392,7 +603,7 @@ public final class BrokerStatus {
     List<Long> getRunningTasksAssignedToWorker(String workerId) {
         this.lock.readLock().lock();
         try {
-            return tasks.values().stream().filter(t -> t.getStatus() == Task.STATUS_RUNNING && workerId.equals(t.getWorkerId())).map(Task::getTaskId).collect(Collectors.toList());
+            return runningTasks.getTaskIds(workerId);
         } finally {
             this.lock.readLock().unlock();
         }
@@ -441,16 +652,11 @@ public final class BrokerStatus {
     int applyRunningTasksFilterToAssignTasksRequest(String workerId, Map<String, Integer> availableSpace) {
         lock.readLock().lock();
         try {
-            AtomicInteger running = new AtomicInteger();
-            tasks.values().forEach(t -> {
-                if (t.getStatus() != Task.STATUS_RUNNING || !workerId.equals(t.getWorkerId())) {
-                    return;
-                }
-                running.incrementAndGet();
-                String taskType = t.getType();
+            runningTasks.getCountersByTypeAndUser(workerId).forEach((typeAndUser, running) -> {
+                String taskType = typeAndUser.taskType;
                 Integer count = availableSpace.get(taskType);
                 if (count != null) {
-                    int newCount = count - 1;
+                    int newCount = count - running.count;
                     if (newCount > 0) {
                         availableSpace.put(taskType, newCount);
                     } else {
@@ -458,7 +664,7 @@ public final class BrokerStatus {
                     }
                 }
             });
-            return running.get();
+            return runningTasks.countRunningTasks(workerId);
         } finally {
             lock.readLock().unlock();
         }
@@ -482,16 +688,11 @@ public final class BrokerStatus {
     }
 
     CodePoolView getCodePoolView(String codePoolId) {
-        lock.readLock().lock();
-        try {
-            CodePool codePool = codePools.get(codePoolId);
-            if (codePool == null) {
-                return null;
-            }
-            return createCodePoolView(codePool);
-        } finally {
-            lock.readLock().unlock();
+        CodePool codePool = codePools.get(codePoolId);
+        if (codePool == null) {
+            return null;
         }
+        return createCodePoolView(codePool);
     }
 
     private CodePoolView createCodePoolView(CodePool codePool) {
@@ -503,13 +704,8 @@ public final class BrokerStatus {
     }
 
     CodePool getCodePool(String codePoolId) {
-        lock.readLock().lock();
-        try {
-            // codepools are immutable, no copy is needed
-            return codePools.get(codePoolId);
-        } finally {
-            lock.readLock().unlock();
-        }
+        // codepools are immutable, no copy is needed
+        return codePools.get(codePoolId);
     }
 
     Map<TaskTypeUser, IntCounter> collectMaxAvailableSpacePerUserOnWorker(String workerId,
@@ -518,35 +714,22 @@ public final class BrokerStatus {
         Map<TaskTypeUser, IntCounter> res = new HashMap<>();
         lock.readLock().lock();
         try {
-            this.tasks
-                .values()
-                .stream()
-                .filter(t -> t.getStatus() == Task.STATUS_RUNNING
-                && workerId.equals(t.getWorkerId()))
-                .forEach(t -> {
-                    String type = t.getType();
-                    Integer startingMaxAvailableSpacePerUser = startingAvailableSpace.get(type);
-                    if (startingMaxAvailableSpacePerUser == null) {
-                        startingMaxAvailableSpacePerUser = startingAvailableSpace.get(Task.TASKTYPE_ANY);
-                    }
-                    if (startingMaxAvailableSpacePerUser != null && startingMaxAvailableSpacePerUser > 0) {
-                        TaskTypeUser key = new TaskTypeUser(type, t.getUserId());
-                        IntCounter count = res.get(key);
-                        if (count == null) {
-                            int effectiveBoundForUser
-                                = (startingMaxAvailableSpacePerUser * maxThreadPerUserPerTaskTypePercent) / 100;
-                            if (effectiveBoundForUser <= 0) {
-                                effectiveBoundForUser = 1;
-                            }
-                            LOGGER.log(Level.FINEST, "collectMaxAvailableSpacePerUserOnWorker {0} -> for user {1} we are starting from {2} - bound is {3}", new Object[]{workerId, t.getUserId(), startingMaxAvailableSpacePerUser, effectiveBoundForUser});
-                            count = new IntCounter(effectiveBoundForUser);
-                            res.put(key, count);
-
-                        }
-                        LOGGER.log(Level.FINEST, "collectMaxAvailableSpacePerUserOnWorker {0} -> for user {1} found task {2} - id {3}", new Object[]{workerId, t.getUserId(), t.getType(), t.getTaskId()});
-                        count.count--;
+            runningTasks.getCountersByTypeAndUser(workerId).forEach((key, running) -> {
+                String type = key.taskType;
+                Integer startingMaxAvailableSpacePerUser = startingAvailableSpace.get(type);
+                if (startingMaxAvailableSpacePerUser == null) {
+                    startingMaxAvailableSpacePerUser = startingAvailableSpace.get(Task.TASKTYPE_ANY);
+                }
+                if (startingMaxAvailableSpacePerUser != null && startingMaxAvailableSpacePerUser > 0) {
+                    int effectiveBoundForUser
+                        = (startingMaxAvailableSpacePerUser * maxThreadPerUserPerTaskTypePercent) / 100;
+                    if (effectiveBoundForUser <= 0) {
+                        effectiveBoundForUser = 1;
                     }
-                });
+                    LOGGER.log(Level.FINEST, "collectMaxAvailableSpacePerUserOnWorker {0} -> for user {1} we are starting from {2} - bound is {3}, running {4} tasks of type {5}", new Object[]{workerId, key.userId, startingMaxAvailableSpacePerUser, effectiveBoundForUser, running.count, type});
+                    res.put(key, new IntCounter(effectiveBoundForUser - running.count));
+                }
+            });
         } finally {
             lock.readLock().unlock();
         }
@@ -698,12 +881,14 @@ public final class BrokerStatus {
                     if (workerId == null || workerId.isEmpty()) {
                         throw new RuntimeException("bug " + edit);
                     }
+                    String oldWorkerId = task.getWorkerId();
                     task.setWorkerId(workerId.intern());
+                    indexes.workerChanged(taskId, oldWorkerId, task.getWorkerId());
                     if (resources != null) {
                         task.setResources(resources.intern());
                     }
                     task.setAttempts(edit.attempt);
-                    stats.taskStatusChange(oldStatus, task.getStatus());
+                    taskStatusChange(task, oldStatus, task.getStatus());
                     return new ModificationResult(num, null, null);
                 }
                 case StatusEdit.TYPE_TASK_STATUS_CHANGE: {
@@ -728,7 +913,7 @@ public final class BrokerStatus {
                         }
                     }
 
-                    stats.taskStatusChange(oldStatus, edit.taskStatus);
+                    taskStatusChange(task, oldStatus, edit.taskStatus);
 
                     return new ModificationResult(num, null, null);
                 }
@@ -747,8 +932,8 @@ public final class BrokerStatus {
                         return new ModificationResult(num, 0L, "no transaction " + edit.transactionId);
                     }
                     for (Task task : transaction.getPreparedTasks()) {
-                        tasks.put(task.getTaskId(), task);
-                        stats.taskStatusChange(-1, task.getStatus());
+                        putTask(task);
+                        taskStatusChange(task, -1, task.getStatus());
                     }
                     transactions.remove(edit.transactionId);
                     return new ModificationResult(num, transaction.getPreparedTasks(), null);
@@ -796,8 +981,8 @@ public final class BrokerStatus {
                     } else {
                         task.setStatus(Task.STATUS_WAITING);
                     }
-                    tasks.put(edit.taskId, task);
-                    stats.taskStatusChange(-1, task.getStatus());
+                    putTask(task);
+                    taskStatusChange(task, -1, task.getStatus());
 
                     if (edit.slot != null) {
                         // we need this, for log-replay on recovery and on followers
@@ -883,7 +1068,9 @@ public final class BrokerStatus {
                     return new ModificationResult(num, null, null);
                 }
                 case StatusEdit.TYPE_DELETECODEPOOL: {
-                    codePools.remove(edit.codepool);
+                    if (edit.codepool != null) {
+                        codePools.remove(edit.codepool);
+                    }
                     return new ModificationResult(num, null, null);
                 }
                 case StatusEdit.TYPE_CREATECODEPOOL: {
@@ -923,11 +1110,11 @@ public final class BrokerStatus {
             Map<String, Long> busySlots = new HashMap<>();
             for (Task task : snapshot.getTasks()) {
                 long taskId = task.getTaskId();
-                this.tasks.put(taskId, task);
+                putTask(task);
                 if (maxTaskId < taskId) {
                     maxTaskId = taskId;
                 }
-                stats.taskStatusChange(-1, task.getStatus());
+                taskStatusChange(task, -1, task.getStatus());
                 switch (task.getStatus()) {
                     case Task.STATUS_RUNNING:
                     case Task.STATUS_WAITING:
@@ -987,24 +1174,48 @@ public final class BrokerStatus {
         }
     }
 
+    /**
+     * Lookup of a task with an optimistic read: it does not need the lock of the status and it waits only if the map of
+     * tasks is being modified at the same time.
+     *
+     * @param taskId
+     * @return
+     */
     public Task getTask(long taskId) {
-        lock.readLock().lock();
+        long stamp = tasksLock.tryOptimisticRead();
+        Task task = tasks.get(taskId);
+        if (!tasksLock.validate(stamp)) {
+            // a writer modified the map meanwhile, the result could be wrong
+            stamp = tasksLock.readLock();
+            try {
+                task = tasks.get(taskId);
+            } finally {
+                tasksLock.unlockRead(stamp);
+            }
+        }
+        return task;
+    }
+
+    private void putTask(Task task) {
+        long stamp = tasksLock.writeLock();
         try {
-            return tasks.get(taskId);
+            tasks.put(task.getTaskId(), task);
         } finally {
-            lock.readLock().unlock();
+            tasksLock.unlockWrite(stamp);
         }
     }
 
-    public TaskStatusView getTaskStatus(long taskId) {
-        Task task;
-        lock.readLock().lock();
+    private void removeTask(long taskId) {
+        long stamp = tasksLock.writeLock();
         try {
-            task = tasks.get(taskId);
+            tasks.remove(taskId);
         } finally {
-            lock.readLock().unlock();
+            tasksLock.unlockWrite(stamp);
         }
+    }
 
+    public TaskStatusView getTaskStatus(long taskId) {
+        Task task = getTask(taskId);
         TaskStatusView s = createTaskStatusView(task);
         return s;
     }
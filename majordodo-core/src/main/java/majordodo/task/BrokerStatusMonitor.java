@@ -103,9 +103,14 @@ public class BrokerStatusMonitor {
                     + ", waiting:" + brokerStatusView.getWaitingTasks()
                     + ", running:" + brokerStatusView.getRunningTasks()
                     + ", error:" + brokerStatusView.getErrorTasks()
-                    + ", finished:" + brokerStatusView.getFinishedTasks() + ","
+                    + ", finished:" + brokerStatusView.getFinishedTasks()
+                    + ", empty scans hits/misses:" + brokerStatusView.getEmptyScanHits() + "/" + brokerStatusView.getEmptyScanMisses() + ","
+                    + " task properties cache size/hits/misses:" + brokerStatusView.getTaskPropertiesCacheSize() + "/" + brokerStatusView.getTaskPropertiesCacheHits() + "/" + brokerStatusView.getTaskPropertiesCacheMisses() + ","
+                    + " compacted finished tasks " + brokerStatusView.getCompactedFinishedTasks() + ", reclaimed memory " + brokerStatusView.getFinishedTasksReclaimedMemory() + " bytes, "
+                    + "commit latencies " + brokerStatusView.getCommitLatencies() + ", "
                     + "Transactions: count " + transactions.getTransactions().size() + ", oldest " + oldestTransaction + ", "
-                    + "TasksHeap: size " + heap.getTasks().size() + ", first " + first + ", last " + last + ", "
+                    + "TasksHeap: size " + heap.getTasks().size() + ", first " + first + ", last " + last
+                    + ", compactions " + heap.getCompactions() + ", max compaction pause " + heap.getMaxCompactionPauseMicros() + " us, "
                     + "DelayedTasksQueue: size " + delayedQueue.getTasks().size() + ", average delay " + averageDelayInSeconds + ", "
                     + "Slots: " + slots.getBusySlots().size());
         }
@@ -34,6 +34,9 @@ public class BrokerStatusStats {
     private long delayedTasks;
     private long errorTasks;
     private long finishedTasks;
+    // written only by the thread which compacts finished tasks
+    private volatile long compactedFinishedTasks;
+    private volatile long finishedTasksReclaimedMemory;
 
     public long getTasks() {
         return tasks;
@@ -142,4 +145,37 @@ public class BrokerStatusStats {
         this.delayedTasks = delayedTasks;
     }
 
+    void taskCompacted(long reclaimedMemory) {
+        if (reclaimedMemory > 0) {
+            compactedFinishedTasks++;
+            finishedTasksReclaimedMemory += reclaimedMemory;
+        }
+    }
+
+    /**
+     * Number of finished tasks whose parameter or result has been compacted, since the boot of the broker
+     *
+     * @return
+     */
+    public long getCompactedFinishedTasks() {
+        return compactedFinishedTasks;
+    }
+
+    public void setCompactedFinishedTasks(long compactedFinishedTasks) {
+        this.compactedFinishedTasks = compactedFinishedTasks;
+    }
+
+    /**
+     * Estimate of the memory, in bytes, reclaimed by the compaction of finished tasks since the boot of the broker
+     *
+     * @return
+     */
+    public long getFinishedTasksReclaimedMemory() {
+        return finishedTasksReclaimedMemory;
+    }
+
+    public void setFinishedTasksReclaimedMemory(long finishedTasksReclaimedMemory) {
+        this.finishedTasksReclaimedMemory = finishedTasksReclaimedMemory;
+    }
+
 }
@@ -0,0 +1,249 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the results of another {@link TaskPropertiesMapperFunction}, by task type and user. The wrapped function is
+ * assumed not to depend on the id of the task.
+ * <p>
+ * Entries expire after a time to live, and can be invalidated explicitly. Invalidated and expired keys are remembered
+ * until the next {@link TasksHeap#recomputeGroups() }, which recomputes only the tasks of those users and types.
+ *
+ * @author enrico.olivelli
+ */
+public class CachingTaskPropertiesMapperFunction implements TaskPropertiesMapperFunction {
+
+    private static final class CachedTaskProperties {
+
+        final TaskProperties properties;
+        final long expireAt;
+
+        CachedTaskProperties(TaskProperties properties, long expireAt) {
+            this.properties = properties;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * Keys invalidated since the previous recomputation
+     */
+    static final class Invalidations {
+
+        final boolean all;
+        final Set<String> users;
+        final Set<String> taskTypes;
+        final Set<TaskTypeUser> keys;
+
+        Invalidations(boolean all, Set<String> users, Set<String> taskTypes, Set<TaskTypeUser> keys) {
+            this.all = all;
+            this.users = users;
+            this.taskTypes = taskTypes;
+            this.keys = keys;
+        }
+
+        boolean isEmpty() {
+            return !all && users.isEmpty() && taskTypes.isEmpty() && keys.isEmpty();
+        }
+
+        boolean matches(String taskType, String userid) {
+            return all
+                || users.contains(userid)
+                || taskTypes.contains(taskType)
+                || (!keys.isEmpty() && keys.contains(new TaskTypeUser(taskType, userid)));
+        }
+    }
+
+    private final TaskPropertiesMapperFunction delegate;
+    private final int maxSize;
+    private final long ttl;
+    private final ConcurrentHashMap<TaskTypeUser, CachedTaskProperties> cache = new ConcurrentHashMap<>();
+
+    // incremented at every invalidation, values computed meanwhile are not cached as they may be stale
+    private volatile long invalidationsGeneration;
+    private volatile boolean invalidatedAll;
+    private volatile Set<String> invalidatedUsers = ConcurrentHashMap.newKeySet();
+    private volatile Set<String> invalidatedTaskTypes = ConcurrentHashMap.newKeySet();
+    private volatile Set<TaskTypeUser> invalidatedKeys = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     *
+     * @param delegate the function which computes the properties
+     * @param maxSize maximum number of cached entries
+     * @param ttl time to live of each entry, in milliseconds, 0 means that entries never expire
+     */
+    public CachingTaskPropertiesMapperFunction(TaskPropertiesMapperFunction delegate, int maxSize, long ttl) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive, found " + maxSize);
+        }
+        this.delegate = delegate;
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    public TaskPropertiesMapperFunction getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public TaskProperties getTaskProperties(long taskid, String taskType, String userid) {
+        TaskTypeUser key = new TaskTypeUser(taskType, userid);
+        long now = System.currentTimeMillis();
+        CachedTaskProperties cached = cache.get(key);
+        if (cached != null && (ttl <= 0 || cached.expireAt > now)) {
+            hits.incrementAndGet();
+            return cached.properties;
+        }
+        misses.incrementAndGet();
+        long generation = invalidationsGeneration;
+        TaskProperties properties = delegate.getTaskProperties(taskid, taskType, userid);
+        synchronized (this) {
+            if (generation != invalidationsGeneration) {
+                // an invalidation happened while computing, the key will be recomputed anyway
+                return properties;
+            }
+            if (cached == null && cache.size() >= maxSize) {
+                evict(now);
+            }
+            cache.put(key, new CachedTaskProperties(properties, ttl > 0 ? now + ttl : Long.MAX_VALUE));
+        }
+        return properties;
+    }
+
+    /**
+     * Must be called holding the monitor, as evicted keys are added to the invalidations
+     */
+    private void evict(long now) {
+        // expired entries first, then any entry, down to 90% of the maximum size
+        int target = maxSize - Math.max(1, maxSize / 10);
+        for (Iterator<Map.Entry<TaskTypeUser, CachedTaskProperties>> it = cache.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<TaskTypeUser, CachedTaskProperties> entry = it.next();
+            if (entry.getValue().expireAt <= now) {
+                it.remove();
+                // tasks of this key have to be recomputed anyway
+                invalidatedKeys.add(entry.getKey());
+                evictions.incrementAndGet();
+            }
+        }
+        for (Iterator<TaskTypeUser> it = cache.keySet().iterator(); it.hasNext() && cache.size() > target;) {
+            it.next();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Invalidates every cached entry of the given user
+     *
+     * @param userid
+     */
+    public synchronized void invalidateUser(String userid) {
+        cache.keySet().removeIf(key -> userid.equals(key.userId));
+        invalidatedUsers.add(userid);
+        invalidationsGeneration++;
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * Invalidates every cached entry of the given task type
+     *
+     * @param taskType
+     */
+    public synchronized void invalidateTaskType(String taskType) {
+        cache.keySet().removeIf(key -> taskType.equals(key.taskType));
+        invalidatedTaskTypes.add(taskType);
+        invalidationsGeneration++;
+        invalidations.incrementAndGet();
+    }
+
+    public synchronized void invalidate(String taskType, String userid) {
+        TaskTypeUser key = new TaskTypeUser(taskType, userid);
+        cache.remove(key);
+        invalidatedKeys.add(key);
+        invalidationsGeneration++;
+        invalidations.incrementAndGet();
+    }
+
+    public synchronized void invalidateAll() {
+        cache.clear();
+        invalidatedAll = true;
+        invalidationsGeneration++;
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * Returns the keys invalidated since the previous call, including the entries which expired in the meantime, which
+     * are removed from the cache
+     *
+     * @return
+     */
+    synchronized Invalidations drainInvalidations() {
+        boolean all = invalidatedAll;
+        invalidatedAll = false;
+        Set<String> users = invalidatedUsers;
+        invalidatedUsers = ConcurrentHashMap.newKeySet();
+        Set<String> taskTypes = invalidatedTaskTypes;
+        invalidatedTaskTypes = ConcurrentHashMap.newKeySet();
+        Set<TaskTypeUser> keys = invalidatedKeys;
+        invalidatedKeys = ConcurrentHashMap.newKeySet();
+        if (ttl > 0 && !all) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Map.Entry<TaskTypeUser, CachedTaskProperties>> it = cache.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<TaskTypeUser, CachedTaskProperties> entry = it.next();
+                if (entry.getValue().expireAt <= now) {
+                    it.remove();
+                    keys.add(entry.getKey());
+                }
+            }
+        }
+        return new Invalidations(all, users, taskTypes, keys);
+    }
+
+    public int getSize() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency of the commit of edits to the log, for each type of edit
+ *
+ * @author enrico.olivelli
+ */
+public class CommitLatencyStats {
+
+    private final EditTypeStats[] stats = new EditTypeStats[StatusEdit.TYPE_CREATECODEPOOL + 1];
+
+    public CommitLatencyStats() {
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new EditTypeStats();
+        }
+    }
+
+    private static final class EditTypeStats {
+
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+    }
+
+    public void record(short editType, long nanos) {
+        if (editType < 0 || editType >= stats.length) {
+            return;
+        }
+        EditTypeStats s = stats[editType];
+        s.count.increment();
+        s.totalNanos.add(nanos);
+        long max = s.maxNanos.get();
+        while (nanos > max && !s.maxNanos.compareAndSet(max, nanos)) {
+            max = s.maxNanos.get();
+        }
+    }
+
+    /**
+     * Latency of the commit, for every type of edit which has been logged at least once
+     *
+     * @return a map from {@link DurabilityPolicy#configurationName(short) } to the stats
+     */
+    public Map<String, EditTypeLatency> getLatencies() {
+        Map<String, EditTypeLatency> res = new TreeMap<>();
+        for (short type = 0; type < stats.length; type++) {
+            EditTypeStats s = stats[type];
+            long count = s.count.sum();
+            if (count > 0) {
+                res.put(DurabilityPolicy.configurationName(type),
+                    new EditTypeLatency(count, s.totalNanos.sum() / count / 1000, s.maxNanos.get() / 1000));
+            }
+        }
+        return res;
+    }
+
+    public static final class EditTypeLatency {
+
+        private final long count;
+        private final long averageMicros;
+        private final long maxMicros;
+
+        public EditTypeLatency(long count, long averageMicros, long maxMicros) {
+            this.count = count;
+            this.averageMicros = averageMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getAverageMicros() {
+            return averageMicros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return count + " avg " + averageMicros + " us max " + maxMicros + " us";
+        }
+
+    }
+
+}
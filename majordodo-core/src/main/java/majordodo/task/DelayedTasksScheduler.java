@@ -0,0 +1,390 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resumes delayed tasks when their requested start time comes, using a hierarchical timing wheel.<br>
+ * Level 0 has {@link #WHEEL_SIZE} buckets of one tick each, every other level has buckets as large as the whole
+ * previous level. Inserting a task costs O(1), when a bucket of an upper level expires its tasks are spread on the
+ * lower wheels. A dedicated thread sleeps until the first non empty bucket expires, so tasks are resumed at most one
+ * tick after their requested start time, and never before. Levels stop growing before their interval overflows,
+ * tasks due after the top level (like Long.MAX_VALUE) wait in an overflow bucket.
+ *
+ * @author enrico.olivelli
+ */
+public class DelayedTasksScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(DelayedTasksScheduler.class.getName());
+
+    static final int WHEEL_SIZE = 512;
+    // levels are added as long as their interval stays far from overflowing when added to the current time
+    private static final long MAX_INTERVAL = Long.MAX_VALUE / 4;
+
+    private final long tick;
+    private final Consumer<List<Task>> resumer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition bucketsChanged = lock.newCondition();
+    private final List<Wheel> wheels = new ArrayList<>();
+    // non empty buckets, by expiration time
+    private final PriorityQueue<Bucket> buckets = new PriorityQueue<>(
+        (Bucket a, Bucket b) -> Long.compare(a.expiration, b.expiration));
+    private final List<Task> ready = new ArrayList<>();
+    // tasks due after the end of the top level, they are placed again when the top level reaches its end
+    private final Bucket overflow = new Bucket();
+    private int size;
+    private long resumedTasks;
+    private long currentTime;
+    private volatile boolean stopped;
+    private Thread thread;
+
+    private static final class Bucket {
+
+        long expiration = -1;
+        List<Task> tasks = new ArrayList<>();
+    }
+
+    private static final class Wheel {
+
+        final long tick;
+        final long interval;
+        final Bucket[] buckets = new Bucket[WHEEL_SIZE];
+        long currentTime;
+
+        Wheel(long tick, long currentTime) {
+            this.tick = tick;
+            this.interval = tick * WHEEL_SIZE;
+            this.currentTime = currentTime - (currentTime % tick);
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                buckets[i] = new Bucket();
+            }
+        }
+    }
+
+    public DelayedTasksScheduler(BrokerConfiguration configuration, Broker broker) {
+        this(configuration.getDelayedTasksTick(), broker::resumeDelayedTasks);
+    }
+
+    /**
+     *
+     * @param tick duration of the smallest bucket, in milliseconds
+     * @param resumer receives the due tasks, in its own thread
+     */
+    DelayedTasksScheduler(long tick, Consumer<List<Task>> resumer) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("tick must be positive, found " + tick);
+        }
+        this.tick = tick;
+        this.resumer = resumer;
+        this.currentTime = System.currentTimeMillis();
+        this.wheels.add(new Wheel(tick, currentTime));
+    }
+
+    /**
+     * Schedules a task, which will be resumed after {@link Task#getRequestedStartTime() }
+     *
+     * @param task
+     */
+    public void add(Task task) {
+        lock.lock();
+        try {
+            if (buckets.isEmpty()) {
+                // nothing is pending, the wheels can be moved forward safely
+                advanceClock(System.currentTimeMillis());
+            }
+            size++;
+            Bucket bucket = place(task);
+            if (bucket == null || buckets.peek() == bucket) {
+                // the task is due before the time the thread is waiting for
+                bucketsChanged.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Schedules again tasks which could not be resumed, they will be resumed one tick later
+     *
+     * @param tasks
+     */
+    public void retryLater(List<Task> tasks) {
+        lock.lock();
+        try {
+            if (buckets.isEmpty()) {
+                advanceClock(System.currentTimeMillis());
+            }
+            long expiration = System.currentTimeMillis() + tick;
+            for (Task task : tasks) {
+                size++;
+                place(task, expiration);
+            }
+            bucketsChanged.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Bucket place(Task task) {
+        return place(task, task.getRequestedStartTime());
+    }
+
+    /**
+     * Puts a task in the right bucket, or in the list of ready tasks
+     *
+     * @return the bucket, or null if the task is due
+     */
+    private Bucket place(Task task, long expiration) {
+        if (expiration < currentTime + tick) {
+            ready.add(task);
+            return null;
+        }
+        for (int i = 0;; i++) {
+            if (i == wheels.size()) {
+                Wheel upper = wheels.get(i - 1);
+                if (upper.interval > MAX_INTERVAL / WHEEL_SIZE) {
+                    return placeInOverflow(task, upper);
+                }
+                wheels.add(new Wheel(upper.interval, currentTime));
+            }
+            Wheel level = wheels.get(i);
+            if (expiration - level.currentTime < level.interval) {
+                long bucketExpiration = expiration - (expiration % level.tick);
+                Bucket bucket = level.buckets[(int) ((expiration / level.tick) % WHEEL_SIZE)];
+                bucket.tasks.add(task);
+                if (bucket.expiration != bucketExpiration) {
+                    // the bucket was empty, it is scheduled again
+                    bucket.expiration = bucketExpiration;
+                    buckets.add(bucket);
+                }
+                return bucket;
+            }
+        }
+    }
+
+    private Bucket placeInOverflow(Task task, Wheel top) {
+        overflow.tasks.add(task);
+        if (overflow.expiration == -1) {
+            // the end of the top level, the clock only moves forward so this is never later than needed
+            overflow.expiration = top.currentTime + top.interval;
+            buckets.add(overflow);
+        }
+        return overflow;
+    }
+
+    private void advanceClock(long time) {
+        currentTime = time - (time % tick);
+        for (Wheel level : wheels) {
+            level.currentTime = time - (time % level.tick);
+        }
+    }
+
+    /**
+     * Collects every task due at the given time, buckets are due at their end
+     *
+     * @param now
+     * @return the due tasks, in no particular order
+     */
+    List<Task> pollDueTasks(long now) {
+        lock.lock();
+        try {
+            return pollDueTasksLocked(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Task> pollDueTasksLocked(long now) {
+        long limit = now - tick + 1;
+        for (Bucket bucket = buckets.peek(); bucket != null && bucket.expiration <= limit; bucket = buckets.peek()) {
+            buckets.poll();
+            advanceClock(bucket.expiration);
+            List<Task> tasks = bucket.tasks;
+            bucket.tasks = new ArrayList<>();
+            bucket.expiration = -1;
+            for (Task task : tasks) {
+                place(task);
+            }
+        }
+        if (ready.isEmpty()) {
+            return ready;
+        }
+        List<Task> result = new ArrayList<>(ready);
+        ready.clear();
+        size -= result.size();
+        resumedTasks += result.size();
+        return result;
+    }
+
+    /**
+     * Time of the next wake up, Long.MAX_VALUE if there are no scheduled tasks
+     */
+    private long nextExpiration() {
+        if (!ready.isEmpty()) {
+            return 0;
+        }
+        Bucket first = buckets.peek();
+        return first != null ? first.expiration + tick : Long.MAX_VALUE;
+    }
+
+    private final class Resumer implements Runnable {
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                List<Task> due;
+                lock.lock();
+                try {
+                    long now = System.currentTimeMillis();
+                    long next = nextExpiration();
+                    if (next > now) {
+                        if (next == Long.MAX_VALUE) {
+                            bucketsChanged.await();
+                        } else {
+                            bucketsChanged.await(next - now, TimeUnit.MILLISECONDS);
+                        }
+                        continue;
+                    }
+                    due = pollDueTasksLocked(now);
+                } catch (InterruptedException exit) {
+                    break;
+                } finally {
+                    lock.unlock();
+                }
+                if (!due.isEmpty()) {
+                    try {
+                        resumer.accept(due);
+                    } catch (Throwable error) {
+                        LOGGER.log(Level.SEVERE, "error while resuming " + due.size() + " delayed tasks", error);
+                    }
+                }
+            }
+        }
+    }
+
+    public void start() {
+        thread = new Thread(new Resumer(), "dodo-broker-delayed-tasks-thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException exit) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Visits every scheduled task
+     *
+     * @param consumer
+     */
+    public void forEach(Consumer<Task> consumer) {
+        lock.lock();
+        try {
+            ready.forEach(consumer);
+            for (Wheel level : wheels) {
+                for (Bucket bucket : level.buckets) {
+                    bucket.tasks.forEach(consumer);
+                }
+            }
+            overflow.tasks.forEach(consumer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Visits every scheduled task like {@link #forEach(java.util.function.Consumer) }, but the lock is held only
+     * while copying the tasks of one bucket and the consumer is called without holding the lock. The visit is weakly
+     * consistent: tasks scheduled or resumed meanwhile may be visited or not
+     *
+     * @param consumer
+     */
+    public void scan(Consumer<Task> consumer) {
+        List<Task> chunk = new ArrayList<>();
+        lock.lock();
+        try {
+            chunk.addAll(ready);
+        } finally {
+            lock.unlock();
+        }
+        chunk.forEach(consumer);
+        for (int w = 0;; w++) {
+            for (int b = 0; b < WHEEL_SIZE; b++) {
+                chunk.clear();
+                lock.lock();
+                boolean last;
+                try {
+                    last = w >= wheels.size();
+                    if (last) {
+                        chunk.addAll(overflow.tasks);
+                    } else {
+                        chunk.addAll(wheels.get(w).buckets[b].tasks);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                chunk.forEach(consumer);
+                if (last) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getResumedTasks() {
+        lock.lock();
+        try {
+            return resumedTasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Durability required for each type of {@link StatusEdit}. By default every edit is SYNC.
+ * <p>
+ * Which policies are safe for recovery:
+ * <ul>
+ * <li>SYNC and GROUP_COMMIT are always safe, the edit is acknowledged only after it has been made durable, GROUP_COMMIT
+ * only adds latency</li>
+ * <li>ASYNC edits are lost if the broker dies before they are synched, that is, the tail of the log written in the
+ * last maxSyncDelay ms can be lost. A following edit which is not ASYNC makes durable all the previous ones too,
+ * because the log is written in order. ASYNC is safe for NOOP, WORKER_CONNECTED, WORKER_DISCONNECTED and WORKER_DIED:
+ * workers connect again to the new broker and their status is rebuilt</li>
+ * <li>ASYNC for TASK_STATUS_CHANGE and ASSIGN_TASK_TO_WORKER can lead to a task being executed again after a crash of
+ * the broker: use it only with idempotent tasks</li>
+ * <li>ASYNC is rejected for ADD_TASK, PREPARE_ADD_TASK, the transaction edits and the code pool edits: the client
+ * has been told that the operation succeeded and it would be lost</li>
+ * </ul>
+ *
+ * @author enrico.olivelli
+ */
+public final class DurabilityPolicy {
+
+    public static final String PROPERTY_PREFIX = "logs.durability.";
+
+    private static final short[] EDIT_TYPES = {
+        StatusEdit.TYPE_ADD_TASK,
+        StatusEdit.TYPE_WORKER_CONNECTED,
+        StatusEdit.TYPE_ASSIGN_TASK_TO_WORKER,
+        StatusEdit.TYPE_TASK_STATUS_CHANGE,
+        StatusEdit.TYPE_WORKER_DISCONNECTED,
+        StatusEdit.TYPE_WORKER_DIED,
+        StatusEdit.TYPE_BEGIN_TRANSACTION,
+        StatusEdit.TYPE_COMMIT_TRANSACTION,
+        StatusEdit.TYPE_ROLLBACK_TRANSACTION,
+        StatusEdit.TYPE_PREPARE_ADD_TASK,
+        StatusEdit.TYPE_NOOP,
+        StatusEdit.TYPE_DELETECODEPOOL,
+        StatusEdit.TYPE_CREATECODEPOOL
+    };
+
+    /**
+     * Edits acknowledged to clients, which must never be ASYNC
+     */
+    private static final short[] NOT_ASYNC_EDIT_TYPES = {
+        StatusEdit.TYPE_ADD_TASK,
+        StatusEdit.TYPE_PREPARE_ADD_TASK,
+        StatusEdit.TYPE_BEGIN_TRANSACTION,
+        StatusEdit.TYPE_COMMIT_TRANSACTION,
+        StatusEdit.TYPE_ROLLBACK_TRANSACTION,
+        StatusEdit.TYPE_DELETECODEPOOL,
+        StatusEdit.TYPE_CREATECODEPOOL
+    };
+
+    private final EditDurability[] durabilities = new EditDurability[StatusEdit.TYPE_CREATECODEPOOL + 1];
+
+    public DurabilityPolicy() {
+        for (short type : EDIT_TYPES) {
+            durabilities[type] = EditDurability.SYNC;
+        }
+    }
+
+    /**
+     * Name of the edit type in configuration files, for instance 'task_status_change'
+     *
+     * @param editType
+     * @return
+     */
+    public static String configurationName(short editType) {
+        String name = StatusEdit.typeToString(editType);
+        if (name.startsWith("TYPE_")) {
+            name = name.substring("TYPE_".length());
+        }
+        return name.toLowerCase();
+    }
+
+    /**
+     * Reads properties like logs.durability.task_status_change=groupcommit:5
+     *
+     * @param properties
+     * @return
+     */
+    public static DurabilityPolicy parse(Properties properties) {
+        DurabilityPolicy policy = new DurabilityPolicy();
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.startsWith(PROPERTY_PREFIX)) {
+                continue;
+            }
+            String name = key.substring(PROPERTY_PREFIX.length());
+            short editType = -1;
+            for (short type : EDIT_TYPES) {
+                if (configurationName(type).equals(name)) {
+                    editType = type;
+                }
+            }
+            if (editType < 0) {
+                throw new IllegalArgumentException("bad property " + key + ", unknown edit type " + name);
+            }
+            policy.set(editType, EditDurability.parse(properties.getProperty(key)));
+        }
+        return policy;
+    }
+
+    public DurabilityPolicy set(short editType, EditDurability durability) {
+        if (editType < 0 || editType >= durabilities.length || durabilities[editType] == null) {
+            throw new IllegalArgumentException("unknown edit type " + editType);
+        }
+        if (durability.getMode() == EditDurability.Mode.ASYNC) {
+            for (short type : NOT_ASYNC_EDIT_TYPES) {
+                if (type == editType) {
+                    throw new IllegalArgumentException("durability " + durability + " is not allowed for "
+                        + configurationName(editType) + ", the edit would be lost on a crash of the broker");
+                }
+            }
+        }
+        durabilities[editType] = durability;
+        return this;
+    }
+
+    public EditDurability get(short editType) {
+        if (editType < 0 || editType >= durabilities.length || durabilities[editType] == null) {
+            return EditDurability.SYNC;
+        }
+        return durabilities[editType];
+    }
+
+    /**
+     * Durability for a batch of edits, which are written together
+     *
+     * @param edits
+     * @return
+     */
+    public EditDurability get(List<StatusEdit> edits) {
+        EditDurability res = null;
+        for (StatusEdit edit : edits) {
+            EditDurability d = get(edit.editType);
+            res = res == null ? d : res.strictest(d);
+        }
+        return res == null ? EditDurability.SYNC : res;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder("DurabilityPolicy{");
+        for (short type : EDIT_TYPES) {
+            if (durabilities[type] != EditDurability.SYNC) {
+                res.append(configurationName(type)).append('=').append(durabilities[type]).append(' ');
+            }
+        }
+        return res.append('}').toString();
+    }
+
+}
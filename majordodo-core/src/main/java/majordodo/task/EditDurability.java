@@ -0,0 +1,155 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+/**
+ * How an edit must be made durable before the log acknowledges it
+ *
+ * @author enrico.olivelli
+ * @see DurabilityPolicy
+ */
+public final class EditDurability {
+
+    public enum Mode {
+        /**
+         * The edit is acknowledged after it has been made durable, as soon as possible
+         */
+        SYNC,
+        /**
+         * The edit is acknowledged after it has been made durable, the log may wait up to maxSyncDelay ms in order
+         * to make durable more edits at once
+         */
+        GROUP_COMMIT,
+        /**
+         * The edit is acknowledged as soon as it has been written, it will be made durable within maxSyncDelay ms,
+         * or together with the first following edit which is not ASYNC
+         */
+        ASYNC
+    }
+
+    public static final int DEFAULT_ASYNC_MAX_SYNC_DELAY = 1000;
+
+    public static final EditDurability SYNC = new EditDurability(Mode.SYNC, 0);
+    public static final EditDurability ASYNC = new EditDurability(Mode.ASYNC, DEFAULT_ASYNC_MAX_SYNC_DELAY);
+
+    private final Mode mode;
+    private final int maxSyncDelay;
+
+    private EditDurability(Mode mode, int maxSyncDelay) {
+        this.mode = mode;
+        this.maxSyncDelay = maxSyncDelay;
+    }
+
+    public static EditDurability groupCommit(int maxSyncDelay) {
+        if (maxSyncDelay <= 0) {
+            return SYNC;
+        }
+        return new EditDurability(Mode.GROUP_COMMIT, maxSyncDelay);
+    }
+
+    public static EditDurability async(int maxSyncDelay) {
+        if (maxSyncDelay < 0) {
+            throw new IllegalArgumentException("invalid delay " + maxSyncDelay);
+        }
+        return new EditDurability(Mode.ASYNC, maxSyncDelay);
+    }
+
+    /**
+     * Parses 'sync', 'groupcommit:N' and 'async' or 'async:N', N being a delay in milliseconds
+     *
+     * @param value
+     * @return
+     */
+    public static EditDurability parse(String value) {
+        String v = value.trim().toLowerCase();
+        int pos = v.indexOf(':');
+        String mode = pos > 0 ? v.substring(0, pos) : v;
+        String delay = pos > 0 ? v.substring(pos + 1).trim() : null;
+        try {
+            switch (mode) {
+                case "sync":
+                    return SYNC;
+                case "groupcommit":
+                    if (delay == null) {
+                        throw new IllegalArgumentException("groupcommit needs a delay, like groupcommit:10");
+                    }
+                    return groupCommit(Integer.parseInt(delay));
+                case "async":
+                    return delay == null ? ASYNC : async(Integer.parseInt(delay));
+                default:
+                    throw new IllegalArgumentException("bad durability '" + value + "', only sync|groupcommit:N|async[:N] are valid");
+            }
+        } catch (NumberFormatException err) {
+            throw new IllegalArgumentException("bad durability '" + value + "'", err);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Max delay, in milliseconds, between the write of the edit and its synch
+     *
+     * @return
+     */
+    public int getMaxSyncDelay() {
+        return maxSyncDelay;
+    }
+
+    /**
+     * Whether the caller has to wait for the edit to be durable
+     *
+     * @return
+     */
+    public boolean isWaitForSync() {
+        return mode != Mode.ASYNC;
+    }
+
+    /**
+     * The durability which satisfies both this and the other
+     *
+     * @param other
+     * @return
+     */
+    public EditDurability strictest(EditDurability other) {
+        if (mode == Mode.SYNC || other.mode == Mode.SYNC) {
+            return SYNC;
+        }
+        if (mode != other.mode) {
+            // GROUP_COMMIT and ASYNC
+            return groupCommit(Math.min(maxSyncDelay, other.maxSyncDelay));
+        }
+        return maxSyncDelay <= other.maxSyncDelay ? this : other;
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case SYNC:
+                return "sync";
+            case GROUP_COMMIT:
+                return "groupcommit:" + maxSyncDelay;
+            default:
+                return "async:" + maxSyncDelay;
+        }
+    }
+
+}
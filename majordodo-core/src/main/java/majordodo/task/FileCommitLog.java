@@ -22,20 +22,20 @@ package majordodo.task;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
@@ -47,9 +47,13 @@ import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Checksum;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import majordodo.utils.FileUtils;
+import majordodo.utils.io.ByteBufferOutputStream;
+import majordodo.utils.io.Crc32c;
+import majordodo.utils.io.ExtendedDataOutputStream;
 
 /**
  * Log data and snapshots are stored on the local disk. Suitable for single broker setups
@@ -70,27 +74,54 @@ public class FileCommitLog extends StatusChangesLog {
     private boolean writable = false;
     private long maxLogFileSize = 1024 * 1024;
     private long writtenBytes = 0;
+    private boolean preallocateSegments = false;
+    private boolean truncateOnCorruption = false;
 
+    // max number of write requests covered by a single fsync, and max number of requests written at once
     private final int MAX_UNSYNCHED_BATCH = 1000;
+    // how often the spool thread checks for the log to be closed while idle
     private final int MAX_SYNCH_TIME = 10;
 
     private volatile CommitFileWriter writer;
+    // the first failed write to a log file: what has been written is unknown, no more edits are accepted
+    private volatile IOException writeFailure;
     private Thread spool;
 
     private final BlockingQueue<StatusEditHolderFuture> writeQueue = new LinkedBlockingQueue<>(100000);
 
     private final ReentrantLock snapshotLock = new ReentrantLock();
 
+    // entries written by older versions, without checksum
     private final static byte ENTRY_START = 13;
+    // the entry carries a CRC32C of the sequence number, the length and the payload, written after the payload
+    private final static byte ENTRY_START_WITH_CHECKSUM = 14;
     private final static byte ENTRY_END = 25;
+    // preallocated segments are filled with zeros, a zero where an entry should start marks the end of data
+    private final static byte END_OF_DATA = 0;
+    // room for the entry which makes a segment exceed maxLogFileSize, without growing the file
+    private final static int SEGMENT_SIZE_MARGIN = 64 * 1024;
+
+    // entries are serialized into this buffer, which is written to the file when it is large enough and at every synch.
+    // it is used only by the spool thread
+    private final ByteBufferOutputStream writeBuffer = new ByteBufferOutputStream(WRITE_BUFFER_SIZE);
+    private final ExtendedDataOutputStream writeBufferOut = new ExtendedDataOutputStream(writeBuffer);
+    private final Checksum writeChecksum = Crc32c.create();
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    // ENTRY_START + sequence number + length
+    private static final int ENTRY_HEADER_SIZE = 1 + 8 + 4;
+    // checksum + ENTRY_END
+    private static final int ENTRY_TRAILER_SIZE = 4 + 1;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
 
     private class CommitFileWriter implements AutoCloseable {
 
         final long ledgerId;
         long sequenceNumber;
-        FileOutputStream fOut;
-        DataOutputStream out;
+        FileChannel channel;
         Path filename;
+        // only for preallocated segments, the size of the file and the position of the end of data
+        long segmentSize;
+        long position;
 
         private CommitFileWriter(long ledgerId, long sequenceNumber) throws IOException {
             this.ledgerId = ledgerId;
@@ -102,35 +133,111 @@ public class FileCommitLog extends StatusChangesLog {
             if (file.isFile()) {
                 throw new IOException("File " + file.getAbsolutePath() + " already exists");
             }
-            this.fOut = new FileOutputStream(file);
-            this.out = new DataOutputStream(
-                new BufferedOutputStream(
-                    this.fOut
-                )
-            );
+            this.channel = FileChannel.open(filename, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            if (preallocateSegments) {
+                try {
+                    preallocate(maxLogFileSize + SEGMENT_SIZE_MARGIN);
+                } catch (IOException err) {
+                    channel.close();
+                    throw err;
+                }
+            }
+            writeBuffer.reset();
             writtenBytes = 0;
         }
 
+        /**
+         * Fills the file with zeros up to the given size. Blocks are really allocated (a sparse file would not help),
+         * so that synchs do not need to update the metadata of the file
+         */
+        private void preallocate(long size) throws IOException {
+            ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(size - segmentSize, 1024 * 1024));
+            while (segmentSize < size) {
+                // Buffer methods are called on Buffer, in order to be compatible with Java 8 runtimes
+                ((Buffer) zeros).clear();
+                if (size - segmentSize < zeros.capacity()) {
+                    ((Buffer) zeros).limit((int) (size - segmentSize));
+                }
+                segmentSize += channel.write(zeros, segmentSize);
+            }
+            channel.force(true);
+        }
+
         public void writeEntry(long seqnumber, StatusEdit edit) throws IOException {
-            byte[] serialize = edit.serialize();
-            this.out.writeByte(ENTRY_START);
-            this.out.writeLong(seqnumber);
-            this.out.writeInt(serialize.length);
-            this.out.write(serialize);
-            this.out.writeByte(ENTRY_END);
-            writtenBytes += (1 + 8 + 4 + serialize.length + 1);
+            if (writeBuffer.size() >= WRITE_BUFFER_SIZE / 2) {
+                flushBuffer();
+            }
+            int entryStart = writeBuffer.size();
+            writeBufferOut.writeByte(ENTRY_START_WITH_CHECKSUM);
+            writeBufferOut.writeLong(seqnumber);
+            // the length is not known until the edit has been serialized
+            writeBufferOut.writeInt(0);
+            try {
+                edit.serialize(writeBufferOut);
+            } catch (RuntimeException err) {
+                // drop the partial entry
+                writeBuffer.truncate(entryStart);
+                throw new IOException(err);
+            }
+            int len = writeBuffer.size() - entryStart - ENTRY_HEADER_SIZE;
+            writeBuffer.putInt(entryStart + 1 + 8, len);
+            writeChecksum.reset();
+            writeBuffer.updateChecksum(writeChecksum, entryStart + 1, ENTRY_HEADER_SIZE - 1 + len);
+            writeBufferOut.writeInt((int) writeChecksum.getValue());
+            writeBufferOut.writeByte(ENTRY_END);
+            writtenBytes += (ENTRY_HEADER_SIZE + len + ENTRY_TRAILER_SIZE);
+        }
+
+        /**
+         * Writes the buffer to the file. A failure is fatal: the buffer keeps its content, position is not moved, and
+         * the log does not accept any other edit, see {@link #writeFailed(java.io.IOException) }
+         */
+        private void flushBuffer() throws IOException {
+            if (writeFailure != null) {
+                throw new IOException("a previous write to the commit log failed", writeFailure);
+            }
+            try {
+                if (!preallocateSegments) {
+                    writeBuffer.writeTo(channel);
+                    return;
+                }
+                int size = writeBuffer.size();
+                // always leave room for the end of data marker
+                if (position + size + 1 > segmentSize) {
+                    // only an entry larger than SEGMENT_SIZE_MARGIN can get here
+                    preallocate(position + size + 1);
+                }
+                writeBuffer.writeTo(channel, position);
+                position += size;
+            } catch (IOException err) {
+                writeFailed(err);
+                throw err;
+            }
         }
 
+        /**
+         * Flushes the buffer and synchs the file. A failure is fatal as for {@link #flushBuffer() }: the edits may be
+         * in the file or not, and after a failed fsync the kernel may have dropped the dirty pages, so that a following
+         * synch which succeeds would prove nothing
+         */
         public void synch() throws IOException {
-            this.out.flush();
-            this.fOut.getFD().sync();
+            flushBuffer();
+            try {
+                // fdatasync, the size of the file is synched anyway
+                channel.force(false);
+            } catch (IOException err) {
+                writeFailed(err);
+                throw err;
+            }
         }
 
         @Override
         public void close() throws LogNotAvailableException {
             try {
-                out.close();
-                fOut.close();
+                if (writeFailure == null) {
+                    flushBuffer();
+                }
+                channel.close();
             } catch (IOException err) {
                 throw new LogNotAvailableException(err);
             }
@@ -153,65 +260,167 @@ public class FileCommitLog extends StatusChangesLog {
 
     }
 
+    /**
+     * Reads a log file through a large buffer, entries are verified and deserialized directly from the buffer.
+     * <p>
+     * A bad entry which is the last one of the last file is the tail of a write which has not been synched, and so it
+     * has not been acknowledged: it is ignored and the file has to be truncated at its start. Any other bad entry
+     * fails the recovery, unless truncateOnCorruption is set
+     */
     private class CommitFileReader implements AutoCloseable {
 
-        DataInputStream in;
-        long ledgerId;
-        boolean lastFile;
+        final FileChannel channel;
+        final Path filename;
+        final long ledgerId;
+        final boolean lastFile;
+        final long fileSize;
+        final Checksum checksum = Crc32c.create();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // offset in the file of the first byte of the buffer
+        long bufferOffset;
+        long entryOffset;
+        // offset of the first bad entry, the file has to be truncated there
+        long truncateAt = -1;
+        // the bad entry was not a torn write, the next files cannot be trusted
+        boolean corrupted;
 
         private CommitFileReader(long ledgerId, boolean lastFile) throws IOException {
             this.ledgerId = ledgerId;
-            Path filename = logDirectory.resolve(String.format("%016x", ledgerId) + LOGFILEEXTENSION);
+            this.lastFile = lastFile;
+            this.filename = logDirectory.resolve(String.format("%016x", ledgerId) + LOGFILEEXTENSION);
             // in case of IOException the stream is not opened, not need to close it
-            this.in = new DataInputStream(Files.newInputStream(filename, StandardOpenOption.READ));
+            this.channel = FileChannel.open(filename, StandardOpenOption.READ);
+            try {
+                this.fileSize = channel.size();
+            } catch (IOException err) {
+                channel.close();
+                throw err;
+            }
+            // Buffer methods are called on Buffer, in order to be compatible with Java 8 runtimes
+            ((Buffer) buffer).flip();
+        }
+
+        /**
+         * Makes at least size bytes available in the buffer, starting from its position
+         *
+         * @return false if the file ends before
+         */
+        private boolean ensureAvailable(int size) throws IOException {
+            if (buffer.remaining() >= size) {
+                return true;
+            }
+            bufferOffset += buffer.position();
+            if (size > buffer.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(size);
+                bigger.put(buffer);
+                buffer = bigger;
+            } else {
+                buffer.compact();
+            }
+            while (buffer.position() < size) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            ((Buffer) buffer).flip();
+            return buffer.remaining() >= size;
         }
 
         public StatusEditWithSequenceNumber nextEntry() throws IOException {
-            byte entryStart;
-            try {
-                entryStart = in.readByte();
-            } catch (EOFException okEnd) {
+            if (truncateAt >= 0) {
                 return null;
             }
-            try {
-                if (entryStart != ENTRY_START) {
-                    throw new IOException("corrupted stream");
-                }
-                long seqNumber = this.in.readLong();
-                int len = this.in.readInt();
-                byte[] data = new byte[len];
-                int rr = this.in.read(data);
-                if (rr != data.length) {
-                    return null;
-                }
-                int entryEnd = this.in.readByte();
-                if (entryEnd != ENTRY_END) {
-                    throw new IOException("corrupted stream");
-                }
-                StatusEdit edit = StatusEdit.read(data);
-                return new StatusEditWithSequenceNumber(new LogSequenceNumber(ledgerId, seqNumber), edit);
-            } catch (EOFException truncatedLog) {
-                // if we hit EOF the entry has not been written, and so not acked, we can ignore it and say that the file is finished
-                // it is important that this is the last file in the set
-                if (lastFile) {
-                    LOGGER.log(Level.SEVERE, "found unfinished entry in file " + this.ledgerId + ". entry was not acked. ignoring " + truncatedLog);
-                    return null;
-                } else {
-                    throw truncatedLog;
+            entryOffset = bufferOffset + buffer.position();
+            if (!ensureAvailable(1)) {
+                return null;
+            }
+            byte entryStart = buffer.get(buffer.position());
+            if (entryStart == END_OF_DATA) {
+                // end of a preallocated segment
+                return null;
+            }
+            if (entryStart != ENTRY_START && entryStart != ENTRY_START_WITH_CHECKSUM) {
+                return badEntry("corrupted stream, unexpected entry start " + entryStart, false);
+            }
+            int trailerSize = entryStart == ENTRY_START_WITH_CHECKSUM ? ENTRY_TRAILER_SIZE : 1;
+            if (!ensureAvailable(ENTRY_HEADER_SIZE)) {
+                return badEntry("unfinished entry", true);
+            }
+            long seqNumber = buffer.getLong(buffer.position() + 1);
+            int len = buffer.getInt(buffer.position() + 1 + 8);
+            if (len < 0 || entryOffset + ENTRY_HEADER_SIZE + len + trailerSize > fileSize) {
+                // the length is garbage or the entry has not been fully written
+                return badEntry("unfinished entry, length " + len, true);
+            }
+            int entrySize = ENTRY_HEADER_SIZE + len + trailerSize;
+            if (!ensureAvailable(entrySize)) {
+                return badEntry("unfinished entry", true);
+            }
+            int start = buffer.position();
+            byte[] data = buffer.array();
+            if (entryStart == ENTRY_START_WITH_CHECKSUM) {
+                checksum.reset();
+                checksum.update(data, start + 1, ENTRY_HEADER_SIZE - 1 + len);
+                if ((int) checksum.getValue() != buffer.getInt(start + ENTRY_HEADER_SIZE + len)) {
+                    // a torn write leaves garbage or zeros, but only at the end of the data
+                    return badEntry("checksum mismatch", isFollowedByEndOfData(entrySize));
                 }
             }
+            byte entryEnd = buffer.get(start + entrySize - 1);
+            if (entryEnd != ENTRY_END) {
+                // zeros are the tail of a preallocated segment
+                return badEntry("corrupted stream, unexpected entry end " + entryEnd, entryEnd == END_OF_DATA);
+            }
+            StatusEdit edit = StatusEdit.read(data, start + ENTRY_HEADER_SIZE, len);
+            ((Buffer) buffer).position(start + entrySize);
+            return new StatusEditWithSequenceNumber(new LogSequenceNumber(ledgerId, seqNumber), edit);
+        }
+
+        private boolean isFollowedByEndOfData(int entrySize) throws IOException {
+            if (!ensureAvailable(entrySize + 1)) {
+                return true;
+            }
+            return buffer.get(buffer.position() + entrySize) == END_OF_DATA;
+        }
+
+        private StatusEditWithSequenceNumber badEntry(String reason, boolean tornWrite) throws IOException {
+            if (tornWrite && lastFile) {
+                LOGGER.log(Level.SEVERE, "found unfinished entry in file " + this.ledgerId + " at offset " + entryOffset + " (" + reason + "). entry was not acked. ignoring");
+            } else if (truncateOnCorruption) {
+                LOGGER.log(Level.SEVERE, "found bad entry in file " + this.ledgerId + " at offset " + entryOffset + " (" + reason + "). truncating the log");
+                corrupted = true;
+            } else {
+                throw new IOException("bad entry in file " + filename + " at offset " + entryOffset + ": " + reason);
+            }
+            truncateAt = entryOffset;
+            return null;
         }
 
         public void close() throws IOException {
-            in.close();
+            channel.close();
         }
     }
 
+    /**
+     * Entries may have been acknowledged (ASYNC edits, or edits written before a synch which failed) and then lost, or
+     * partially written: the broker cannot go on
+     */
+    private void writeFailed(IOException err) {
+        if (writeFailure != null) {
+            return;
+        }
+        LOGGER.log(Level.SEVERE, "commit log write failure on " + logDirectory + ", no more edits will be accepted", err);
+        writeFailure = err;
+        signalBrokerFailed(err);
+    }
+
     private void openNewLedger() throws LogNotAvailableException {
 
         try {
             if (writer != null) {
                 LOGGER.log(Level.SEVERE, "closing actual file {0}", writer.filename);
+                // entries of the current group have not been synched yet
+                writer.synch();
                 writer.close();
             }
             ensureDirectories();
@@ -223,6 +432,35 @@ public class FileCommitLog extends StatusChangesLog {
         }
     }
 
+    public boolean isPreallocateSegments() {
+        return preallocateSegments;
+    }
+
+    /**
+     * Log files are created with their full size (maxLogFileSize), filled with zeros, this way synchs do not need to
+     * update the metadata of the file. Files written with or without this option can be recovered in both modes
+     *
+     * @param preallocateSegments
+     */
+    public void setPreallocateSegments(boolean preallocateSegments) {
+        this.preallocateSegments = preallocateSegments;
+    }
+
+    public boolean isTruncateOnCorruption() {
+        return truncateOnCorruption;
+    }
+
+    /**
+     * During recovery a bad entry (wrong checksum or markers) which is not the tail of the last file fails the boot.
+     * With this option the log is truncated at the first bad entry instead, the next log files are renamed with a
+     * ".corrupted" suffix and the edits they contain are lost
+     *
+     * @param truncateOnCorruption
+     */
+    public void setTruncateOnCorruption(boolean truncateOnCorruption) {
+        this.truncateOnCorruption = truncateOnCorruption;
+    }
+
     public FileCommitLog(Path snapshotsDirectory, Path logDirectory, long maxLogFileSize) {
         this.maxLogFileSize = maxLogFileSize;
         this.snapshotsDirectory = snapshotsDirectory.toAbsolutePath();
@@ -232,104 +470,151 @@ public class FileCommitLog extends StatusChangesLog {
         LOGGER.log(Level.SEVERE, "snapshotdirectory:{0}, logdirectory:{1},maxLogFileSize {2} bytes", new Object[]{snapshotsDirectory, logDirectory, maxLogFileSize});
     }
 
+    /**
+     * Group commit: every write request which arrives while the spool thread is writing or synching the previous
+     * group is written and then synched together with the others, with a single fsync. The synch is delayed as long as
+     * the {@link EditDurability} of the pending requests allows, ASYNC requests are acknowledged as soon as they are
+     * written
+     */
     private class SpoolTask implements Runnable {
 
         @Override
         public void run() {
+            List<StatusEditHolderFuture> group = new ArrayList<>();
+            // written, waiting for the synch
+            List<StatusEditHolderFuture> unsynched = new ArrayList<>();
+            boolean unsynchedWrites = false;
+            long synchDeadline = Long.MAX_VALUE;
             try {
                 openNewLedger();
-                int count = 0;
-                List<StatusEditHolderFuture> doneEntries = new ArrayList<>();
-                while (!closed || !writeQueue.isEmpty()) {
-                    StatusEditHolderFuture entry = writeQueue.poll(MAX_SYNCH_TIME, TimeUnit.MILLISECONDS);
-                    boolean timedOut = false;
-                    if (entry != null) {
-                        writeEntry(entry);
-                        doneEntries.add(entry);
-                        count++;
-                    } else {
-                        timedOut = true;
+                while (!closed || !writeQueue.isEmpty() || unsynchedWrites || !unsynched.isEmpty()) {
+                    long wait = TimeUnit.MILLISECONDS.toNanos(MAX_SYNCH_TIME);
+                    if (synchDeadline != Long.MAX_VALUE) {
+                        wait = Math.min(wait, synchDeadline - System.nanoTime());
                     }
-                    if (timedOut || count >= MAX_UNSYNCHED_BATCH) {
-                        count = 0;
-                        if (!doneEntries.isEmpty()) {
-                            synch();
-                            for (StatusEditHolderFuture e : doneEntries) {
-                                if (e.synch) {
-                                    e.synchDone();
-                                }
+                    StatusEditHolderFuture first = wait > 0 ? writeQueue.poll(wait, TimeUnit.NANOSECONDS) : writeQueue.poll();
+                    if (first != null) {
+                        group.add(first);
+                        writeQueue.drainTo(group, MAX_UNSYNCHED_BATCH - 1);
+                        for (StatusEditHolderFuture entry : group) {
+                            boolean written = writeEntries(entry);
+                            unsynchedWrites |= written;
+                            synchDeadline = Math.min(synchDeadline,
+                                entry.created + TimeUnit.MILLISECONDS.toNanos(entry.durability.getMaxSyncDelay()));
+                            if (entry.durability.isWaitForSync()) {
+                                unsynched.add(entry);
+                            } else {
+                                entry.synchDone(null);
                             }
-                            doneEntries.clear();
                         }
-
+                        group.clear();
+                    }
+                    boolean closing = closed && writeQueue.isEmpty();
+                    if ((unsynchedWrites || !unsynched.isEmpty())
+                        && (closing || unsynched.size() >= MAX_UNSYNCHED_BATCH || System.nanoTime() - synchDeadline >= 0)) {
+                        Throwable synchError = null;
+                        if (unsynchedWrites) {
+                            try {
+                                synch();
+                            } catch (IOException err) {
+                                LOGGER.log(Level.SEVERE, "commit log synch failure on " + FileCommitLog.this.logDirectory, err);
+                                // the failure has already been signalled to the broker, see writeFailed
+                                synchError = err;
+                            }
+                        }
+                        for (StatusEditHolderFuture entry : unsynched) {
+                            entry.synchDone(synchError);
+                        }
+                        unsynched.clear();
+                        unsynchedWrites = false;
+                        synchDeadline = Long.MAX_VALUE;
                     }
                 }
             } catch (Throwable t) {
-                LOGGER.log(Level.SEVERE, "general commit log failure on " + FileCommitLog.this.logDirectory);
+                LOGGER.log(Level.SEVERE, "general commit log failure on " + FileCommitLog.this.logDirectory, t);
+            } finally {
+                // do not leave callers waiting forever
+                group.addAll(unsynched);
+                writeQueue.drainTo(group);
+                for (StatusEditHolderFuture entry : group) {
+                    entry.ack.completeExceptionally(new LogNotAvailableException("commit log spool is not running"));
+                }
             }
         }
 
     }
 
+    /**
+     * A write request, a batch of edits is enqueued as a whole and written in a row
+     */
     private static class StatusEditHolderFuture {
 
-        final CompletableFuture<LogSequenceNumber> ack = new CompletableFuture<>();
-        final StatusEdit entry;
-        LogSequenceNumber sequenceNumber;
+        final CompletableFuture<List<LogSequenceNumber>> ack = new CompletableFuture<>();
+        final List<StatusEdit> entries;
+        final List<LogSequenceNumber> sequenceNumbers;
+        final EditDurability durability;
+        final long created = System.nanoTime();
         Throwable error;
-        final boolean synch;
 
-        public StatusEditHolderFuture(StatusEdit entry, boolean synch) {
-            this.entry = entry;
-            this.synch = synch;
+        public StatusEditHolderFuture(List<StatusEdit> entries, EditDurability durability) {
+            this.entries = entries;
+            this.sequenceNumbers = new ArrayList<>(entries.size());
+            this.durability = durability;
         }
 
         public void error(Throwable error) {
             this.error = error;
-            if (!synch) {
-                synchDone();
-            }
         }
 
         public void done(LogSequenceNumber sequenceNumber) {
-            this.sequenceNumber = sequenceNumber;
-            if (!synch) {
-                synchDone();
-            }
+            this.sequenceNumbers.add(sequenceNumber);
         }
 
-        private void synchDone() {
-            if (sequenceNumber == null && error == null) {
-                throw new IllegalStateException();
+        private void synchDone(Throwable synchError) {
+            if (error == null) {
+                error = synchError;
             }
             if (error != null) {
                 ack.completeExceptionally(error);
             } else {
-                ack.complete(sequenceNumber);
+                ack.complete(sequenceNumbers);
             }
         }
 
     }
 
-    private void writeEntry(StatusEditHolderFuture entry) {
+    /**
+     * Writes the edits of a request, without synching
+     *
+     * @return true if something has been written
+     */
+    private boolean writeEntries(StatusEditHolderFuture entry) {
+        boolean written = false;
         try {
-            CommitFileWriter writer = this.writer;
-
-            if (writer == null) {
-                throw new IOException("not yet writable");
+            if (writeFailure != null) {
+                throw new IOException("a previous write to the commit log failed", writeFailure);
             }
+            for (StatusEdit edit : entry.entries) {
+                CommitFileWriter writer = this.writer;
+
+                if (writer == null) {
+                    throw new IOException("not yet writable");
+                }
 
-            long newSequenceNumber = ++writer.sequenceNumber;
-            writer.writeEntry(newSequenceNumber, entry.entry);
+                long newSequenceNumber = ++writer.sequenceNumber;
+                writer.writeEntry(newSequenceNumber, edit);
+                written = true;
 
-            if (writtenBytes > maxLogFileSize) {
-                openNewLedger();
-            }
+                if (writtenBytes > maxLogFileSize) {
+                    openNewLedger();
+                }
 
-            entry.done(new LogSequenceNumber(writer.ledgerId, newSequenceNumber));
+                entry.done(new LogSequenceNumber(writer.ledgerId, newSequenceNumber));
+            }
         } catch (IOException | LogNotAvailableException err) {
             entry.error(err);
         }
+        return written;
     }
 
     private void synch() throws IOException {
@@ -341,40 +626,42 @@ public class FileCommitLog extends StatusChangesLog {
 
     @Override
     public LogSequenceNumber logStatusEdit(StatusEdit edit) throws LogNotAvailableException {
-        return logStatusEdit(edit, true);
+        return log(Collections.singletonList(edit)).get(0);
     }
 
-    private LogSequenceNumber logStatusEdit(StatusEdit edit, boolean synch) throws LogNotAvailableException {
+    @Override
+    public List<LogSequenceNumber> logStatusEditBatch(List<StatusEdit> edits) throws LogNotAvailableException {
+        if (edits.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return log(edits);
+    }
 
+    private List<LogSequenceNumber> log(List<StatusEdit> edits) throws LogNotAvailableException {
         if (LOGGER.isLoggable(Level.FINEST)) {
-            LOGGER.log(Level.FINEST, "log {0}", edit);
+            LOGGER.log(Level.FINEST, "log {0}", edits);
         }
-        StatusEditHolderFuture future = new StatusEditHolderFuture(edit, synch);
+        long start = System.nanoTime();
+        StatusEditHolderFuture future = new StatusEditHolderFuture(edits, durabilityPolicy.get(edits));
         try {
             writeQueue.put(future);
-            return future.ack.get();
+            List<LogSequenceNumber> res = future.ack.get();
+            recordCommitLatency(edits, start);
+            return res;
         } catch (InterruptedException err) {
             Thread.currentThread().interrupt();
             throw new LogNotAvailableException(err);
         } catch (ExecutionException err) {
+            if (err.getCause() instanceof LogNotAvailableException) {
+                throw (LogNotAvailableException) err.getCause();
+            }
             throw new LogNotAvailableException(err.getCause());
         }
     }
 
-    @Override
-    public List<LogSequenceNumber> logStatusEditBatch(List<StatusEdit> edits) throws LogNotAvailableException {
-        List<LogSequenceNumber> res = new ArrayList<>();
-        int size = edits.size();
-        for (int i = 0; i < size; i++) {
-            boolean synchLast = i == size - 1;
-            res.add(logStatusEdit(edits.get(i), synchLast));
-        }
-        return res;
-    }
-
     @Override
     public boolean isWritable() {
-        return writable && !closed;
+        return writable && !closed && writeFailure == null;
     }
 
     @Override
@@ -392,28 +679,49 @@ public class FileCommitLog extends StatusChangesLog {
             names.sort(Comparator.comparing(Path::toString));
             final Path last = names.isEmpty() ? null : names.get(names.size() - 1);
 
+            boolean corrupted = false;
             for (Path p : names) {
                 boolean lastFile = p.equals(last);
 
-                LOGGER.log(Level.SEVERE, "logfile is {0}, lastFile {1}", new Object[]{p.toAbsolutePath(), lastFile});
-
                 String name = (p.getFileName() + "").replace(LOGFILEEXTENSION, "");
                 long ledgerId = Long.parseLong(name, 16);
                 if (ledgerId > currentLedgerId) {
                     currentLedgerId = ledgerId;
                 }
+                if (corrupted) {
+                    Path discarded = p.resolveSibling(p.getFileName() + CORRUPTEDFILEEXTENSION);
+                    LOGGER.log(Level.SEVERE, "logfile {0} follows a corrupted entry, renaming it to {1}", new Object[]{p.toAbsolutePath(), discarded});
+                    Files.move(p, discarded, StandardCopyOption.REPLACE_EXISTING);
+                    continue;
+                }
+
+                LOGGER.log(Level.SEVERE, "logfile is {0}, lastFile {1}", new Object[]{p.toAbsolutePath(), lastFile});
+
+                long truncateAt;
                 try (CommitFileReader reader = new CommitFileReader(ledgerId, lastFile)) {
                     StatusEditWithSequenceNumber n = reader.nextEntry();
                     while (n != null) {
 
                         if (n.logSequenceNumber.after(snapshotSequenceNumber)) {
-                            LOGGER.log(Level.FINE, "RECOVER ENTRY {0}, {1}", new Object[]{n.logSequenceNumber, n.statusEdit});
+                            if (LOGGER.isLoggable(Level.FINE)) {
+                                LOGGER.log(Level.FINE, "RECOVER ENTRY {0}, {1}", new Object[]{n.logSequenceNumber, n.statusEdit});
+                            }
                             consumer.accept(n.logSequenceNumber, n.statusEdit);
-                        } else {
+                        } else if (LOGGER.isLoggable(Level.FINE)) {
                             LOGGER.log(Level.FINE, "SKIP ENTRY {0}, {1}", new Object[]{n.logSequenceNumber, n.statusEdit});
                         }
                         n = reader.nextEntry();
                     }
+                    truncateAt = reader.truncateAt;
+                    corrupted = reader.corrupted;
+                }
+                if (truncateAt >= 0) {
+                    // new ledgers will follow this file, the bad entry must not be found again at the next boot
+                    LOGGER.log(Level.SEVERE, "truncating logfile {0} at {1} bytes", new Object[]{p.toAbsolutePath(), truncateAt});
+                    try (FileChannel channel = FileChannel.open(p, StandardOpenOption.WRITE)) {
+                        channel.truncate(truncateAt);
+                        channel.force(true);
+                    }
                 }
             }
             LOGGER.log(Level.SEVERE, "Max ledgerId is {0}", new Object[]{currentLedgerId});
@@ -460,6 +768,7 @@ public class FileCommitLog extends StatusChangesLog {
     }
 
     private static final String LOGFILEEXTENSION = ".txlog";
+    private static final String CORRUPTEDFILEEXTENSION = ".corrupted";
 
     private Path writeSnapshotOnDisk(BrokerStatusSnapshot snapshotData) throws LogNotAvailableException {
         ensureDirectories();
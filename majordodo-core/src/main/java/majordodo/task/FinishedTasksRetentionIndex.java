@@ -0,0 +1,125 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongPredicate;
+
+/**
+ * Index of finished tasks, grouped in buckets by creation time, used to purge them from memory. Every bucket older
+ * than the retention is dropped entirely, only the bucket which contains the retention deadline has to be checked task
+ * by task. Not thread safe, access is guarded by the lock of {@link BrokerStatus}
+ *
+ * @author enrico.olivelli
+ */
+final class FinishedTasksRetentionIndex {
+
+    static final long DEFAULT_BUCKET_SIZE = 1000;
+
+    private static final class Bucket {
+
+        long[] taskIds = new long[8];
+        int size;
+
+        void add(long taskId) {
+            if (size == taskIds.length) {
+                taskIds = Arrays.copyOf(taskIds, size * 2);
+            }
+            taskIds[size++] = taskId;
+        }
+    }
+
+    private final long bucketSize;
+    private final TreeMap<Long, Bucket> buckets = new TreeMap<>();
+    private int size;
+
+    FinishedTasksRetentionIndex() {
+        this(DEFAULT_BUCKET_SIZE);
+    }
+
+    FinishedTasksRetentionIndex(long bucketSize) {
+        this.bucketSize = bucketSize;
+    }
+
+    void add(long taskId, long createdTimestamp) {
+        buckets.computeIfAbsent(createdTimestamp / bucketSize, b -> new Bucket()).add(taskId);
+        size++;
+    }
+
+    /**
+     * Visits tasks created before the deadline. Tasks of buckets which are entirely older than the deadline are always
+     * removed from the index, tasks of the last bucket are removed only if the purger returns true
+     *
+     * @param deadline
+     * @param max maximum number of tasks of the older buckets to visit
+     * @param purger purges a task, returns false if the task has to be visited again later
+     * @return true if there are other tasks to purge
+     */
+    boolean purge(long deadline, int max, LongPredicate purger) {
+        long lastBucket = deadline / bucketSize;
+        int visited = 0;
+        while (!buckets.isEmpty()) {
+            Map.Entry<Long, Bucket> first = buckets.firstEntry();
+            long key = first.getKey();
+            if (key > lastBucket) {
+                return false;
+            }
+            Bucket bucket = first.getValue();
+            if (key == lastBucket) {
+                // a single bucket, not older than the bucket size
+                int kept = 0;
+                for (int i = 0; i < bucket.size; i++) {
+                    long taskId = bucket.taskIds[i];
+                    if (!purger.test(taskId)) {
+                        bucket.taskIds[kept++] = taskId;
+                    }
+                }
+                size -= bucket.size - kept;
+                bucket.size = kept;
+                if (kept == 0) {
+                    buckets.remove(key);
+                }
+                return false;
+            }
+            while (bucket.size > 0) {
+                if (visited >= max) {
+                    return true;
+                }
+                purger.test(bucket.taskIds[--bucket.size]);
+                size--;
+                visited++;
+            }
+            buckets.remove(key);
+        }
+        return false;
+    }
+
+    /**
+     * Number of indexed tasks, including tasks which have already been removed from the status
+     *
+     * @return
+     */
+    int size() {
+        return size;
+    }
+
+}
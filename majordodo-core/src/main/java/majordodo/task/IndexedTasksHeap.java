@@ -0,0 +1,356 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Heap of tasks which keeps, for each (group, tasktype) pair, the list of waiting tasks in heap order. When a worker
+ * needs tasks only the lists matching its groups and its task types are visited, instead of the whole heap.<br>
+ * Lists are linked through the positions of the heap, so that insertion, removal and compaction cost O(1) per task.
+ * Tasks are submitted to the {@link TasksChooser} in the same order as in {@link TasksHeap}, so the choosen tasks are
+ * the same.<br>
+ * When a {@link TasksSchedulingPolicy} is set each list is also split by user, so that a fair share choice visits only
+ * the first tasks of each user.
+ *
+ * @author enrico.olivelli
+ */
+public class IndexedTasksHeap extends TasksHeap {
+
+    private final Map<Long, CandidatesList> lists = new HashMap<>();
+    private int[] next;
+    private int[] prev;
+    // links of the lists of each user, only while a scheduling policy is set
+    private int[] userNext;
+    private int[] userPrev;
+
+    public IndexedTasksHeap(int size, TaskPropertiesMapperFunction tenantAssigner) {
+        this(size, tenantAssigner, STORAGE_OBJECTS);
+    }
+
+    public IndexedTasksHeap(int size, TaskPropertiesMapperFunction tenantAssigner, String storageMode) {
+        super(size, tenantAssigner, storageMode);
+        this.next = new int[size];
+        this.prev = new int[size];
+    }
+
+    private static final class CandidatesList {
+
+        final int groupid;
+        final int tasktype;
+        int head = NONE;
+        int tail = NONE;
+        int size;
+
+        final Map<String, UserList> byUser = new HashMap<>();
+
+        CandidatesList(int groupid, int tasktype) {
+            this.groupid = groupid;
+            this.tasktype = tasktype;
+        }
+
+    }
+
+    private static final class UserList {
+
+        int head = NONE;
+        int tail = NONE;
+        int size;
+    }
+
+    /**
+     * Visits the list of a user, the list does not change during a choice
+     */
+    private final class UserListCursor extends UserCandidates {
+
+        private int position;
+
+        UserListCursor(CandidatesList list, String userid, UserList userList) {
+            super(list.groupid, list.tasktype, userid);
+            this.position = userList.head;
+        }
+
+        @Override
+        int position() {
+            return position;
+        }
+
+        @Override
+        void advance() {
+            position = userNext[position];
+        }
+    }
+
+    private static final class Cursor {
+
+        int position;
+
+        Cursor(int position) {
+            this.position = position;
+        }
+
+    }
+
+    /**
+     * Number of waiting tasks indexed for the given group and type, for tests and monitoring
+     *
+     * @param groupid
+     * @param tasktype
+     * @return
+     */
+    int getIndexedTasksCount(int groupid, String tasktype) {
+        for (CandidatesList list : lists.values()) {
+            if (list.groupid == groupid && tasktype.equals(resolveTaskType(list.tasktype))) {
+                return list.size;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    void scanCandidates(List<TasksChooser> choosers) {
+        // every chooser visits only its own lists, this is cheaper than a full pass on the heap
+        for (TasksChooser chooser : choosers) {
+            scanCandidates(chooser);
+        }
+    }
+
+    @Override
+    void scanCandidates(TasksChooser chooser) {
+        List<CandidatesList> matching = new ArrayList<>();
+        for (CandidatesList list : lists.values()) {
+            if (list.size > 0
+                && chooser.isGroupAccepted(list.groupid)
+                && chooser.isTaskTypeAccepted(list.tasktype)) {
+                matching.add(list);
+            }
+        }
+        if (matching.isEmpty()) {
+            return;
+        }
+        if (chooser.hasSchedulingPolicy() && userNext != null) {
+            List<UserCandidates> candidates = new ArrayList<>();
+            for (CandidatesList list : matching) {
+                for (Map.Entry<String, UserList> userList : list.byUser.entrySet()) {
+                    candidates.add(new UserListCursor(list, userList.getKey(), userList.getValue()));
+                }
+            }
+            chooseFairShare(chooser, candidates);
+            return;
+        }
+        if (chooser.hasSchedulingPolicy()) {
+            super.scanCandidates(chooser);
+            return;
+        }
+        if (!chooser.isVisitOrderDependent()) {
+            // the order of visit does not change the result, and in each list only the first tasks can be choosen
+            for (CandidatesList list : matching) {
+                int limit = chooser.getMaxChoosableTasks(list.tasktype);
+                for (int pos = list.head; pos != NONE && limit > 0; pos = next[pos]) {
+                    // tasks blocked on exhausted resources do not count
+                    if (acceptCandidate(chooser, pos)) {
+                        limit--;
+                    }
+                }
+            }
+            return;
+        }
+        if (matching.size() == 1) {
+            for (int pos = matching.get(0).head; pos != NONE; pos = next[pos]) {
+                acceptCandidate(chooser, pos);
+            }
+            return;
+        }
+        // per-user counters are consumed during the visit, we have to merge the lists in heap order
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>(matching.size(),
+            (Cursor a, Cursor b) -> Integer.compare(a.position, b.position));
+        for (CandidatesList list : matching) {
+            cursors.add(new Cursor(list.head));
+        }
+        while (!cursors.isEmpty()) {
+            Cursor cursor = cursors.poll();
+            int pos = cursor.position;
+            acceptCandidate(chooser, pos);
+            cursor.position = next[pos];
+            if (cursor.position != NONE) {
+                cursors.add(cursor);
+            }
+        }
+    }
+
+    @Override
+    void entryInserted(int position) {
+        int groupid = getGroupId(position);
+        int tasktype = getTaskType(position);
+        long key = listKey(groupid, tasktype);
+        CandidatesList list = lists.get(key);
+        if (list == null) {
+            list = new CandidatesList(groupid, tasktype);
+            lists.put(key, list);
+        }
+        append(list, position);
+        if (userNext != null) {
+            String userid = getUserId(position);
+            UserList userList = list.byUser.get(userid);
+            if (userList == null) {
+                userList = new UserList();
+                list.byUser.put(userid, userList);
+            }
+            appendToUser(userList, position);
+        }
+    }
+
+    @Override
+    void entryRemoved(int position) {
+        CandidatesList list = lists.get(listKey(getGroupId(position), getTaskType(position)));
+        if (list == null) {
+            throw new IllegalStateException("task " + getTaskId(position) + " at " + position + " is not indexed");
+        }
+        int before = prev[position];
+        int after = next[position];
+        if (before != NONE) {
+            next[before] = after;
+        } else {
+            list.head = after;
+        }
+        if (after != NONE) {
+            prev[after] = before;
+        } else {
+            list.tail = before;
+        }
+        list.size--;
+        if (userNext != null) {
+            String userid = getUserId(position);
+            UserList userList = list.byUser.get(userid);
+            before = userPrev[position];
+            after = userNext[position];
+            if (before != NONE) {
+                userNext[before] = after;
+            } else {
+                userList.head = after;
+            }
+            if (after != NONE) {
+                userPrev[after] = before;
+            } else {
+                userList.tail = before;
+            }
+            if (--userList.size == 0) {
+                // users come and go, do not keep empty lists
+                list.byUser.remove(userid);
+            }
+        }
+    }
+
+    @Override
+    void entryMoved(int from, int to) {
+        // entries are moved towards the head of the heap, into an empty slot which follows every entry
+        // preceding "from", so the order of each list does not change
+        CandidatesList list = lists.get(listKey(getGroupId(from), getTaskType(from)));
+        int before = prev[from];
+        int after = next[from];
+        prev[to] = before;
+        next[to] = after;
+        if (before != NONE) {
+            next[before] = to;
+        } else {
+            list.head = to;
+        }
+        if (after != NONE) {
+            prev[after] = to;
+        } else {
+            list.tail = to;
+        }
+        if (userNext != null) {
+            UserList userList = list.byUser.get(getUserId(from));
+            before = userPrev[from];
+            after = userNext[from];
+            userPrev[to] = before;
+            userNext[to] = after;
+            if (before != NONE) {
+                userNext[before] = to;
+            } else {
+                userList.head = to;
+            }
+            if (after != NONE) {
+                userPrev[after] = to;
+            } else {
+                userList.tail = to;
+            }
+        }
+    }
+
+    @Override
+    void entriesChanged() {
+        lists.clear();
+        if (getSchedulingPolicy() != null) {
+            userNext = new int[next.length];
+            userPrev = new int[next.length];
+        } else {
+            userNext = null;
+            userPrev = null;
+        }
+        int actualsize = getActualsize();
+        for (int i = 0; i < actualsize; i++) {
+            if (getTaskId(i) > 0) {
+                entryInserted(i);
+            }
+        }
+    }
+
+    @Override
+    void heapResized(int newSize) {
+        next = Arrays.copyOf(next, newSize);
+        prev = Arrays.copyOf(prev, newSize);
+        if (userNext != null) {
+            userNext = Arrays.copyOf(userNext, newSize);
+            userPrev = Arrays.copyOf(userPrev, newSize);
+        }
+    }
+
+    private void append(CandidatesList list, int position) {
+        prev[position] = list.tail;
+        next[position] = NONE;
+        if (list.tail != NONE) {
+            next[list.tail] = position;
+        } else {
+            list.head = position;
+        }
+        list.tail = position;
+        list.size++;
+    }
+
+    private void appendToUser(UserList list, int position) {
+        userPrev[position] = list.tail;
+        userNext[position] = NONE;
+        if (list.tail != NONE) {
+            userNext[list.tail] = position;
+        } else {
+            list.head = position;
+        }
+        list.tail = position;
+        list.size++;
+    }
+
+}
@@ -26,7 +26,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 
 /**
- * In memory commit log
+ * In memory commit log. Edits are never durable, so every {@link DurabilityPolicy} is trivially honoured
  *
  * @author enrico.olivelli
  */
@@ -47,6 +47,7 @@ public class MemoryCommitLog extends StatusChangesLog {
         if (!writable) {
             throw new LogNotAvailableException(new Exception("not yet writable"));
         }
+        long start = System.nanoTime();
         lock.lock();
         try {
             long newNumber = ++sequenceNumber;
@@ -55,6 +56,7 @@ public class MemoryCommitLog extends StatusChangesLog {
             return snum;
         } finally {
             lock.unlock();
+            recordCommitLatency(action, start);
         }
     }
 
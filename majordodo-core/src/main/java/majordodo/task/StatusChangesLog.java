@@ -31,6 +31,42 @@ import java.util.function.BiConsumer;
 public abstract class StatusChangesLog implements AutoCloseable {
 
     protected BrokerFailureListener failureListener;
+    protected volatile DurabilityPolicy durabilityPolicy = new DurabilityPolicy();
+    protected final CommitLatencyStats commitLatencyStats = new CommitLatencyStats();
+
+    public DurabilityPolicy getDurabilityPolicy() {
+        return durabilityPolicy;
+    }
+
+    /**
+     * Durability required for each type of edit, see {@link DurabilityPolicy} for the policies which are safe for
+     * recovery. Implementations which cannot honour a mode use a stricter one
+     *
+     * @param durabilityPolicy
+     */
+    public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy) {
+        this.durabilityPolicy = durabilityPolicy;
+    }
+
+    /**
+     * Latency of logStatusEdit and logStatusEditBatch, for each type of edit
+     *
+     * @return
+     */
+    public CommitLatencyStats getCommitLatencyStats() {
+        return commitLatencyStats;
+    }
+
+    protected final void recordCommitLatency(StatusEdit edit, long startNanos) {
+        commitLatencyStats.record(edit.editType, System.nanoTime() - startNanos);
+    }
+
+    protected final void recordCommitLatency(List<StatusEdit> edits, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        for (StatusEdit edit : edits) {
+            commitLatencyStats.record(edit.editType, nanos);
+        }
+    }
 
     public String getSharedSecret() {
         return null;
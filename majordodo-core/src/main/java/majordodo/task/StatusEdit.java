@@ -424,140 +424,151 @@ public final class StatusEdit {
         try {
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             ExtendedDataOutputStream doo = new ExtendedDataOutputStream(out);
-            doo.writeShort(TYPE_V2);
-            doo.writeVInt(PROTOCOL_VERSION);
-            doo.writeVInt(this.editType);
-            switch (this.editType) {
-                case TYPE_BEGIN_TRANSACTION:
-                    doo.writeLong(transactionId);
-                    doo.writeLong(timestamp);
-                    break;
-                case TYPE_COMMIT_TRANSACTION:
-                    doo.writeLong(transactionId);
-                    break;
-                case TYPE_ROLLBACK_TRANSACTION:
-                    doo.writeLong(transactionId);
-                    break;
-                case TYPE_ADD_TASK:
-                    doo.writeLong(taskId);
-                    doo.writeUTF(userid);
-                    doo.writeVInt(taskStatus);
-                    doo.writeUTF(taskType);
-                    doo.writeVInt(maxattempts);
-                    doo.writeVInt(attempt);
-                    doo.writeVLong(requestedStartTime);
-                    doo.writeLong(executionDeadline);
-                    if (parameter != null) {
-                        doo.writeUTF(parameter);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (slot != null) {
-                        doo.writeUTF(slot);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (codepool != null) {
-                        doo.writeUTF(codepool);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (mode != null) {
-                        doo.writeUTF(mode);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    break;
-                case TYPE_PREPARE_ADD_TASK:
-                    doo.writeLong(transactionId);
-                    doo.writeLong(taskId);
-                    doo.writeUTF(userid);
-                    doo.writeVInt(taskStatus);
-                    doo.writeUTF(taskType);
-                    doo.writeVInt(maxattempts);
-                    doo.writeVInt(attempt);
-                    doo.writeVLong(requestedStartTime);
-                    doo.writeLong(executionDeadline);
-                    if (parameter != null) {
-                        doo.writeUTF(parameter);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (slot != null) {
-                        doo.writeUTF(slot);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (codepool != null) {
-                        doo.writeUTF(codepool);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (mode != null) {
-                        doo.writeUTF(mode);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    break;
-                case TYPE_WORKER_CONNECTED:
-                    doo.writeUTF(workerId);
-                    doo.writeUTF(workerLocation);
-                    doo.writeUTF(workerProcessId);
-                    doo.writeLong(timestamp);
-                    doo.writeUTF(actualRunningTasks.stream().map(l -> l.toString()).collect(Collectors.joining(",")));
-                    break;
-                case TYPE_WORKER_DIED:
-                case TYPE_WORKER_DISCONNECTED:
-                    doo.writeUTF(workerId);
-                    doo.writeLong(timestamp);
-                    break;
-
-                case TYPE_ASSIGN_TASK_TO_WORKER:
-                    doo.writeUTF(workerId);
-                    doo.writeLong(taskId);
-                    doo.writeVInt(attempt);
-                    if (resources != null) {
-                        doo.writeUTF(resources);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    break;
-                case TYPE_TASK_STATUS_CHANGE:
-                    doo.writeLong(taskId);
-                    doo.writeVInt(taskStatus);
-                    if (workerId != null) {
-                        doo.writeUTF(workerId);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    if (result != null) {
-                        doo.writeUTF(result);
-                    } else {
-                        doo.writeUTF("");
-                    }
-                    break;
-                case TYPE_NOOP:
-                    break;
-                case TYPE_DELETECODEPOOL:
-                    doo.writeUTF(codepool);
-                    break;
-                case TYPE_CREATECODEPOOL:
-                    doo.writeUTF(codepool);
-                    doo.writeLong(timestamp);
-                    doo.writeLong(executionDeadline);
-                    doo.writeVInt(payload.length);
-                    doo.write(payload);
-                    break;
-                default:
-                    throw new UnsupportedOperationException();
-
-            }
+            serialize(doo);
             doo.close();
             return out.toByteArray();
         } catch (IOException err) {
             throw new RuntimeException(err);
         }
     }
+
+    /**
+     * Writes the same bytes returned by {@link #serialize() } to the given stream, without allocating a buffer for
+     * each edit
+     *
+     * @param doo
+     * @throws IOException
+     */
+    public void serialize(ExtendedDataOutputStream doo) throws IOException {
+        doo.writeShort(TYPE_V2);
+        doo.writeVInt(PROTOCOL_VERSION);
+        doo.writeVInt(this.editType);
+        switch (this.editType) {
+            case TYPE_BEGIN_TRANSACTION:
+                doo.writeLong(transactionId);
+                doo.writeLong(timestamp);
+                break;
+            case TYPE_COMMIT_TRANSACTION:
+                doo.writeLong(transactionId);
+                break;
+            case TYPE_ROLLBACK_TRANSACTION:
+                doo.writeLong(transactionId);
+                break;
+            case TYPE_ADD_TASK:
+                doo.writeLong(taskId);
+                doo.writeUTF(userid);
+                doo.writeVInt(taskStatus);
+                doo.writeUTF(taskType);
+                doo.writeVInt(maxattempts);
+                doo.writeVInt(attempt);
+                doo.writeVLong(requestedStartTime);
+                doo.writeLong(executionDeadline);
+                if (parameter != null) {
+                    doo.writeUTF(parameter);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (slot != null) {
+                    doo.writeUTF(slot);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (codepool != null) {
+                    doo.writeUTF(codepool);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (mode != null) {
+                    doo.writeUTF(mode);
+                } else {
+                    doo.writeUTF("");
+                }
+                break;
+            case TYPE_PREPARE_ADD_TASK:
+                doo.writeLong(transactionId);
+                doo.writeLong(taskId);
+                doo.writeUTF(userid);
+                doo.writeVInt(taskStatus);
+                doo.writeUTF(taskType);
+                doo.writeVInt(maxattempts);
+                doo.writeVInt(attempt);
+                doo.writeVLong(requestedStartTime);
+                doo.writeLong(executionDeadline);
+                if (parameter != null) {
+                    doo.writeUTF(parameter);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (slot != null) {
+                    doo.writeUTF(slot);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (codepool != null) {
+                    doo.writeUTF(codepool);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (mode != null) {
+                    doo.writeUTF(mode);
+                } else {
+                    doo.writeUTF("");
+                }
+                break;
+            case TYPE_WORKER_CONNECTED:
+                doo.writeUTF(workerId);
+                doo.writeUTF(workerLocation);
+                doo.writeUTF(workerProcessId);
+                doo.writeLong(timestamp);
+                doo.writeUTF(actualRunningTasks.stream().map(l -> l.toString()).collect(Collectors.joining(",")));
+                break;
+            case TYPE_WORKER_DIED:
+            case TYPE_WORKER_DISCONNECTED:
+                doo.writeUTF(workerId);
+                doo.writeLong(timestamp);
+                break;
+
+            case TYPE_ASSIGN_TASK_TO_WORKER:
+                doo.writeUTF(workerId);
+                doo.writeLong(taskId);
+                doo.writeVInt(attempt);
+                if (resources != null) {
+                    doo.writeUTF(resources);
+                } else {
+                    doo.writeUTF("");
+                }
+                break;
+            case TYPE_TASK_STATUS_CHANGE:
+                doo.writeLong(taskId);
+                doo.writeVInt(taskStatus);
+                if (workerId != null) {
+                    doo.writeUTF(workerId);
+                } else {
+                    doo.writeUTF("");
+                }
+                if (result != null) {
+                    doo.writeUTF(result);
+                } else {
+                    doo.writeUTF("");
+                }
+                break;
+            case TYPE_NOOP:
+                break;
+            case TYPE_DELETECODEPOOL:
+                doo.writeUTF(codepool);
+                break;
+            case TYPE_CREATECODEPOOL:
+                doo.writeUTF(codepool);
+                doo.writeLong(timestamp);
+                doo.writeLong(executionDeadline);
+                doo.writeVInt(payload.length);
+                doo.write(payload);
+                break;
+            default:
+                throw new UnsupportedOperationException();
+
+        }
+    }
     
     public static StatusEdit readV1(short editType, DataInputStream doo) throws IOException {
         StatusEdit res = new StatusEdit();
@@ -679,9 +690,13 @@ public final class StatusEdit {
 
     }
     
-    @SuppressFBWarnings(value = "DLS_DEAD_LOCAL_STORE")
     public static StatusEdit read(byte[] data) throws IOException {
-        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        return read(data, 0, data.length);
+    }
+
+    @SuppressFBWarnings(value = "DLS_DEAD_LOCAL_STORE")
+    public static StatusEdit read(byte[] data, int offset, int length) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(data, offset, length);
         ExtendedDataInputStream doo = new ExtendedDataInputStream(in);
         short header = doo.readShort();
         if (header != TYPE_V2) {
@@ -21,8 +21,13 @@
 package majordodo.task;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import majordodo.worker.TaskExecutorStatus;
 
 /**
@@ -89,25 +94,28 @@ public class Task implements Delayed {
 
     @Override
     public String toString() {
-        return "Task{" + "type=" + type + ", parameter=" + parameter + ", result=" + result + ", createdTimestamp=" + createdTimestamp + ", delay=" + getDelay(TimeUnit.SECONDS) + "s, status=" + status + " " + statusToString(status) + ", taskId=" + taskId + ", userId=" + userId + ", workerId=" + workerId + '}';
+        return "Task{" + "type=" + type + ", parameter=" + getParameter() + ", result=" + getResult() + ", createdTimestamp=" + createdTimestamp + ", delay=" + getDelay(TimeUnit.SECONDS) + "s, status=" + status + " " + statusToString(status) + ", taskId=" + taskId + ", userId=" + userId + ", workerId=" + workerId + '}';
     }
 
     private String type;
-    private String parameter;
-    private String result;
+    // fields which change while the task is alive are volatile, because tasks are read without holding the lock of
+    // BrokerStatus
+    // the parameter and the result, as a String or as a compressed byte[] (see compactForRetention)
+    private volatile Object parameter;
+    private volatile Object result;
     private long createdTimestamp;
-    private int status;
+    private volatile int status;
     private long taskId;
     private String userId;
-    private String workerId;
+    private volatile String workerId;
     private int maxattempts;
-    private int attempts;
+    private volatile int attempts;
     private long requestedStartTime;
     private long executionDeadline;
     private String slot;
     private String codepool;
     private String mode;
-    private String resources;
+    private volatile String resources;
 
     public long getRequestedStartTime() {
         return requestedStartTime;
@@ -206,7 +214,11 @@ public class Task implements Delayed {
     }
 
     public String getParameter() {
-        return parameter;
+        Object param = parameter;
+        if (param instanceof byte[]) {
+            return decompress((byte[]) param);
+        }
+        return (String) param;
     }
 
     public void setParameter(String parameter) {
@@ -214,7 +226,11 @@ public class Task implements Delayed {
     }
 
     public String getResult() {
-        return result;
+        Object res = result;
+        if (res instanceof byte[]) {
+            return decompress((byte[]) res);
+        }
+        return (String) res;
     }
 
     public void setResult(String result) {
@@ -237,6 +253,91 @@ public class Task implements Delayed {
         this.status = status;
     }
 
+    /**
+     * Reduces the memory retained by a finished task: the parameter and the result are compressed, if they are longer
+     * than the threshold. They are still available with {@link #getParameter() } and {@link #getResult() }. Finished
+     * tasks are not modified anymore, so this method can be called without holding the lock of BrokerStatus
+     *
+     * @param threshold
+     * @return an estimate of the memory reclaimed, in bytes
+     */
+    long compactForRetention(int threshold) {
+        long reclaimed = 0;
+        Object param = parameter;
+        if (param instanceof String && ((String) param).length() > threshold) {
+            byte[] compressed = compress((String) param);
+            long saved = estimateSize((String) param) - (16 + compressed.length);
+            if (saved > 0) {
+                parameter = compressed;
+                reclaimed += saved;
+            }
+        }
+        Object res = result;
+        if (res instanceof String && ((String) res).length() > threshold) {
+            byte[] compressed = compress((String) res);
+            long saved = estimateSize((String) res) - (16 + compressed.length);
+            if (saved > 0) {
+                result = compressed;
+                reclaimed += saved;
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Memory used by a String and its array of characters, with compact strings (latin1 strings use a byte for each
+     * character)
+     */
+    private static long estimateSize(String s) {
+        int length = s.length();
+        int bytesPerChar = 1;
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) > 0xFF) {
+                bytesPerChar = 2;
+                break;
+            }
+        }
+        return 24 + 16 + (long) length * bytesPerChar;
+    }
+
+    private static byte[] compress(String s) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(s.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(buffer);
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String decompress(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int len = inflater.inflate(buffer);
+                if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("corrupted compressed result");
+                }
+                out.write(buffer, 0, len);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException err) {
+            throw new IllegalStateException(err);
+        } finally {
+            inflater.end();
+        }
+    }
+
     Task cloneForSnapshot() {
         Task copy = new Task();
         copy.createdTimestamp = this.createdTimestamp;
@@ -28,18 +28,32 @@ import java.util.Arrays;
  */
 public final class TaskProperties {
 
+    public static final int DEFAULT_WEIGHT = 1;
+
     public final int groupId;
     public final String[] resources;
+    /**
+     * Weight of the user of the task, used by {@link WeightedFairSharePolicy}
+     */
+    public final int weight;
 
-    @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "EI_EXPOSE_REP2")
     public TaskProperties(int groupId, String[] resources) {
+        this(groupId, resources, DEFAULT_WEIGHT);
+    }
+
+    @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "EI_EXPOSE_REP2")
+    public TaskProperties(int groupId, String[] resources, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive, found " + weight);
+        }
         this.groupId = groupId;
         this.resources = resources;
+        this.weight = weight;
     }
 
     @Override
     public String toString() {
-        return "TaskProperties{" + "groupId=" + groupId + ", resources=" + Arrays.toString(resources) + '}';
+        return "TaskProperties{" + "groupId=" + groupId + ", resources=" + Arrays.toString(resources) + ", weight=" + weight + '}';
     }
 
 }
@@ -20,6 +20,7 @@
 package majordodo.task;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
@@ -40,6 +41,19 @@ import majordodo.utils.IntCounter;
  */
 public final class TasksChooser {
 
+    /**
+     * The task offered to the chooser has been retained
+     */
+    static final int OFFER_ACCEPTED = 0;
+    /**
+     * The task offered to the chooser cannot be assigned, other tasks of the same user, group and type could be
+     */
+    static final int OFFER_REJECTED = 1;
+    /**
+     * No other task of the same user and type can be retained by the chooser
+     */
+    static final int OFFER_EXHAUSTED = 2;
+
     private final List<Integer> groups;
     private final Set<Integer> excludedGroups;
     private final Map<Integer, Integer> availableSpace;
@@ -52,6 +66,24 @@ public final class TasksChooser {
     private final Integer availableSpaceForAnyTask;
     private final Map<IntTaskTypeUser, IntCounter> availableSpacePerUser;
     private final int maxThreadPerUserPerTaskTypePercent;
+    private final int extraCapacity;
+    private TasksSchedulingPolicy schedulingPolicy;
+    private Map<String, TenantCursor> tenants;
+    private Set<int[]> blockedResourceSets;
+
+    /**
+     * Virtual time of the last task retained for a tenant
+     */
+    private static final class TenantCursor {
+
+        long virtualTime;
+        final long increment;
+
+        TenantCursor(long virtualTime, long increment) {
+            this.virtualTime = virtualTime;
+            this.increment = increment;
+        }
+    }
 
     static final class IntTaskTypeUser {
 
@@ -117,12 +149,18 @@ public final class TasksChooser {
         final long taskid;
         final int priorityByGroup;
         final int[] resources;
+        final long virtualTime;
 
         public Entry(int position, long taskid, int priorityByGroup, int[] resources) {
+            this(position, taskid, priorityByGroup, resources, 0);
+        }
+
+        public Entry(int position, long taskid, int priorityByGroup, int[] resources, long virtualTime) {
             this.position = position;
             this.taskid = taskid;
             this.priorityByGroup = priorityByGroup;
             this.resources = resources;
+            this.virtualTime = virtualTime;
         }
 
         @Override
@@ -154,7 +192,8 @@ public final class TasksChooser {
         /**
          * {@inheritDoc}
          *
-         * Entries with less priority are <i>smaller</i>. On ties newer entries (bigger position) are <i>smaller</i>
+         * Entries with less priority are <i>smaller</i>. On ties entries with a bigger virtual time (see
+         * {@link TasksSchedulingPolicy}) are <i>smaller</i>, then newer entries (bigger position) are <i>smaller</i>
          */
         @Override
         public int compareTo(Entry o) {
@@ -163,6 +202,9 @@ public final class TasksChooser {
             if (diff != 0) {
                 return diff;
             }
+            if (this.virtualTime != o.virtualTime) {
+                return this.virtualTime < o.virtualTime ? 1 : -1;
+            }
             if (this.position < o.position) {
                 return 1;
             } else {
@@ -176,6 +218,20 @@ public final class TasksChooser {
         Map<Integer, IntCounter> availableResourcesCounters, int max,
         Map<IntTaskTypeUser, IntCounter> availableSpacePerUser,
         int maxThreadPerUserPerTaskTypePercent) {
+        this(groups, excludedGroups, availableSpace, availableResourcesCounters, max, availableSpacePerUser,
+            maxThreadPerUserPerTaskTypePercent, 0);
+    }
+
+    /**
+     * A chooser which retains up to extraCapacity more tasks for each type. It is used when many workers share the
+     * same scan of the heap: tasks retained by this chooser may be taken by a worker which comes before in the same
+     * round, but at most extraCapacity of them, so the best remaining tasks are still retained
+     */
+    TasksChooser(List<Integer> groups, Set<Integer> excludedGroups, Map<Integer, Integer> availableSpace,
+        Map<Integer, IntCounter> availableResourcesCounters, int max,
+        Map<IntTaskTypeUser, IntCounter> availableSpacePerUser,
+        int maxThreadPerUserPerTaskTypePercent, int extraCapacity) {
+        this.extraCapacity = extraCapacity;
         this.availableSpacePerUser = availableSpacePerUser;
         this.availableSpace = new HashMap<>(availableSpace);
         this.groups = groups;
@@ -191,7 +247,7 @@ public final class TasksChooser {
          */
         availableSpace.entrySet().stream().forEach((entry) -> {
             if (entry.getKey() > 0) {
-                bestbyTasktype.put(entry.getKey(), new DiscardingBoundedPriorityQueue<>(entry.getValue()));
+                bestbyTasktype.put(entry.getKey(), new DiscardingBoundedPriorityQueue<>(entry.getValue() + extraCapacity));
             }
         });
 
@@ -202,7 +258,7 @@ public final class TasksChooser {
             this.priorityByGroup.put(idgroup, priority--);
         }
         if (availableSpaceForAnyTask != null) {
-            matchAllTypesQueue = new DiscardingBoundedPriorityQueue<>(availableSpaceForAnyTask);
+            matchAllTypesQueue = new DiscardingBoundedPriorityQueue<>(availableSpaceForAnyTask + extraCapacity);
         } else {
             matchAllTypesQueue = null;
         }
@@ -210,13 +266,26 @@ public final class TasksChooser {
     }
 
     List<Entry> getChoosenTasks() {
+        return getChoosenTasks(null);
+    }
+
+    /**
+     * Computes the final choice. When a storage is given retained tasks which are no more in the heap (taken by
+     * another worker in the same scheduling round) are skipped
+     *
+     * @param storage
+     * @return
+     */
+    List<Entry> getChoosenTasks(TasksHeapStorage storage) {
 
         final List<Entry> result = new ArrayList<>();
 
-        bestbyTasktype.values().forEach(result::addAll);
+        for (Map.Entry<Integer, PriorityQueue<Entry>> queue : bestbyTasktype.entrySet()) {
+            addValidEntries(queue.getValue(), availableSpace.get(queue.getKey()), storage, result);
+        }
 
         if (matchAllTypesQueue != null) {
-            result.addAll(matchAllTypesQueue);
+            addValidEntries(matchAllTypesQueue, availableSpaceForAnyTask, storage, result);
         }
 
         if (result.size() > 1) {
@@ -263,15 +332,178 @@ public final class TasksChooser {
 
     }
 
+    private static void addValidEntries(PriorityQueue<Entry> queue, int space, TasksHeapStorage storage, List<Entry> result) {
+        if (storage == null) {
+            result.addAll(queue);
+            return;
+        }
+        List<Entry> valid = new ArrayList<>(queue.size());
+        for (Entry entry : queue) {
+            if (storage.getTaskId(entry.position) == entry.taskid) {
+                valid.add(entry);
+            }
+        }
+        if (valid.size() > space) {
+            valid.sort(Entry.INVERSE_COMPARATOR);
+            valid = valid.subList(0, space);
+        }
+        result.addAll(valid);
+    }
+
     private static final Logger LOGGER = Logger.getLogger(TasksChooser.class.getName());
 
-    void accept(int position, TasksHeap.TaskEntry entry) {
+    /**
+     * Checks if tasks of the given group can be assigned to the worker
+     *
+     * @param idgroup
+     * @return
+     */
+    boolean isGroupAccepted(int idgroup) {
+        return (matchAllGroups && !excludedGroups.contains(idgroup)) || groups.contains(idgroup);
+    }
+
+    /**
+     * Checks if the worker has space for tasks of the given type
+     *
+     * @param tasktype
+     * @return
+     */
+    boolean isTaskTypeAccepted(int tasktype) {
+        return availableSpace.containsKey(tasktype) || availableSpaceForAnyTask != null;
+    }
+
+    /**
+     * Orders tasks of different users using the given policy, tasks are then ordered by the group of the user, by the
+     * virtual time of the user and then by position in the heap. A chooser with a policy must be fed using
+     * {@link #offer(int, int, int, java.lang.String, majordodo.task.TasksHeapStorage) }, see
+     * {@link TasksHeap#chooseFairShare(majordodo.task.TasksChooser, java.util.List) }
+     *
+     * @param schedulingPolicy
+     */
+    void setSchedulingPolicy(TasksSchedulingPolicy schedulingPolicy) {
+        this.schedulingPolicy = schedulingPolicy;
+        this.tenants = schedulingPolicy != null ? new HashMap<>() : null;
+    }
+
+    /**
+     * Tasks which use one of the given (pooled) resource sets are not retained, as at least one of their resources has
+     * no more space and counters only decrease during the choice. They would be discarded by
+     * {@link #getChoosenTasks() } anyway, skipping them leaves room in the queues to the best tasks which can be
+     * assigned
+     *
+     * @param blockedResourceSets
+     */
+    void setBlockedResourceSets(Set<int[]> blockedResourceSets) {
+        this.blockedResourceSets = blockedResourceSets;
+    }
+
+    boolean hasSchedulingPolicy() {
+        return schedulingPolicy != null;
+    }
+
+    private TenantCursor getTenant(String userid) {
+        TenantCursor cursor = tenants.get(userid);
+        if (cursor == null) {
+            cursor = new TenantCursor(schedulingPolicy.getVirtualTime(userid), schedulingPolicy.getVirtualTimeIncrement(userid));
+            tenants.put(userid, cursor);
+        }
+        return cursor;
+    }
+
+    /**
+     * Virtual time which the next task of the user would get if retained
+     *
+     * @param userid
+     * @return
+     */
+    long getNextVirtualTime(String userid) {
+        TenantCursor cursor = getTenant(userid);
+        return cursor.virtualTime + cursor.increment;
+    }
+
+    /**
+     * Priority of the tasks of the given group, groups are listed by the worker from the most important
+     *
+     * @param idgroup
+     * @return
+     */
+    int getPriority(int idgroup) {
+        Integer priority = priorityByGroup.get(idgroup);
+        // possibile if using "matchAllGroups"
+        return priority != null ? priority : Integer.MIN_VALUE;
+    }
+
+    /**
+     * Creates an empty chooser with the same configuration, used to visit a range of the heap in parallel with other
+     * ranges. Per-user limits cannot be applied this way
+     *
+     * @return
+     * @see #merge(majordodo.task.TasksChooser)
+     */
+    TasksChooser newPartialChooser() {
+        if (isVisitOrderDependent()) {
+            throw new IllegalStateException("the choice depends on the order of visit");
+        }
+        TasksChooser partial = new TasksChooser(groups, excludedGroups, availableSpace, Collections.emptyMap(), max, null,
+            maxThreadPerUserPerTaskTypePercent, extraCapacity);
+        partial.blockedResourceSets = blockedResourceSets;
+        return partial;
+    }
+
+    /**
+     * Retains the best tasks retained by a partial chooser. Entries are totally ordered, so the result does not depend
+     * on how the heap has been split
+     *
+     * @param partial
+     */
+    void merge(TasksChooser partial) {
+        for (Map.Entry<Integer, PriorityQueue<Entry>> queue : partial.bestbyTasktype.entrySet()) {
+            bestbyTasktype.get(queue.getKey()).addAll(queue.getValue());
+        }
+        if (matchAllTypesQueue != null) {
+            matchAllTypesQueue.addAll(partial.matchAllTypesQueue);
+        }
+    }
+
+    /**
+     * Per-user limits depend on the order in which tasks are visited
+     *
+     * @return
+     */
+    boolean isVisitOrderDependent() {
+        return availableSpacePerUser != null;
+    }
+
+    /**
+     * Maximum number of tasks of the given type which can be retained by the chooser. Tasks with the same priority are
+     * retained in heap order, so when per-user limits are not in place only the first tasks of the same type and group
+     * can be choosen
+     *
+     * @param tasktype
+     * @return
+     */
+    int getMaxChoosableTasks(int tasktype) {
+        Integer availableSpaceForTaskType = availableSpace.get(tasktype);
+        if (availableSpaceForTaskType == null) {
+            availableSpaceForTaskType = availableSpaceForAnyTask;
+        }
+        return availableSpaceForTaskType != null ? availableSpaceForTaskType + extraCapacity : 0;
+    }
+
+    /**
+     * Evaluates the task at the given position of the heap, columns of the storage are read only when needed
+     *
+     * @param position
+     * @param storage
+     * @return true if the task has been retained
+     */
+    boolean accept(int position, TasksHeapStorage storage) {
 
-        final int idgroup = entry.groupid;
+        final int idgroup = storage.getGroupId(position);
 
-        if ((matchAllGroups && !excludedGroups.contains(idgroup)) || groups.contains(idgroup)) {
+        if (isGroupAccepted(idgroup)) {
 
-            int tasktype = entry.tasktype;
+            int tasktype = storage.getTaskType(position);
 
             Integer availableSpaceForTaskType = availableSpace.get(tasktype);
 
@@ -282,17 +514,9 @@ public final class TasksChooser {
             if (availableSpaceForTaskType != null) {
 
                 if (availableSpacePerUser != null) {
-                    IntCounter counterForUser = availableSpacePerUser.get(new IntTaskTypeUser(tasktype, entry.userid));
-                    if (counterForUser == null) {
-                        int limitForUserWithoutAnyTaskRunning = (availableSpaceForTaskType * maxThreadPerUserPerTaskTypePercent) / 100;
-                        if (limitForUserWithoutAnyTaskRunning <= 0) {
-                            limitForUserWithoutAnyTaskRunning = 1;
-                        }
-                        counterForUser = new IntCounter(limitForUserWithoutAnyTaskRunning);
-                        availableSpacePerUser.put(new IntTaskTypeUser(tasktype, entry.userid), counterForUser);
-                    }
+                    IntCounter counterForUser = getCounterForUser(tasktype, storage.getUserId(position), availableSpaceForTaskType);
                     if (--counterForUser.count < 0) {
-                        return;
+                        return false;
                     }
 
                 }
@@ -306,17 +530,71 @@ public final class TasksChooser {
                  */
                 queue = bytasktype != null ? bytasktype : matchAllTypesQueue;
 
-                Integer priority = priorityByGroup.get(idgroup);
-
-                // possibile if using "matchAllGroups"
-                if (priority == null) {
-                    priority = Integer.MIN_VALUE;
+                int[] resources = storage.getResources(position);
+                if (resources != null && blockedResourceSets != null && blockedResourceSets.contains(resources)) {
+                    // per-user counters are consumed as before, so the order of choice does not change
+                    return false;
                 }
+                queue.add(new Entry(position, storage.getTaskId(position), getPriority(idgroup), resources));
+                return true;
+            }
+        }
+        return false;
+    }
 
-                queue.add(new Entry(position, entry.taskid, priority, entry.resources));
+    private IntCounter getCounterForUser(int tasktype, String userid, int availableSpaceForTaskType) {
+        IntCounter counterForUser = availableSpacePerUser.get(new IntTaskTypeUser(tasktype, userid));
+        if (counterForUser == null) {
+            int limitForUserWithoutAnyTaskRunning = (availableSpaceForTaskType * maxThreadPerUserPerTaskTypePercent) / 100;
+            if (limitForUserWithoutAnyTaskRunning <= 0) {
+                limitForUserWithoutAnyTaskRunning = 1;
+            }
+            counterForUser = new IntCounter(limitForUserWithoutAnyTaskRunning);
+            availableSpacePerUser.put(new IntTaskTypeUser(tasktype, userid), counterForUser);
+        }
+        return counterForUser;
+    }
 
+    /**
+     * Evaluates a task of the given user, group and type, for a chooser with a scheduling policy. Tasks must be offered
+     * in the order of the choice: by priority of the group, then by virtual time, then by position. So when the queue
+     * of the type is full no other task of that type can be retained
+     *
+     * @param position
+     * @param idgroup
+     * @param tasktype
+     * @param userid
+     * @param storage
+     * @return {@link #OFFER_ACCEPTED}, {@link #OFFER_REJECTED} or {@link #OFFER_EXHAUSTED}
+     */
+    int offer(int position, int idgroup, int tasktype, String userid, TasksHeapStorage storage) {
+        Integer availableSpaceForTaskType = availableSpace.get(tasktype);
+        if (availableSpaceForTaskType == null) {
+            availableSpaceForTaskType = availableSpaceForAnyTask;
+        }
+        if (availableSpaceForTaskType == null) {
+            return OFFER_EXHAUSTED;
+        }
+        Queue<Entry> bytasktype = bestbyTasktype.get(tasktype);
+        Queue<Entry> queue = bytasktype != null ? bytasktype : matchAllTypesQueue;
+        if (queue.size() >= availableSpaceForTaskType + extraCapacity) {
+            return OFFER_EXHAUSTED;
+        }
+        int[] resources = storage.getResources(position);
+        if (resources != null && blockedResourceSets != null && blockedResourceSets.contains(resources)) {
+            return OFFER_REJECTED;
+        }
+        if (availableSpacePerUser != null) {
+            IntCounter counterForUser = getCounterForUser(tasktype, userid, availableSpaceForTaskType);
+            if (counterForUser.count <= 0) {
+                return OFFER_EXHAUSTED;
             }
+            counterForUser.count--;
         }
+        TenantCursor tenant = getTenant(userid);
+        tenant.virtualTime += tenant.increment;
+        queue.add(new Entry(position, storage.getTaskId(position), getPriority(idgroup), resources, tenant.virtualTime));
+        return OFFER_ACCEPTED;
     }
 
 }
@@ -0,0 +1,107 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.LongPredicate;
+
+/**
+ * Index of waiting and delayed tasks which have an execution deadline, grouped in buckets of time. Finding the expired
+ * tasks costs as much as the number of tasks in the expired buckets, not as the total number of tasks. Not thread
+ * safe, access is guarded by the lock of {@link BrokerStatus}
+ *
+ * @author enrico.olivelli
+ */
+final class TasksDeadlineIndex {
+
+    static final long DEFAULT_BUCKET_SIZE = 1000;
+
+    private final long bucketSize;
+    private final TreeMap<Long, Set<Long>> buckets = new TreeMap<>();
+    private int size;
+
+    TasksDeadlineIndex() {
+        this(DEFAULT_BUCKET_SIZE);
+    }
+
+    TasksDeadlineIndex(long bucketSize) {
+        this.bucketSize = bucketSize;
+    }
+
+    void add(long taskId, long deadline) {
+        if (buckets.computeIfAbsent(deadline / bucketSize, b -> new HashSet<>()).add(taskId)) {
+            size++;
+        }
+    }
+
+    void remove(long taskId, long deadline) {
+        Long bucket = deadline / bucketSize;
+        Set<Long> tasks = buckets.get(bucket);
+        if (tasks != null && tasks.remove(taskId)) {
+            size--;
+            if (tasks.isEmpty()) {
+                buckets.remove(bucket);
+            }
+        }
+    }
+
+    /**
+     * Collects expired tasks, in order of bucket
+     *
+     * @param now
+     * @param max
+     * @param isExpired checks the tasks of the bucket which contains "now"
+     * @return
+     */
+    List<Long> collectExpired(long now, int max, LongPredicate isExpired) {
+        List<Long> result = new ArrayList<>();
+        long lastBucket = now / bucketSize;
+        for (Iterator<Map.Entry<Long, Set<Long>>> it = buckets.headMap(lastBucket, true).entrySet().iterator();
+            it.hasNext() && result.size() < max;) {
+            Map.Entry<Long, Set<Long>> bucket = it.next();
+            boolean partial = bucket.getKey() == lastBucket;
+            for (Long taskId : bucket.getValue()) {
+                if (!partial || isExpired.test(taskId)) {
+                    result.add(taskId);
+                    if (result.size() >= max) {
+                        break;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        buckets.clear();
+        size = 0;
+    }
+
+}
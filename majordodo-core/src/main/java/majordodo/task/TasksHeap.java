@@ -21,11 +21,21 @@ package majordodo.task;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
 import java.util.logging.Level;
@@ -33,7 +43,7 @@ import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import majordodo.utils.IntCounter;
-import majordodo.utils.IntCounter;
+import majordodo.utils.LongIntHashMap;
 
 /**
  * Heap of tasks to be executed. Tasks are not arranged in a queue but in an heap.<br>
@@ -52,14 +62,75 @@ public class TasksHeap {
     private static final Logger LOGGER = Logger.getLogger(TasksHeap.class.getName());
 
     private static final int TASKTYPE_ANYTASK = 0;
+    /**
+     * No position in the heap
+     */
+    static final int NONE = -1;
+
+    /**
+     * One object for each slot of the heap
+     */
+    public static final String STORAGE_OBJECTS = "objects";
+    /**
+     * Columns of primitive values, user ids and resources are interned
+     */
+    public static final String STORAGE_PRIMITIVE = "primitive";
+    /**
+     * Columns of primitive values allocated outside the Java heap
+     */
+    public static final String STORAGE_OFFHEAP = "offheap";
+
+    /**
+     * Maximum number of slots visited by the compaction during a single takeTasks
+     */
+    public static final int DEFAULT_COMPACTION_SEGMENT_SIZE = 16 * 1024;
+
+    /**
+     * Number of staged inserts which makes an inserting thread try to merge them into the heap
+     */
+    public static final int DEFAULT_MAX_STAGED_TASKS = 1024;
+
+    /**
+     * Minimum number of slots visited by each thread of a parallel scan
+     */
+    public static final int DEFAULT_PARALLEL_SCAN_SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of remembered empty scans, see {@link #getEmptyScanHits() }
+     */
+    public static final int MAX_EMPTY_SCANS = 1024;
 
     private int actualsize;
     private int fragmentation;
     private int maxFragmentation;
     private int minValidPosition;
     private int autoGrowPercent = 25;
+    private int compactionSegmentSize = DEFAULT_COMPACTION_SEGMENT_SIZE;
+    private int compactionReadPosition;
+    private int compactionWritePosition;
+    private int fragmentationAtCompactionStart;
+    // compaction metrics are written inside the write lock, but they are read without the lock
+    private volatile boolean compactionInProgress;
+    private volatile long compactions;
+    private volatile long compactionSteps;
+    private volatile long lastCompactionPauseMicros;
+    private volatile long maxCompactionPauseMicros;
+    private volatile long totalCompactionPauseMicros;
+    private int parallelScanThreshold;
+    private volatile TasksSchedulingPolicy schedulingPolicy;
+    private int parallelScanSegmentSize = DEFAULT_PARALLEL_SCAN_SEGMENT_SIZE;
+    private volatile boolean insertStaging;
+    private int maxStagedTasks = DEFAULT_MAX_STAGED_TASKS;
+    private final ConcurrentLinkedQueue<StagedTask> stagedTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger stagedTasksCount = new AtomicInteger();
+    private long generation;
+    private final Map<ScanSignature, Long> emptyScans = new HashMap<>();
+    private long emptyScanHits;
+    private long emptyScanMisses;
     private int size;
-    private TaskEntry[] actuallist;
+    private final TasksHeapStorage storage;
+    // position of each task in the heap
+    private final LongIntHashMap positions;
     private final TaskPropertiesMapperFunction resourceMapper;
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
     private final Map<String, Integer> resourceMappings = new HashMap<>();
@@ -79,6 +150,162 @@ public class TasksHeap {
         this.autoGrowPercent = autoGrowPercent;
     }
 
+    public int getCompactionSegmentSize() {
+        return compactionSegmentSize;
+    }
+
+    public void setCompactionSegmentSize(int compactionSegmentSize) {
+        if (compactionSegmentSize <= 0) {
+            throw new IllegalArgumentException(compactionSegmentSize + "");
+        }
+        this.compactionSegmentSize = compactionSegmentSize;
+    }
+
+    public TasksSchedulingPolicy getSchedulingPolicy() {
+        return schedulingPolicy;
+    }
+
+    /**
+     * Sets the policy which orders tasks of different users, null means that tasks are taken in order of insertion.
+     * The policy receives the weight of each user from the {@link TaskPropertiesMapperFunction}. With a policy tasks
+     * are choosen by {@link #chooseFairShare(majordodo.task.TasksChooser, java.util.List) }: this heap still visits
+     * every matching task once per scan, {@link IndexedTasksHeap} keeps the waiting tasks of each user apart and visits
+     * only the tasks which are retained
+     *
+     * @param schedulingPolicy
+     */
+    public void setSchedulingPolicy(TasksSchedulingPolicy schedulingPolicy) {
+        lock.writeLock().lock();
+        try {
+            this.schedulingPolicy = schedulingPolicy;
+            entriesChanged();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void tenantWeight(String userid, TaskProperties taskProperties) {
+        TasksSchedulingPolicy policy = schedulingPolicy;
+        if (policy != null) {
+            policy.tenantWeight(userid, taskProperties.weight);
+        }
+    }
+
+    public int getParallelScanThreshold() {
+        return parallelScanThreshold;
+    }
+
+    /**
+     * When the heap holds at least the given number of slots takeTasks splits the scan in ranges, visited in parallel
+     * by the common {@link ForkJoinPool}. Requests with per-user limits are always visited sequentially, as
+     * {@link IndexedTasksHeap} does. The result is the same of a sequential scan.
+     *
+     * @param parallelScanThreshold minimum number of slots, zero disables parallel scans
+     */
+    public void setParallelScanThreshold(int parallelScanThreshold) {
+        if (parallelScanThreshold < 0) {
+            throw new IllegalArgumentException(parallelScanThreshold + "");
+        }
+        this.parallelScanThreshold = parallelScanThreshold;
+    }
+
+    void setParallelScanSegmentSize(int parallelScanSegmentSize) {
+        if (parallelScanSegmentSize <= 0) {
+            throw new IllegalArgumentException(parallelScanSegmentSize + "");
+        }
+        this.parallelScanSegmentSize = parallelScanSegmentSize;
+    }
+
+    public boolean isInsertStaging() {
+        return insertStaging;
+    }
+
+    /**
+     * When staging is enabled {@link #insertTask(long, java.lang.String, java.lang.String) } does not acquire the lock
+     * of the heap, new tasks are appended to a lock-free queue and merged into the heap by the next operation which
+     * acquires the lock (takeTasks, scan, removeExpiredTasks, recomputeGroups, runCompaction,
+     * {@link #drainStagedTasks() }), or by an inserting thread when the queue grows over
+     * {@link #getMaxStagedTasks() } and the lock is free.<br>
+     * A task is visible to every operation which starts after the end of its insertTask, tasks inserted by the same
+     * thread keep their order. Only plain counters like {@link #getActualsize() } may not include staged tasks.
+     *
+     * @param insertStaging
+     */
+    public void setInsertStaging(boolean insertStaging) {
+        this.insertStaging = insertStaging;
+        if (!insertStaging) {
+            drainStagedTasks();
+        }
+    }
+
+    public int getMaxStagedTasks() {
+        return maxStagedTasks;
+    }
+
+    public void setMaxStagedTasks(int maxStagedTasks) {
+        if (maxStagedTasks <= 0) {
+            throw new IllegalArgumentException(maxStagedTasks + "");
+        }
+        this.maxStagedTasks = maxStagedTasks;
+    }
+
+    public int getStagedTasksCount() {
+        return stagedTasksCount.get();
+    }
+
+    public boolean isCompactionInProgress() {
+        return compactionInProgress;
+    }
+
+    /**
+     * Number of completed compactions
+     *
+     * @return
+     */
+    public long getCompactions() {
+        return compactions;
+    }
+
+    /**
+     * Number of times the compaction held the lock
+     *
+     * @return
+     */
+    public long getCompactionSteps() {
+        return compactionSteps;
+    }
+
+    public long getLastCompactionPauseMicros() {
+        return lastCompactionPauseMicros;
+    }
+
+    public long getMaxCompactionPauseMicros() {
+        return maxCompactionPauseMicros;
+    }
+
+    public long getTotalCompactionPauseMicros() {
+        return totalCompactionPauseMicros;
+    }
+
+    /**
+     * Number of takeTasks requests which did not scan the heap because an equivalent request found nothing and the
+     * contents of the heap did not change since then
+     *
+     * @return
+     */
+    public long getEmptyScanHits() {
+        return emptyScanHits;
+    }
+
+    /**
+     * Number of takeTasks requests which scanned the heap
+     *
+     * @return
+     */
+    public long getEmptyScanMisses() {
+        return emptyScanMisses;
+    }
+
     public int getActualsize() {
         return actualsize;
     }
@@ -92,12 +319,14 @@ public class TasksHeap {
     }
 
     public TasksHeap(int size, TaskPropertiesMapperFunction tenantAssigner) {
+        this(size, tenantAssigner, STORAGE_OBJECTS);
+    }
+
+    public TasksHeap(int size, TaskPropertiesMapperFunction tenantAssigner, String storageMode) {
         this.size = size;
         this.resourceMapper = tenantAssigner;
-        this.actuallist = new TaskEntry[size];
-        for (int i = 0; i < size; i++) {
-            this.actuallist[i] = new TaskEntry(0, 0, null, 0, null);
-        }
+        this.storage = TasksHeapStorage.create(storageMode, size);
+        this.positions = new LongIntHashMap(size, -1);
         this.maxFragmentation = size / 4;
     }
 
@@ -109,16 +338,25 @@ public class TasksHeap {
         this.maxFragmentation = maxFragmentation;
     }
 
+    /**
+     * Removes the given tasks, if present. The cost depends only on the number of tasks to remove
+     *
+     * @param taskid
+     */
     public void removeExpiredTasks(Set<Long> taskid) {
         lock.writeLock().lock();
         try {
-            for (TaskEntry entry : actuallist) {
-                if (taskid.contains(entry.taskid)) {
-                    entry.taskid = 0;
-                    entry.tasktype = 0;
-                    entry.userid = null;
-                    entry.groupid = 0;
-                    entry.resources = null;
+            drainStagedTasksLocked();
+            for (long id : taskid) {
+                int position = positions.remove(id);
+                if (position >= 0 && storage.getTaskId(position) == id) {
+                    entryRemoved(position);
+                    storage.clear(position);
+                    this.fragmentation++;
+                    generation++;
+                    if (position == minValidPosition) {
+                        minValidPosition++;
+                    }
                 }
             }
         } finally {
@@ -131,49 +369,159 @@ public class TasksHeap {
     private int newIdtaskType = 0;
 
     private void doAutoGrow() {
-        int delta = (int) (((actuallist.length * 1L * autoGrowPercent)) / 100);
+        doAutoGrow(size + 1);
+    }
+
+    private void doAutoGrow(int minSize) {
+        int delta = (int) (((storage.capacity() * 1L * autoGrowPercent)) / 100);
         if (delta <= 0) {
             // be sure taht we always increment by one, in tore to have space for a new task
             delta = 1;
         }
-        int newSize = actuallist.length + delta;
+        int newSize = Math.max(storage.capacity() + delta, minSize);
         LOGGER.log(Level.INFO, "doAutoGrow size {0}, newsize {1}", new Object[]{size, newSize});
-        TaskEntry[] newList = new TaskEntry[newSize];
-        System.arraycopy(actuallist, 0, newList, 0, actuallist.length);
-        for (int i = actuallist.length; i < newList.length; i++) {
-            newList[i] = new TaskEntry(0, 0, null, 0, null);
-        }
-        this.size = newList.length;
-        this.actuallist = newList;
+        storage.resize(newSize);
+        this.size = newSize;
+        heapResized(newSize);
     }
 
     public void insertTask(long taskid, String tasktype, String userid) {
         TaskProperties taskProperties = resourceMapper.getTaskProperties(taskid, tasktype, userid);
+        tenantWeight(userid, taskProperties);
         int groupid = taskProperties.groupId;
         String[] resourceIds = taskProperties.resources;
+        if (insertStaging) {
+            stagedTasks.add(new StagedTask(taskid, tasktype, userid, groupid, resourceIds));
+            if (stagedTasksCount.incrementAndGet() >= maxStagedTasks && lock.writeLock().tryLock()) {
+                try {
+                    // bounded work, the inserting thread must not pay for other producers
+                    drainStagedTasksLocked(maxStagedTasks);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            drainStagedTasksLocked();
+            doInsertTask(taskid, tasktype, userid, groupid, resourceIds);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Inserts a batch of tasks, in the given order. Task properties are computed outside the lock, the heap grows at
+     * most once and the lock is acquired once for the whole batch
+     *
+     * @param tasks
+     */
+    public void insertTasks(Collection<Task> tasks) {
+        int count = tasks.size();
+        if (count == 0) {
+            return;
+        }
+        StagedTask[] batch = new StagedTask[count];
+        int i = 0;
+        for (Task task : tasks) {
+            TaskProperties taskProperties = resourceMapper.getTaskProperties(task.getTaskId(), task.getType(), task.getUserId());
+            tenantWeight(task.getUserId(), taskProperties);
+            batch[i++] = new StagedTask(task.getTaskId(), task.getType(), task.getUserId(), taskProperties.groupId, taskProperties.resources);
+        }
+        if (insertStaging) {
+            stagedTasks.addAll(Arrays.asList(batch));
+            if (stagedTasksCount.addAndGet(count) >= maxStagedTasks && lock.writeLock().tryLock()) {
+                try {
+                    // bounded like insertTask, plus the tasks of the batch
+                    drainStagedTasksLocked((int) Math.min(Integer.MAX_VALUE, (long) maxStagedTasks + count));
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            drainStagedTasksLocked();
+            if (actualsize + count > size) {
+                doAutoGrow(actualsize + count);
+            }
+            for (StagedTask task : batch) {
+                doInsertTask(task.taskid, task.tasktype, task.userid, task.groupid, task.resources);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void doInsertTask(long taskid, String tasktype, String userid, int groupid, String[] resourceIds) {
+        // this method must be invoked inside a writeLock
+        int[] resources = convertResourceList(resourceIds);
+        if (actualsize == size) {
+            doAutoGrow();
+        }
+        Integer taskTypeId = taskTypesIds.get(tasktype);
+        if (taskTypeId == null) {
+            taskTypeId = ++newIdtaskType;
+            taskTypesIds.put(tasktype, taskTypeId);
+            taskTypes.put(taskTypeId, tasktype);
+        }
+        int position = actualsize++;
+        storage.set(position, taskid, taskTypeId, userid, groupid, resources);
+        positions.put(taskid, position);
+        generation++;
+        entryInserted(position);
+    }
+
+    private static final class StagedTask {
+
+        final long taskid;
+        final String tasktype;
+        final String userid;
+        final int groupid;
+        final String[] resources;
+
+        StagedTask(long taskid, String tasktype, String userid, int groupid, String[] resources) {
+            this.taskid = taskid;
+            this.tasktype = tasktype;
+            this.userid = userid;
+            this.groupid = groupid;
+            this.resources = resources;
+        }
+
+    }
+
+    /**
+     * Merges staged inserts into the heap
+     *
+     * @see #setInsertStaging(boolean)
+     */
+    public void drainStagedTasks() {
+        if (stagedTasks.isEmpty()) {
+            return;
+        }
         lock.writeLock().lock();
         try {
-            int[] resources = convertResourceList(resourceIds);
-            if (actualsize == size) {
-                doAutoGrow();
-            }
-            Integer taskTypeId = taskTypesIds.get(tasktype);
-            if (taskTypeId == null) {
-                taskTypeId = ++newIdtaskType;
-                taskTypesIds.put(tasktype, taskTypeId);
-                taskTypes.put(taskTypeId, tasktype);
-            }
-            TaskEntry entry = this.actuallist[actualsize++];
-            entry.taskid = taskid;
-            entry.tasktype = taskTypeId;
-            entry.userid = userid;
-            entry.groupid = groupid;
-            entry.resources = resources;
+            drainStagedTasksLocked();
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    private void drainStagedTasksLocked() {
+        drainStagedTasksLocked(Integer.MAX_VALUE);
+    }
+
+    private void drainStagedTasksLocked(int max) {
+        // this method must be invoked inside a writeLock
+        StagedTask task;
+        for (int i = 0; i < max && (task = stagedTasks.poll()) != null; i++) {
+            stagedTasksCount.decrementAndGet();
+            doInsertTask(task.taskid, task.tasktype, task.userid, task.groupid, task.resources);
+        }
+    }
+
     String resolveTaskType(int tasktype) {
         return taskTypes.get(tasktype);
     }
@@ -235,13 +583,19 @@ public class TasksHeap {
 
     }
 
+    /**
+     * Visits every waiting task. With primitive storages the entry passed to the consumer is a copy, with the object
+     * storage it is the slot itself and it must not be retained
+     *
+     * @param consumer
+     */
     public void scan(Consumer<TaskEntry> consumer) {
+        drainStagedTasks();
         lock.readLock().lock();
         try {
             for (int i = minValidPosition; i < actualsize; i++) {
-                TaskEntry entry = this.actuallist[i];
-                if (entry.taskid > 0) {
-                    consumer.accept(entry);
+                if (storage.getTaskId(i) > 0) {
+                    consumer.accept(storage.getEntry(i));
                 }
             }
         } finally {
@@ -249,86 +603,230 @@ public class TasksHeap {
         }
     }
 
+    /**
+     * Scans a bounded slice of the heap, so that the lock is not held while scanning the whole heap. Slices are
+     * weakly consistent: a compaction between two slices can move tasks before the cursor
+     *
+     * @param fromPosition position of the heap to start from
+     * @param max max number of tasks to visit
+     * @param consumer
+     * @return the position to start the next slice from, or -1 if the end of the heap has been reached
+     */
+    public int scan(int fromPosition, int max, Consumer<TaskEntry> consumer) {
+        drainStagedTasks();
+        lock.readLock().lock();
+        try {
+            int count = 0;
+            for (int i = Math.max(fromPosition, minValidPosition); i < actualsize; i++) {
+                if (storage.getTaskId(i) > 0) {
+                    if (count == max) {
+                        return i;
+                    }
+                    consumer.accept(storage.getEntry(i));
+                    count++;
+                }
+            }
+            return -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     public void scanFull(Consumer<TaskEntry> consumer) {
+        drainStagedTasks();
         lock.readLock().lock();
         try {
             for (int i = 0; i < actualsize; i++) {
-                TaskEntry entry = this.actuallist[i];
-                consumer.accept(entry);
+                consumer.accept(storage.getEntry(i));
             }
         } finally {
             lock.readLock().unlock();
         }
     }
 
+    /**
+     * Maps again every task to its group and resources. When the mapper is a
+     * {@link CachingTaskPropertiesMapperFunction} only tasks of invalidated or expired users and types are mapped
+     * again. The mapper is called without holding the lock, so workers are not blocked by a slow mapper
+     */
     public void recomputeGroups() {
-        lock.writeLock().lock();
+        CachingTaskPropertiesMapperFunction.Invalidations invalidations = null;
+        if (resourceMapper instanceof CachingTaskPropertiesMapperFunction) {
+            invalidations = ((CachingTaskPropertiesMapperFunction) resourceMapper).drainInvalidations();
+            if (invalidations.isEmpty()) {
+                return;
+            }
+        }
+        drainStagedTasks();
+
+        // collect the tasks to be mapped
+        int count = 0;
+        int[] positions;
+        long[] taskids;
+        String[] tasktypes;
+        String[] userids;
+        lock.readLock().lock();
         try {
+            int capacity = actualsize - minValidPosition;
+            positions = new int[capacity];
+            taskids = new long[capacity];
+            tasktypes = new String[capacity];
+            userids = new String[capacity];
             for (int i = minValidPosition; i < actualsize; i++) {
-                TaskEntry entry = this.actuallist[i];
-                if (entry.taskid > 0) {
-                    TaskProperties taskProperties = resourceMapper.getTaskProperties(entry.taskid, taskTypes.get(entry.tasktype), entry.userid);
-                    int newGroup = taskProperties.groupId;
-                    int[] resources = convertResourceList(taskProperties.resources);
-                    // we can compare the "resources" array using the reference because we are pooling them
-                    if (entry.groupid != newGroup || entry.resources != resources) {
-                        // let's limit writes on memory, most often group/resources does not change
-                        entry.groupid = newGroup;
-                        entry.resources = resources;
+                long taskid = storage.getTaskId(i);
+                if (taskid > 0) {
+                    String tasktype = taskTypes.get(storage.getTaskType(i));
+                    String userid = storage.getUserId(i);
+                    if (invalidations == null || invalidations.matches(tasktype, userid)) {
+                        positions[count] = i;
+                        taskids[count] = taskid;
+                        tasktypes[count] = tasktype;
+                        userids[count] = userid;
+                        count++;
                     }
                 }
             }
         } finally {
-            lock.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+        if (count == 0) {
+            return;
+        }
+
+        TaskProperties[] properties = new TaskProperties[count];
+        for (int k = 0; k < count; k++) {
+            properties[k] = resourceMapper.getTaskProperties(taskids[k], tasktypes[k], userids[k]);
+            tenantWeight(userids[k], properties[k]);
         }
-    }
 
-    public void runCompaction() {
-        LOGGER.log(Level.FINEST, "running compaction,"
-            + "fragmentation " + fragmentation + ", actualsize " + actualsize
-            + ", size " + size + ", minValidPosition " + minValidPosition);
         lock.writeLock().lock();
         try {
-            int[] nonemptypositions = new int[size];
-            int insertpos = 0;
-            int pos = 0;
-            for (TaskEntry entry : actuallist) {
-                if (entry.taskid > 0) {
-                    nonemptypositions[insertpos++] = pos + 1; // NOTE_A: 0 means "empty", so we are going to add "+1" to every position
+            drainStagedTasksLocked();
+            boolean changed = false;
+            Map<Long, TaskProperties> moved = null;
+            for (int k = 0; k < count; k++) {
+                int position = positions[k];
+                if (position < actualsize && storage.getTaskId(position) == taskids[k]) {
+                    changed |= applyTaskProperties(position, properties[k]);
+                } else {
+                    // moved by the compaction, or already taken
+                    if (moved == null) {
+                        moved = new HashMap<>();
+                    }
+                    moved.put(taskids[k], properties[k]);
                 }
-                pos++;
             }
-            int writepos = 0;
-            for (int nonemptyindex = 0; nonemptyindex < size; nonemptyindex++) {
-                int nextnotempty = nonemptypositions[nonemptyindex];
-                if (nextnotempty == 0) {
-                    break;
+            if (moved != null) {
+                for (int i = minValidPosition; i < actualsize && !moved.isEmpty(); i++) {
+                    long taskid = storage.getTaskId(i);
+                    if (taskid > 0) {
+                        TaskProperties taskProperties = moved.remove(taskid);
+                        if (taskProperties != null) {
+                            changed |= applyTaskProperties(i, taskProperties);
+                        }
+                    }
                 }
-                nextnotempty = nextnotempty - 1; // see NOTE_A
-                actuallist[writepos].taskid = actuallist[nextnotempty].taskid;
-                actuallist[writepos].tasktype = actuallist[nextnotempty].tasktype;
-                actuallist[writepos].userid = actuallist[nextnotempty].userid;
-                actuallist[writepos].groupid = actuallist[nextnotempty].groupid;
-                actuallist[writepos].resources = actuallist[nextnotempty].resources;
-                writepos++;
             }
-            for (int j = writepos; j < size; j++) {
-                actuallist[j].taskid = 0;
-                actuallist[j].tasktype = 0;
-                actuallist[j].userid = null;
-                actuallist[j].groupid = 0;
-                actuallist[j].resources = null;
+            if (changed) {
+                generation++;
+                entriesChanged();
             }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-            minValidPosition = 0;
-            actualsize = writepos + 1;
-            fragmentation = 0;
-            LOGGER.log(Level.FINEST, "after compaction, fragmentation " + fragmentation + ", actualsize " + actualsize + ", size " + size + ", minValidPosition " + minValidPosition);
+    private boolean applyTaskProperties(int position, TaskProperties taskProperties) {
+        int newGroup = taskProperties.groupId;
+        int[] resources = convertResourceList(taskProperties.resources);
+        // we can compare the "resources" array using the reference because we are pooling them
+        if (storage.getGroupId(position) != newGroup || storage.getResources(position) != resources) {
+            // let's limit writes on memory, most often group/resources does not change
+            storage.setGroupAndResources(position, newGroup, resources);
+            return true;
+        }
+        return false;
+    }
+
+    public TaskPropertiesMapperFunction getTaskPropertiesMapperFunction() {
+        return resourceMapper;
+    }
+
+    /**
+     * Compacts the whole heap in a single pass. If an incremental compaction is in progress it is completed
+     */
+    public void runCompaction() {
+        lock.writeLock().lock();
+        try {
+            drainStagedTasksLocked();
+            if (!compactionInProgress) {
+                startCompaction();
+            }
+            runCompactionStep(Integer.MAX_VALUE);
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    private void startCompaction() {
+        // this method must be invoked inside a writeLock
+        LOGGER.log(Level.FINEST, "running compaction,"
+            + "fragmentation " + fragmentation + ", actualsize " + actualsize
+            + ", size " + size + ", minValidPosition " + minValidPosition);
+        compactionInProgress = true;
+        fragmentationAtCompactionStart = fragmentation;
+        // slots before minValidPosition are empty, we do not need to read them
+        compactionReadPosition = minValidPosition;
+        compactionWritePosition = 0;
+    }
+
+    /**
+     * Moves waiting tasks towards the head of the heap, reading at most maxSlots slots. Slots between the write
+     * position and the read position are always empty, so the relative order of the tasks does not change and
+     * inserts/takes can be executed between two steps.
+     *
+     * @param maxSlots
+     */
+    private void runCompactionStep(int maxSlots) {
+        // this method must be invoked inside a writeLock
+        long _start = System.nanoTime();
+        int readpos = compactionReadPosition;
+        int writepos = compactionWritePosition;
+        int limit = actualsize - readpos > maxSlots ? readpos + maxSlots : actualsize;
+        for (; readpos < limit; readpos++) {
+            if (storage.getTaskId(readpos) > 0) {
+                if (readpos != writepos) {
+                    entryMoved(readpos, writepos);
+                    positions.put(storage.getTaskId(readpos), writepos);
+                    storage.move(readpos, writepos);
+                    storage.clear(readpos);
+                    if (writepos < minValidPosition) {
+                        minValidPosition = writepos;
+                    }
+                }
+                writepos++;
+            }
+        }
+        compactionReadPosition = readpos;
+        compactionWritePosition = writepos;
+        compactionSteps++;
+        if (readpos >= actualsize) {
+            // slots after writepos are empty, the first of them is left as a "guard"
+            actualsize = Math.min(writepos + 1, actualsize);
+            minValidPosition = Math.min(minValidPosition, writepos);
+            fragmentation = Math.max(0, fragmentation - fragmentationAtCompactionStart);
+            compactionInProgress = false;
+            compactions++;
+            LOGGER.log(Level.FINEST, "after compaction, fragmentation " + fragmentation + ", actualsize " + actualsize + ", size " + size + ", minValidPosition " + minValidPosition);
+        }
+        long pause = (System.nanoTime() - _start) / 1000;
+        lastCompactionPauseMicros = pause;
+        totalCompactionPauseMicros += pause;
+        if (pause > maxCompactionPauseMicros) {
+            maxCompactionPauseMicros = pause;
+        }
+    }
+
     public List<AssignedTask> takeTasks(int max, List<Integer> groups, Set<Integer> excludedGroups, Map<String, Integer> availableSpace,
         Map<String, Integer> workerResourceLimits, ResourceUsageCounters workerResourceUsageCounters,
         Map<String, Integer> globalResourceLimits, ResourceUsageCounters globalResourceUsageCounters,
@@ -349,6 +847,7 @@ public class TasksHeap {
 
         lock.writeLock().lock();
         try {
+            drainStagedTasksLocked();
 
             // global counters but be modified only inside this "global" lock
             globalResourceUsageCounters.updateResourceCounters();
@@ -356,60 +855,712 @@ public class TasksHeap {
                 computeAvailableResources(globalResourceLimits, availableResourcesCounters, globalResourceUsageCounters);
             }
 
-            for (Map.Entry<String, Integer> entry : availableSpace.entrySet()) {
-                Integer typeId = taskTypesIds.get(entry.getKey());
-                if (typeId != null) {
-                    availableSpaceByTaskTaskId.put(typeId, entry.getValue());
-                }
-            }
-            Map<TasksChooser.IntTaskTypeUser, IntCounter> _availableSpacePerUser = null;
+            resolveAvailableSpace(availableSpace, availableSpaceByTaskTaskId);
+            Map<TasksChooser.IntTaskTypeUser, IntCounter> _availableSpacePerUser = resolveAvailableSpacePerUser(availableSpacePerUser);
 
-            if (availableSpacePerUser != null) {
-                _availableSpacePerUser = new HashMap<>(availableSpacePerUser.size());
-                for (Map.Entry<TaskTypeUser, IntCounter> entry : availableSpacePerUser.entrySet()) {
-                    TaskTypeUser taskTypeUser = entry.getKey();
-                    Integer typeId = taskTypesIds.get(taskTypeUser.taskType);
-                    if (typeId != null) {
-                        _availableSpacePerUser.put(new TasksChooser.IntTaskTypeUser(typeId, taskTypeUser.userId), entry.getValue());
-                    }
+            Map<Integer, Integer> availableResources = snapshot(availableResourcesCounters);
+            ScanSignature signature = new ScanSignature(max, groups, excludedGroups, availableSpaceByTaskTaskId,
+                availableResources, _availableSpacePerUser, maxThreadPerUserPerTaskTypePercent);
+            long scanVersion = scanVersion();
+            if (isFutileScan(signature, scanVersion)) {
+                if (compactionInProgress) {
+                    runCompactionStep(compactionSegmentSize);
                 }
+                return Collections.emptyList();
             }
-
             TasksChooser chooser = new TasksChooser(groups, excludedGroups, availableSpaceByTaskTaskId, availableResourcesCounters, max,
                 _availableSpacePerUser, maxThreadPerUserPerTaskTypePercent);
-            for (int i = minValidPosition; i < actualsize; i++) {
-                TaskEntry entry = this.actuallist[i];
-                if (entry.taskid > 0) {
-                    chooser.accept(i, entry);
-                }
-            }
+            chooser.setSchedulingPolicy(schedulingPolicy);
+            chooser.setBlockedResourceSets(blockedResourceSets(availableResources));
+            scanCandidates(chooser);
             List<TasksChooser.Entry> choosen = chooser.getChoosenTasks();
             if (choosen.isEmpty()) {
+                emptyScanFound(signature, scanVersion);
+                if (compactionInProgress) {
+                    // an idle worker helps to complete the compaction
+                    runCompactionStep(compactionSegmentSize);
+                }
                 return Collections.emptyList();
             }
-            List<AssignedTask> result = new ArrayList<>();
-            for (TasksChooser.Entry choosenentry : choosen) {
-                int pos = choosenentry.position;
-                TaskEntry entry = this.actuallist[pos];
-                if (entry.taskid == choosenentry.taskid) {
-                    entry.taskid = 0;
-                    entry.tasktype = 0;
-                    entry.userid = null;
-                    this.fragmentation++;
-                    result.add(new AssignedTask(choosenentry.taskid, convertResourceListToIds(entry.resources), convertResourceListString(entry.resources)));
-                    if (pos == minValidPosition) {
-                        minValidPosition++;
+            List<AssignedTask> result = removeChoosenTasks(choosen, null);
+            compactAfterTakes();
+            return result;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+    }
+
+    /**
+     * Assigns tasks to a group of workers with a single scan of the heap, holding the lock only once. Requests are
+     * served in the given order: the result is the same as calling {@link #takeTasks(int, java.util.List, java.util.Set, java.util.Map, java.util.Map, majordodo.task.ResourceUsageCounters, java.util.Map, majordodo.task.ResourceUsageCounters, java.util.Map, int)
+     * }
+     * once for each worker, but for per-user limits, which are applied to each worker as if no other worker in the
+     * round took tasks of the same user (so they are never exceeded, but the choice may be a bit more conservative).
+     * Assigned tasks are stored in each request, global resource counters are not updated: the caller has to call
+     * {@link ResourceUsageCounters#useResources(java.lang.String[])} as for the single worker version.
+     *
+     * @param requests
+     * @param globalResourceLimits
+     * @param globalResourceUsageCounters
+     */
+    public void takeTasks(List<WorkerTasksRequest> requests,
+        Map<String, Integer> globalResourceLimits, ResourceUsageCounters globalResourceUsageCounters) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        // every worker in the round is not requesting tasks on its own thread
+        List<Map<Integer, IntCounter>> workerResourcesCounters = new ArrayList<>(requests.size());
+        for (WorkerTasksRequest request : requests) {
+            Map<Integer, IntCounter> availableResourcesCounters = new HashMap<>();
+            request.workerResourceUsageCounters.updateResourceCounters();
+            if (request.workerResourceLimits != null && !request.workerResourceLimits.isEmpty()) {
+                computeAvailableResources(request.workerResourceLimits, availableResourcesCounters, request.workerResourceUsageCounters);
+            }
+            workerResourcesCounters.add(availableResourcesCounters);
+        }
+
+        lock.writeLock().lock();
+        try {
+            drainStagedTasksLocked();
+
+            globalResourceUsageCounters.updateResourceCounters();
+            Map<Integer, IntCounter> globalAvailableResources = new HashMap<>();
+            if (globalResourceLimits != null && !globalResourceLimits.isEmpty()) {
+                computeAvailableResources(globalResourceLimits, globalAvailableResources, globalResourceUsageCounters);
+            }
+
+            long scanVersion = scanVersion();
+            // requests which need a scan, with their signatures
+            List<Integer> scanning = new ArrayList<>(requests.size());
+            List<ScanSignature> signatures = new ArrayList<>(requests.size());
+            List<Map<Integer, Integer>> availableSpaces = new ArrayList<>(requests.size());
+            for (int i = 0; i < requests.size(); i++) {
+                WorkerTasksRequest request = requests.get(i);
+                Map<Integer, Integer> availableSpaceByTaskTaskId = new HashMap<>();
+                Integer forAny = request.availableSpace.get(Task.TASKTYPE_ANY);
+                if (forAny != null) {
+                    availableSpaceByTaskTaskId.put(TasksHeap.TASKTYPE_ANYTASK, forAny);
+                }
+                resolveAvailableSpace(request.availableSpace, availableSpaceByTaskTaskId);
+                ScanSignature signature = new ScanSignature(request.max, request.groups, request.excludedGroups,
+                    availableSpaceByTaskTaskId, availableResources(workerResourcesCounters.get(i), globalAvailableResources),
+                    resolveAvailableSpacePerUser(request.availableSpacePerUser), request.maxThreadPerUserPerTaskTypePercent);
+                if (isFutileScan(signature, scanVersion)) {
+                    continue;
+                }
+                scanning.add(i);
+                signatures.add(signature);
+                availableSpaces.add(availableSpaceByTaskTaskId);
+            }
+            if (scanning.isEmpty()) {
+                compactAfterTakes();
+                return;
+            }
+
+            boolean anyTaken = false;
+            List<TasksChooser> choosers = null;
+            int firstChooser = 0;
+            for (int c = 0; c < scanning.size(); c++) {
+                if (choosers == null) {
+                    // tasks on resources exhausted by the previous workers are skipped by the new choosers
+                    choosers = createRoundChoosers(requests, scanning, availableSpaces, c, workerResourcesCounters, globalAvailableResources);
+                    firstChooser = c;
+                    scanCandidates(choosers);
+                }
+                int i = scanning.get(c);
+                Map<Integer, IntCounter> availableResourcesCounters = workerResourcesCounters.get(i);
+                for (Map.Entry<Integer, IntCounter> global : globalAvailableResources.entrySet()) {
+                    IntCounter forWorker = availableResourcesCounters.get(global.getKey());
+                    if (forWorker == null) {
+                        availableResourcesCounters.put(global.getKey(), new IntCounter(global.getValue().count));
+                    } else {
+                        forWorker.count = Math.min(forWorker.count, global.getValue().count);
+                    }
+                }
+                List<TasksChooser.Entry> choosen = choosers.get(c - firstChooser).getChoosenTasks(storage);
+                if (!choosen.isEmpty()) {
+                    Set<Integer> exhaustedBefore = exhaustedResources(globalAvailableResources);
+                    requests.get(i).assignedTasks = removeChoosenTasks(choosen, globalAvailableResources);
+                    anyTaken = true;
+                    if (!exhaustedBefore.equals(exhaustedResources(globalAvailableResources))) {
+                        // the choosers of the next workers retained tasks which now cannot be assigned, in place of
+                        // tasks which could be, this happens at most once per resource in a round
+                        choosers = null;
                     }
                 }
             }
-            if (this.fragmentation > maxFragmentation) {
-                runCompaction();
+            if (!anyTaken) {
+                // when a worker takes tasks the result for the others may depend on the order inside the round
+                for (ScanSignature signature : signatures) {
+                    emptyScanFound(signature, scanVersion);
+                }
             }
-            return result;
+            compactAfterTakes();
         } finally {
             lock.writeLock().unlock();
         }
+    }
+
+    /**
+     * Creates the choosers for the requests of a scheduling round which are still to be served, starting from the given
+     * one. Each chooser retains enough tasks to cover those taken by the workers which come before it in the round
+     */
+    private List<TasksChooser> createRoundChoosers(List<WorkerTasksRequest> requests, List<Integer> scanning,
+        List<Map<Integer, Integer>> availableSpaces, int from,
+        List<Map<Integer, IntCounter>> workerResourcesCounters, Map<Integer, IntCounter> globalAvailableResources) {
+        List<TasksChooser> choosers = new ArrayList<>(scanning.size() - from);
+        int extraCapacity = 0;
+        for (int c = from; c < scanning.size(); c++) {
+            int i = scanning.get(c);
+            WorkerTasksRequest request = requests.get(i);
+            // resource counters are filled in just before the resolution of each chooser
+            TasksChooser chooser = new TasksChooser(request.groups, request.excludedGroups, availableSpaces.get(c),
+                workerResourcesCounters.get(i), request.max, resolveAvailableSpacePerUser(request.availableSpacePerUser),
+                request.maxThreadPerUserPerTaskTypePercent, extraCapacity);
+            chooser.setSchedulingPolicy(schedulingPolicy);
+            // counters only decrease during the round, so resources exhausted now stay exhausted
+            chooser.setBlockedResourceSets(blockedResourceSets(availableResources(workerResourcesCounters.get(i), globalAvailableResources)));
+            choosers.add(chooser);
+            extraCapacity += request.max;
+        }
+        return choosers;
+    }
+
+    private static Map<Integer, Integer> availableResources(Map<Integer, IntCounter> workerResources, Map<Integer, IntCounter> globalResources) {
+        Map<Integer, Integer> availableResources = snapshot(workerResources);
+        for (Map.Entry<Integer, IntCounter> global : globalResources.entrySet()) {
+            availableResources.merge(global.getKey(), global.getValue().count, Math::min);
+        }
+        return availableResources;
+    }
+
+    private static Set<Integer> exhaustedResources(Map<Integer, IntCounter> availableResources) {
+        Set<Integer> result = new HashSet<>();
+        for (Map.Entry<Integer, IntCounter> resource : availableResources.entrySet()) {
+            if (resource.getValue().count <= 0) {
+                result.add(resource.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Changes every time the result of a scan could change, both the generation and the version of the policy only
+     * grow
+     */
+    private long scanVersion() {
+        TasksSchedulingPolicy policy = schedulingPolicy;
+        return policy != null ? generation + policy.getVersion() : generation;
+    }
+
+    private boolean isFutileScan(ScanSignature signature, long scanVersion) {
+        Long emptyAtVersion = emptyScans.get(signature);
+        if (emptyAtVersion != null && emptyAtVersion == scanVersion) {
+            emptyScanHits++;
+            return true;
+        }
+        emptyScanMisses++;
+        return false;
+    }
+
+    private void emptyScanFound(ScanSignature signature, long scanVersion) {
+        if (emptyScans.size() >= MAX_EMPTY_SCANS) {
+            emptyScans.clear();
+        }
+        emptyScans.put(signature, scanVersion);
+    }
+
+    private static Map<Integer, Integer> snapshot(Map<Integer, IntCounter> counters) {
+        Map<Integer, Integer> result = new HashMap<>(counters.size());
+        for (Map.Entry<Integer, IntCounter> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().count);
+        }
+        return result;
+    }
+
+    /**
+     * Everything which can change the result of a scan of the heap, but for the contents of the heap. Counters are
+     * copied, as they are consumed by the {@link TasksChooser}
+     */
+    private static final class ScanSignature {
+
+        private final int max;
+        private final List<Integer> groups;
+        private final Set<Integer> excludedGroups;
+        private final Map<Integer, Integer> availableSpace;
+        private final Map<Integer, Integer> availableResources;
+        private final Map<TasksChooser.IntTaskTypeUser, Integer> availableSpacePerUser;
+        private final int maxThreadPerUserPerTaskTypePercent;
+        private final int hashCode;
+
+        ScanSignature(int max, List<Integer> groups, Set<Integer> excludedGroups, Map<Integer, Integer> availableSpace,
+            Map<Integer, Integer> availableResources, Map<TasksChooser.IntTaskTypeUser, IntCounter> availableSpacePerUser,
+            int maxThreadPerUserPerTaskTypePercent) {
+            this.max = max;
+            this.groups = new ArrayList<>(groups);
+            this.excludedGroups = new HashSet<>(excludedGroups);
+            this.availableSpace = new HashMap<>(availableSpace);
+            this.availableResources = availableResources;
+            if (availableSpacePerUser != null) {
+                this.availableSpacePerUser = new HashMap<>(availableSpacePerUser.size());
+                for (Map.Entry<TasksChooser.IntTaskTypeUser, IntCounter> entry : availableSpacePerUser.entrySet()) {
+                    this.availableSpacePerUser.put(entry.getKey(), entry.getValue().count);
+                }
+            } else {
+                this.availableSpacePerUser = null;
+            }
+            this.maxThreadPerUserPerTaskTypePercent = maxThreadPerUserPerTaskTypePercent;
+            this.hashCode = Objects.hash(max, this.groups, this.excludedGroups, this.availableSpace,
+                availableResources, this.availableSpacePerUser, maxThreadPerUserPerTaskTypePercent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ScanSignature)) {
+                return false;
+            }
+            final ScanSignature other = (ScanSignature) obj;
+            return this.hashCode == other.hashCode
+                && this.max == other.max
+                && this.maxThreadPerUserPerTaskTypePercent == other.maxThreadPerUserPerTaskTypePercent
+                && this.groups.equals(other.groups)
+                && this.excludedGroups.equals(other.excludedGroups)
+                && this.availableSpace.equals(other.availableSpace)
+                && this.availableResources.equals(other.availableResources)
+                && Objects.equals(this.availableSpacePerUser, other.availableSpacePerUser);
+        }
+    }
+
+    private void resolveAvailableSpace(Map<String, Integer> availableSpace, Map<Integer, Integer> availableSpaceByTaskTaskId) {
+        for (Map.Entry<String, Integer> entry : availableSpace.entrySet()) {
+            Integer typeId = taskTypesIds.get(entry.getKey());
+            if (typeId != null) {
+                availableSpaceByTaskTaskId.put(typeId, entry.getValue());
+            }
+        }
+    }
+
+    private Map<TasksChooser.IntTaskTypeUser, IntCounter> resolveAvailableSpacePerUser(Map<TaskTypeUser, IntCounter> availableSpacePerUser) {
+        if (availableSpacePerUser == null) {
+            return null;
+        }
+        Map<TasksChooser.IntTaskTypeUser, IntCounter> result = new HashMap<>(availableSpacePerUser.size());
+        for (Map.Entry<TaskTypeUser, IntCounter> entry : availableSpacePerUser.entrySet()) {
+            TaskTypeUser taskTypeUser = entry.getKey();
+            Integer typeId = taskTypesIds.get(taskTypeUser.taskType);
+            if (typeId != null) {
+                // counters are consumed by the chooser, a scheduling round may need to scan again
+                result.put(new TasksChooser.IntTaskTypeUser(typeId, taskTypeUser.userId), new IntCounter(entry.getValue().count));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the choosen tasks from the heap, optionally accounting the resources they use
+     */
+    private List<AssignedTask> removeChoosenTasks(List<TasksChooser.Entry> choosen, Map<Integer, IntCounter> availableResources) {
+        List<AssignedTask> result = new ArrayList<>();
+        for (TasksChooser.Entry choosenentry : choosen) {
+            int pos = choosenentry.position;
+            if (storage.getTaskId(pos) == choosenentry.taskid) {
+                int[] resources = storage.getResources(pos);
+                entryRemoved(pos);
+                storage.clear(pos);
+                positions.remove(choosenentry.taskid);
+                this.fragmentation++;
+                generation++;
+                result.add(new AssignedTask(choosenentry.taskid, convertResourceListToIds(resources), convertResourceListString(resources)));
+                if (pos == minValidPosition) {
+                    minValidPosition++;
+                }
+                if (availableResources != null && resources != null) {
+                    for (int idresource : resources) {
+                        IntCounter available = availableResources.get(idresource);
+                        if (available != null) {
+                            available.count--;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private void compactAfterTakes() {
+        if (compactionInProgress) {
+            runCompactionStep(compactionSegmentSize);
+        } else if (this.fragmentation > maxFragmentation) {
+            startCompaction();
+            runCompactionStep(compactionSegmentSize);
+        }
+    }
+
+    /**
+     * Submits every task which could be assigned to the {@link TasksChooser}, this method is called inside the write
+     * lock
+     *
+     * @param chooser
+     */
+    void scanCandidates(TasksChooser chooser) {
+        if (chooser.hasSchedulingPolicy()) {
+            scanCandidatesFairShare(chooser);
+            return;
+        }
+        if (isParallelScan(Collections.singletonList(chooser))) {
+            scanCandidatesParallel(Collections.singletonList(chooser));
+            return;
+        }
+        for (int i = minValidPosition; i < actualsize; i++) {
+            if (storage.getTaskId(i) > 0) {
+                acceptCandidate(chooser, i);
+            }
+        }
+    }
+
+    /**
+     * Submits every task which could be assigned to any of the given choosers, with a single pass on the heap. This
+     * method is called inside the write lock
+     *
+     * @param choosers
+     */
+    void scanCandidates(List<TasksChooser> choosers) {
+        if (schedulingPolicy != null) {
+            // every chooser consumes the virtual times of the users on its own
+            for (TasksChooser chooser : choosers) {
+                scanCandidates(chooser);
+            }
+            return;
+        }
+        if (isParallelScan(choosers)) {
+            scanCandidatesParallel(choosers);
+            return;
+        }
+        int count = choosers.size();
+        for (int i = minValidPosition; i < actualsize; i++) {
+            if (storage.getTaskId(i) > 0) {
+                for (int j = 0; j < count; j++) {
+                    acceptCandidate(choosers.get(j), i);
+                }
+            }
+        }
+    }
+
+    private boolean isParallelScan(List<TasksChooser> choosers) {
+        if (parallelScanThreshold <= 0 || actualsize - minValidPosition < parallelScanThreshold) {
+            return false;
+        }
+        for (TasksChooser chooser : choosers) {
+            if (chooser.isVisitOrderDependent()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void scanCandidatesParallel(List<TasksChooser> choosers) {
+        // the caller holds the write lock, so the storage does not change during the scan
+        List<TasksChooser> partials = ForkJoinPool.commonPool().invoke(new ScanRange(choosers, minValidPosition, actualsize));
+        for (int j = 0; j < choosers.size(); j++) {
+            choosers.get(j).merge(partials.get(j));
+        }
+    }
+
+    /**
+     * Visits a range of the heap, splitting it while it is bigger than the segment size. Returns a partial chooser for
+     * each of the given choosers
+     */
+    private final class ScanRange extends RecursiveTask<List<TasksChooser>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<TasksChooser> choosers;
+        private final int from;
+        private final int to;
+
+        ScanRange(List<TasksChooser> choosers, int from, int to) {
+            this.choosers = choosers;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<TasksChooser> compute() {
+            if (to - from > parallelScanSegmentSize) {
+                int middle = (from + to) >>> 1;
+                ScanRange right = new ScanRange(choosers, middle, to);
+                right.fork();
+                List<TasksChooser> result = new ScanRange(choosers, from, middle).compute();
+                List<TasksChooser> rightResult = right.join();
+                for (int j = 0; j < result.size(); j++) {
+                    result.get(j).merge(rightResult.get(j));
+                }
+                return result;
+            }
+            int count = choosers.size();
+            List<TasksChooser> result = new ArrayList<>(count);
+            for (TasksChooser chooser : choosers) {
+                result.add(chooser.newPartialChooser());
+            }
+            for (int i = from; i < to; i++) {
+                if (storage.getTaskId(i) > 0) {
+                    for (int j = 0; j < count; j++) {
+                        acceptCandidate(result.get(j), i);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    final boolean acceptCandidate(TasksChooser chooser, int position) {
+        return chooser.accept(position, storage);
+    }
+
+    /**
+     * Groups the matching tasks by group, type and user with a single pass on the heap
+     */
+    private void scanCandidatesFairShare(TasksChooser chooser) {
+        Map<Long, Map<String, PositionsList>> lists = new HashMap<>();
+        List<UserCandidates> candidates = new ArrayList<>();
+        for (int i = minValidPosition; i < actualsize; i++) {
+            if (storage.getTaskId(i) > 0) {
+                int groupid = storage.getGroupId(i);
+                int tasktype = storage.getTaskType(i);
+                if (chooser.isGroupAccepted(groupid) && chooser.isTaskTypeAccepted(tasktype)) {
+                    Map<String, PositionsList> byUser = lists.computeIfAbsent(listKey(groupid, tasktype), k -> new HashMap<>());
+                    String userid = storage.getUserId(i);
+                    PositionsList list = byUser.get(userid);
+                    if (list == null) {
+                        list = new PositionsList(groupid, tasktype, userid);
+                        byUser.put(userid, list);
+                        candidates.add(list);
+                    }
+                    list.add(i);
+                }
+            }
+        }
+        chooseFairShare(chooser, candidates);
+    }
+
+    /**
+     * Weighted fair share choice: at each level of priority the next task is taken from the user with the smallest
+     * virtual time, the tasks of each user are visited in heap order. Tasks are offered to the chooser in the order of
+     * the choice, so each user is dropped as soon as the chooser cannot retain its tasks: the cost is O(log(users)) for
+     * each retained task, plus one step for each list of candidates. This method is called inside the write lock
+     *
+     * @param chooser
+     * @param candidates the tasks of each user, group and type matching the chooser
+     */
+    final void chooseFairShare(TasksChooser chooser, List<UserCandidates> candidates) {
+        TreeMap<Integer, Map<String, FairShareUser>> levels = new TreeMap<>(Collections.reverseOrder());
+        for (UserCandidates list : candidates) {
+            if (list.position() != NONE) {
+                levels.computeIfAbsent(chooser.getPriority(list.groupid), k -> new HashMap<>())
+                    .computeIfAbsent(list.userid, FairShareUser::new).lists.add(list);
+            }
+        }
+        for (Map<String, FairShareUser> level : levels.values()) {
+            PriorityQueue<FairShareUser> users = new PriorityQueue<>(level.size());
+            for (FairShareUser user : level.values()) {
+                user.virtualTime = chooser.getNextVirtualTime(user.userid);
+                if (user.selectNext()) {
+                    users.add(user);
+                }
+            }
+            while (!users.isEmpty()) {
+                FairShareUser user = users.poll();
+                UserCandidates list = user.current;
+                int result = chooser.offer(list.position(), list.groupid, list.tasktype, user.userid, storage);
+                if (result == TasksChooser.OFFER_EXHAUSTED) {
+                    user.lists.remove(list);
+                } else {
+                    list.advance();
+                    if (result == TasksChooser.OFFER_ACCEPTED) {
+                        user.virtualTime = chooser.getNextVirtualTime(user.userid);
+                    }
+                }
+                if (user.selectNext()) {
+                    users.add(user);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waiting tasks of a user with the same group and type, in heap order
+     */
+    abstract static class UserCandidates {
+
+        final int groupid;
+        final int tasktype;
+        final String userid;
+
+        UserCandidates(int groupid, int tasktype, String userid) {
+            this.groupid = groupid;
+            this.tasktype = tasktype;
+            this.userid = userid;
+        }
+
+        /**
+         * @return the position of the current task, or {@link #NONE} at the end of the list
+         */
+        abstract int position();
+
+        abstract void advance();
+    }
+
+    private static final class PositionsList extends UserCandidates {
+
+        private int[] positions = new int[4];
+        private int size;
+        private int current;
+
+        PositionsList(int groupid, int tasktype, String userid) {
+            super(groupid, tasktype, userid);
+        }
+
+        void add(int position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+
+        @Override
+        int position() {
+            return current < size ? positions[current] : NONE;
+        }
+
+        @Override
+        void advance() {
+            current++;
+        }
+    }
+
+    /**
+     * A user during a fair share choice, users are ordered by the virtual time of their next task and then by the
+     * position of the task
+     */
+    private static final class FairShareUser implements Comparable<FairShareUser> {
+
+        final String userid;
+        final List<UserCandidates> lists = new ArrayList<>(1);
+        UserCandidates current;
+        long virtualTime;
+
+        FairShareUser(String userid) {
+            this.userid = userid;
+        }
+
+        /**
+         * Selects the list which holds the first task of the user
+         *
+         * @return false if the user has no more tasks
+         */
+        boolean selectNext() {
+            current = null;
+            int best = NONE;
+            for (int i = lists.size() - 1; i >= 0; i--) {
+                UserCandidates list = lists.get(i);
+                int position = list.position();
+                if (position == NONE) {
+                    lists.remove(i);
+                } else if (best == NONE || position < best) {
+                    best = position;
+                    current = list;
+                }
+            }
+            return current != null;
+        }
+
+        @Override
+        public int compareTo(FairShareUser o) {
+            if (virtualTime != o.virtualTime) {
+                return virtualTime < o.virtualTime ? -1 : 1;
+            }
+            return Integer.compare(current.position(), o.current.position());
+        }
+    }
+
+    static long listKey(int groupid, int tasktype) {
+        return (((long) groupid) << 32) | (tasktype & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Resource sets (pooled by {@link #convertResourceList(java.lang.String[]) }) which use at least one resource
+     * without available space. This method must be invoked inside the write lock
+     *
+     * @param availableResources
+     * @return the blocked sets, compared by reference, or null if no resource is exhausted
+     */
+    private Set<int[]> blockedResourceSets(Map<Integer, Integer> availableResources) {
+        Set<Integer> exhausted = null;
+        for (Map.Entry<Integer, Integer> resource : availableResources.entrySet()) {
+            if (resource.getValue() <= 0) {
+                if (exhausted == null) {
+                    exhausted = new HashSet<>();
+                }
+                exhausted.add(resource.getKey());
+            }
+        }
+        if (exhausted == null) {
+            return null;
+        }
+        Set<int[]> blocked = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int[] resourceSet : resourcesIdsListPool.keySet()) {
+            for (int idresource : resourceSet) {
+                if (exhausted.contains(idresource)) {
+                    blocked.add(resourceSet);
+                    break;
+                }
+            }
+        }
+        return blocked.isEmpty() ? null : blocked;
+    }
+
+    final long getTaskId(int position) {
+        return storage.getTaskId(position);
+    }
+
+    final int getTaskType(int position) {
+        return storage.getTaskType(position);
+    }
+
+    final int getGroupId(int position) {
+        return storage.getGroupId(position);
+    }
+
+    final String getUserId(int position) {
+        return storage.getUserId(position);
+    }
+
+    /*
+     * Notifications for implementations which keep secondary structures on top of the heap, all of them are
+     * called inside the write lock
+     */
+    void entryInserted(int position) {
+    }
+
+    void entryRemoved(int position) {
+    }
+
+    void entryMoved(int from, int to) {
+    }
+
+    void entriesChanged() {
+    }
 
+    void heapResized(int newSize) {
     }
 
     private void computeAvailableResources(
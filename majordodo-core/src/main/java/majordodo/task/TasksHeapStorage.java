@@ -0,0 +1,455 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Slots of the {@link TasksHeap}. Access is always guarded by the lock of the heap. An empty slot has taskid = 0
+ *
+ * @author enrico.olivelli
+ */
+abstract class TasksHeapStorage {
+
+    static TasksHeapStorage create(String mode, int size) {
+        switch (mode) {
+            case TasksHeap.STORAGE_OBJECTS:
+                return new ObjectArrayStorage(size);
+            case TasksHeap.STORAGE_PRIMITIVE:
+                return new PrimitiveArrayStorage(size);
+            case TasksHeap.STORAGE_OFFHEAP:
+                return new OffHeapStorage(size);
+            default:
+                throw new IllegalArgumentException("bad tasksheap storage mode " + mode + ", only valid values are "
+                    + TasksHeap.STORAGE_OBJECTS + "|" + TasksHeap.STORAGE_PRIMITIVE + "|" + TasksHeap.STORAGE_OFFHEAP);
+        }
+    }
+
+    abstract int capacity();
+
+    abstract void resize(int newCapacity);
+
+    abstract long getTaskId(int position);
+
+    abstract int getTaskType(int position);
+
+    abstract String getUserId(int position);
+
+    abstract int getGroupId(int position);
+
+    abstract int[] getResources(int position);
+
+    abstract void set(int position, long taskid, int tasktype, String userid, int groupid, int[] resources);
+
+    abstract void setGroupAndResources(int position, int groupid, int[] resources);
+
+    abstract void move(int from, int to);
+
+    abstract void clear(int position);
+
+    /**
+     * Returns a view of the slot, the view may be shared with the storage or a copy
+     *
+     * @param position
+     * @return
+     */
+    abstract TasksHeap.TaskEntry getEntry(int position);
+
+    /**
+     * Plain old storage, one object for each slot
+     */
+    static final class ObjectArrayStorage extends TasksHeapStorage {
+
+        private TasksHeap.TaskEntry[] actuallist;
+
+        ObjectArrayStorage(int size) {
+            this.actuallist = new TasksHeap.TaskEntry[size];
+            for (int i = 0; i < size; i++) {
+                this.actuallist[i] = new TasksHeap.TaskEntry(0, 0, null, 0, null);
+            }
+        }
+
+        @Override
+        int capacity() {
+            return actuallist.length;
+        }
+
+        @Override
+        void resize(int newCapacity) {
+            TasksHeap.TaskEntry[] newList = new TasksHeap.TaskEntry[newCapacity];
+            System.arraycopy(actuallist, 0, newList, 0, actuallist.length);
+            for (int i = actuallist.length; i < newList.length; i++) {
+                newList[i] = new TasksHeap.TaskEntry(0, 0, null, 0, null);
+            }
+            this.actuallist = newList;
+        }
+
+        @Override
+        long getTaskId(int position) {
+            return actuallist[position].taskid;
+        }
+
+        @Override
+        int getTaskType(int position) {
+            return actuallist[position].tasktype;
+        }
+
+        @Override
+        String getUserId(int position) {
+            return actuallist[position].userid;
+        }
+
+        @Override
+        int getGroupId(int position) {
+            return actuallist[position].groupid;
+        }
+
+        @Override
+        int[] getResources(int position) {
+            return actuallist[position].resources;
+        }
+
+        @Override
+        void set(int position, long taskid, int tasktype, String userid, int groupid, int[] resources) {
+            TasksHeap.TaskEntry entry = actuallist[position];
+            entry.taskid = taskid;
+            entry.tasktype = tasktype;
+            entry.userid = userid;
+            entry.groupid = groupid;
+            entry.resources = resources;
+        }
+
+        @Override
+        void setGroupAndResources(int position, int groupid, int[] resources) {
+            TasksHeap.TaskEntry entry = actuallist[position];
+            entry.groupid = groupid;
+            entry.resources = resources;
+        }
+
+        @Override
+        void move(int from, int to) {
+            TasksHeap.TaskEntry source = actuallist[from];
+            set(to, source.taskid, source.tasktype, source.userid, source.groupid, source.resources);
+        }
+
+        @Override
+        void clear(int position) {
+            set(position, 0, 0, null, 0, null);
+        }
+
+        @Override
+        TasksHeap.TaskEntry getEntry(int position) {
+            return actuallist[position];
+        }
+
+    }
+
+    /**
+     * User ids and resource lists referred by an int id, 0 means null
+     */
+    static final class Dictionary {
+
+        private final Map<String, Integer> userIdsMapping = new HashMap<>();
+        private final List<String> userIdsById = new ArrayList<>();
+        private final Map<int[], Integer> resourceSetsMapping = new IdentityHashMap<>();
+        private final List<int[]> resourceSetsById = new ArrayList<>();
+
+        Dictionary() {
+            userIdsById.add(null);
+            resourceSetsById.add(null);
+        }
+
+        int internUserId(String userid) {
+            if (userid == null) {
+                return 0;
+            }
+            Integer id = userIdsMapping.get(userid);
+            if (id == null) {
+                id = userIdsById.size();
+                userIdsById.add(userid);
+                userIdsMapping.put(userid, id);
+            }
+            return id;
+        }
+
+        int internResources(int[] resources) {
+            // resource lists are pooled by the heap, so we can use identity
+            if (resources == null) {
+                return 0;
+            }
+            Integer id = resourceSetsMapping.get(resources);
+            if (id == null) {
+                id = resourceSetsById.size();
+                resourceSetsById.add(resources);
+                resourceSetsMapping.put(resources, id);
+            }
+            return id;
+        }
+
+        String getUserId(int id) {
+            return userIdsById.get(id);
+        }
+
+        int[] getResources(int id) {
+            return resourceSetsById.get(id);
+        }
+    }
+
+    /**
+     * Struct-of-arrays storage, every field is kept in an array of primitive values
+     */
+    static final class PrimitiveArrayStorage extends TasksHeapStorage {
+
+        private long[] taskids;
+        private int[] tasktypes;
+        private int[] userids;
+        private int[] groupids;
+        private int[] resourcesets;
+        private final Dictionary dictionary = new Dictionary();
+
+        PrimitiveArrayStorage(int size) {
+            this.taskids = new long[size];
+            this.tasktypes = new int[size];
+            this.userids = new int[size];
+            this.groupids = new int[size];
+            this.resourcesets = new int[size];
+        }
+
+        @Override
+        int capacity() {
+            return taskids.length;
+        }
+
+        @Override
+        void resize(int newCapacity) {
+            taskids = Arrays.copyOf(taskids, newCapacity);
+            tasktypes = Arrays.copyOf(tasktypes, newCapacity);
+            userids = Arrays.copyOf(userids, newCapacity);
+            groupids = Arrays.copyOf(groupids, newCapacity);
+            resourcesets = Arrays.copyOf(resourcesets, newCapacity);
+        }
+
+        @Override
+        long getTaskId(int position) {
+            return taskids[position];
+        }
+
+        @Override
+        int getTaskType(int position) {
+            return tasktypes[position];
+        }
+
+        @Override
+        String getUserId(int position) {
+            return dictionary.getUserId(userids[position]);
+        }
+
+        @Override
+        int getGroupId(int position) {
+            return groupids[position];
+        }
+
+        @Override
+        int[] getResources(int position) {
+            return dictionary.getResources(resourcesets[position]);
+        }
+
+        @Override
+        void set(int position, long taskid, int tasktype, String userid, int groupid, int[] resources) {
+            taskids[position] = taskid;
+            tasktypes[position] = tasktype;
+            userids[position] = dictionary.internUserId(userid);
+            groupids[position] = groupid;
+            resourcesets[position] = dictionary.internResources(resources);
+        }
+
+        @Override
+        void setGroupAndResources(int position, int groupid, int[] resources) {
+            groupids[position] = groupid;
+            resourcesets[position] = dictionary.internResources(resources);
+        }
+
+        @Override
+        void move(int from, int to) {
+            taskids[to] = taskids[from];
+            tasktypes[to] = tasktypes[from];
+            userids[to] = userids[from];
+            groupids[to] = groupids[from];
+            resourcesets[to] = resourcesets[from];
+        }
+
+        @Override
+        void clear(int position) {
+            taskids[position] = 0;
+            tasktypes[position] = 0;
+            userids[position] = 0;
+            groupids[position] = 0;
+            resourcesets[position] = 0;
+        }
+
+        @Override
+        TasksHeap.TaskEntry getEntry(int position) {
+            return new TasksHeap.TaskEntry(getTaskId(position), getTaskType(position), getUserId(position),
+                getGroupId(position), getResources(position));
+        }
+
+    }
+
+    /**
+     * Same layout as {@link PrimitiveArrayStorage}, but columns are allocated outside the Java heap, only the
+     * dictionary of user ids and resources lives on the heap
+     */
+    static final class OffHeapStorage extends TasksHeapStorage {
+
+        private LongBuffer taskids;
+        private IntBuffer tasktypes;
+        private IntBuffer userids;
+        private IntBuffer groupids;
+        private IntBuffer resourcesets;
+        private int capacity;
+        private final Dictionary dictionary = new Dictionary();
+
+        // a direct buffer holds at most Integer.MAX_VALUE bytes, task ids take 8 bytes
+        static final int MAX_CAPACITY = Integer.MAX_VALUE / 8;
+
+        OffHeapStorage(int size) {
+            allocate(size);
+        }
+
+        private void allocate(int size) {
+            // the widest column, checked before allocating anything so that on failure the old columns are kept
+            long taskidsBytes = size * 8L;
+            if (size < 0 || taskidsBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("cannot allocate an off-heap tasksheap of " + size
+                    + " tasks, the max size of " + TasksHeap.STORAGE_OFFHEAP + " storage is " + MAX_CAPACITY + " tasks");
+            }
+            this.capacity = size;
+            this.taskids = ByteBuffer.allocateDirect((int) taskidsBytes).order(ByteOrder.nativeOrder()).asLongBuffer();
+            this.tasktypes = allocateInts(size);
+            this.userids = allocateInts(size);
+            this.groupids = allocateInts(size);
+            this.resourcesets = allocateInts(size);
+        }
+
+        private static IntBuffer allocateInts(int size) {
+            return ByteBuffer.allocateDirect((int) (size * 4L)).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+
+        @Override
+        int capacity() {
+            return capacity;
+        }
+
+        @Override
+        void resize(int newCapacity) {
+            LongBuffer oldTaskids = taskids;
+            IntBuffer oldTasktypes = tasktypes;
+            IntBuffer oldUserids = userids;
+            IntBuffer oldGroupids = groupids;
+            IntBuffer oldResourcesets = resourcesets;
+            allocate(newCapacity);
+            // direct buffers are zero-filled, we only have to copy the old columns
+            taskids.put(oldTaskids);
+            tasktypes.put(oldTasktypes);
+            userids.put(oldUserids);
+            groupids.put(oldGroupids);
+            resourcesets.put(oldResourcesets);
+            taskids.clear();
+            tasktypes.clear();
+            userids.clear();
+            groupids.clear();
+            resourcesets.clear();
+        }
+
+        @Override
+        long getTaskId(int position) {
+            return taskids.get(position);
+        }
+
+        @Override
+        int getTaskType(int position) {
+            return tasktypes.get(position);
+        }
+
+        @Override
+        String getUserId(int position) {
+            return dictionary.getUserId(userids.get(position));
+        }
+
+        @Override
+        int getGroupId(int position) {
+            return groupids.get(position);
+        }
+
+        @Override
+        int[] getResources(int position) {
+            return dictionary.getResources(resourcesets.get(position));
+        }
+
+        @Override
+        void set(int position, long taskid, int tasktype, String userid, int groupid, int[] resources) {
+            taskids.put(position, taskid);
+            tasktypes.put(position, tasktype);
+            userids.put(position, dictionary.internUserId(userid));
+            groupids.put(position, groupid);
+            resourcesets.put(position, dictionary.internResources(resources));
+        }
+
+        @Override
+        void setGroupAndResources(int position, int groupid, int[] resources) {
+            groupids.put(position, groupid);
+            resourcesets.put(position, dictionary.internResources(resources));
+        }
+
+        @Override
+        void move(int from, int to) {
+            taskids.put(to, taskids.get(from));
+            tasktypes.put(to, tasktypes.get(from));
+            userids.put(to, userids.get(from));
+            groupids.put(to, groupids.get(from));
+            resourcesets.put(to, resourcesets.get(from));
+        }
+
+        @Override
+        void clear(int position) {
+            taskids.put(position, 0);
+            tasktypes.put(position, 0);
+            userids.put(position, 0);
+            groupids.put(position, 0);
+            resourcesets.put(position, 0);
+        }
+
+        @Override
+        TasksHeap.TaskEntry getEntry(int position) {
+            return new TasksHeap.TaskEntry(getTaskId(position), getTaskType(position), getUserId(position),
+                getGroupId(position), getResources(position));
+        }
+
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+/**
+ * Policy which orders waiting tasks of different users (tenants) which are equally good for a worker. The policy is
+ * notified of every task which starts or stops running on any worker, so it can keep its state up to date
+ * incrementally. Implementations must be thread safe and must never block.
+ *
+ * @author enrico.olivelli
+ * @see WeightedFairSharePolicy
+ */
+public interface TasksSchedulingPolicy {
+
+    /**
+     * The weight of the tenant, as returned by the {@link TaskPropertiesMapperFunction}
+     *
+     * @param userid
+     * @param weight
+     */
+    public void tenantWeight(String userid, int weight);
+
+    /**
+     * A task of the tenant has been assigned to a worker
+     *
+     * @param userid
+     */
+    public void taskStarted(String userid);
+
+    /**
+     * A task of the tenant is no more running
+     *
+     * @param userid
+     */
+    public void taskStopped(String userid);
+
+    /**
+     * Virtual time at which the next task of the tenant would complete its service. Tasks with a smaller virtual time
+     * are preferred
+     *
+     * @param userid
+     * @return
+     */
+    public long getVirtualTime(String userid);
+
+    /**
+     * Virtual time added by each further task of the tenant
+     *
+     * @param userid
+     * @return
+     */
+    public long getVirtualTimeIncrement(String userid);
+
+    /**
+     * A number which changes every time the weight of a tenant changes. Running tasks only change the order in which
+     * tasks are choosen, not whether a task can be choosen, so they do not need to change the version
+     *
+     * @return
+     */
+    public long getVersion();
+}
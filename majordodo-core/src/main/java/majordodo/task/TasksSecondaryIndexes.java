@@ -0,0 +1,230 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongConsumer;
+import majordodo.clientfacade.TasksQuery;
+import majordodo.utils.LongBitmapSet;
+
+/**
+ * Secondary indexes on the tasks known by the broker: by status, user, worker, tasktype and slot. Each index maps a
+ * value to the bitmap of the ids of the tasks which have it, string values are compared ignoring case. Tasktypes are
+ * indexed as they are, so that they are counted separately, and the case is ignored only when filtering. Not thread
+ * safe, access is guarded by the lock of {@link BrokerStatus}
+ *
+ * @author enrico.olivelli
+ */
+final class TasksSecondaryIndexes {
+
+    private final LongBitmapSet all = new LongBitmapSet();
+    private final Map<Integer, LongBitmapSet> byStatus = new HashMap<>();
+    private final Map<String, LongBitmapSet> byUser = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final Map<String, LongBitmapSet> byWorker = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final Map<String, LongBitmapSet> byTaskType = new HashMap<>();
+    private final Map<String, LongBitmapSet> bySlot = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    void add(Task task, int status) {
+        long taskId = task.getTaskId();
+        all.add(taskId);
+        add(byStatus, status, taskId);
+        add(byUser, task.getUserId(), taskId);
+        add(byWorker, task.getWorkerId(), taskId);
+        add(byTaskType, task.getType(), taskId);
+        add(bySlot, task.getSlot(), taskId);
+    }
+
+    void remove(Task task, int status) {
+        long taskId = task.getTaskId();
+        all.remove(taskId);
+        remove(byStatus, status, taskId);
+        remove(byUser, task.getUserId(), taskId);
+        remove(byWorker, task.getWorkerId(), taskId);
+        remove(byTaskType, task.getType(), taskId);
+        remove(bySlot, task.getSlot(), taskId);
+    }
+
+    void statusChanged(long taskId, int oldStatus, int newStatus) {
+        remove(byStatus, oldStatus, taskId);
+        add(byStatus, newStatus, taskId);
+    }
+
+    void workerChanged(long taskId, String oldWorkerId, String newWorkerId) {
+        remove(byWorker, oldWorkerId, taskId);
+        add(byWorker, newWorkerId, taskId);
+    }
+
+    int size() {
+        return all.size();
+    }
+
+    private static <K> void add(Map<K, LongBitmapSet> index, K key, long taskId) {
+        if (key != null) {
+            index.computeIfAbsent(key, k -> new LongBitmapSet()).add(taskId);
+        }
+    }
+
+    private static <K> void remove(Map<K, LongBitmapSet> index, K key, long taskId) {
+        if (key == null) {
+            return;
+        }
+        LongBitmapSet set = index.get(key);
+        if (set != null && set.remove(taskId) && set.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    /**
+     * Bitmaps which must contain a task in order to match the query
+     *
+     * @return the bitmaps, or null if no task can match
+     */
+    private List<LongBitmapSet> select(TasksQuery query, boolean filterByTaskType) {
+        List<LongBitmapSet> result = new ArrayList<>();
+        if (query.getStatus() != null && !select(byStatus, query.getStatus(), result)) {
+            return null;
+        }
+        if (!select(byUser, query.getUserId(), result)
+            || !select(byWorker, query.getWorkerId(), result)
+            || !select(bySlot, query.getSlot(), result)) {
+            return null;
+        }
+        if (filterByTaskType && !selectTaskType(query.getTaskType(), result)) {
+            return null;
+        }
+        return result;
+    }
+
+    private boolean selectTaskType(String taskType, List<LongBitmapSet> result) {
+        if (taskType == null || taskType.isEmpty()) {
+            return true;
+        }
+        LongBitmapSet selected = null;
+        boolean copied = false;
+        for (Map.Entry<String, LongBitmapSet> entry : byTaskType.entrySet()) {
+            if (!taskType.equalsIgnoreCase(entry.getKey())) {
+                continue;
+            }
+            if (selected == null) {
+                selected = entry.getValue();
+            } else {
+                // the same tasktype with different case, the union is built only in this rare case
+                if (!copied) {
+                    selected = union(new LongBitmapSet(), selected);
+                    copied = true;
+                }
+                union(selected, entry.getValue());
+            }
+        }
+        if (selected == null) {
+            return false;
+        }
+        result.add(selected);
+        return true;
+    }
+
+    private static LongBitmapSet union(LongBitmapSet target, LongBitmapSet source) {
+        for (long taskId = source.next(0); taskId >= 0; taskId = source.next(taskId + 1)) {
+            target.add(taskId);
+        }
+        return target;
+    }
+
+    private static <K> boolean select(Map<K, LongBitmapSet> index, K key, List<LongBitmapSet> result) {
+        if (key == null || "".equals(key)) {
+            return true;
+        }
+        LongBitmapSet set = index.get(key);
+        if (set == null) {
+            return false;
+        }
+        result.add(set);
+        return true;
+    }
+
+    /**
+     * Visits the ids of the tasks which match the query, in order of taskId. Only the smallest of the involved
+     * bitmaps is iterated
+     *
+     * @param query
+     * @param consumer
+     */
+    void forEachMatchingTask(TasksQuery query, LongConsumer consumer) {
+        List<LongBitmapSet> sets = select(query, true);
+        if (sets == null) {
+            return;
+        }
+        LongBitmapSet driver = all;
+        for (LongBitmapSet set : sets) {
+            if (set.size() < driver.size()) {
+                driver = set;
+            }
+        }
+        int max = query.getMax();
+        int count = 0;
+        for (long taskId = driver.next(query.getFromTaskId()); taskId >= 0 && count < max; taskId = driver.next(taskId + 1)) {
+            if (matchesAll(sets, driver, taskId)) {
+                consumer.accept(taskId);
+                count++;
+            }
+        }
+    }
+
+    private static boolean matchesAll(List<LongBitmapSet> sets, LongBitmapSet driver, long taskId) {
+        for (LongBitmapSet set : sets) {
+            if (set != driver && !set.contains(taskId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the tasks which match the query, for each tasktype
+     *
+     * @param query
+     * @return
+     */
+    Map<String, Long> countByTaskType(TasksQuery query) {
+        Map<String, Long> result = new HashMap<>();
+        List<LongBitmapSet> sets = select(query, false);
+        if (sets == null) {
+            return result;
+        }
+        String taskType = query.getTaskType();
+        for (Map.Entry<String, LongBitmapSet> entry : byTaskType.entrySet()) {
+            if (taskType != null && !taskType.isEmpty() && !taskType.equalsIgnoreCase(entry.getKey())) {
+                continue;
+            }
+            List<LongBitmapSet> intersection = new ArrayList<>(sets);
+            intersection.add(entry.getValue());
+            int count = LongBitmapSet.intersectionSize(intersection);
+            if (count > 0) {
+                result.put(entry.getKey(), (long) count);
+            }
+        }
+        return result;
+    }
+
+}
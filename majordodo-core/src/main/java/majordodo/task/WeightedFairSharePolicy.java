@@ -0,0 +1,110 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Weighted fair queuing of tasks among users. The virtual time of a user is the number of its running tasks, on the
+ * whole cluster, divided by its weight: the k-th waiting task of a user finishes at (running + k) / weight, and tasks
+ * are choosen in order of finish time. A user with weight 2 gets twice the slots of a user with weight 1.
+ * <p>
+ * Counters are updated in O(1) and do not change the version of the policy, only a change of weight does. The heap
+ * picks the user with the smallest virtual time from a priority queue, so with {@link IndexedTasksHeap} a request of
+ * a worker costs O(users) plus O(log(users)) for each retained task, see
+ * {@link TasksHeap#chooseFairShare(majordodo.task.TasksChooser, java.util.List) }.
+ *
+ * @author enrico.olivelli
+ */
+public class WeightedFairSharePolicy implements TasksSchedulingPolicy {
+
+    /**
+     * Virtual time of a running task of a user with weight 1
+     */
+    static final long VIRTUAL_TIME_UNIT = 1_000_000L;
+
+    private static final class Tenant {
+
+        volatile int weight = TaskProperties.DEFAULT_WEIGHT;
+        final AtomicInteger running = new AtomicInteger();
+    }
+
+    private final ConcurrentHashMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+
+    private Tenant getTenant(String userid) {
+        return tenants.computeIfAbsent(userid != null ? userid : "", (k) -> new Tenant());
+    }
+
+    @Override
+    public void tenantWeight(String userid, int weight) {
+        Tenant tenant = getTenant(userid);
+        if (tenant.weight != weight) {
+            tenant.weight = weight;
+            version.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void taskStarted(String userid) {
+        getTenant(userid).running.incrementAndGet();
+    }
+
+    @Override
+    public void taskStopped(String userid) {
+        getTenant(userid).running.updateAndGet(count -> count > 0 ? count - 1 : 0);
+    }
+
+    @Override
+    public long getVirtualTime(String userid) {
+        Tenant tenant = tenants.get(userid != null ? userid : "");
+        if (tenant == null) {
+            return 0;
+        }
+        return tenant.running.get() * VIRTUAL_TIME_UNIT / tenant.weight;
+    }
+
+    @Override
+    public long getVirtualTimeIncrement(String userid) {
+        Tenant tenant = tenants.get(userid != null ? userid : "");
+        return VIRTUAL_TIME_UNIT / (tenant != null ? tenant.weight : TaskProperties.DEFAULT_WEIGHT);
+    }
+
+    @Override
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Running tasks, for each user which had at least a task running
+     *
+     * @return
+     */
+    public Map<String, Integer> getRunningTasksView() {
+        Map<String, Integer> result = new HashMap<>();
+        tenants.forEach((userid, tenant) -> result.put(userid, tenant.running.get()));
+        return result;
+    }
+
+}
@@ -46,6 +46,7 @@ public class WorkerManager {
     private BrokerSideConnection connection;
     private final int maxWorkerIdleTime;
     private final ResourceUsageCounters resourceUsageCounters;
+    private final boolean coalescedSchedulingRounds;
 
     private int maxThreads = 0;
     private int maxThreadPerUserPerTaskTypePercent = 0;
@@ -64,6 +65,7 @@ public class WorkerManager {
         this.broker = broker;
         this.maxWorkerIdleTime = broker.getConfiguration().getMaxWorkerIdleTime();
         this.resourceUsageCounters = new ResourceUsageCounters("worker-" + workerId + "-" + broker.getBrokerId());
+        this.coalescedSchedulingRounds = broker.getConfiguration().isCoalescedSchedulingRounds();
     }
 
     public void applyConfiguration(int maxThreads,
@@ -115,6 +117,47 @@ public class WorkerManager {
         }
     }
 
+    /**
+     * Prepares the request of new tasks for a coalesced scheduling round. This method must be called only while no
+     * thread is managing this worker
+     *
+     * @return the request, or null if the worker cannot receive new tasks
+     * @see Broker#assignTasksToWorkers(java.util.List)
+     */
+    WorkerTasksRequest prepareTasksRequest() {
+        if (broker.isStopped() || !broker.isWritable()) {
+            return null;
+        }
+        WorkerStatus status = broker.getBrokerStatus().getWorkerStatus(workerId);
+        if (status == null || status.getStatus() == WorkerStatus.STATUS_DEAD) {
+            return null;
+        }
+        connectionLock.lock();
+        try {
+            if (connection == null) {
+                return null;
+            }
+        } finally {
+            connectionLock.unlock();
+        }
+        Map<String, Integer> availableSpace = new HashMap<>(this.maxThreadsByTaskType);
+        int actuallyRunning = broker.getBrokerStatus().applyRunningTasksFilterToAssignTasksRequest(workerId, availableSpace);
+        int max = this.maxThreads - actuallyRunning;
+        if (max <= 0 || availableSpace.isEmpty()) {
+            return null;
+        }
+        return new WorkerTasksRequest(workerId, max, groups, excludedGroups, availableSpace,
+            resourceLimis, resourceUsageCounters, maxThreadPerUserPerTaskTypePercent);
+    }
+
+    void tasksAssigned(WorkerTasksRequest request) {
+        List<AssignedTask> tasks = request.getAssignedTasks();
+        tasks.forEach(this::taskAssigned);
+        if (!tasks.isEmpty()) {
+            LOGGER.log(Level.FINER, "{0} assigned {1} tasks", new Object[]{workerId, tasks.size()});
+        }
+    }
+
     public Broker getBroker() {
         return broker;
     }
@@ -190,7 +233,9 @@ public class WorkerManager {
                     lastActivity = connection.getLastReceivedMessageTs();
                 }
                 LOGGER.log(Level.FINEST, "wakeup {0}, lastActivity {1}  taskToBeSubmittedToRemoteWorker {2} tasksRunningOnRemoteWorker {3}", new Object[]{workerId, new java.util.Date(lastActivity), taskToBeSubmittedToRemoteWorker, tasksRunningOnRemoteWorker});
-                requestNewTasks();
+                if (!coalescedSchedulingRounds) {
+                    requestNewTasks();
+                }
                 int max = 100;
                 while (max-- > 0) {
                     AssignedTask taskToBeSubmitted = taskToBeSubmittedToRemoteWorker.poll();
@@ -0,0 +1,125 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import majordodo.utils.IntCounter;
+
+/**
+ * Index of running tasks by worker, with the number of running tasks for each (tasktype, user). Queries about a
+ * worker cost as much as the number of tasks running on that worker, not as the total number of tasks. Not thread
+ * safe, access is guarded by the lock of {@link BrokerStatus}
+ *
+ * @author enrico.olivelli
+ */
+final class WorkerRunningTasksIndex {
+
+    private static final class WorkerTasks {
+
+        private final Map<Long, Task> tasks = new LinkedHashMap<>();
+        private final Map<TaskTypeUser, IntCounter> countersByTypeAndUser = new HashMap<>();
+    }
+
+    private final Map<String, WorkerTasks> workers = new HashMap<>();
+    /**
+     * the worker which the task was assigned to when it entered the index, the workerId of the task could change
+     * later
+     */
+    private final Map<Long, String> taskWorkers = new HashMap<>();
+
+    void add(Task task) {
+        String workerId = task.getWorkerId();
+        if (workerId == null) {
+            return;
+        }
+        long taskId = task.getTaskId();
+        String previous = taskWorkers.put(taskId, workerId);
+        if (previous != null) {
+            removeFromWorker(previous, taskId);
+        }
+        WorkerTasks worker = workers.computeIfAbsent(workerId, w -> new WorkerTasks());
+        worker.tasks.put(taskId, task);
+        worker.countersByTypeAndUser
+            .computeIfAbsent(new TaskTypeUser(task.getType(), task.getUserId()), k -> new IntCounter())
+            .count++;
+    }
+
+    void remove(Task task) {
+        String workerId = taskWorkers.remove(task.getTaskId());
+        if (workerId != null) {
+            removeFromWorker(workerId, task.getTaskId());
+        }
+    }
+
+    private void removeFromWorker(String workerId, long taskId) {
+        WorkerTasks worker = workers.get(workerId);
+        if (worker == null) {
+            return;
+        }
+        Task task = worker.tasks.remove(taskId);
+        if (task == null) {
+            return;
+        }
+        TaskTypeUser key = new TaskTypeUser(task.getType(), task.getUserId());
+        IntCounter counter = worker.countersByTypeAndUser.get(key);
+        if (counter != null && --counter.count <= 0) {
+            worker.countersByTypeAndUser.remove(key);
+        }
+        if (worker.tasks.isEmpty()) {
+            workers.remove(workerId);
+        }
+    }
+
+    List<Long> getTaskIds(String workerId) {
+        WorkerTasks worker = workers.get(workerId);
+        if (worker == null) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(worker.tasks.keySet());
+    }
+
+    /**
+     * Number of running tasks on the worker for each (tasktype, user). The returned map must not be modified
+     *
+     * @param workerId
+     * @return
+     */
+    Map<TaskTypeUser, IntCounter> getCountersByTypeAndUser(String workerId) {
+        WorkerTasks worker = workers.get(workerId);
+        if (worker == null) {
+            return Collections.emptyMap();
+        }
+        return worker.countersByTypeAndUser;
+    }
+
+    int countRunningTasks(String workerId) {
+        WorkerTasks worker = workers.get(workerId);
+        return worker == null ? 0 : worker.tasks.size();
+    }
+
+    int size() {
+        return taskWorkers.size();
+    }
+}
@@ -50,11 +50,13 @@ public class Workers {
     private final Thread workersActivityThread;
     private volatile boolean stop;
     private final ExecutorService workersThreadpool;
+    private final boolean coalescedSchedulingRounds;
 
     private final Object waitForEvent = new Object();
 
     public Workers(Broker broker) {
         this.broker = broker;
+        this.coalescedSchedulingRounds = broker.getConfiguration().isCoalescedSchedulingRounds();
         this.workersActivityThread = new Thread(new Life(), "workers-life");
         this.workersThreadpool = Executors.newFixedThreadPool(broker.getConfiguration().getWorkersThreadpoolSize(), new ThreadFactory() {
             @Override
@@ -131,14 +133,21 @@ public class Workers {
                         lock.readLock().unlock();
                     }
                     Collections.shuffle(managers);
+                    List<WorkerManager> toBeManaged = new ArrayList<>(managers.size());
                     for (WorkerManager man : managers) {
                         if (!man.isThreadAssigned()) {
                             man.threadAssigned();
-                            try {
-                                workersThreadpool.submit(man.operation());
-                            } catch (RejectedExecutionException rejected) {
-                                LOGGER.log(Level.SEVERE, "workers manager rejected task", rejected);
-                            }
+                            toBeManaged.add(man);
+                        }
+                    }
+                    if (coalescedSchedulingRounds) {
+                        runSchedulingRound(toBeManaged);
+                    }
+                    for (WorkerManager man : toBeManaged) {
+                        try {
+                            workersThreadpool.submit(man.operation());
+                        } catch (RejectedExecutionException rejected) {
+                            LOGGER.log(Level.SEVERE, "workers manager rejected task", rejected);
                         }
                     }
                 }
@@ -150,6 +159,37 @@ public class Workers {
         }
     }
 
+    /**
+     * Assigns new tasks to every given worker with a single scan of the tasks heap and a single write to the log.
+     * Workers are served in the given (random) order
+     *
+     * @param managers
+     */
+    private void runSchedulingRound(List<WorkerManager> managers) {
+        List<WorkerManager> requesting = new ArrayList<>(managers.size());
+        List<WorkerTasksRequest> requests = new ArrayList<>(managers.size());
+        for (WorkerManager man : managers) {
+            WorkerTasksRequest request = man.prepareTasksRequest();
+            if (request != null) {
+                requesting.add(man);
+                requests.add(request);
+            }
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+        try {
+            broker.assignTasksToWorkers(requests);
+        } catch (Exception error) {
+            // the assignments have not been logged, no task can be sent to the workers
+            LOGGER.log(Level.SEVERE, "error assigning tasks", error);
+            return;
+        }
+        for (int i = 0; i < requesting.size(); i++) {
+            requesting.get(i).tasksAssigned(requests.get(i));
+        }
+    }
+
     public void wakeUp() {
         synchronized (waitForEvent) {
             waitForEvent.notify();
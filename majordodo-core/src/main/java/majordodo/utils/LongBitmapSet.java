@@ -0,0 +1,189 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sorted set of non negative longs, stored as a sparse bitmap: a sorted map of chunks of {@link #CHUNK_SIZE} bits.
+ * Dense ranges of values, like task ids, cost a few bits for each value, not an object. Not thread safe.
+ *
+ * @author enrico.olivelli
+ */
+public class LongBitmapSet {
+
+    private static final int CHUNK_SHIFT = 8;
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int WORDS_PER_CHUNK = CHUNK_SIZE / 64;
+
+    private final TreeMap<Long, long[]> chunks = new TreeMap<>();
+    private int size;
+
+    private static void checkValue(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value must be non negative, was " + value);
+        }
+    }
+
+    public boolean add(long value) {
+        checkValue(value);
+        long[] chunk = chunks.computeIfAbsent(value >>> CHUNK_SHIFT, k -> new long[WORDS_PER_CHUNK]);
+        int bit = (int) (value & (CHUNK_SIZE - 1));
+        long mask = 1L << bit;
+        long word = chunk[bit >>> 6];
+        if ((word & mask) != 0) {
+            return false;
+        }
+        chunk[bit >>> 6] = word | mask;
+        size++;
+        return true;
+    }
+
+    public boolean remove(long value) {
+        if (value < 0) {
+            return false;
+        }
+        Long key = value >>> CHUNK_SHIFT;
+        long[] chunk = chunks.get(key);
+        if (chunk == null) {
+            return false;
+        }
+        int bit = (int) (value & (CHUNK_SIZE - 1));
+        long mask = 1L << bit;
+        long word = chunk[bit >>> 6];
+        if ((word & mask) == 0) {
+            return false;
+        }
+        chunk[bit >>> 6] = word & ~mask;
+        size--;
+        if (isEmpty(chunk)) {
+            chunks.remove(key);
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value < 0) {
+            return false;
+        }
+        long[] chunk = chunks.get(value >>> CHUNK_SHIFT);
+        if (chunk == null) {
+            return false;
+        }
+        int bit = (int) (value & (CHUNK_SIZE - 1));
+        return (chunk[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Smallest value of the set which is greater or equal to the given value
+     *
+     * @param from
+     * @return the value, or -1 if there is no such value
+     */
+    public long next(long from) {
+        if (from < 0) {
+            from = 0;
+        }
+        long chunkKey = from >>> CHUNK_SHIFT;
+        int fromBit = (int) (from & (CHUNK_SIZE - 1));
+        Map.Entry<Long, long[]> entry = chunks.ceilingEntry(chunkKey);
+        while (entry != null) {
+            long key = entry.getKey();
+            long[] chunk = entry.getValue();
+            int start = key == chunkKey ? fromBit : 0;
+            for (int w = start >>> 6; w < WORDS_PER_CHUNK; w++) {
+                long word = chunk[w];
+                if (w == start >>> 6) {
+                    word &= -1L << (start & 63);
+                }
+                if (word != 0) {
+                    return (key << CHUNK_SHIFT) + (w << 6) + Long.numberOfTrailingZeros(word);
+                }
+            }
+            entry = chunks.higherEntry(key);
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        chunks.clear();
+        size = 0;
+    }
+
+    /**
+     * Number of values which are contained in every given set, computed one chunk at a time
+     *
+     * @param sets
+     * @return
+     */
+    public static int intersectionSize(List<LongBitmapSet> sets) {
+        if (sets.isEmpty()) {
+            return 0;
+        }
+        LongBitmapSet smallest = sets.get(0);
+        for (LongBitmapSet set : sets) {
+            if (set.chunks.size() < smallest.chunks.size()) {
+                smallest = set;
+            }
+        }
+        int result = 0;
+        long[] words = new long[WORDS_PER_CHUNK];
+        chunks:
+        for (Map.Entry<Long, long[]> entry : smallest.chunks.entrySet()) {
+            System.arraycopy(entry.getValue(), 0, words, 0, WORDS_PER_CHUNK);
+            for (LongBitmapSet set : sets) {
+                if (set == smallest) {
+                    continue;
+                }
+                long[] other = set.chunks.get(entry.getKey());
+                if (other == null) {
+                    continue chunks;
+                }
+                for (int w = 0; w < WORDS_PER_CHUNK; w++) {
+                    words[w] &= other[w];
+                }
+            }
+            for (int w = 0; w < WORDS_PER_CHUNK; w++) {
+                result += Long.bitCount(words[w]);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isEmpty(long[] chunk) {
+        for (long word : chunk) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.util.Arrays;
+
+/**
+ * Map from positive long keys to int values, with open addressing and linear probing: there is no object for each
+ * mapping. Not thread safe.
+ *
+ * @author enrico.olivelli
+ */
+public class LongIntHashMap {
+
+    private static final long FREE = 0;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private final int missingValue;
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+
+    /**
+     *
+     * @param initialCapacity
+     * @param missingValue value returned for keys which are not mapped
+     */
+    public LongIntHashMap(int initialCapacity, int missingValue) {
+        this.missingValue = missingValue;
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (initialCapacity / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int get(long key) {
+        checkKey(key);
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == FREE) {
+                return missingValue;
+            }
+        }
+    }
+
+    public boolean containsKey(long key) {
+        checkKey(key);
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                return true;
+            }
+            if (k == FREE) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Maps the key to the value
+     *
+     * @param key
+     * @param value
+     * @return the previous value, or the missing value
+     */
+    public int put(long key, int value) {
+        checkKey(key);
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                int previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+            if (k == FREE) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size > resizeThreshold) {
+                    rehash(keys.length << 1);
+                }
+                return missingValue;
+            }
+        }
+    }
+
+    /**
+     * Removes the mapping of the key
+     *
+     * @param key
+     * @return the removed value, or the missing value
+     */
+    public int remove(long key) {
+        checkKey(key);
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                int previous = values[i];
+                shiftKeys(i);
+                size--;
+                return previous;
+            }
+            if (k == FREE) {
+                return missingValue;
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    /**
+     * Fills the hole left by a removal, moving back the following keys of the same cluster
+     */
+    private void shiftKeys(int hole) {
+        for (int i = (hole + 1) & mask;; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == FREE) {
+                keys[hole] = FREE;
+                return;
+            }
+            int slot = hash(k) & mask;
+            // the key can fill the hole if its slot is not in (hole, i]
+            if (hole <= i ? (slot <= hole || slot > i) : (slot <= hole && slot > i)) {
+                keys[hole] = k;
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long k = oldKeys[i];
+            if (k != FREE) {
+                for (int j = hash(k) & mask;; j = (j + 1) & mask) {
+                    if (keys[j] == FREE) {
+                        keys[j] = k;
+                        values[j] = oldValues[i];
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void checkKey(long key) {
+        if (key <= 0) {
+            throw new IllegalArgumentException("keys must be positive, found " + key);
+        }
+    }
+
+}
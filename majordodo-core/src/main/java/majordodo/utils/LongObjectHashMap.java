@@ -0,0 +1,280 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * Map from positive long keys to objects, with open addressing and linear probing: there is no entry object and no
+ * boxed key for each mapping. Other keys can be looked up, but never mapped. Not thread safe, but
+ * {@link #get(long) } never fails and never loops while another thread modifies the map: it may only return a wrong
+ * result, so it can be used for optimistic reads validated by a {@link java.util.concurrent.locks.StampedLock}.
+ *
+ * @author enrico.olivelli
+ * @param <V>
+ */
+public class LongObjectHashMap<V> {
+
+    private static final long FREE = 0;
+    // higher than LongIntHashMap: this map holds every task, memory matters more than the length of probes
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Keys and values are swapped together on rehash, so that a concurrent reader always sees arrays of the same size
+     */
+    private static final class Table {
+
+        final long[] keys;
+        final Object[] values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private Table table;
+    private int size;
+    private int resizeThreshold;
+
+    public LongObjectHashMap(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (initialCapacity / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        table = new Table(capacity);
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key <= 0) {
+            return null;
+        }
+        Table t = table;
+        long[] keys = t.keys;
+        int mask = t.mask;
+        // the bound on the probes matters only for concurrent readers
+        for (int i = hash(key) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            long k = keys[i];
+            if (k == key) {
+                return (V) t.values[i];
+            }
+            if (k == FREE) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Maps the key to the value
+     *
+     * @param key
+     * @param value must not be null
+     * @return the previous value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        checkKey(key);
+        if (value == null) {
+            throw new IllegalArgumentException("null values are not allowed");
+        }
+        Table t = table;
+        long[] keys = t.keys;
+        for (int i = hash(key) & t.mask;; i = (i + 1) & t.mask) {
+            long k = keys[i];
+            if (k == key) {
+                V previous = (V) t.values[i];
+                t.values[i] = value;
+                return previous;
+            }
+            if (k == FREE) {
+                // value first, so that a concurrent reader which sees the key never sees a null value
+                t.values[i] = value;
+                keys[i] = key;
+                if (++size > resizeThreshold) {
+                    rehash(keys.length << 1);
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Removes the mapping of the key
+     *
+     * @param key
+     * @return the removed value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if (key <= 0) {
+            return null;
+        }
+        Table t = table;
+        for (int i = hash(key) & t.mask;; i = (i + 1) & t.mask) {
+            long k = t.keys[i];
+            if (k == key) {
+                V previous = (V) t.values[i];
+                shiftKeys(t, i);
+                size--;
+                return previous;
+            }
+            if (k == FREE) {
+                return null;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<V> consumer) {
+        Table t = table;
+        for (int i = 0; i < t.keys.length; i++) {
+            if (t.keys[i] != FREE) {
+                consumer.accept((V) t.values[i]);
+            }
+        }
+    }
+
+    /**
+     * Live view on the values, which must not be modified while it is in use
+     *
+     * @return
+     */
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                Table t = table;
+                return new Iterator<V>() {
+                    int next = advance(0);
+
+                    private int advance(int from) {
+                        while (from < t.keys.length && t.keys[from] == FREE) {
+                            from++;
+                        }
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < t.keys.length;
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public V next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        V value = (V) t.values[next];
+                        next = advance(next + 1);
+                        return value;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    public void clear() {
+        allocate(16);
+        size = 0;
+    }
+
+    /**
+     * Fills the hole left by a removal, moving back the following keys of the same cluster
+     */
+    private static void shiftKeys(Table t, int hole) {
+        long[] keys = t.keys;
+        Object[] values = t.values;
+        int mask = t.mask;
+        for (int i = (hole + 1) & mask;; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == FREE) {
+                keys[hole] = FREE;
+                values[hole] = null;
+                return;
+            }
+            int slot = hash(k) & mask;
+            // the key can fill the hole if its slot is not in (hole, i]
+            if (hole <= i ? (slot <= hole || slot > i) : (slot <= hole && slot > i)) {
+                values[hole] = values[i];
+                keys[hole] = k;
+                hole = i;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        Table old = table;
+        Table t = new Table(capacity);
+        for (int i = 0; i < old.keys.length; i++) {
+            long k = old.keys[i];
+            if (k != FREE) {
+                for (int j = hash(k) & t.mask;; j = (j + 1) & t.mask) {
+                    if (t.keys[j] == FREE) {
+                        t.keys[j] = k;
+                        t.values[j] = old.values[i];
+                        break;
+                    }
+                }
+            }
+        }
+        table = t;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static void checkKey(long key) {
+        if (key <= 0) {
+            throw new IllegalArgumentException("keys must be positive, found " + key);
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
+
+/**
+ * OutputStream which writes to a reusable direct ByteBuffer, which grows as needed. The content of the buffer can be
+ * patched in place and then written to a FileChannel without further copies.
+ * <p>
+ * Buffers are always handled as {@link Buffer} for flip/clear/position calls, in order to be compatible with Java 8
+ * runtimes.
+ *
+ * @author enrico.olivelli
+ */
+public class ByteBufferOutputStream extends OutputStream {
+
+    private ByteBuffer buffer;
+    // view on the buffer used to compute checksums, without touching the position of the buffer
+    private ByteBuffer checksumView;
+
+    public ByteBufferOutputStream(int initialCapacity) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid initial capacity: " + initialCapacity);
+        }
+        buffer = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    private void ensureCapacity(int len) {
+        if (buffer.remaining() >= len) {
+            return;
+        }
+        int minCapacity = buffer.position() + len;
+        if (minCapacity < 0) {
+            throw new OutOfMemoryError();
+        }
+        int newCapacity = Math.max(buffer.capacity() << 1, minCapacity);
+        if (newCapacity < 0) {
+            newCapacity = minCapacity;
+        }
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity);
+        ((Buffer) buffer).flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+        checksumView = null;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        buffer.put(b, off, len);
+    }
+
+    /**
+     * Number of bytes in the buffer
+     *
+     * @return
+     */
+    public int size() {
+        return buffer.position();
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Overwrites an int which has already been written
+     *
+     * @param index
+     * @param value
+     */
+    public void putInt(int index, int value) {
+        if (index < 0 || index + 4 > buffer.position()) {
+            throw new IndexOutOfBoundsException(index + "");
+        }
+        buffer.putInt(index, value);
+    }
+
+    /**
+     * Updates a {@link Crc32c} checksum with a range of the bytes which have already been written
+     *
+     * @param checksum
+     * @param offset
+     * @param length
+     */
+    public void updateChecksum(Checksum checksum, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.position()) {
+            throw new IndexOutOfBoundsException(offset + "," + length);
+        }
+        if (checksumView == null) {
+            checksumView = buffer.duplicate();
+        }
+        ((Buffer) checksumView).limit(offset + length);
+        ((Buffer) checksumView).position(offset);
+        Crc32c.update(checksum, checksumView);
+    }
+
+    /**
+     * Discards the bytes after the given position
+     *
+     * @param size
+     */
+    public void truncate(int size) {
+        if (size < 0 || size > buffer.position()) {
+            throw new IndexOutOfBoundsException(size + "");
+        }
+        ((Buffer) buffer).position(size);
+    }
+
+    /**
+     * Writes the whole content of the buffer to the channel and then empties the buffer. If the write fails the buffer
+     * keeps its whole content, even if a part of it may have been written
+     *
+     * @param channel
+     * @throws IOException
+     */
+    public void writeTo(FileChannel channel) throws IOException {
+        int size = buffer.position();
+        ((Buffer) buffer).flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException | RuntimeException err) {
+            restore(size);
+            throw err;
+        }
+        ((Buffer) buffer).clear();
+    }
+
+    /**
+     * Writes the whole content of the buffer to the channel, at the given position, and then empties the buffer. If
+     * the write fails the buffer keeps its whole content, even if a part of it may have been written
+     *
+     * @param channel
+     * @param position
+     * @throws IOException
+     */
+    public void writeTo(FileChannel channel, long position) throws IOException {
+        int size = buffer.position();
+        ((Buffer) buffer).flip();
+        try {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException | RuntimeException err) {
+            restore(size);
+            throw err;
+        }
+        ((Buffer) buffer).clear();
+    }
+
+    private void restore(int size) {
+        ((Buffer) buffer).limit(buffer.capacity());
+        ((Buffer) buffer).position(size);
+    }
+
+    /**
+     * Discards the content of the buffer
+     */
+    public void reset() {
+        ((Buffer) buffer).clear();
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils.io;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksums. On Java 9+ runtimes java.util.zip.CRC32C is used, which is an intrinsic backed by the
+ * CRC32 instructions of the CPU, on Java 8 runtimes a pure Java implementation computes the same values.
+ *
+ * @author enrico.olivelli
+ */
+public final class Crc32c {
+
+    private static final Logger LOGGER = Logger.getLogger(Crc32c.class.getName());
+
+    private static final Class<? extends Checksum> JDK_IMPLEMENTATION = lookupJdkImplementation();
+
+    private Crc32c() {
+    }
+
+    private static Class<? extends Checksum> lookupJdkImplementation() {
+        try {
+            return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class);
+        } catch (ClassNotFoundException | ClassCastException notAvailable) {
+            LOGGER.log(Level.INFO, "java.util.zip.CRC32C is not available, using a pure Java implementation");
+            return null;
+        }
+    }
+
+    /**
+     * Creates a new CRC32C checksum, instances are not thread safe but they can be reused by calling
+     * {@link Checksum#reset()}
+     *
+     * @return
+     */
+    public static Checksum create() {
+        if (JDK_IMPLEMENTATION != null) {
+            try {
+                return JDK_IMPLEMENTATION.newInstance();
+            } catch (InstantiationException | IllegalAccessException err) {
+                throw new IllegalStateException(err);
+            }
+        }
+        return new PureJavaCrc32c();
+    }
+
+    /**
+     * Updates the checksum with the remaining bytes of the buffer, the position of the buffer is moved to its limit
+     *
+     * @param checksum a checksum created by {@link #create()}
+     * @param buffer
+     */
+    public static void update(Checksum checksum, ByteBuffer buffer) {
+        if (checksum instanceof PureJavaCrc32c) {
+            ((PureJavaCrc32c) checksum).update(buffer);
+        } else {
+            // only Java 9+ have java.util.zip.CRC32C, and Checksum.update(ByteBuffer)
+            checksum.update(buffer);
+        }
+    }
+
+    /**
+     * Slicing-by-8 implementation, used on Java 8 runtimes
+     */
+    public static final class PureJavaCrc32c implements Checksum {
+
+        private static final int POLYNOMIAL = 0x82F63B78;
+        private static final int[] TABLE = new int[8 * 256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc >>> 1) ^ (POLYNOMIAL & -(crc & 1));
+                }
+                TABLE[i] = crc;
+            }
+            for (int i = 0; i < 256; i++) {
+                int crc = TABLE[i];
+                for (int k = 1; k < 8; k++) {
+                    crc = (crc >>> 8) ^ TABLE[crc & 0xff];
+                    TABLE[k * 256 + i] = crc;
+                }
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+        private byte[] scratch;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            if (off < 0 || len < 0 || off > b.length - len) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            int c = crc;
+            int end = off + len;
+            while (end - off >= 8) {
+                int lo = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+                c = TABLE[7 * 256 + (lo & 0xff)]
+                    ^ TABLE[6 * 256 + ((lo >>> 8) & 0xff)]
+                    ^ TABLE[5 * 256 + ((lo >>> 16) & 0xff)]
+                    ^ TABLE[4 * 256 + (lo >>> 24)]
+                    ^ TABLE[3 * 256 + (b[off + 4] & 0xff)]
+                    ^ TABLE[2 * 256 + (b[off + 5] & 0xff)]
+                    ^ TABLE[256 + (b[off + 6] & 0xff)]
+                    ^ TABLE[b[off + 7] & 0xff];
+                off += 8;
+            }
+            while (off < end) {
+                c = (c >>> 8) ^ TABLE[(c ^ b[off++]) & 0xff];
+            }
+            crc = c;
+        }
+
+        public void update(ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                int pos = buffer.position();
+                int len = buffer.remaining();
+                update(buffer.array(), buffer.arrayOffset() + pos, len);
+                // Buffer methods are called on Buffer, in order to be compatible with Java 8 runtimes
+                ((Buffer) buffer).position(pos + len);
+                return;
+            }
+            if (scratch == null) {
+                scratch = new byte[4096];
+            }
+            while (buffer.hasRemaining()) {
+                int len = Math.min(buffer.remaining(), scratch.length);
+                buffer.get(scratch, 0, len);
+                update(scratch, 0, len);
+            }
+        }
+
+        @Override
+        public long getValue() {
+            return (~crc) & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
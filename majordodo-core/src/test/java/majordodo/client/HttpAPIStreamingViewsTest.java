@@ -0,0 +1,162 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import majordodo.clientfacade.AddTaskRequest;
+import majordodo.task.Broker;
+import majordodo.task.BrokerConfiguration;
+import majordodo.task.MemoryCommitLog;
+import majordodo.task.TaskProperties;
+import majordodo.task.TasksHeap;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Views of the HTTP API which are written incrementally
+ */
+public class HttpAPIStreamingViewsTest {
+
+    private static final String TASKTYPE_MYTYPE = "mytype";
+    private static final String userId = "queue1";
+    private static final int group = 12345;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStreamingViews() throws Exception {
+        BrokerConfiguration configuration = new BrokerConfiguration();
+        try (Broker broker = new Broker(configuration, new MemoryCommitLog(), new TasksHeap(1000, (long taskid, String taskType, String userid) -> new TaskProperties(group, null)))) {
+            broker.startAsWritable();
+            for (int i = 0; i < 2500; i++) {
+                broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "", 1, 0, 0, i < 10 ? "slot" + i : null, 0, null, null));
+            }
+            broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "", 1, System.currentTimeMillis() + 60000, 0, null, 0, null, null));
+            long transactionId = broker.getClient().beginTransaction();
+
+            Server httpserver = new Server(new InetSocketAddress("localhost", 0));
+            ServletContextHandler context = new ServletContextHandler();
+            context.setContextPath("/");
+            context.addServlet(new ServletHolder(new HttpServlet() {
+                @Override
+                protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException, javax.servlet.ServletException {
+                    majordodo.clientfacade.HttpAPIImplementation.doGet(req, resp, broker);
+                }
+            }), "/api");
+            httpserver.setHandler(context);
+            httpserver.start();
+            try {
+                String url = "http://localhost:" + ((ServerConnector) httpserver.getConnectors()[0]).getLocalPort() + "/api";
+
+                // pages larger than the chunks used to read the status
+                Map<String, Object> page = get(url + "?view=tasks&max=2100&status=waiting", false);
+                assertEquals(2100, page.get("count"));
+                assertEquals(2100, ((List<Object>) page.get("tasks")).size());
+                long nextTaskId = ((Number) page.get("nextTaskId")).longValue();
+                page = get(url + "?view=tasks&max=2100&status=waiting&fromTaskId=" + nextTaskId, true);
+                assertEquals(400, page.get("count"));
+                assertNull(page.get("nextTaskId"));
+                assertTrue(page.get("status") instanceof Map);
+
+                Map<String, Object> heap = get(url + "?view=tasksheap", true);
+                Map<String, Object> tasksheap = (Map<String, Object>) heap.get("tasksheap");
+                assertEquals(2500, ((List<Object>) tasksheap.get("tasks")).size());
+                assertEquals(TASKTYPE_MYTYPE, ((Map<String, Object>) ((List<Object>) tasksheap.get("tasks")).get(0)).get("taskType"));
+                assertTrue(tasksheap.get("actualSize") instanceof Number);
+
+                Map<String, Object> delayed = (Map<String, Object>) get(url + "?view=delayedqueue", false).get("delayedqueue");
+                assertEquals(1, ((List<Object>) delayed.get("tasks")).size());
+
+                Map<String, Object> slots = (Map<String, Object>) get(url + "?view=slots", true).get("slots");
+                assertEquals(10, ((Map<String, Object>) slots.get("busySlots")).size());
+
+                Map<String, Object> transactions = (Map<String, Object>) get(url + "?view=transactions", false).get("transactions");
+                List<Map<String, Object>> list = (List<Map<String, Object>>) transactions.get("transactions");
+                assertEquals(1, list.size());
+                assertEquals(transactionId, ((Number) list.get(0).get("transactionId")).longValue());
+            } finally {
+                httpserver.stop();
+            }
+        }
+    }
+
+    @Test
+    public void testStreamingViewsWithoutBroker() throws Exception {
+        Server httpserver = new Server(new InetSocketAddress("localhost", 0));
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(new ServletHolder(new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException, javax.servlet.ServletException {
+                majordodo.clientfacade.HttpAPIImplementation.doGet(req, resp, null);
+            }
+        }), "/api");
+        httpserver.setHandler(context);
+        httpserver.start();
+        try {
+            String url = "http://localhost:" + ((ServerConnector) httpserver.getConnectors()[0]).getLocalPort() + "/api";
+            for (String view : new String[]{"tasks", "tasksheap", "delayedqueue", "slots", "transactions"}) {
+                Map<String, Object> result = read(url + "?view=" + view, false);
+                assertEquals(view, "false", result.get("ok"));
+                assertEquals(view, "broker_not_started", result.get("error"));
+                assertEquals(view, "not_started", result.get("status"));
+            }
+        } finally {
+            httpserver.stop();
+        }
+    }
+
+    private static Map<String, Object> get(String url, boolean gzip) throws IOException {
+        Map<String, Object> result = read(url, gzip);
+        assertEquals("true", result.get("ok"));
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> read(String url, boolean gzip) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+        if (gzip) {
+            con.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        assertEquals(200, con.getResponseCode());
+        assertEquals(gzip ? "gzip" : null, con.getHeaderField("Content-Encoding"));
+        try (InputStream in = gzip ? new GZIPInputStream(con.getInputStream()) : con.getInputStream()) {
+            return MAPPER.readValue(in, Map.class);
+        }
+    }
+
+}
@@ -24,12 +24,16 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import majordodo.task.BrokerStatusSnapshot;
+import majordodo.task.DurabilityPolicy;
+import majordodo.task.EditDurability;
 import majordodo.task.LogSequenceNumber;
 import majordodo.task.StatusEdit;
 import majordodo.task.Task;
@@ -193,4 +197,50 @@ public class ReplicatedCommitLogSimpleTest {
 
         }
     }
+
+    @Test
+    public void testAsyncBatchDoesNotRollLedgerInTheMiddle() throws Exception {
+        try (ZKTestEnv zkServer = new ZKTestEnv(folderZk.getRoot().toPath());) {
+            zkServer.startBookie();
+            try (ReplicatedCommitLog log = new ReplicatedCommitLog(zkServer.getAddress(), 40000, "/dodo", folderSnapshots.getRoot().toPath(), null, false);) {
+                log.setDurabilityPolicy(new DurabilityPolicy().set(StatusEdit.TYPE_NOOP, EditDurability.async(10)));
+                // every batch fills the ledger, the NOOP written when the ledger is opened does not
+                log.setMaxLogicalLogFileSize(2 * StatusEdit.NOOP().serialize().length);
+                log.getClusterManager().start();
+                log.requestLeadership();
+                BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+                log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                    fail();
+                }, false);
+                log.startWriting();
+                List<StatusEdit> batch = Arrays.asList(StatusEdit.NOOP(), StatusEdit.NOOP(), StatusEdit.NOOP());
+                List<LogSequenceNumber> first = log.logStatusEditBatch(batch);
+                List<LogSequenceNumber> second = log.logStatusEditBatch(batch);
+                LogSequenceNumber single = log.logStatusEdit(StatusEdit.NOOP());
+                for (List<LogSequenceNumber> written : Arrays.asList(first, second)) {
+                    for (int i = 0; i < written.size(); i++) {
+                        assertEquals(written.get(0).ledgerId, written.get(i).ledgerId);
+                        assertEquals(written.get(0).sequenceNumber + i, written.get(i).sequenceNumber);
+                    }
+                }
+                assertTrue(second.get(0).ledgerId > first.get(0).ledgerId);
+                assertTrue(single.ledgerId > second.get(0).ledgerId);
+                assertEquals(1, second.get(0).sequenceNumber);
+                assertEquals(1, single.sequenceNumber);
+            }
+
+            try (ReplicatedCommitLog log = new ReplicatedCommitLog(zkServer.getAddress(), 40000, "/dodo", folderSnapshots.getRoot().toPath(), null, false);) {
+                log.getClusterManager().start();
+                log.requestLeadership();
+                BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+                AtomicInteger noops = new AtomicInteger();
+                log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                    assertEquals(StatusEdit.TYPE_NOOP, b.editType);
+                    noops.incrementAndGet();
+                }, false);
+                // 7 edits plus the NOOP written when the first ledger is opened
+                assertTrue(noops.get() >= 7);
+            }
+        }
+    }
 }
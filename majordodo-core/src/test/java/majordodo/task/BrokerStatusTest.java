@@ -19,12 +19,22 @@
  */
 package majordodo.task;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 import majordodo.clientfacade.AddTaskRequest;
 import majordodo.clientfacade.SubmitTaskResult;
+import majordodo.clientfacade.TaskStatusView;
+import majordodo.clientfacade.TasksQuery;
+import majordodo.utils.IntCounter;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -143,4 +153,413 @@ public class BrokerStatusTest {
         }
     }
 
+    @Test
+    public void testWeightedFairShare() throws Exception {
+        BrokerConfiguration configuration = new BrokerConfiguration();
+        configuration.setSchedulingPolicy(BrokerConfiguration.SCHEDULING_POLICY_FAIRSHARE);
+        TaskPropertiesMapperFunction function = (long taskid, String taskType, String userid) -> {
+            return new TaskProperties(group, null, "gold".equals(userid) ? 2 : 1);
+        };
+        try (Broker broker = new Broker(configuration, new MemoryCommitLog(), new TasksHeap(1000, function));) {
+            broker.startAsWritable();
+            WeightedFairSharePolicy policy = (WeightedFairSharePolicy) broker.getSchedulingPolicy();
+
+            for (int i = 0; i < 10; i++) {
+                assertTrue(broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, "silver", "", 1, 0, 0, null, 0, null, null)).getTaskId() > 0);
+            }
+            for (int i = 0; i < 10; i++) {
+                assertTrue(broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, "gold", "", 1, 0, 0, null, 0, null, null)).getTaskId() > 0);
+            }
+            Map<String, Integer> maxThreadsPerTaskType = Collections.singletonMap(TASKTYPE_MYTYPE, 100);
+            List<AssignedTask> assigned = broker.assignTasksToWorker(6, maxThreadsPerTaskType, Collections.singletonList(group),
+                Collections.emptySet(), "worker1", new HashMap<>(), new ResourceUsageCounters(), 0);
+            assertEquals(6, assigned.size());
+            assertEquals(4, policy.getRunningTasksView().get("gold").intValue());
+            assertEquals(2, policy.getRunningTasksView().get("silver").intValue());
+
+            // another worker, the share is computed on the whole cluster
+            assigned = broker.assignTasksToWorker(3, maxThreadsPerTaskType, Collections.singletonList(group),
+                Collections.emptySet(), "worker2", new HashMap<>(), new ResourceUsageCounters(), 0);
+            assertEquals(3, assigned.size());
+            assertEquals(6, policy.getRunningTasksView().get("gold").intValue());
+            assertEquals(3, policy.getRunningTasksView().get("silver").intValue());
+
+            // finished tasks release their share
+            broker.tasksFinished("worker2", Collections.singletonList(new TaskFinishedData(assigned.get(0).taskid, "", Task.STATUS_FINISHED)));
+            assertEquals(8, policy.getRunningTasksView().values().stream().mapToInt(Integer::intValue).sum());
+        }
+    }
+
+    @Test
+    public void testSchedulingPolicyByClassName() throws Exception {
+        BrokerConfiguration configuration = new BrokerConfiguration();
+        configuration.setSchedulingPolicy(WeightedFairSharePolicy.class.getName());
+        try (Broker broker = new Broker(configuration, new MemoryCommitLog(), new TasksHeap(1000, createTaskPropertiesMapperFunction()));) {
+            assertTrue(broker.getSchedulingPolicy() instanceof WeightedFairSharePolicy);
+        }
+    }
+
+    @Test
+    public void testDeadlineIndex() throws Exception {
+        BrokerConfiguration configuration = new BrokerConfiguration();
+        // purges are run by the test
+        configuration.setFinishedTasksPurgeSchedulerPeriod(0);
+        try (Broker broker = new Broker(configuration, new MemoryCommitLog(), new TasksHeap(1000, createTaskPropertiesMapperFunction()));) {
+            broker.startAsWritable();
+            long deadline = System.currentTimeMillis() + 500;
+            long first = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "", 1, 0, deadline, null, 0, null, null)).getTaskId();
+            long second = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "", 1, 0, deadline, null, 0, null, null)).getTaskId();
+            long third = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "", 1, 0, deadline, null, 0, null, null)).getTaskId();
+            long withoutDeadline = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "", 1, 0, 0, null, 0, null, null)).getTaskId();
+            long later = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "", 1, 0, deadline + 60000, null, 0, null, null)).getTaskId();
+            assertEquals(4, broker.getBrokerStatus().getTasksWithDeadlineCount());
+
+            // running tasks cannot expire
+            List<AssignedTask> assigned = broker.assignTasksToWorker(1, Collections.singletonMap(TASKTYPE_MYTYPE, 1), Collections.singletonList(group),
+                Collections.emptySet(), "worker1", new HashMap<>(), new ResourceUsageCounters(), 0);
+            assertEquals(1, assigned.size());
+            assertEquals(first, assigned.get(0).taskid);
+            assertEquals(3, broker.getBrokerStatus().getTasksWithDeadlineCount());
+
+            broker.purgeTasks();
+            assertEquals(Task.STATUS_WAITING, broker.getClient().getTask(second).getStatus());
+            while (System.currentTimeMillis() <= deadline) {
+                Thread.sleep(100);
+            }
+            broker.purgeTasks();
+            assertEquals(Task.STATUS_RUNNING, broker.getClient().getTask(first).getStatus());
+            assertEquals(Task.STATUS_ERROR, broker.getClient().getTask(second).getStatus());
+            assertEquals(Task.STATUS_ERROR, broker.getClient().getTask(third).getStatus());
+            assertEquals(Task.STATUS_WAITING, broker.getClient().getTask(withoutDeadline).getStatus());
+            assertEquals(Task.STATUS_WAITING, broker.getClient().getTask(later).getStatus());
+            assertEquals(1, broker.getBrokerStatus().getTasksWithDeadlineCount());
+
+            // expired tasks are no more in the heap
+            List<Long> waiting = new ArrayList<>();
+            broker.tasksHeap.scan(entry -> waiting.add(entry.taskid));
+            assertEquals(Arrays.asList(withoutDeadline, later), waiting);
+        }
+    }
+
+    @Test
+    public void testPurgeFinishedTasksInSlices() throws Exception {
+        BrokerConfiguration configuration = new BrokerConfiguration();
+        configuration.setFinishedTasksPurgeSchedulerPeriod(0);
+        try (Broker broker = new Broker(configuration, new MemoryCommitLog(), new TasksHeap(1000, createTaskPropertiesMapperFunction()));) {
+            broker.startAsWritable();
+            List<Long> taskIds = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                taskIds.add(broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "", 1, 0, 0, null, 0, null, null)).getTaskId());
+            }
+            List<AssignedTask> assigned = broker.assignTasksToWorker(50, Collections.singletonMap(TASKTYPE_MYTYPE, 50), Collections.singletonList(group),
+                Collections.emptySet(), "worker1", new HashMap<>(), new ResourceUsageCounters(), 0);
+            assertEquals(50, assigned.size());
+            List<TaskFinishedData> finished = new ArrayList<>();
+            // the last task is still running
+            for (int i = 0; i < 49; i++) {
+                finished.add(new TaskFinishedData(taskIds.get(i), "", i % 2 == 0 ? Task.STATUS_FINISHED : Task.STATUS_ERROR));
+            }
+            broker.tasksFinished("worker1", finished);
+            assertEquals(49, broker.getBrokerStatus().getStats().getFinishedTasks() + broker.getBrokerStatus().getStats().getErrorTasks());
+
+            // tasks are younger than the retention
+            broker.getBrokerStatus().purgeFinishedTasksAndSignalExpiredTasks(60000, 1000, 7);
+            assertNotNull(broker.getClient().getTask(taskIds.get(0)));
+
+            Thread.sleep(10);
+            broker.getBrokerStatus().purgeFinishedTasksAndSignalExpiredTasks(0, 1000, 7);
+            for (int i = 0; i < 49; i++) {
+                assertNull(broker.getClient().getTask(taskIds.get(i)));
+            }
+            assertEquals(Task.STATUS_RUNNING, broker.getClient().getTask(taskIds.get(49)).getStatus());
+            assertEquals(0, broker.getBrokerStatus().getStats().getFinishedTasks() + broker.getBrokerStatus().getStats().getErrorTasks());
+
+            broker.tasksFinished("worker1", Collections.singletonList(new TaskFinishedData(taskIds.get(49), "", Task.STATUS_FINISHED)));
+            Thread.sleep(10);
+            broker.getBrokerStatus().purgeFinishedTasksAndSignalExpiredTasks(0, 1000, 7);
+            assertNull(broker.getClient().getTask(taskIds.get(49)));
+        }
+    }
+
+    @Test
+    public void testRunningTasksIndexedByWorker() throws Exception {
+        try (Broker broker = new Broker(new BrokerConfiguration(), new MemoryCommitLog(), new TasksHeap(1000, createTaskPropertiesMapperFunction()));) {
+            broker.startAsWritable();
+            List<Long> taskIds = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                taskIds.add(broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "", 1, 0, 0, null, 0, null, null)).getTaskId());
+            }
+            List<AssignedTask> assigned1 = broker.assignTasksToWorker(3, Collections.singletonMap(TASKTYPE_MYTYPE, 3), Collections.singletonList(group),
+                Collections.emptySet(), "worker1", new HashMap<>(), new ResourceUsageCounters(), 0);
+            assertEquals(3, assigned1.size());
+            List<AssignedTask> assigned2 = broker.assignTasksToWorker(2, Collections.singletonMap(TASKTYPE_MYTYPE, 2), Collections.singletonList(group),
+                Collections.emptySet(), "worker2", new HashMap<>(), new ResourceUsageCounters(), 0);
+            assertEquals(2, assigned2.size());
+
+            BrokerStatus status = broker.getBrokerStatus();
+            assertEquals(taskIds.subList(0, 3), status.getRunningTasksAssignedToWorker("worker1"));
+            assertEquals(taskIds.subList(3, 5), status.getRunningTasksAssignedToWorker("worker2"));
+            assertTrue(status.getRunningTasksAssignedToWorker("worker3").isEmpty());
+
+            Map<String, Integer> availableSpace = new HashMap<>();
+            availableSpace.put(TASKTYPE_MYTYPE, 5);
+            availableSpace.put(Task.TASKTYPE_ANY, 5);
+            assertEquals(3, status.applyRunningTasksFilterToAssignTasksRequest("worker1", availableSpace));
+            assertEquals(2, availableSpace.get(TASKTYPE_MYTYPE).intValue());
+            assertEquals(5, availableSpace.get(Task.TASKTYPE_ANY).intValue());
+
+            Map<TaskTypeUser, IntCounter> perUser = status.collectMaxAvailableSpacePerUserOnWorker("worker1", 100, Collections.singletonMap(TASKTYPE_MYTYPE, 10));
+            assertEquals(7, perUser.get(new TaskTypeUser(TASKTYPE_MYTYPE, userId)).count);
+
+            broker.tasksFinished("worker1", Collections.singletonList(new TaskFinishedData(taskIds.get(0), "", Task.STATUS_FINISHED)));
+            assertEquals(taskIds.subList(1, 3), status.getRunningTasksAssignedToWorker("worker1"));
+
+            // the worker reconnects without running tasks, they are no more running on it
+            broker.workerConnected("worker1", "pid", "localhost", Collections.emptySet(), System.currentTimeMillis());
+            assertTrue(status.getRunningTasksAssignedToWorker("worker1").isEmpty());
+            assertNotEquals(Task.STATUS_RUNNING, broker.getClient().getTask(taskIds.get(1)).getStatus());
+            assertTrue(status.collectMaxAvailableSpacePerUserOnWorker("worker1", 100, Collections.singletonMap(TASKTYPE_MYTYPE, 10)).isEmpty());
+            assertEquals(taskIds.subList(3, 5), status.getRunningTasksAssignedToWorker("worker2"));
+        }
+    }
+
+    @Test
+    public void testQueryTasksWithIndexes() throws Exception {
+        try (Broker broker = new Broker(new BrokerConfiguration(), new MemoryCommitLog(), new TasksHeap(1000, createTaskPropertiesMapperFunction()));) {
+            broker.startAsWritable();
+            List<Long> taskIds = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                String user = i % 2 == 0 ? "even" : "odd";
+                String type = i < 5 ? TASKTYPE_MYTYPE : "othertype";
+                taskIds.add(broker.getClient().submitTask(new AddTaskRequest(0, type, user, "", 1, 0, 0, "slot" + i, 0, null, null)).getTaskId());
+            }
+            List<AssignedTask> assigned = broker.assignTasksToWorker(2, Collections.singletonMap(TASKTYPE_MYTYPE, 2), Collections.singletonList(group),
+                Collections.emptySet(), "worker1", new HashMap<>(), new ResourceUsageCounters(), 0);
+            assertEquals(2, assigned.size());
+
+            BrokerStatus status = broker.getBrokerStatus();
+            TasksQuery query = new TasksQuery();
+            query.setUserId("EVEN");
+            assertEquals(Arrays.asList(taskIds.get(0), taskIds.get(2), taskIds.get(4), taskIds.get(6), taskIds.get(8)),
+                status.getTasks(query).stream().map(TaskStatusView::getTaskId).collect(Collectors.toList()));
+
+            // cursor
+            query.setMax(2);
+            query.setFromTaskId(taskIds.get(3));
+            assertEquals(Arrays.asList(taskIds.get(4), taskIds.get(6)),
+                status.getTasks(query).stream().map(TaskStatusView::getTaskId).collect(Collectors.toList()));
+
+            query = new TasksQuery();
+            query.setStatus(Task.STATUS_RUNNING);
+            query.setWorkerId("worker1");
+            assertEquals(Arrays.asList(taskIds.get(0), taskIds.get(1)),
+                status.getTasks(query).stream().map(TaskStatusView::getTaskId).collect(Collectors.toList()));
+
+            query = new TasksQuery();
+            query.setSlot("slot7");
+            assertEquals(Arrays.asList(taskIds.get(7)),
+                status.getTasks(query).stream().map(TaskStatusView::getTaskId).collect(Collectors.toList()));
+
+            query = new TasksQuery();
+            query.setStatus(Task.STATUS_WAITING);
+            query.setUserId("odd");
+            Map<String, Long> byType = status.countTasksByType(query);
+            assertEquals(2, byType.size());
+            assertEquals(1, byType.get(TASKTYPE_MYTYPE).longValue());
+            assertEquals(3, byType.get("othertype").longValue());
+
+            query = new TasksQuery();
+            query.setWorkerId("unknown");
+            assertTrue(status.getTasks(query).isEmpty());
+            assertTrue(status.countTasksByType(query).isEmpty());
+
+            // finished tasks are purged from the indexes
+            broker.tasksFinished("worker1", Collections.singletonList(new TaskFinishedData(taskIds.get(0), "", Task.STATUS_FINISHED)));
+            query = new TasksQuery();
+            query.setStatus(Task.STATUS_FINISHED);
+            assertEquals(Arrays.asList(taskIds.get(0)),
+                status.getTasks(query).stream().map(TaskStatusView::getTaskId).collect(Collectors.toList()));
+            Thread.sleep(10);
+            status.purgeFinishedTasksAndSignalExpiredTasks(0, 1000);
+            assertTrue(status.getTasks(query).isEmpty());
+            assertEquals(9, status.getTasks(new TasksQuery()).size());
+        }
+    }
+
+    @Test
+    public void testCountTasksByTypeIsCaseSensitive() throws Exception {
+        try (Broker broker = new Broker(new BrokerConfiguration(), new MemoryCommitLog(), new TasksHeap(1000, createTaskPropertiesMapperFunction()));) {
+            broker.startAsWritable();
+            List<Long> taskIds = new ArrayList<>();
+            for (String type : Arrays.asList("casetype", "CASETYPE", "casetype", "othertype")) {
+                taskIds.add(broker.getClient().submitTask(new AddTaskRequest(0, type, userId, "", 1, 0, 0, null, 0, null, null)).getTaskId());
+            }
+            BrokerStatus status = broker.getBrokerStatus();
+            Map<String, Long> byType = status.countTasksByType(new TasksQuery());
+            assertEquals(3, byType.size());
+            assertEquals(2, byType.get("casetype").longValue());
+            assertEquals(1, byType.get("CASETYPE").longValue());
+            assertEquals(1, byType.get("othertype").longValue());
+
+            // the filter ignores case
+            TasksQuery query = new TasksQuery();
+            query.setTaskType("CaseType");
+            assertEquals(taskIds.subList(0, 3),
+                status.getTasks(query).stream().map(TaskStatusView::getTaskId).collect(Collectors.toList()));
+            byType = status.countTasksByType(query);
+            assertEquals(2, byType.size());
+            assertEquals(2, byType.get("casetype").longValue());
+            assertEquals(1, byType.get("CASETYPE").longValue());
+        }
+    }
+
+    @Test
+    public void testCompactFinishedTasks() throws Exception {
+        BrokerConfiguration configuration = new BrokerConfiguration();
+        // compaction is disabled by default
+        assertEquals(0, configuration.getFinishedTasksCompactionThreshold());
+        configuration.setFinishedTasksCompactionThreshold(100);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            large.append("line ").append(i % 10).append('\n');
+        }
+        try (Broker broker = new Broker(configuration, new MemoryCommitLog(), new TasksHeap(1000, createTaskPropertiesMapperFunction()));) {
+            broker.startAsWritable();
+            long largeTaskId = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, large.toString(), 1, 0, 0, null, 0, null, null)).getTaskId();
+            long smallTaskId = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "param", 1, 0, 0, null, 0, null, null)).getTaskId();
+            List<AssignedTask> assigned = broker.assignTasksToWorker(2, Collections.singletonMap(TASKTYPE_MYTYPE, 2), Collections.singletonList(group),
+                Collections.emptySet(), "worker1", new HashMap<>(), new ResourceUsageCounters(), 0);
+            assertEquals(2, assigned.size());
+            // running tasks are never compacted
+            assertEquals(large.toString(), broker.getClient().getTask(largeTaskId).getData());
+            assertEquals(0, broker.getBrokerStatus().getStats().getCompactedFinishedTasks());
+
+            broker.tasksFinished("worker1", Arrays.asList(new TaskFinishedData(largeTaskId, large.toString(), Task.STATUS_FINISHED),
+                new TaskFinishedData(smallTaskId, "result", Task.STATUS_FINISHED)));
+            // finished tasks are compacted by the purge thread, not while holding the lock
+            assertEquals(0, broker.getBrokerStatus().getStats().getCompactedFinishedTasks());
+            broker.purgeTasks();
+
+            TaskStatusView largeTask = broker.getClient().getTask(largeTaskId);
+            assertEquals(Task.STATUS_FINISHED, largeTask.getStatus());
+            assertEquals(large.toString(), largeTask.getData());
+            assertEquals(large.toString(), largeTask.getResult());
+            TaskStatusView smallTask = broker.getClient().getTask(smallTaskId);
+            assertEquals("param", smallTask.getData());
+            assertEquals("result", smallTask.getResult());
+
+            BrokerStatusStats stats = broker.getBrokerStatus().getStats();
+            assertEquals(1, stats.getCompactedFinishedTasks());
+            assertTrue(stats.getFinishedTasksReclaimedMemory() > large.length());
+            assertEquals(1, broker.createBrokerStatusView().getCompactedFinishedTasks());
+        }
+    }
+
+    @Test
+    public void testLookupsWithoutLockDuringUpdates() throws Exception {
+        int numTasks = 2000;
+        try (Broker broker = new Broker(new BrokerConfiguration(), new MemoryCommitLog(), new TasksHeap(numTasks, createTaskPropertiesMapperFunction()));) {
+            broker.startAsWritable();
+            BrokerStatus status = broker.getBrokerStatus();
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            AtomicLong lookups = new AtomicLong();
+            // ids of the submitted tasks, published by submitted
+            long[] taskIds = new long[numTasks];
+            AtomicInteger submitted = new AtomicInteger();
+            List<Thread> readers = new ArrayList<>();
+            for (int r = 0; r < 2; r++) {
+                Thread reader = new Thread(() -> {
+                    // statuses only go forward: WAITING, RUNNING, FINISHED
+                    int[] lastSeen = new int[numTasks];
+                    try {
+                        while (!done.get()) {
+                            int count = submitted.get();
+                            for (int i = 0; i < count; i++) {
+                                long taskId = taskIds[i];
+                                Task task = status.getTask(taskId);
+                                TaskStatusView view = status.getTaskStatus(taskId);
+                                lookups.incrementAndGet();
+                                assertNotNull(task);
+                                assertNotNull(view);
+                                int seen = view.getStatus();
+                                assertTrue("status " + seen, seen == Task.STATUS_WAITING || seen == Task.STATUS_RUNNING || seen == Task.STATUS_FINISHED);
+                                assertTrue("task " + taskId + " went from " + lastSeen[i] + " to " + seen, seen >= lastSeen[i]);
+                                lastSeen[i] = seen;
+                            }
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }, "reader-" + r);
+                readers.add(reader);
+                reader.start();
+            }
+            try {
+                for (int i = 0; i < numTasks; i += 100) {
+                    List<Long> ids = new ArrayList<>();
+                    for (int j = 0; j < 100; j++) {
+                        long taskId = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "param", 1, 0, 0, null, 0, null, null)).getTaskId();
+                        ids.add(taskId);
+                        taskIds[i + j] = taskId;
+                        submitted.incrementAndGet();
+                    }
+                    List<AssignedTask> assigned = broker.assignTasksToWorker(100, Collections.singletonMap(TASKTYPE_MYTYPE, 100), Collections.singletonList(group),
+                        Collections.emptySet(), "worker1", new HashMap<>(), new ResourceUsageCounters(), 0);
+                    assertEquals(100, assigned.size());
+                    broker.tasksFinished("worker1", ids.stream()
+                        .map(id -> new TaskFinishedData(id, "result" + id, Task.STATUS_FINISHED))
+                        .collect(Collectors.toList()));
+                }
+            } finally {
+                done.set(true);
+                for (Thread reader : readers) {
+                    reader.join();
+                }
+            }
+            assertNull(error.get());
+            assertTrue(lookups.get() > 0);
+            for (long taskId : taskIds) {
+                TaskStatusView view = status.getTaskStatus(taskId);
+                assertEquals(Task.STATUS_FINISHED, view.getStatus());
+                assertEquals("result" + taskId, view.getResult());
+            }
+        }
+    }
+
+    @Test
+    public void testSchedulingRoundWithLogFailure() throws Exception {
+        AtomicBoolean failLog = new AtomicBoolean();
+        MemoryCommitLog log = new MemoryCommitLog() {
+            @Override
+            public List<LogSequenceNumber> logStatusEditBatch(List<StatusEdit> edits) throws LogNotAvailableException {
+                if (failLog.get()) {
+                    throw new LogNotAvailableException("error !");
+                }
+                return super.logStatusEditBatch(edits);
+            }
+        };
+        try (Broker broker = new Broker(new BrokerConfiguration(), log, new TasksHeap(1000, createTaskPropertiesMapperFunction()));) {
+            broker.startAsWritable();
+            long taskId = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "param", 1, 0, 0, null, 0, null, null)).getTaskId();
+            long taskId2 = broker.getClient().submitTask(new AddTaskRequest(0, TASKTYPE_MYTYPE, userId, "param", 1, 0, 0, null, 0, null, null)).getTaskId();
+
+            WorkerTasksRequest first = new WorkerTasksRequest("worker1", 1, Collections.singletonList(group), Collections.emptySet(),
+                Collections.singletonMap(TASKTYPE_MYTYPE, 1), Collections.emptyMap(), new ResourceUsageCounters(), 0);
+            WorkerTasksRequest second = new WorkerTasksRequest("worker2", 1, Collections.singletonList(group), Collections.emptySet(),
+                Collections.singletonMap(TASKTYPE_MYTYPE, 1), Collections.emptyMap(), new ResourceUsageCounters(), 0);
+            failLog.set(true);
+            try {
+                broker.assignTasksToWorkers(Arrays.asList(first, second));
+                fail();
+            } catch (LogNotAvailableException expected) {
+            }
+            // the assignments were not logged, nothing can be sent to the workers
+            assertTrue(first.getAssignedTasks().isEmpty());
+            assertTrue(second.getAssignedTasks().isEmpty());
+            assertEquals(Task.STATUS_WAITING, broker.getClient().getTask(taskId).getStatus());
+            assertEquals(Task.STATUS_WAITING, broker.getClient().getTask(taskId2).getStatus());
+        }
+    }
+
 }
@@ -0,0 +1,137 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CachingTaskPropertiesMapperFunction}
+ */
+public class CachingTaskPropertiesMapperFunctionTest {
+
+    private static final class CountingMapper implements TaskPropertiesMapperFunction {
+
+        final Map<String, Integer> groups = new HashMap<>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public TaskProperties getTaskProperties(long taskid, String taskType, String userid) {
+            calls.incrementAndGet();
+            return new TaskProperties(groups.getOrDefault(userid, 1), null);
+        }
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        CountingMapper mapper = new CountingMapper();
+        CachingTaskPropertiesMapperFunction cache = new CachingTaskPropertiesMapperFunction(mapper, 100, 0);
+        TaskProperties first = cache.getTaskProperties(1, "t1", "u1");
+        assertSame(first, cache.getTaskProperties(2, "t1", "u1"));
+        cache.getTaskProperties(3, "t2", "u1");
+        assertEquals(2, mapper.calls.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        CountingMapper mapper = new CountingMapper();
+        CachingTaskPropertiesMapperFunction cache = new CachingTaskPropertiesMapperFunction(mapper, 100, 50);
+        cache.getTaskProperties(1, "t1", "u1");
+        cache.getTaskProperties(2, "t1", "u1");
+        assertEquals(1, mapper.calls.get());
+        Thread.sleep(100);
+        cache.getTaskProperties(3, "t1", "u1");
+        assertEquals(2, mapper.calls.get());
+    }
+
+    @Test
+    public void testBoundedSize() throws Exception {
+        CountingMapper mapper = new CountingMapper();
+        CachingTaskPropertiesMapperFunction cache = new CachingTaskPropertiesMapperFunction(mapper, 10, 0);
+        for (int i = 0; i < 100; i++) {
+            cache.getTaskProperties(i, "t1", "u" + i);
+        }
+        assertTrue(cache.getSize() <= 10);
+        assertTrue(cache.getEvictions() >= 90);
+    }
+
+    @Test
+    public void testRecomputeOnlyInvalidatedUsers() throws Exception {
+        CountingMapper mapper = new CountingMapper();
+        CachingTaskPropertiesMapperFunction cache = new CachingTaskPropertiesMapperFunction(mapper, 100, 0);
+        TasksHeap heap = new TasksHeap(100, cache);
+        for (int i = 1; i <= 30; i++) {
+            heap.insertTask(i, "t1", "u" + (i % 3));
+        }
+        assertEquals(3, mapper.calls.get());
+
+        // nothing changed, no task is mapped again
+        heap.recomputeGroups();
+        assertEquals(3, mapper.calls.get());
+
+        mapper.groups.put("u1", 7);
+        cache.invalidateUser("u1");
+        heap.recomputeGroups();
+        // only one call for the ten tasks of u1
+        assertEquals(4, mapper.calls.get());
+        heap.scan(entry -> {
+            assertEquals(entry.userid.equals("u1") ? 7 : 1, entry.groupid);
+        });
+
+        mapper.groups.put("u2", 8);
+        mapper.groups.put("u0", 9);
+        cache.invalidateAll();
+        heap.recomputeGroups();
+        assertEquals(7, mapper.calls.get());
+        heap.scan(entry -> {
+            assertEquals(entry.userid.equals("u1") ? 7 : entry.userid.equals("u2") ? 8 : 9, entry.groupid);
+        });
+    }
+
+    @Test
+    public void testInvalidationWhileComputing() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CachingTaskPropertiesMapperFunction[] cache = new CachingTaskPropertiesMapperFunction[1];
+        cache[0] = new CachingTaskPropertiesMapperFunction((long taskid, String taskType, String userid) -> {
+            if (calls.incrementAndGet() == 1) {
+                // the configuration changes while the old value is being computed
+                cache[0].invalidateUser(userid);
+                return new TaskProperties(1, null);
+            }
+            return new TaskProperties(2, null);
+        }, 100, 0);
+        assertEquals(1, cache[0].getTaskProperties(1, "t1", "u1").groupId);
+        // the stale value has not been cached
+        assertEquals(0, cache[0].getSize());
+        assertEquals(2, cache[0].getTaskProperties(2, "t1", "u1").groupId);
+        assertEquals(2, cache[0].getTaskProperties(3, "t1", "u1").groupId);
+        assertEquals(2, calls.get());
+        assertTrue(cache[0].drainInvalidations().matches("t1", "u1"));
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DelayedTasksScheduler}
+ */
+public class DelayedTasksSchedulerTest {
+
+    private static Task createTask(long taskid, long requestedStartTime) {
+        Task task = new Task();
+        task.setTaskId(taskid);
+        task.setRequestedStartTime(requestedStartTime);
+        return task;
+    }
+
+    @Test
+    public void testTasksAreNeverResumedEarlyOrLate() throws Exception {
+        long tick = 10;
+        DelayedTasksScheduler instance = new DelayedTasksScheduler(tick, tasks -> {
+        });
+        long start = System.currentTimeMillis();
+        Random random = new Random(1);
+        Map<Long, Long> startTimes = new HashMap<>();
+        for (long taskid = 1; taskid <= 10000; taskid++) {
+            // up to a few days, so that upper wheels are used
+            long delay = random.nextInt(4) == 0 ? random.nextInt(5 * 24 * 60 * 60 * 1000) : random.nextInt(100000);
+            startTimes.put(taskid, start + delay);
+            instance.add(createTask(taskid, start + delay));
+        }
+        assertEquals(10000, instance.size());
+
+        List<Long> times = new ArrayList<>(startTimes.values());
+        Collections.sort(times);
+        int resumed = 0;
+        for (long now : times) {
+            for (Task task : instance.pollDueTasks(now)) {
+                long requested = startTimes.remove(task.getTaskId());
+                assertTrue(requested <= now);
+                resumed++;
+            }
+            // only tasks which require to start in the last tick may be still waiting
+            for (long requested : startTimes.values()) {
+                assertTrue(requested > now - tick);
+            }
+        }
+        resumed += instance.pollDueTasks(times.get(times.size() - 1) + tick).size();
+        assertEquals(10000, resumed);
+        assertEquals(0, instance.size());
+        assertEquals(10000, instance.getResumedTasks());
+    }
+
+    @Test
+    public void testTasksInThePast() throws Exception {
+        DelayedTasksScheduler instance = new DelayedTasksScheduler(10, tasks -> {
+        });
+        instance.add(createTask(1, 0));
+        instance.add(createTask(2, System.currentTimeMillis() + 60000));
+        List<Long> visited = new ArrayList<>();
+        instance.forEach(task -> visited.add(task.getTaskId()));
+        Collections.sort(visited);
+        assertEquals(2, visited.size());
+        List<Long> scanned = new ArrayList<>();
+        instance.scan(task -> scanned.add(task.getTaskId()));
+        Collections.sort(scanned);
+        assertEquals(visited, scanned);
+        List<Task> due = instance.pollDueTasks(System.currentTimeMillis());
+        assertEquals(1, due.size());
+        assertEquals(1, due.get(0).getTaskId());
+        assertEquals(1, instance.size());
+    }
+
+    @Test
+    public void testRetryLater() throws Exception {
+        long tick = 1000;
+        DelayedTasksScheduler instance = new DelayedTasksScheduler(tick, tasks -> {
+        });
+        instance.add(createTask(1, 0));
+        List<Task> due = instance.pollDueTasks(System.currentTimeMillis());
+        assertEquals(1, due.size());
+        assertEquals(0, instance.size());
+
+        // a task which could not be resumed is not resumed again immediately
+        instance.retryLater(due);
+        assertEquals(1, instance.size());
+        long now = System.currentTimeMillis();
+        assertTrue(instance.pollDueTasks(now).isEmpty());
+        due = instance.pollDueTasks(now + 2 * tick);
+        assertEquals(1, due.size());
+        assertEquals(1, due.get(0).getTaskId());
+        assertEquals(0, instance.size());
+    }
+
+    @Test
+    public void testFarFutureTasks() throws Exception {
+        for (long tick : new long[]{1, 10, 1000}) {
+            DelayedTasksScheduler instance = new DelayedTasksScheduler(tick, tasks -> {
+            });
+            long start = System.currentTimeMillis();
+            // Long.MAX_VALUE is used as "never"
+            instance.add(createTask(1, Long.MAX_VALUE));
+            instance.add(createTask(2, Long.MAX_VALUE / 2));
+            instance.add(createTask(3, start + 100));
+            assertEquals(3, instance.size());
+            List<Long> scanned = new ArrayList<>();
+            instance.scan(task -> scanned.add(task.getTaskId()));
+            Collections.sort(scanned);
+            assertEquals(Arrays.asList(1L, 2L, 3L), scanned);
+            List<Long> visited = new ArrayList<>();
+            instance.forEach(task -> visited.add(task.getTaskId()));
+            Collections.sort(visited);
+            assertEquals(scanned, visited);
+
+            List<Task> due = instance.pollDueTasks(start + 100 + tick);
+            assertEquals(1, due.size());
+            assertEquals(3, due.get(0).getTaskId());
+            assertTrue(instance.pollDueTasks(Long.MAX_VALUE / 2 - 1).isEmpty());
+            due = instance.pollDueTasks(Long.MAX_VALUE / 2 + tick);
+            assertEquals(1, due.size());
+            assertEquals(2, due.get(0).getTaskId());
+            assertEquals(1, instance.size());
+            // tasks can still be added after the clock moved far away
+            instance.add(createTask(4, Long.MAX_VALUE / 2 + 100 * tick));
+            assertEquals(2, instance.size());
+        }
+    }
+
+    @Test
+    public void testWakeUp() throws Exception {
+        Map<Long, Long> resumedAt = new ConcurrentHashMap<>();
+        CountDownLatch allResumed = new CountDownLatch(3);
+        DelayedTasksScheduler instance = new DelayedTasksScheduler(10, tasks -> {
+            for (Task task : tasks) {
+                resumedAt.put(task.getTaskId(), System.currentTimeMillis());
+                allResumed.countDown();
+            }
+        });
+        instance.start();
+        try {
+            long start = System.currentTimeMillis();
+            instance.add(createTask(1, start + 1500));
+            // a task which is due before the first one wakes up the scheduler
+            instance.add(createTask(2, start + 300));
+            instance.add(createTask(3, start));
+            assertTrue(allResumed.await(10, TimeUnit.SECONDS));
+            assertTrue(resumedAt.get(1L) >= start + 1500);
+            assertTrue(resumedAt.get(2L) >= start + 300);
+            assertTrue(resumedAt.get(2L) < start + 1500);
+        } finally {
+            instance.stop();
+        }
+    }
+
+}
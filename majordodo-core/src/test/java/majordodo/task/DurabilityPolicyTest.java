@@ -0,0 +1,122 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests for DurabilityPolicy
+ *
+ * @author enrico.olivelli
+ */
+public class DurabilityPolicyTest {
+
+    @Test
+    public void testParse() {
+        assertSame(EditDurability.SYNC, EditDurability.parse("sync"));
+        assertSame(EditDurability.ASYNC, EditDurability.parse("ASYNC"));
+        assertEquals("async:200", EditDurability.parse("async:200").toString());
+        EditDurability groupCommit = EditDurability.parse("groupcommit:10");
+        assertEquals(EditDurability.Mode.GROUP_COMMIT, groupCommit.getMode());
+        assertEquals(10, groupCommit.getMaxSyncDelay());
+        assertTrue(groupCommit.isWaitForSync());
+        assertFalse(EditDurability.ASYNC.isWaitForSync());
+        for (String bad : new String[]{"groupcommit", "groupcommit:x", "fast"}) {
+            try {
+                EditDurability.parse(bad);
+                fail(bad);
+            } catch (IllegalArgumentException ok) {
+            }
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("logs.durability.noop", "async");
+        properties.setProperty("logs.durability.task_status_change", "groupcommit:5");
+        properties.setProperty("logs.dir", "txlog");
+        DurabilityPolicy policy = DurabilityPolicy.parse(properties);
+        assertSame(EditDurability.ASYNC, policy.get(StatusEdit.TYPE_NOOP));
+        assertEquals("groupcommit:5", policy.get(StatusEdit.TYPE_TASK_STATUS_CHANGE).toString());
+        assertSame(EditDurability.SYNC, policy.get(StatusEdit.TYPE_ADD_TASK));
+
+        properties.setProperty("logs.durability.unknown", "async");
+        try {
+            DurabilityPolicy.parse(properties);
+            fail();
+        } catch (IllegalArgumentException ok) {
+        }
+    }
+
+    @Test
+    public void testAsyncNotAllowedForClientEdits() {
+        short[] clientEdits = {
+            StatusEdit.TYPE_ADD_TASK,
+            StatusEdit.TYPE_PREPARE_ADD_TASK,
+            StatusEdit.TYPE_BEGIN_TRANSACTION,
+            StatusEdit.TYPE_COMMIT_TRANSACTION,
+            StatusEdit.TYPE_ROLLBACK_TRANSACTION,
+            StatusEdit.TYPE_DELETECODEPOOL,
+            StatusEdit.TYPE_CREATECODEPOOL
+        };
+        DurabilityPolicy policy = new DurabilityPolicy();
+        for (short type : clientEdits) {
+            try {
+                policy.set(type, EditDurability.async(10));
+                fail(StatusEdit.typeToString(type));
+            } catch (IllegalArgumentException ok) {
+            }
+            assertSame(EditDurability.SYNC, policy.get(type));
+            policy.set(type, EditDurability.groupCommit(10));
+            assertEquals("groupcommit:10", policy.get(type).toString());
+
+            Properties properties = new Properties();
+            properties.setProperty(DurabilityPolicy.PROPERTY_PREFIX + DurabilityPolicy.configurationName(type), "async");
+            try {
+                DurabilityPolicy.parse(properties);
+                fail(StatusEdit.typeToString(type));
+            } catch (IllegalArgumentException ok) {
+            }
+        }
+        policy.set(StatusEdit.TYPE_WORKER_DIED, EditDurability.ASYNC);
+        assertSame(EditDurability.ASYNC, policy.get(StatusEdit.TYPE_WORKER_DIED));
+    }
+
+    @Test
+    public void testBatchUsesStrictestDurability() {
+        DurabilityPolicy policy = new DurabilityPolicy()
+            .set(StatusEdit.TYPE_NOOP, EditDurability.async(100))
+            .set(StatusEdit.TYPE_WORKER_CONNECTED, EditDurability.async(50))
+            .set(StatusEdit.TYPE_TASK_STATUS_CHANGE, EditDurability.groupCommit(20));
+        StatusEdit noop = StatusEdit.NOOP();
+        StatusEdit statusChange = StatusEdit.TASK_STATUS_CHANGE(1, "node1", Task.STATUS_FINISHED, "theresult");
+        StatusEdit addTask = StatusEdit.ADD_TASK(1, "mytype", "param1", "myuser", 0, 0, 0, null, 0, null, null);
+        StatusEdit workerConnected = StatusEdit.WORKER_CONNECTED("node1", "psasa", "localhost", new HashSet<>(), 0);
+        assertEquals("async:50", policy.get(Arrays.asList(noop, workerConnected)).toString());
+        assertEquals("groupcommit:20", policy.get(Arrays.asList(noop, statusChange)).toString());
+        assertSame(EditDurability.SYNC, policy.get(Arrays.asList(noop, statusChange, addTask)));
+    }
+}
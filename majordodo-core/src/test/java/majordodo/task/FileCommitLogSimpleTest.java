@@ -24,11 +24,35 @@ import majordodo.task.FileCommitLog;
 import majordodo.task.LogSequenceNumber;
 import majordodo.task.Task;
 import majordodo.task.StatusEdit;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Rule;
@@ -93,4 +117,503 @@ public class FileCommitLogSimpleTest {
 
     }
 
+    @Test
+    public void testConcurrentWritersAndBatches() throws Exception {
+        int threads = 16;
+        int editsPerThread = 100;
+        // LogSequenceNumber does not implement equals
+        Set<String> acked = ConcurrentHashMap.newKeySet();
+        AtomicLong taskIds = new AtomicLong();
+        // small files, in order to roll new ledgers while writing
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), folderLogs.getRoot().toPath(), 4 * 1024);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                fail();
+            }, false);
+            log.startWriting();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                boolean batch = i % 2 == 0;
+                results.add(executor.submit(() -> {
+                    for (int j = 0; j < editsPerThread; j += 10) {
+                        List<StatusEdit> edits = new ArrayList<>();
+                        for (int k = 0; k < 10; k++) {
+                            edits.add(StatusEdit.ADD_TASK(taskIds.incrementAndGet(), "mytype", "param", "myuser", 0, 0, 0, null, 0, null, null));
+                        }
+                        if (batch) {
+                            List<LogSequenceNumber> numbers = log.logStatusEditBatch(edits);
+                            assertEquals(edits.size(), numbers.size());
+                            for (int k = 1; k < numbers.size(); k++) {
+                                // a batch is written in a row
+                                assertTrue(numbers.get(k).after(numbers.get(k - 1)));
+                            }
+                            for (LogSequenceNumber number : numbers) {
+                                acked.add(number.toString());
+                            }
+                        } else {
+                            for (StatusEdit edit : edits) {
+                                acked.add(log.logStatusEdit(edit).toString());
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : results) {
+                f.get();
+            }
+            executor.shutdown();
+            assertTrue(log.logStatusEditBatch(Collections.emptyList()).isEmpty());
+        }
+        assertEquals(threads * editsPerThread, acked.size());
+
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), folderLogs.getRoot().toPath(), 4 * 1024);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            Set<String> recovered = new HashSet<>();
+            Set<Long> recoveredTasks = new HashSet<>();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                recovered.add(a.toString());
+                recoveredTasks.add(b.taskId);
+            }, false);
+            assertEquals(acked, recovered);
+            assertEquals(threads * editsPerThread, recoveredTasks.size());
+            assertTrue(log.getLastSequenceNumber().ledgerId > 1);
+        }
+    }
+
+    @Test
+    public void testPreallocatedSegments() throws Exception {
+        int maxLogFileSize = 4 * 1024;
+        List<String> written = new ArrayList<>();
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), folderLogs.getRoot().toPath(), maxLogFileSize);) {
+            log.setPreallocateSegments(true);
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                fail();
+            }, false);
+            log.startWriting();
+            for (int i = 1; i <= 200; i++) {
+                log.logStatusEdit(StatusEdit.ADD_TASK(i, "mytype", "param" + i, "myuser", 0, 0, 0, null, 0, null, null));
+                written.add("task" + i);
+            }
+            // larger than the preallocated segment
+            log.logStatusEdit(StatusEdit.CREATE_CODEPOOL("pool", System.currentTimeMillis(), new byte[200 * 1024], 0));
+            written.add("pool");
+            log.logStatusEdit(StatusEdit.ADD_TASK(201, "mytype", "param201", "myuser", 0, 0, 0, null, 0, null, null));
+            written.add("task201");
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folderLogs.getRoot().toPath())) {
+            stream.forEach(files::add);
+        }
+        files.sort(Comparator.comparing(Path::toString));
+        assertTrue(files.size() > 2);
+        for (Path file : files) {
+            assertTrue(Files.size(file) >= maxLogFileSize);
+        }
+
+        // an entry which was being written when the broker died, in the preallocated space of the last file
+        Path lastFile = files.get(files.size() - 1);
+        try (FileChannel channel = FileChannel.open(lastFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+            channel.read(content, 0);
+            int endOfData = 0;
+            while (content.get(endOfData) != 0) {
+                endOfData += 1 + 8 + 4 + content.getInt(endOfData + 1 + 8) + 4 + 1;
+            }
+            ByteBuffer unfinished = ByteBuffer.allocate(1 + 8 + 4 + 3);
+            unfinished.put((byte) 13).putLong(1000).putInt(100).put(new byte[]{1, 2, 3});
+            unfinished.flip();
+            channel.write(unfinished, endOfData);
+        }
+
+        // recovery works with both modes
+        for (boolean preallocate : new boolean[]{true, false}) {
+            try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), folderLogs.getRoot().toPath(), maxLogFileSize);) {
+                log.setPreallocateSegments(preallocate);
+                BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+                List<String> recovered = new ArrayList<>();
+                log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                    recovered.add(b.editType == StatusEdit.TYPE_CREATECODEPOOL ? b.codepool : "task" + b.taskId);
+                }, false);
+                assertEquals(written, recovered);
+            }
+        }
+    }
+
+    @Test
+    public void testDurabilityPolicy() throws Exception {
+        List<Short> written = new ArrayList<>();
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), folderLogs.getRoot().toPath(), 1024 * 1024);) {
+            log.setDurabilityPolicy(new DurabilityPolicy()
+                .set(StatusEdit.TYPE_NOOP, EditDurability.async(60000))
+                .set(StatusEdit.TYPE_TASK_STATUS_CHANGE, EditDurability.groupCommit(20)));
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                fail();
+            }, false);
+            log.startWriting();
+            for (int i = 0; i < 10; i++) {
+                // acknowledged without waiting for the synch
+                log.logStatusEdit(StatusEdit.NOOP());
+                written.add(StatusEdit.TYPE_NOOP);
+            }
+            log.logStatusEdit(StatusEdit.ADD_TASK(1, "mytype", "param1", "myuser", 0, 0, 0, null, 0, null, null));
+            written.add(StatusEdit.TYPE_ADD_TASK);
+            log.logStatusEdit(StatusEdit.TASK_STATUS_CHANGE(1, "node1", Task.STATUS_FINISHED, "theresult"));
+            written.add(StatusEdit.TYPE_TASK_STATUS_CHANGE);
+            // synched on close
+            log.logStatusEdit(StatusEdit.NOOP());
+            written.add(StatusEdit.TYPE_NOOP);
+
+            Map<String, CommitLatencyStats.EditTypeLatency> latencies = log.getCommitLatencyStats().getLatencies();
+            assertEquals(11, latencies.get("noop").getCount());
+            assertEquals(1, latencies.get("add_task").getCount());
+            // the synch waits for the deadline of the group commit
+            assertTrue(latencies.get("task_status_change").getAverageMicros() >= 20000);
+        }
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), folderLogs.getRoot().toPath(), 1024 * 1024);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            List<Short> recovered = new ArrayList<>();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                recovered.add(b.editType);
+            }, false);
+            assertEquals(written, recovered);
+        }
+    }
+
+    @Test
+    public void testOldFormatAndTornWrite() throws Exception {
+        Path logs = folderLogs.getRoot().toPath();
+        List<Long> written = new ArrayList<>();
+        // written by a previous version, entries have no checksum
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(logs.resolve(String.format("%016x", 1) + ".txlog")))) {
+            for (int i = 1; i <= 10; i++) {
+                byte[] data = StatusEdit.ADD_TASK(i, "mytype", "param" + i, "myuser", 0, 0, 0, null, 0, null, null).serialize();
+                out.writeByte(13);
+                out.writeLong(i);
+                out.writeInt(data.length);
+                out.write(data);
+                out.writeByte(25);
+                written.add((long) i);
+            }
+        }
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, 1024 * 1024);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            List<Long> recovered = new ArrayList<>();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                recovered.add(b.taskId);
+            }, false);
+            assertEquals(written, recovered);
+            log.startWriting();
+            for (int i = 11; i <= 20; i++) {
+                log.logStatusEdit(StatusEdit.ADD_TASK(i, "mytype", "param" + i, "myuser", 0, 0, 0, null, 0, null, null));
+                written.add((long) i);
+            }
+        }
+
+        // the last entry was being written when the broker died
+        Path second = logs.resolve(String.format("%016x", 2) + ".txlog");
+        List<Integer> offsets = entryOffsets(second);
+        assertEquals(10, offsets.size());
+        // last byte of the payload, before checksum and ENTRY_END
+        flipByte(second, Files.size(second) - 4 - 1 - 1);
+        written.remove(Long.valueOf(20));
+
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, 1024 * 1024);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            List<Long> recovered = new ArrayList<>();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                recovered.add(b.taskId);
+            }, false);
+            assertEquals(written, recovered);
+            assertEquals((long) offsets.get(9), Files.size(second));
+            log.startWriting();
+            log.logStatusEdit(StatusEdit.ADD_TASK(21, "mytype", "param21", "myuser", 0, 0, 0, null, 0, null, null));
+            written.add(21L);
+        }
+
+        // the truncated file is not the last one anymore
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, 1024 * 1024);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            List<Long> recovered = new ArrayList<>();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                recovered.add(b.taskId);
+            }, false);
+            assertEquals(written, recovered);
+        }
+    }
+
+    @Test
+    public void testCorruptedEntry() throws Exception {
+        Path logs = folderLogs.getRoot().toPath();
+        int maxLogFileSize = 1024;
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, maxLogFileSize);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                fail();
+            }, false);
+            log.startWriting();
+            for (int i = 1; i <= 60; i++) {
+                log.logStatusEdit(StatusEdit.ADD_TASK(i, "mytype", "param" + i, "myuser", 0, 0, 0, null, 0, null, null));
+            }
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(logs)) {
+            stream.forEach(files::add);
+        }
+        files.sort(Comparator.comparing(Path::toString));
+        assertTrue(files.size() > 2);
+        Path first = files.get(0);
+        long firstSize = Files.size(first);
+        int badEntry = entryOffsets(first).get(5);
+        flipByte(first, badEntry + 1 + 8 + 4 + 2);
+
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, maxLogFileSize);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+            }, false);
+            fail();
+        } catch (LogNotAvailableException expected) {
+            assertTrue(expected.getMessage().contains("checksum mismatch"));
+        }
+        assertEquals(firstSize, Files.size(first));
+
+        List<Long> written = new ArrayList<>();
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, maxLogFileSize);) {
+            log.setTruncateOnCorruption(true);
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            List<Long> recovered = new ArrayList<>();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                recovered.add(b.taskId);
+            }, false);
+            for (long i = 1; i <= 5; i++) {
+                written.add(i);
+            }
+            assertEquals(written, recovered);
+            assertEquals(badEntry, Files.size(first));
+            for (Path file : files.subList(1, files.size())) {
+                assertFalse(Files.exists(file));
+                assertTrue(Files.exists(file.resolveSibling(file.getFileName() + ".corrupted")));
+            }
+            log.startWriting();
+            log.logStatusEdit(StatusEdit.ADD_TASK(100, "mytype", "param100", "myuser", 0, 0, 0, null, 0, null, null));
+            written.add(100L);
+        }
+
+        try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, maxLogFileSize);) {
+            BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+            List<Long> recovered = new ArrayList<>();
+            log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                recovered.add(b.taskId);
+            }, false);
+            assertEquals(written, recovered);
+        }
+    }
+
+    private static List<Integer> entryOffsets(Path file) throws Exception {
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(file));
+        List<Integer> offsets = new ArrayList<>();
+        int offset = 0;
+        while (offset < content.limit() && content.get(offset) != 0) {
+            offsets.add(offset);
+            offset += 1 + 8 + 4 + content.getInt(offset + 1 + 8) + 4 + 1;
+        }
+        return offsets;
+    }
+
+    private static void flipByte(Path file, long position) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) ~b.get(0));
+            b.rewind();
+            channel.write(b, position);
+        }
+    }
+
+    @Test
+    public void testFailedWriteIsFatal() throws Exception {
+        for (boolean preallocate : new boolean[]{false, true}) {
+            Path logs = folderLogs.newFolder().toPath();
+            try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, 1024 * 1024);) {
+                log.setPreallocateSegments(preallocate);
+                AtomicReference<Throwable> brokerFailure = new AtomicReference<>();
+                log.setFailureListener(new BrokerFailureListener() {
+                    @Override
+                    public void brokerFailed(Throwable error) {
+                        brokerFailure.set(error);
+                    }
+                });
+                BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+                log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                    fail();
+                }, false);
+                log.startWriting();
+                log.logStatusEdit(StatusEdit.NOOP());
+
+                // the next write to the file fails
+                Field writerField = FileCommitLog.class.getDeclaredField("writer");
+                writerField.setAccessible(true);
+                Object writer = writerField.get(log);
+                Field channelField = writer.getClass().getDeclaredField("channel");
+                channelField.setAccessible(true);
+                ((FileChannel) channelField.get(writer)).close();
+
+                try {
+                    log.logStatusEdit(StatusEdit.NOOP());
+                    fail();
+                } catch (LogNotAvailableException ok) {
+                }
+                assertNotNull(brokerFailure.get());
+                assertFalse(log.isWritable());
+                try {
+                    log.logStatusEdit(StatusEdit.NOOP());
+                    fail();
+                } catch (LogNotAvailableException ok) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFailedSynchIsFatal() throws Exception {
+        // with a tiny maxLogFileSize the synch which fails is the one done before opening a new file
+        for (long maxLogFileSize : new long[]{1024 * 1024, 1}) {
+            Path logs = folderLogs.newFolder().toPath();
+            try (FileCommitLog log = new FileCommitLog(folderSnapshots.getRoot().toPath(), logs, maxLogFileSize);) {
+                AtomicReference<Throwable> brokerFailure = new AtomicReference<>();
+                log.setFailureListener(new BrokerFailureListener() {
+                    @Override
+                    public void brokerFailed(Throwable error) {
+                        brokerFailure.set(error);
+                    }
+                });
+                BrokerStatusSnapshot snapshot = log.loadBrokerStatusSnapshot();
+                log.recovery(snapshot.getActualLogSequenceNumber(), (a, b) -> {
+                    fail();
+                }, false);
+                log.startWriting();
+                log.logStatusEdit(StatusEdit.NOOP());
+
+                // writes succeed, the next fsync fails
+                Field writerField = FileCommitLog.class.getDeclaredField("writer");
+                writerField.setAccessible(true);
+                Object writer = writerField.get(log);
+                Field channelField = writer.getClass().getDeclaredField("channel");
+                channelField.setAccessible(true);
+                channelField.set(writer, new FailingForceFileChannel((FileChannel) channelField.get(writer)));
+
+                try {
+                    log.logStatusEdit(StatusEdit.NOOP());
+                    fail();
+                } catch (LogNotAvailableException ok) {
+                }
+                assertNotNull(brokerFailure.get());
+                assertFalse(log.isWritable());
+                try {
+                    log.logStatusEdit(StatusEdit.NOOP());
+                    fail();
+                } catch (LogNotAvailableException ok) {
+                }
+            }
+        }
+    }
+
+    private static final class FailingForceFileChannel extends FileChannel {
+
+        private final FileChannel channel;
+
+        FailingForceFileChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            throw new IOException("injected fsync failure");
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
 }
@@ -0,0 +1,250 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import majordodo.utils.IntCounter;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.junit.runners.Parameterized;
+
+/**
+ * Runs {@link TasksHeapTest} against {@link IndexedTasksHeap}, with each storage, and checks that both implementations choose the same
+ * tasks
+ */
+public class IndexedTasksHeapTest extends TasksHeapTest {
+
+    private static final String[] TASKTYPES = {"t1", "t2", "t3", "t4"};
+    private static final String[] USERS = {"u1", "u2", "u3", "u4", "u5", "u6"};
+    private static final int[] GROUPS = {1, 2, 3};
+    private static final String[] RESOURCES = {"db1", "db2", "db3"};
+
+    @Parameterized.Parameters(name = "{0}, {1}")
+    public static Collection<Object[]> heaps() {
+        return Arrays.asList(
+            new Object[]{INDEXED_TASKSHEAP, TasksHeap.STORAGE_OBJECTS},
+            new Object[]{INDEXED_TASKSHEAP, TasksHeap.STORAGE_OFFHEAP});
+    }
+
+    public IndexedTasksHeapTest(String heapType, String storageMode) {
+        super(heapType, storageMode);
+    }
+
+    @Test
+    public void testIndexFollowsCompaction() throws Exception {
+        IndexedTasksHeap instance = new IndexedTasksHeap(10, (long taskid, String taskType, String userid) -> new TaskProperties(1, null));
+        instance.setMaxFragmentation(Integer.MAX_VALUE);
+        for (int i = 1; i <= 6; i++) {
+            instance.insertTask(i, i % 2 == 0 ? "t1" : "t2", "u1");
+        }
+        assertEquals(3, instance.getIndexedTasksCount(1, "t1"));
+        assertEquals(3, instance.getIndexedTasksCount(1, "t2"));
+        Map<String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put("t1", 2);
+        List<AssignedTask> taken = instance.takeTasks(2, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace,
+            Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+        assertEquals(2, taken.size());
+        assertEquals(2, taken.get(0).taskid);
+        assertEquals(4, taken.get(1).taskid);
+        assertEquals(1, instance.getIndexedTasksCount(1, "t1"));
+
+        instance.runCompaction();
+        taken = instance.takeTasks(2, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace,
+            Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+        assertEquals(1, taken.size());
+        assertEquals(6, taken.get(0).taskid);
+        assertEquals(0, instance.getIndexedTasksCount(1, "t1"));
+        assertEquals(3, instance.getIndexedTasksCount(1, "t2"));
+    }
+
+    @Test
+    public void testSameChoicesAsTasksHeap() throws Exception {
+        for (long seed = 0; seed < 20; seed++) {
+            compareWithTasksHeap(seed, false);
+        }
+    }
+
+    @Test
+    public void testSameFairShareChoicesAsTasksHeap() throws Exception {
+        for (long seed = 0; seed < 20; seed++) {
+            compareWithTasksHeap(seed, true);
+        }
+    }
+
+    private void compareWithTasksHeap(long seed, boolean fairShare) {
+        AtomicInteger mappingVersion = new AtomicInteger();
+        TaskPropertiesMapperFunction function = (long taskid, String taskType, String userid) -> {
+            int userIndex = Integer.parseInt(userid.substring(1));
+            int group;
+            if (userIndex % 2 == 0) {
+                // tasks of the same user spread across groups
+                group = GROUPS[(int) ((taskid + mappingVersion.get()) % GROUPS.length)];
+            } else {
+                group = GROUPS[(userIndex + mappingVersion.get()) % GROUPS.length];
+            }
+            String[] resources = null;
+            if (userIndex % 3 == 1) {
+                resources = new String[]{RESOURCES[(int) (taskid % RESOURCES.length)]};
+            } else if (userIndex % 3 == 2) {
+                resources = new String[]{RESOURCES[0], RESOURCES[(int) (taskid % RESOURCES.length)]};
+            }
+            return new TaskProperties(group, resources, 1 + userIndex % 3);
+        };
+        TasksHeap reference = new TasksHeap(10, function);
+        TasksHeap indexed = createTasksHeap(10, function);
+        WeightedFairSharePolicy referencePolicy = new WeightedFairSharePolicy();
+        WeightedFairSharePolicy indexedPolicy = new WeightedFairSharePolicy();
+        if (fairShare) {
+            reference.setSchedulingPolicy(referencePolicy);
+            indexed.setSchedulingPolicy(indexedPolicy);
+        }
+        reference.setMaxFragmentation(50);
+        indexed.setMaxFragmentation(50);
+        // compaction of the indexed heap runs in many steps
+        indexed.setCompactionSegmentSize(7);
+
+        Random random = new Random(seed);
+        Map<Long, String> userByTask = new HashMap<>();
+        long taskId = 0;
+        for (int round = 0; round < 200; round++) {
+            int toInsert = random.nextInt(30);
+            for (int i = 0; i < toInsert; i++) {
+                taskId++;
+                String tasktype = TASKTYPES[random.nextInt(TASKTYPES.length)];
+                String user = USERS[random.nextInt(USERS.length)];
+                reference.insertTask(taskId, tasktype, user);
+                indexed.insertTask(taskId, tasktype, user);
+                userByTask.put(taskId, user);
+            }
+            switch (random.nextInt(20)) {
+                case 0:
+                    reference.runCompaction();
+                    indexed.runCompaction();
+                    break;
+                case 1:
+                    mappingVersion.incrementAndGet();
+                    reference.recomputeGroups();
+                    indexed.recomputeGroups();
+                    break;
+                case 2: {
+                    Set<Long> expired = new HashSet<>();
+                    for (int i = 0; i < 5; i++) {
+                        expired.add(1 + (long) random.nextInt((int) taskId));
+                    }
+                    reference.removeExpiredTasks(expired);
+                    indexed.removeExpiredTasks(expired);
+                    break;
+                }
+                default:
+                    break;
+            }
+            long requestSeed = random.nextLong();
+            List<AssignedTask> expected = takeTasks(reference, new Random(requestSeed));
+            List<AssignedTask> actual = takeTasks(indexed, new Random(requestSeed));
+            assertEquals("seed " + seed + " round " + round, toTaskIds(expected), toTaskIds(actual));
+            if (fairShare) {
+                // running tasks change the virtual time of their users
+                for (AssignedTask task : expected) {
+                    referencePolicy.taskStarted(userByTask.get(task.taskid));
+                    indexedPolicy.taskStarted(userByTask.get(task.taskid));
+                }
+            }
+        }
+        List<Long> remainingExpected = new ArrayList<>();
+        reference.scan(entry -> remainingExpected.add(entry.taskid));
+        List<Long> remainingActual = new ArrayList<>();
+        indexed.scan(entry -> remainingActual.add(entry.taskid));
+        assertEquals(remainingExpected, remainingActual);
+    }
+
+    private static List<AssignedTask> takeTasks(TasksHeap heap, Random random) {
+        List<Integer> groups = new ArrayList<>();
+        Set<Integer> excludedGroups = new HashSet<>();
+        if (random.nextBoolean()) {
+            groups.add(Task.GROUP_ANY);
+            if (random.nextBoolean()) {
+                excludedGroups.add(GROUPS[random.nextInt(GROUPS.length)]);
+            }
+        } else {
+            for (int group : GROUPS) {
+                if (random.nextBoolean()) {
+                    groups.add(group);
+                }
+            }
+            if (groups.isEmpty()) {
+                groups.add(GROUPS[0]);
+            }
+            Collections.shuffle(groups, random);
+        }
+        Map<String, Integer> availableSpace = new HashMap<>();
+        if (random.nextInt(3) == 0) {
+            availableSpace.put(Task.TASKTYPE_ANY, 1 + random.nextInt(20));
+        }
+        for (String tasktype : TASKTYPES) {
+            if (random.nextBoolean()) {
+                availableSpace.put(tasktype, 1 + random.nextInt(10));
+            }
+        }
+        if (availableSpace.isEmpty()) {
+            availableSpace.put(Task.TASKTYPE_ANY, 1 + random.nextInt(20));
+        }
+        Map<String, Integer> workerResourceLimits = new HashMap<>();
+        Map<String, Integer> globalResourceLimits = new HashMap<>();
+        if (random.nextBoolean()) {
+            workerResourceLimits.put(RESOURCES[random.nextInt(RESOURCES.length)], 1 + random.nextInt(5));
+        }
+        if (random.nextBoolean()) {
+            globalResourceLimits.put(RESOURCES[random.nextInt(RESOURCES.length)], 1 + random.nextInt(5));
+        }
+        Map<TaskTypeUser, IntCounter> availableSpacePerUser = null;
+        int maxThreadPerUserPerTaskTypePercent = 0;
+        if (random.nextBoolean()) {
+            availableSpacePerUser = new HashMap<>();
+            maxThreadPerUserPerTaskTypePercent = 10 + random.nextInt(90);
+            if (random.nextBoolean()) {
+                availableSpacePerUser.put(new TaskTypeUser(TASKTYPES[random.nextInt(TASKTYPES.length)],
+                    USERS[random.nextInt(USERS.length)]), new IntCounter(random.nextInt(3)));
+            }
+        }
+        int max = 1 + random.nextInt(30);
+        return heap.takeTasks(max, groups, excludedGroups, availableSpace,
+            workerResourceLimits, new ResourceUsageCounters(), globalResourceLimits, new ResourceUsageCounters(),
+            availableSpacePerUser, maxThreadPerUserPerTaskTypePercent);
+    }
+
+    private static List<Long> toTaskIds(List<AssignedTask> tasks) {
+        List<Long> res = new ArrayList<>();
+        for (AssignedTask task : tasks) {
+            res.add(task.taskid);
+        }
+        return res;
+    }
+
+}
@@ -19,12 +19,35 @@
  */
 package majordodo.task;
 
+import java.util.Arrays;
+import java.util.Collection;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
 /**
- * Simple tests
+ * Simple tests, tasks are assigned both with a request for each worker and with coalesced scheduling rounds
  *
  * @author enrico.olivelli
  */
+@RunWith(Parameterized.class)
 public class JVMWorkerTest extends SimpleBrokerSuite {
 
-    
+    @Parameterized.Parameters(name = "coalescedSchedulingRounds={0}")
+    public static Collection<Object[]> schedulingRounds() {
+        return Arrays.asList(new Object[]{false}, new Object[]{true});
+    }
+
+    private final boolean coalescedSchedulingRounds;
+
+    public JVMWorkerTest(boolean coalescedSchedulingRounds) {
+        this.coalescedSchedulingRounds = coalescedSchedulingRounds;
+    }
+
+    @Override
+    protected BrokerConfiguration createBrokerConfiguration() {
+        BrokerConfiguration configuration = super.createBrokerConfiguration();
+        configuration.setCoalescedSchedulingRounds(coalescedSchedulingRounds);
+        return configuration;
+    }
+
 }
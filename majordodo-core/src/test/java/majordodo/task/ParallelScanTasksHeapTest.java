@@ -0,0 +1,126 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.junit.runners.Parameterized;
+
+/**
+ * Runs {@link TasksHeapTest} with parallel scans of tiny ranges of the heap, and checks that the choices are the same
+ * of a sequential scan
+ */
+public class ParallelScanTasksHeapTest extends TasksHeapTest {
+
+    private static final String[] TASKTYPES = {"t1", "t2", "t3", "t4"};
+    private static final int[] GROUPS = {1, 2, 3};
+    private static final String[] RESOURCES = {"db1", "db2"};
+
+    @Parameterized.Parameters(name = "{0}, {1}")
+    public static Collection<Object[]> heaps() {
+        return Collections.singletonList(new Object[]{TASKSHEAP, TasksHeap.STORAGE_OBJECTS});
+    }
+
+    public ParallelScanTasksHeapTest(String heapType, String storageMode) {
+        super(heapType, storageMode);
+    }
+
+    @Override
+    protected TasksHeap createTasksHeap(int size, TaskPropertiesMapperFunction function) {
+        TasksHeap heap = super.createTasksHeap(size, function);
+        heap.setParallelScanThreshold(1);
+        heap.setParallelScanSegmentSize(2);
+        return heap;
+    }
+
+    @Test
+    public void testSameChoicesAsSequentialScan() throws Exception {
+        TaskPropertiesMapperFunction function = (long taskid, String taskType, String userid) -> {
+            String[] resources = taskid % 3 == 0 ? new String[]{RESOURCES[(int) (taskid % RESOURCES.length)]} : null;
+            return new TaskProperties(GROUPS[(int) (taskid % GROUPS.length)], resources);
+        };
+        TasksHeap sequential = new TasksHeap(10, function);
+        TasksHeap parallel = new TasksHeap(10, function);
+        parallel.setParallelScanThreshold(100);
+        parallel.setParallelScanSegmentSize(37);
+
+        Random random = new Random(1234);
+        long taskId = 0;
+        for (int round = 0; round < 500; round++) {
+            int toInsert = random.nextInt(100);
+            for (int i = 0; i < toInsert; i++) {
+                taskId++;
+                String tasktype = TASKTYPES[random.nextInt(TASKTYPES.length)];
+                sequential.insertTask(taskId, tasktype, "u1");
+                parallel.insertTask(taskId, tasktype, "u1");
+            }
+            List<Integer> groups = new ArrayList<>();
+            for (int group : GROUPS) {
+                if (random.nextBoolean()) {
+                    groups.add(group);
+                }
+            }
+            if (groups.isEmpty()) {
+                groups.add(Task.GROUP_ANY);
+            }
+            Set<Integer> excludedGroups = new HashSet<>();
+            Map<String, Integer> availableSpace = new HashMap<>();
+            if (random.nextInt(3) == 0) {
+                availableSpace.put(Task.TASKTYPE_ANY, 1 + random.nextInt(20));
+            }
+            for (String tasktype : TASKTYPES) {
+                if (random.nextBoolean()) {
+                    availableSpace.put(tasktype, 1 + random.nextInt(10));
+                }
+            }
+            Map<String, Integer> globalResourceLimits = new HashMap<>();
+            globalResourceLimits.put(RESOURCES[random.nextInt(RESOURCES.length)], 1 + random.nextInt(5));
+            int max = 1 + random.nextInt(30);
+            List<AssignedTask> expected = sequential.takeTasks(max, groups, excludedGroups, availableSpace,
+                new HashMap<>(), new ResourceUsageCounters(), globalResourceLimits, new ResourceUsageCounters(), null, 0);
+            List<AssignedTask> actual = parallel.takeTasks(max, groups, excludedGroups, availableSpace,
+                new HashMap<>(), new ResourceUsageCounters(), globalResourceLimits, new ResourceUsageCounters(), null, 0);
+            assertEquals("round " + round, toTaskIds(expected), toTaskIds(actual));
+        }
+        List<Long> remainingExpected = new ArrayList<>();
+        sequential.scan(entry -> remainingExpected.add(entry.taskid));
+        List<Long> remainingActual = new ArrayList<>();
+        parallel.scan(entry -> remainingActual.add(entry.taskid));
+        assertEquals(remainingExpected, remainingActual);
+    }
+
+    private static List<Long> toTaskIds(List<AssignedTask> tasks) {
+        List<Long> res = new ArrayList<>();
+        for (AssignedTask task : tasks) {
+            res.add(task.taskid);
+        }
+        return res;
+    }
+
+}
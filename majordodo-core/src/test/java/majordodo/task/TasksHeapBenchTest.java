@@ -55,8 +55,21 @@ public class TasksHeapBenchTest {
 
     @Test
     public void monoThreadTests() throws Exception {
-        TasksHeap instance = new TasksHeap(1000000, DEFAULT_FUNCTION);
+        monoThreadTests(TasksHeap.STORAGE_OBJECTS);
+        monoThreadTests(TasksHeap.STORAGE_PRIMITIVE);
+        monoThreadTests(TasksHeap.STORAGE_OFFHEAP);
+    }
+
+    private void monoThreadTests(String storage) throws Exception {
+        System.out.println("Storage: " + storage);
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long _usedBefore = runtime.totalMemory() - runtime.freeMemory();
+        TasksHeap instance = new TasksHeap(1000000, DEFAULT_FUNCTION, storage);
         instance.setMaxFragmentation(Integer.MAX_VALUE);
+        System.gc();
+        long _usedAfter = runtime.totalMemory() - runtime.freeMemory();
+        System.out.println("Java heap used by an empty heap: " + ((_usedAfter - _usedBefore) / 1024) + " KB");
 
         {
             long _start = System.currentTimeMillis();
@@ -86,6 +99,12 @@ public class TasksHeapBenchTest {
             long _stop = System.currentTimeMillis();
             System.out.println("Time: " + (_stop - _start) + " ms");
         }
+        {
+            long _start = System.currentTimeMillis();
+            instance.runCompaction();
+            long _stop = System.currentTimeMillis();
+            System.out.println("Compaction time: " + (_stop - _start) + " ms");
+        }
 
     }
 
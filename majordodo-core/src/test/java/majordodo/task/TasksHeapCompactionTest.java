@@ -21,14 +21,20 @@ package majordodo.task;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 
+@RunWith(Parameterized.class)
 public class TasksHeapCompactionTest {
 
     private static final String TASKTYPE_MYTASK1 = "MYTASK1";
@@ -57,9 +63,29 @@ public class TasksHeapCompactionTest {
 
     };
 
+    @Parameterized.Parameters(name = "{0}, {1}")
+    public static Collection<Object[]> heaps() {
+        return Arrays.asList(
+            new Object[]{TasksHeapTest.TASKSHEAP, TasksHeap.STORAGE_OBJECTS},
+            new Object[]{TasksHeapTest.TASKSHEAP, TasksHeap.STORAGE_PRIMITIVE},
+            new Object[]{TasksHeapTest.INDEXED_TASKSHEAP, TasksHeap.STORAGE_OBJECTS});
+    }
+
+    private final String heapType;
+    private final String storageMode;
+
+    public TasksHeapCompactionTest(String heapType, String storageMode) {
+        this.heapType = heapType;
+        this.storageMode = storageMode;
+    }
+
+    protected TasksHeap createTasksHeap(int size, TaskPropertiesMapperFunction function) {
+        return TasksHeapTest.createTasksHeap(heapType, storageMode, size, function);
+    }
+
     @Test
     public void testCompation1() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10, DEFAULT_FUNCTION);
         instance.setMaxFragmentation(1000000);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 1);
@@ -107,7 +133,7 @@ public class TasksHeapCompactionTest {
 
     @Test
     public void testCompation2() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10, DEFAULT_FUNCTION);
         instance.setMaxFragmentation(1000000);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 100);
@@ -175,7 +201,7 @@ public class TasksHeapCompactionTest {
 
     @Test
     public void testCompation3() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 1);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -226,4 +252,48 @@ public class TasksHeapCompactionTest {
 
     }
 
+    @Test
+    public void testIncrementalCompaction() throws Exception {
+        TasksHeap instance = createTasksHeap(20, DEFAULT_FUNCTION);
+        instance.setMaxFragmentation(2);
+        instance.setCompactionSegmentSize(2);
+        for (long taskid = 1; taskid <= 10; taskid++) {
+            instance.insertTask(taskid, taskid % 2 == 0 ? TASKTYPE_MYTASK1 : TASKTYPE_MYTASK2, USERID1);
+        }
+        Map< String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(TASKTYPE_MYTASK1, 100);
+        List<AssignedTask> taskids = instance.takeTasks(3, Arrays.asList(Task.GROUP_ANY),
+            Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+        assertEquals(3, taskids.size());
+        assertEquals(2, taskids.get(0).taskid);
+        assertEquals(4, taskids.get(1).taskid);
+        assertEquals(6, taskids.get(2).taskid);
+        assertTrue(instance.isCompactionInProgress());
+
+        // heap can be used while compaction is running
+        instance.insertTask(11, TASKTYPE_MYTASK2, USERID1);
+        taskids = instance.takeTasks(1, Arrays.asList(Task.GROUP_ANY),
+            Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+        assertEquals(1, taskids.size());
+        assertEquals(8, taskids.get(0).taskid);
+
+        Map< String, Integer> noSpace = new HashMap<>();
+        noSpace.put("othertype", 1);
+        while (instance.isCompactionInProgress()) {
+            taskids = instance.takeTasks(1, Arrays.asList(Task.GROUP_ANY),
+                Collections.emptySet(), noSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+            assertTrue(taskids.isEmpty());
+        }
+        assertFalse(instance.isCompactionInProgress());
+        assertEquals(1, instance.getCompactions());
+        assertTrue(instance.getCompactionSteps() > 1);
+
+        List<Long> remaining = new ArrayList<>();
+        instance.scan(entry -> remaining.add(entry.taskid));
+        assertEquals(Arrays.asList(1L, 3L, 5L, 7L, 9L, 10L, 11L), remaining);
+        List<Long> full = new ArrayList<>();
+        instance.scanFull(entry -> full.add(entry.taskid));
+        assertEquals(Arrays.asList(1L, 3L, 5L, 7L, 9L, 10L, 11L), full.subList(0, 7));
+    }
+
 }
@@ -0,0 +1,183 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Inserts tasks from many threads while another thread takes them, with and without staging of inserts
+ */
+public class TasksHeapConcurrentInsertTest {
+
+    private static final String TASKTYPE_MYTASK1 = "mytask1";
+    private static final String USERID1 = "myuser1";
+    private static final int GROUPID1 = 9713;
+    private static final int PRODUCERS = 4;
+    private static final int TASKS_PER_PRODUCER = 10000;
+
+    private final TaskPropertiesMapperFunction DEFAULT_FUNCTION = new TaskPropertiesMapperFunction() {
+        @Override
+        public TaskProperties getTaskProperties(long taskid, String taskType, String userid) {
+            return new TaskProperties(GROUPID1, null);
+        }
+
+    };
+
+    @Test
+    public void concurrentInsertsAndTakes() throws Exception {
+        concurrentInsertsAndTakes(false);
+        concurrentInsertsAndTakes(true);
+    }
+
+    private static long taskId(int producer, int i) {
+        return producer * 1000000L + i + 1;
+    }
+
+    private void concurrentInsertsAndTakes(boolean staging) throws Exception {
+        TasksHeap instance = new TasksHeap(1000, DEFAULT_FUNCTION);
+        instance.setInsertStaging(staging);
+        AtomicLong maxInsertTime = new AtomicLong();
+        AtomicLong totalInsertTime = new AtomicLong();
+        AtomicBoolean producersDone = new AtomicBoolean();
+        ExecutorService threadpool = Executors.newFixedThreadPool(PRODUCERS + 1);
+        try {
+            long _start = System.currentTimeMillis();
+            List<Future<?>> producers = new ArrayList<>();
+            for (int p = 0; p < PRODUCERS; p++) {
+                final int producer = p;
+                producers.add(threadpool.submit(() -> {
+                    for (int i = 0; i < TASKS_PER_PRODUCER; i++) {
+                        long _insertStart = System.nanoTime();
+                        instance.insertTask(taskId(producer, i), TASKTYPE_MYTASK1, USERID1);
+                        long elapsed = System.nanoTime() - _insertStart;
+                        totalInsertTime.addAndGet(elapsed);
+                        maxInsertTime.accumulateAndGet(elapsed, Math::max);
+                    }
+                }));
+            }
+            Future<Long> consumer = threadpool.submit(() -> {
+                long[] lastTaken = new long[PRODUCERS];
+                Map<String, Integer> availableSpace = new HashMap<>();
+                availableSpace.put(TASKTYPE_MYTASK1, 100);
+                long taken = 0;
+                while (taken < PRODUCERS * TASKS_PER_PRODUCER) {
+                    List<AssignedTask> tasks = instance.takeTasks(100, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(),
+                        availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(),
+                        new ResourceUsageCounters(), null, 0);
+                    for (AssignedTask task : tasks) {
+                        int producer = (int) (task.taskid / 1000000L);
+                        // tasks of the same producer are taken in insertion order, exactly once
+                        assertTrue(task.taskid + " after " + lastTaken[producer], task.taskid > lastTaken[producer]);
+                        lastTaken[producer] = task.taskid;
+                        taken++;
+                    }
+                    if (tasks.isEmpty() && producersDone.get() && instance.getStagedTasksCount() == 0) {
+                        List<Long> remaining = new ArrayList<>();
+                        instance.scan(entry -> remaining.add(entry.taskid));
+                        if (remaining.isEmpty()) {
+                            break;
+                        }
+                    }
+                }
+                for (int p = 0; p < PRODUCERS; p++) {
+                    assertEquals(taskId(p, TASKS_PER_PRODUCER - 1), lastTaken[p]);
+                }
+                return taken;
+            });
+            for (Future<?> producer : producers) {
+                producer.get(60, TimeUnit.SECONDS);
+            }
+            producersDone.set(true);
+            long taken = consumer.get(60, TimeUnit.SECONDS);
+            long _stop = System.currentTimeMillis();
+            assertEquals(PRODUCERS * TASKS_PER_PRODUCER, taken);
+            System.out.println("Staging: " + staging + ", time: " + (_stop - _start) + " ms, insert avg "
+                + (totalInsertTime.get() / (PRODUCERS * TASKS_PER_PRODUCER)) + " ns, max " + (maxInsertTime.get() / 1000) + " us");
+        } finally {
+            threadpool.shutdown();
+        }
+        List<Long> remaining = new ArrayList<>();
+        instance.scan(entry -> remaining.add(entry.taskid));
+        assertEquals(0, remaining.size());
+    }
+
+    @Test
+    public void stagedTasksAreVisible() throws Exception {
+        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        instance.setInsertStaging(true);
+        instance.insertTask(1, TASKTYPE_MYTASK1, USERID1);
+        instance.insertTask(2, TASKTYPE_MYTASK1, USERID1);
+        assertEquals(2, instance.getStagedTasksCount());
+        List<Long> entries = new ArrayList<>();
+        instance.scan(entry -> entries.add(entry.taskid));
+        assertEquals(Arrays.asList(1L, 2L), entries);
+        assertEquals(0, instance.getStagedTasksCount());
+
+        instance.insertTask(3, TASKTYPE_MYTASK1, USERID1);
+        instance.removeExpiredTasks(Collections.singleton(3L));
+        Map<String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(TASKTYPE_MYTASK1, 10);
+        List<AssignedTask> tasks = instance.takeTasks(10, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(),
+            availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(),
+            new ResourceUsageCounters(), null, 0);
+        assertEquals(2, tasks.size());
+        assertEquals(1, tasks.get(0).taskid);
+        assertEquals(2, tasks.get(1).taskid);
+
+        instance.setMaxStagedTasks(2);
+        instance.insertTask(4, TASKTYPE_MYTASK1, USERID1);
+        assertEquals(1, instance.getStagedTasksCount());
+        instance.insertTask(5, TASKTYPE_MYTASK1, USERID1);
+        // the inserting thread merged the queue into the heap
+        assertEquals(0, instance.getStagedTasksCount());
+
+        // batches are bounded too
+        instance.insertTasks(Arrays.asList(createTask(6)));
+        assertEquals(1, instance.getStagedTasksCount());
+        instance.insertTasks(Arrays.asList(createTask(7), createTask(8), createTask(9)));
+        assertEquals(0, instance.getStagedTasksCount());
+        List<Long> all = new ArrayList<>();
+        instance.scan(entry -> all.add(entry.taskid));
+        assertEquals(Arrays.asList(4L, 5L, 6L, 7L, 8L, 9L), all);
+    }
+
+    private static Task createTask(long taskid) {
+        Task task = new Task();
+        task.setTaskId(taskid);
+        task.setType(TASKTYPE_MYTASK1);
+        task.setUserId(USERID1);
+        return task;
+    }
+
+}
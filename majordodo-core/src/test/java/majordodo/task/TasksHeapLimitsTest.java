@@ -20,6 +20,7 @@
 package majordodo.task;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -29,10 +30,13 @@ import java.util.concurrent.atomic.AtomicLong;
 import majordodo.utils.IntCounter;
 import static org.junit.Assert.assertEquals;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertEquals;
 
+@RunWith(Parameterized.class)
 public class TasksHeapLimitsTest {
 
     private static final String TASKTYPE_MYTASK1 = "MYTASK1";
@@ -63,9 +67,28 @@ public class TasksHeapLimitsTest {
 
     };
 
+    @Parameterized.Parameters(name = "{0}, {1}")
+    public static Collection<Object[]> heaps() {
+        return Arrays.asList(
+            new Object[]{TasksHeapTest.TASKSHEAP, TasksHeap.STORAGE_OBJECTS},
+            new Object[]{TasksHeapTest.INDEXED_TASKSHEAP, TasksHeap.STORAGE_OBJECTS});
+    }
+
+    private final String heapType;
+    private final String storageMode;
+
+    public TasksHeapLimitsTest(String heapType, String storageMode) {
+        this.heapType = heapType;
+        this.storageMode = storageMode;
+    }
+
+    protected TasksHeap createTasksHeap(int size, TaskPropertiesMapperFunction function) {
+        return TasksHeapTest.createTasksHeap(heapType, storageMode, size, function);
+    }
+
     @Test
     public void test_worker_limits() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10000, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 10000);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -85,7 +108,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_global_limits() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10000, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 10000);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -105,7 +128,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_worker_and_global_limits() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10000, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 10000);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -127,7 +150,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_global_and_worker_limits() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10000, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 10000);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -149,7 +172,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_used_resource_1() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10000, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 10000);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -173,7 +196,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_used_resource_2() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10000, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 10000);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -198,7 +221,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_limit_on_user_tasktype() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10000, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 10);
         availableSpace.put(TASKTYPE_MYTASK2, 20);
@@ -225,7 +248,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_limit_on_user_tasktype_2() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10000, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 10);
         availableSpace.put(TASKTYPE_MYTASK2, 20);
@@ -251,7 +274,7 @@ public class TasksHeapLimitsTest {
 
     @Test
     public void test_limit_on_user_tasktype_3() throws Exception {
-        TasksHeap instance = new TasksHeap(10000, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10000, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 10);
         availableSpace.put(TASKTYPE_MYTASK2, 20);
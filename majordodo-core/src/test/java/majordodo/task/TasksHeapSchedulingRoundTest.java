@@ -0,0 +1,200 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests for coalesced scheduling rounds, see {@link TasksHeap#takeTasks(java.util.List, java.util.Map, majordodo.task.ResourceUsageCounters)
+ * }
+ */
+@RunWith(Parameterized.class)
+public class TasksHeapSchedulingRoundTest {
+
+    private static final String[] TASKTYPES = {"t1", "t2", "t3"};
+    private static final String[] USERS = {"u1", "u2", "u3", "u4"};
+    private static final int[] GROUPS = {1, 2, 3};
+    private static final String[] RESOURCES = {"db1", "db2"};
+
+    @Parameterized.Parameters(name = "{0}, {1}")
+    public static Collection<Object[]> heaps() {
+        return Arrays.asList(
+            new Object[]{TasksHeapTest.TASKSHEAP, TasksHeap.STORAGE_OBJECTS},
+            new Object[]{TasksHeapTest.INDEXED_TASKSHEAP, TasksHeap.STORAGE_OBJECTS});
+    }
+
+    private final String heapType;
+    private final String storageMode;
+
+    public TasksHeapSchedulingRoundTest(String heapType, String storageMode) {
+        this.heapType = heapType;
+        this.storageMode = storageMode;
+    }
+
+    protected TasksHeap createTasksHeap(int size, TaskPropertiesMapperFunction function) {
+        return TasksHeapTest.createTasksHeap(heapType, storageMode, size, function);
+    }
+
+    @Test
+    public void testWorkersShareTheHeap() throws Exception {
+        TasksHeap instance = createTasksHeap(10, (long taskid, String taskType, String userid) -> {
+            return new TaskProperties(1, taskid <= 2 ? new String[]{"db1"} : null);
+        });
+        for (int i = 1; i <= 8; i++) {
+            instance.insertTask(i, "t1", "u1");
+        }
+        Map<String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put("t1", 3);
+        Map<String, Integer> globalResourceLimits = new HashMap<>();
+        globalResourceLimits.put("db1", 1);
+        WorkerTasksRequest first = new WorkerTasksRequest("w1", 3, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(),
+            availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), 0);
+        WorkerTasksRequest second = new WorkerTasksRequest("w2", 3, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(),
+            availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), 0);
+        instance.takeTasks(Arrays.asList(first, second), globalResourceLimits, new ResourceUsageCounters());
+        // only one task can use db1 at the same time, in the whole round
+        assertEquals(Arrays.asList(1L, 3L), toTaskIds(first.getAssignedTasks()));
+        // task 2 is skipped, as db1 is exhausted
+        assertEquals(Arrays.asList(4L, 5L, 6L), toTaskIds(second.getAssignedTasks()));
+        List<Long> remaining = new ArrayList<>();
+        instance.scan(entry -> remaining.add(entry.taskid));
+        assertEquals(Arrays.asList(2L, 7L, 8L), remaining);
+    }
+
+    @Test
+    public void testSameChoicesAsSequentialRequests() throws Exception {
+        for (long seed = 0; seed < 20; seed++) {
+            compareWithSequentialRequests(seed);
+        }
+    }
+
+    private void compareWithSequentialRequests(long seed) {
+        TaskPropertiesMapperFunction function = (long taskid, String taskType, String userid) -> {
+            int userIndex = Integer.parseInt(userid.substring(1));
+            String[] resources = null;
+            if (userIndex % 2 == 0) {
+                resources = new String[]{RESOURCES[(int) (taskid % RESOURCES.length)]};
+            }
+            return new TaskProperties(GROUPS[(int) (taskid % GROUPS.length)], resources);
+        };
+        TasksHeap sequential = createTasksHeap(10, function);
+        TasksHeap coalesced = createTasksHeap(10, function);
+        sequential.setMaxFragmentation(50);
+        coalesced.setMaxFragmentation(50);
+
+        Random random = new Random(seed);
+        long taskId = 0;
+        for (int round = 0; round < 200; round++) {
+            int toInsert = random.nextInt(60);
+            for (int i = 0; i < toInsert; i++) {
+                taskId++;
+                String tasktype = TASKTYPES[random.nextInt(TASKTYPES.length)];
+                String user = USERS[random.nextInt(USERS.length)];
+                sequential.insertTask(taskId, tasktype, user);
+                coalesced.insertTask(taskId, tasktype, user);
+            }
+            Map<String, Integer> globalResourceLimits = new HashMap<>();
+            if (random.nextBoolean()) {
+                globalResourceLimits.put(RESOURCES[random.nextInt(RESOURCES.length)], 1 + random.nextInt(5));
+            }
+            int workers = 1 + random.nextInt(5);
+            List<WorkerTasksRequest> requests = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                requests.add(createRequest("w" + i, random));
+            }
+
+            ResourceUsageCounters globalCounters = new ResourceUsageCounters();
+            List<List<Long>> expected = new ArrayList<>();
+            for (WorkerTasksRequest request : requests) {
+                List<AssignedTask> taken = sequential.takeTasks(request.max, request.groups, request.excludedGroups,
+                    request.availableSpace, request.workerResourceLimits, new ResourceUsageCounters(),
+                    globalResourceLimits, globalCounters, null, 0);
+                for (AssignedTask task : taken) {
+                    globalCounters.useResources(task.resourceIds);
+                }
+                expected.add(toTaskIds(taken));
+            }
+
+            coalesced.takeTasks(requests, globalResourceLimits, new ResourceUsageCounters());
+            for (int i = 0; i < workers; i++) {
+                assertEquals("seed " + seed + " round " + round + " worker " + i,
+                    expected.get(i), toTaskIds(requests.get(i).getAssignedTasks()));
+            }
+        }
+        List<Long> remainingExpected = new ArrayList<>();
+        sequential.scan(entry -> remainingExpected.add(entry.taskid));
+        List<Long> remainingActual = new ArrayList<>();
+        coalesced.scan(entry -> remainingActual.add(entry.taskid));
+        assertEquals(remainingExpected, remainingActual);
+    }
+
+    private static WorkerTasksRequest createRequest(String workerId, Random random) {
+        List<Integer> groups = new ArrayList<>();
+        Set<Integer> excludedGroups = new HashSet<>();
+        if (random.nextBoolean()) {
+            groups.add(Task.GROUP_ANY);
+            if (random.nextBoolean()) {
+                excludedGroups.add(GROUPS[random.nextInt(GROUPS.length)]);
+            }
+        } else {
+            groups.add(GROUPS[random.nextInt(GROUPS.length)]);
+        }
+        Map<String, Integer> availableSpace = new HashMap<>();
+        if (random.nextInt(3) == 0) {
+            availableSpace.put(Task.TASKTYPE_ANY, 1 + random.nextInt(10));
+        }
+        for (String tasktype : TASKTYPES) {
+            if (random.nextBoolean()) {
+                availableSpace.put(tasktype, 1 + random.nextInt(5));
+            }
+        }
+        if (availableSpace.isEmpty()) {
+            availableSpace.put(Task.TASKTYPE_ANY, 1 + random.nextInt(10));
+        }
+        Map<String, Integer> workerResourceLimits = new HashMap<>();
+        if (random.nextBoolean()) {
+            workerResourceLimits.put(RESOURCES[random.nextInt(RESOURCES.length)], 1 + random.nextInt(3));
+        }
+        return new WorkerTasksRequest(workerId, 1 + random.nextInt(10), groups, excludedGroups, availableSpace,
+            workerResourceLimits, new ResourceUsageCounters(), 0);
+    }
+
+    private static List<Long> toTaskIds(List<AssignedTask> tasks) {
+        List<Long> res = new ArrayList<>();
+        for (AssignedTask task : tasks) {
+            res.add(task.taskid);
+        }
+        return res;
+    }
+
+}
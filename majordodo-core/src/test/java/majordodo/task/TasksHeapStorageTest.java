@@ -0,0 +1,55 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests for the storage of the tasks heap
+ *
+ * @author enrico.olivelli
+ */
+public class TasksHeapStorageTest {
+
+    @Test
+    public void testOffHeapMaxCapacity() {
+        try {
+            TasksHeapStorage.create(TasksHeap.STORAGE_OFFHEAP, TasksHeapStorage.OffHeapStorage.MAX_CAPACITY + 1);
+            fail();
+        } catch (IllegalArgumentException ok) {
+        }
+        TasksHeapStorage storage = TasksHeapStorage.create(TasksHeap.STORAGE_OFFHEAP, 10);
+        storage.set(3, 1234, 1, "myuser", 5, null);
+        for (int newCapacity : new int[]{TasksHeapStorage.OffHeapStorage.MAX_CAPACITY + 1, Integer.MAX_VALUE / 4 + 1}) {
+            try {
+                storage.resize(newCapacity);
+                fail();
+            } catch (IllegalArgumentException ok) {
+            }
+            // the old columns are still there
+            assertEquals(10, storage.capacity());
+            assertEquals(1234, storage.getTaskId(3));
+            assertEquals("myuser", storage.getUserId(3));
+            assertEquals(5, storage.getGroupId(3));
+        }
+    }
+}
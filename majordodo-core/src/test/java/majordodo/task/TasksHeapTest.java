@@ -19,7 +19,9 @@
  */
 package majordodo.task;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -27,8 +29,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 
+@RunWith(Parameterized.class)
 public class TasksHeapTest {
 
     private static final String TASKTYPE_MYTASK1 = "MYTASK1";
@@ -38,6 +44,9 @@ public class TasksHeapTest {
     private static final int GROUPID1 = 9713;
     private static final int GROUPID2 = 972;
 
+    static final String TASKSHEAP = "TasksHeap";
+    static final String INDEXED_TASKSHEAP = "IndexedTasksHeap";
+
     private final TaskPropertiesMapperFunction DEFAULT_FUNCTION = new TaskPropertiesMapperFunction() {
         @Override
         public TaskProperties getTaskProperties(long taskid, String taskType, String userid) {
@@ -57,9 +66,40 @@ public class TasksHeapTest {
 
     };
 
+    @Parameterized.Parameters(name = "{0}, {1}")
+    public static Collection<Object[]> heaps() {
+        return Arrays.asList(
+            new Object[]{TASKSHEAP, TasksHeap.STORAGE_OBJECTS},
+            new Object[]{TASKSHEAP, TasksHeap.STORAGE_PRIMITIVE},
+            new Object[]{TASKSHEAP, TasksHeap.STORAGE_OFFHEAP});
+    }
+
+    private final String heapType;
+    private final String storageMode;
+
+    public TasksHeapTest(String heapType, String storageMode) {
+        this.heapType = heapType;
+        this.storageMode = storageMode;
+    }
+
+    protected TasksHeap createTasksHeap(int size, TaskPropertiesMapperFunction function) {
+        return createTasksHeap(heapType, storageMode, size, function);
+    }
+
+    static TasksHeap createTasksHeap(String heapType, String storageMode, int size, TaskPropertiesMapperFunction function) {
+        switch (heapType) {
+            case TASKSHEAP:
+                return new TasksHeap(size, function, storageMode);
+            case INDEXED_TASKSHEAP:
+                return new IndexedTasksHeap(size, function, storageMode);
+            default:
+                throw new IllegalArgumentException(heapType);
+        }
+    }
+
     @Test
     public void test1() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 1);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -71,7 +111,7 @@ public class TasksHeapTest {
 
     @Test
     public void test2() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 1);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -83,7 +123,7 @@ public class TasksHeapTest {
 
     @Test
     public void test3() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(Task.TASKTYPE_ANY, 1);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -95,7 +135,7 @@ public class TasksHeapTest {
 
     @Test
     public void test4() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 1);
         AtomicLong newTaskId = new AtomicLong(987);
@@ -107,7 +147,7 @@ public class TasksHeapTest {
 
     @Test
     public void test5() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 1);
         availableSpace.put(TASKTYPE_MYTASK2, 1);
@@ -128,7 +168,7 @@ public class TasksHeapTest {
 
     @Test
     public void test6() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 3);
         availableSpace.put(TASKTYPE_MYTASK2, 1);
@@ -157,7 +197,7 @@ public class TasksHeapTest {
 
     @Test
     public void testExcelude() throws Exception {
-        TasksHeap instance = new TasksHeap(10, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(10, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 3);
         availableSpace.put(TASKTYPE_MYTASK2, 1);
@@ -179,7 +219,7 @@ public class TasksHeapTest {
 
     @Test
     public void testAutoGrow() throws Exception {
-        TasksHeap instance = new TasksHeap(1, DEFAULT_FUNCTION);
+        TasksHeap instance = createTasksHeap(1, DEFAULT_FUNCTION);
         Map< String, Integer> availableSpace = new HashMap<>();
         availableSpace.put(TASKTYPE_MYTASK1, 3);
         availableSpace.put(TASKTYPE_MYTASK2, 1);
@@ -199,4 +239,184 @@ public class TasksHeapTest {
 
     }
 
+    @Test
+    public void testInsertTasks() throws Exception {
+        TasksHeap instance = createTasksHeap(2, DEFAULT_FUNCTION);
+        instance.insertTask(1, TASKTYPE_MYTASK1, USERID1);
+        List<Task> batch = new ArrayList<>();
+        for (long taskid = 2; taskid <= 10; taskid++) {
+            Task task = new Task();
+            task.setTaskId(taskid);
+            task.setType(taskid % 2 == 0 ? TASKTYPE_MYTASK1 : TASKTYPE_MYTASK2);
+            task.setUserId(taskid % 3 == 0 ? USERID2 : USERID1);
+            batch.add(task);
+        }
+        instance.insertTasks(batch);
+        instance.insertTasks(Collections.emptyList());
+        assertEquals(10, instance.getActualsize());
+        // grown once, to fit the whole batch
+        assertEquals(10, instance.getSize());
+
+        List<Long> taskids = new ArrayList<>();
+        instance.scan(entry -> taskids.add(entry.taskid));
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L), taskids);
+
+        Map< String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(TASKTYPE_MYTASK2, 10);
+        List<AssignedTask> assigned = instance.takeTasks(10, Arrays.asList(GROUPID2), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+        assertEquals(2, assigned.size());
+        assertEquals(3, assigned.get(0).taskid);
+        assertEquals(9, assigned.get(1).taskid);
+    }
+
+    @Test
+    public void testSkipFutileScans() throws Exception {
+        TasksHeap instance = createTasksHeap(10, (long taskid, String taskType, String userid) -> {
+            return new TaskProperties(USERID1.equals(userid) ? GROUPID1 : GROUPID2, new String[]{"db1"});
+        });
+        Map< String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(Task.TASKTYPE_ANY, 1);
+        Map<String, Integer> globalResourceLimits = new HashMap<>();
+        globalResourceLimits.put("db1", 1);
+        ResourceUsageCounters globalCounters = new ResourceUsageCounters();
+        instance.insertTask(1, TASKTYPE_MYTASK1, USERID2);
+
+        // no task in the group of the worker
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, instance.takeTasks(1, Arrays.asList(GROUPID1), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), globalResourceLimits, globalCounters, null, 0).size());
+        }
+        assertEquals(1, instance.getEmptyScanMisses());
+        assertEquals(2, instance.getEmptyScanHits());
+
+        // a task for another group is not relevant, but the heap changed
+        instance.insertTask(2, TASKTYPE_MYTASK1, USERID2);
+        assertEquals(0, instance.takeTasks(1, Arrays.asList(GROUPID1), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), globalResourceLimits, globalCounters, null, 0).size());
+        assertEquals(2, instance.getEmptyScanMisses());
+
+        instance.insertTask(3, TASKTYPE_MYTASK1, USERID1);
+        List<AssignedTask> taken = instance.takeTasks(1, Arrays.asList(GROUPID1), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), globalResourceLimits, globalCounters, null, 0);
+        assertEquals(1, taken.size());
+        assertEquals(3, taken.get(0).taskid);
+        assertEquals(3, instance.getEmptyScanMisses());
+        globalCounters.useResources(taken.get(0).resourceIds);
+
+        // db1 is saturated
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, instance.takeTasks(1, Arrays.asList(GROUPID2), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), globalResourceLimits, globalCounters, null, 0).size());
+        }
+        assertEquals(4, instance.getEmptyScanMisses());
+        assertEquals(4, instance.getEmptyScanHits());
+
+        // releasing the resource makes the scan useful again
+        globalCounters.releaseResources(taken.get(0).resourceIds);
+        taken = instance.takeTasks(1, Arrays.asList(GROUPID2), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), globalResourceLimits, globalCounters, null, 0);
+        assertEquals(1, taken.size());
+        assertEquals(1, taken.get(0).taskid);
+        assertEquals(5, instance.getEmptyScanMisses());
+        assertEquals(4, instance.getEmptyScanHits());
+    }
+
+    @Test
+    public void testRemoveExpiredTasks() throws Exception {
+        TasksHeap instance = createTasksHeap(10, (long taskid, String taskType, String userid) -> new TaskProperties(GROUPID1, null));
+        instance.setMaxFragmentation(Integer.MAX_VALUE);
+        for (int i = 1; i <= 30; i++) {
+            instance.insertTask(i, TASKTYPE_MYTASK1, USERID1);
+        }
+        Map< String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(Task.TASKTYPE_ANY, 5);
+        assertEquals(5, instance.takeTasks(5, Arrays.asList(GROUPID1), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0).size());
+        // tasks are moved by the compaction
+        instance.runCompaction();
+        // unknown and already taken tasks are ignored
+        instance.removeExpiredTasks(new HashSet<>(Arrays.asList(2L, 7L, 20L, 30L, 100L)));
+        List<Long> remaining = new ArrayList<>();
+        instance.scan(entry -> remaining.add(entry.taskid));
+        List<Long> expected = new ArrayList<>();
+        for (long i = 6; i <= 29; i++) {
+            if (i != 7 && i != 20) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected, remaining);
+        availableSpace.put(Task.TASKTYPE_ANY, 3);
+        List<AssignedTask> taken = instance.takeTasks(3, Arrays.asList(GROUPID1), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+        assertEquals(3, taken.size());
+        assertEquals(6, taken.get(0).taskid);
+        assertEquals(8, taken.get(1).taskid);
+        assertEquals(9, taken.get(2).taskid);
+    }
+
+    @Test
+    public void testSkipTasksBlockedOnResources() throws Exception {
+        TasksHeap instance = createTasksHeap(10, (long taskid, String taskType, String userid) -> {
+            if (taskid <= 10) {
+                return new TaskProperties(GROUPID1, new String[]{"db1"});
+            } else if (taskid <= 12) {
+                return new TaskProperties(GROUPID1, new String[]{"db2", "db3"});
+            } else {
+                return new TaskProperties(GROUPID1, null);
+            }
+        });
+        for (int i = 1; i <= 13; i++) {
+            instance.insertTask(i, TASKTYPE_MYTASK1, USERID1);
+        }
+        Map< String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(Task.TASKTYPE_ANY, 3);
+        Map<String, Integer> globalResourceLimits = new HashMap<>();
+        globalResourceLimits.put("db1", 1);
+        ResourceUsageCounters globalCounters = new ResourceUsageCounters();
+        globalCounters.useResources(new String[]{"db1"});
+
+        // tasks on db1 cannot be assigned and do not take the place of the others
+        List<AssignedTask> taken = instance.takeTasks(3, Arrays.asList(GROUPID1), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), globalResourceLimits, globalCounters, null, 0);
+        List<Long> taskids = new ArrayList<>();
+        taken.forEach(task -> taskids.add(task.taskid));
+        assertEquals(Arrays.asList(11L, 12L, 13L), taskids);
+
+        globalCounters.releaseResources(new String[]{"db1"});
+        taken = instance.takeTasks(3, Arrays.asList(GROUPID1), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), globalResourceLimits, globalCounters, null, 0);
+        assertEquals(1, taken.size());
+        assertEquals(1, taken.get(0).taskid);
+    }
+
+    @Test
+    public void testWeightedFairShare() throws Exception {
+        TasksHeap instance = createTasksHeap(10, (long taskid, String taskType, String userid) -> {
+            return new TaskProperties(GROUPID1, null, USERID1.equals(userid) ? 2 : 1);
+        });
+        WeightedFairSharePolicy policy = new WeightedFairSharePolicy();
+        instance.setSchedulingPolicy(policy);
+        for (long taskid = 1; taskid <= 10; taskid++) {
+            instance.insertTask(taskid, TASKTYPE_MYTASK1, USERID1);
+        }
+        for (long taskid = 11; taskid <= 20; taskid++) {
+            instance.insertTask(taskid, TASKTYPE_MYTASK1, USERID2);
+        }
+        Map< String, Integer> availableSpace = new HashMap<>();
+        availableSpace.put(Task.TASKTYPE_ANY, 6);
+
+        // USERID1 has weight 2, it gets two tasks for each task of USERID2
+        List<AssignedTask> assigned = instance.takeTasks(6, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+        List<Long> taskids = new ArrayList<>();
+        assigned.forEach(task -> taskids.add(task.taskid));
+        assertEquals(Arrays.asList(1L, 2L, 11L, 3L, 4L, 12L), taskids);
+
+        // running tasks are taken into account, without invalidating the cache of empty scans
+        long version = policy.getVersion();
+        for (int i = 0; i < 4; i++) {
+            policy.taskStarted(USERID1);
+        }
+        for (int i = 0; i < 3; i++) {
+            policy.taskStarted(USERID2);
+        }
+        assigned = instance.takeTasks(3, Arrays.asList(Task.GROUP_ANY), Collections.emptySet(), availableSpace, Collections.emptyMap(), new ResourceUsageCounters(), Collections.emptyMap(), new ResourceUsageCounters(), null, 0);
+        taskids.clear();
+        assigned.forEach(task -> taskids.add(task.taskid));
+        assertEquals(Arrays.asList(5L, 6L, 7L), taskids);
+        assertEquals(version, policy.getVersion());
+        policy.tenantWeight(USERID2, 3);
+        assertTrue(version < policy.getVersion());
+    }
+
 }
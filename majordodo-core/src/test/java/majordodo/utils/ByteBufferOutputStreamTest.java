@@ -0,0 +1,126 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Checksum;
+import majordodo.utils.io.ByteBufferOutputStream;
+import majordodo.utils.io.Crc32c;
+import majordodo.utils.io.ExtendedDataOutputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for ByteBufferOutputStream
+ *
+ * @author enrico.olivelli
+ */
+public class ByteBufferOutputStreamTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testGrowPatchAndWrite() throws Exception {
+        ByteBufferOutputStream buffer = new ByteBufferOutputStream(4);
+        ExtendedDataOutputStream out = new ExtendedDataOutputStream(buffer);
+        out.writeInt(0);
+        out.writeUTF("hello");
+        byte[] large = new byte[100];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        out.write(large);
+        assertTrue(buffer.capacity() >= 4 + 2 + 5 + 100);
+        assertEquals(4 + 2 + 5 + 100, buffer.size());
+        buffer.putInt(0, 1234);
+
+        // a partial write is discarded
+        out.writeLong(1);
+        buffer.truncate(4 + 2 + 5 + 100);
+
+        Checksum checksum = Crc32c.create();
+        buffer.updateChecksum(checksum, 4 + 2 + 5, 100);
+        Checksum expected = Crc32c.create();
+        expected.update(large, 0, large.length);
+        assertEquals(expected.getValue(), checksum.getValue());
+
+        Path file = folder.newFile().toPath();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            buffer.writeTo(channel);
+            assertEquals(0, buffer.size());
+            out.writeByte(7);
+            buffer.writeTo(channel);
+        }
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        assertEquals(4 + 2 + 5 + 100 + 1, data.remaining());
+        assertEquals(1234, data.getInt());
+        assertEquals(5, data.getShort());
+        byte[] hello = new byte[5];
+        data.get(hello);
+        assertEquals("hello", new String(hello, "UTF-8"));
+        byte[] readLarge = new byte[100];
+        data.get(readLarge);
+        assertArrayEquals(large, readLarge);
+        assertEquals(7, data.get());
+    }
+
+    @Test
+    public void testFailedWriteKeepsContent() throws Exception {
+        ByteBufferOutputStream buffer = new ByteBufferOutputStream(16);
+        ExtendedDataOutputStream out = new ExtendedDataOutputStream(buffer);
+        out.writeLong(1234);
+        Path file = folder.newFile().toPath();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.close();
+        try {
+            buffer.writeTo(channel);
+            fail();
+        } catch (IOException ok) {
+        }
+        assertEquals(8, buffer.size());
+        try {
+            buffer.writeTo(channel, 0);
+            fail();
+        } catch (IOException ok) {
+        }
+        assertEquals(8, buffer.size());
+
+        out.writeInt(5678);
+        try (FileChannel reopened = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            buffer.writeTo(reopened, 0);
+        }
+        assertEquals(0, buffer.size());
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        assertEquals(1234, data.getLong());
+        assertEquals(5678, data.getInt());
+        assertEquals(0, data.remaining());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Checksum;
+import majordodo.utils.io.Crc32c;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests for Crc32c
+ *
+ * @author enrico.olivelli
+ */
+public class Crc32cTest {
+
+    @Test
+    public void testKnownValue() {
+        byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+        for (Checksum checksum : new Checksum[]{Crc32c.create(), new Crc32c.PureJavaCrc32c()}) {
+            checksum.update(data, 0, data.length);
+            assertEquals(0xE3069283L, checksum.getValue());
+            checksum.reset();
+            for (byte b : data) {
+                checksum.update(b);
+            }
+            assertEquals(0xE3069283L, checksum.getValue());
+        }
+    }
+
+    @Test
+    public void testPureJavaImplementationMatches() {
+        Random random = new Random(1234);
+        byte[] data = new byte[4096];
+        random.nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        Checksum checksum = Crc32c.create();
+        Crc32c.PureJavaCrc32c pureJava = new Crc32c.PureJavaCrc32c();
+        for (int i = 0; i < 200; i++) {
+            int offset = random.nextInt(data.length);
+            int length = random.nextInt(data.length - offset + 1);
+            checksum.reset();
+            checksum.update(data, offset, length);
+            pureJava.reset();
+            pureJava.update(data, offset, length);
+            assertEquals(checksum.getValue(), pureJava.getValue());
+
+            ByteBuffer slice = direct.duplicate();
+            ((Buffer) slice).limit(offset + length);
+            ((Buffer) slice).position(offset);
+            pureJava.reset();
+            Crc32c.update(pureJava, slice);
+            assertEquals(checksum.getValue(), pureJava.getValue());
+            assertEquals(offset + length, slice.position());
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests for {@link LongBitmapSet}
+ */
+public class LongBitmapSetTest {
+
+    @Test
+    public void testSameAsTreeSet() throws Exception {
+        Random random = new Random(1);
+        LongBitmapSet instance = new LongBitmapSet();
+        TreeSet<Long> reference = new TreeSet<>();
+        for (int i = 0; i < 200000; i++) {
+            long value = random.nextInt(5000);
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(reference.add(value), instance.add(value));
+                    break;
+                case 1:
+                    assertEquals(reference.remove(value), instance.remove(value));
+                    break;
+                default: {
+                    assertEquals(reference.contains(value), instance.contains(value));
+                    Long next = reference.ceiling(value);
+                    assertEquals(next != null ? next : -1, instance.next(value));
+                    break;
+                }
+            }
+            assertEquals(reference.size(), instance.size());
+        }
+        long count = 0;
+        for (long value = instance.next(0); value >= 0; value = instance.next(value + 1)) {
+            assertEquals(reference.pollFirst().longValue(), value);
+            count++;
+        }
+        assertEquals(instance.size(), count);
+        instance.clear();
+        assertEquals(-1, instance.next(0));
+    }
+
+    @Test
+    public void testIntersectionSize() throws Exception {
+        LongBitmapSet even = new LongBitmapSet();
+        LongBitmapSet multiplesOfThree = new LongBitmapSet();
+        LongBitmapSet far = new LongBitmapSet();
+        for (long i = 0; i < 10000; i++) {
+            if (i % 2 == 0) {
+                even.add(i);
+            }
+            if (i % 3 == 0) {
+                multiplesOfThree.add(i);
+            }
+        }
+        far.add(6);
+        far.add(1000000);
+        assertEquals(1667, LongBitmapSet.intersectionSize(Arrays.asList(even, multiplesOfThree)));
+        assertEquals(1, LongBitmapSet.intersectionSize(Arrays.asList(even, multiplesOfThree, far)));
+        assertEquals(5000, LongBitmapSet.intersectionSize(Arrays.asList(even)));
+    }
+
+}
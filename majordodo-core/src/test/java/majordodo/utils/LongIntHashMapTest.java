@@ -0,0 +1,70 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests for {@link LongIntHashMap}
+ */
+public class LongIntHashMapTest {
+
+    @Test
+    public void testSameAsHashMap() throws Exception {
+        Random random = new Random(1);
+        LongIntHashMap instance = new LongIntHashMap(4, -1);
+        Map<Long, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            // few keys, so that removals happen in the middle of clusters
+            long key = 1 + random.nextInt(5000);
+            switch (random.nextInt(3)) {
+                case 0: {
+                    int value = random.nextInt(1000);
+                    Integer previous = reference.put(key, value);
+                    assertEquals(previous != null ? previous : -1, instance.put(key, value));
+                    break;
+                }
+                case 1: {
+                    Integer previous = reference.remove(key);
+                    assertEquals(previous != null ? previous : -1, instance.remove(key));
+                    break;
+                }
+                default: {
+                    Integer value = reference.get(key);
+                    assertEquals(value != null ? value : -1, instance.get(key));
+                    assertEquals(value != null, instance.containsKey(key));
+                    break;
+                }
+            }
+            assertEquals(reference.size(), instance.size());
+        }
+        for (Map.Entry<Long, Integer> entry : reference.entrySet()) {
+            assertEquals(entry.getValue().intValue(), instance.get(entry.getKey()));
+        }
+        instance.clear();
+        assertEquals(0, instance.size());
+        assertEquals(-1, instance.get(1));
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ Licensed to Diennea S.r.l. under one
+ or more contributor license agreements. See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership. Diennea S.r.l. licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+
+ */
+package majordodo.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * Tests for {@link LongObjectHashMap}
+ */
+public class LongObjectHashMapTest {
+
+    @Test
+    public void testSameAsHashMap() throws Exception {
+        Random random = new Random(1);
+        LongObjectHashMap<String> instance = new LongObjectHashMap<>(4);
+        Map<Long, String> reference = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            // few keys, so that removals happen in the middle of clusters
+            long key = 1 + random.nextInt(5000);
+            switch (random.nextInt(3)) {
+                case 0: {
+                    String value = "v" + random.nextInt(1000);
+                    assertEquals(reference.put(key, value), instance.put(key, value));
+                    break;
+                }
+                case 1:
+                    assertEquals(reference.remove(key), instance.remove(key));
+                    break;
+                default:
+                    assertEquals(reference.get(key), instance.get(key));
+                    assertEquals(reference.containsKey(key), instance.containsKey(key));
+                    break;
+            }
+            assertEquals(reference.size(), instance.size());
+        }
+        List<String> values = new ArrayList<>(instance.values());
+        assertEquals(reference.size(), values.size());
+        values.removeAll(reference.values());
+        assertEquals(0, values.size());
+        assertNull(instance.get(0));
+        assertNull(instance.remove(-1));
+        instance.clear();
+        assertEquals(0, instance.size());
+        assertNull(instance.get(1));
+    }
+
+    @Test
+    public void testOptimisticReads() throws Exception {
+        LongObjectHashMap<Long> instance = new LongObjectHashMap<>(4);
+        StampedLock lock = new StampedLock();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<String> error = new AtomicReference<>();
+        // even keys are always mapped to themselves, odd keys come and go and force rehashes and shifts
+        for (long i = 2; i <= 2000; i += 2) {
+            instance.put(i, i);
+        }
+        Thread reader = new Thread(() -> {
+            Random random = new Random(2);
+            while (!stop.get()) {
+                long key = 2 + 2 * random.nextInt(1000);
+                long stamp = lock.tryOptimisticRead();
+                Long value = instance.get(key);
+                if (!lock.validate(stamp)) {
+                    stamp = lock.readLock();
+                    try {
+                        value = instance.get(key);
+                    } finally {
+                        lock.unlockRead(stamp);
+                    }
+                }
+                if (value == null || value != key) {
+                    error.set("key " + key + " mapped to " + value);
+                }
+            }
+        });
+        reader.start();
+        Random random = new Random(3);
+        for (int i = 0; i < 200000; i++) {
+            long key = 1 + 2 * random.nextInt(20000);
+            long stamp = lock.writeLock();
+            try {
+                if (instance.remove(key) == null) {
+                    instance.put(key, key);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+        stop.set(true);
+        reader.join();
+        assertNull(error.get());
+    }
+
+}
@@ -32,6 +32,7 @@ import majordodo.task.TaskProperties;
 import majordodo.task.MemoryCommitLog;
 import majordodo.task.StatusChangesLog;
 import majordodo.task.TasksHeap;
+import majordodo.task.IndexedTasksHeap;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
@@ -208,7 +209,16 @@ public class EmbeddedBroker implements AutoCloseable {
         String sharedSecret = configuration.getStringProperty(EmbeddedBrokerConfiguration.KEY_SHAREDSECRET, EmbeddedBrokerConfiguration.KEY_SHAREDSECRET_DEFAULT);
         brokerConfiguration.setSharedSecret(sharedSecret);
         brokerConfiguration.read(configuration.getProperties());
-        broker = new Broker(brokerConfiguration, statusChangesLog, new TasksHeap(brokerConfiguration.getTasksHeapSize(), taskPropertiesMapperFunction));
+        TaskPropertiesMapperFunction mapper = brokerConfiguration.applyTaskPropertiesCache(taskPropertiesMapperFunction);
+        TasksHeap tasksHeap;
+        if (brokerConfiguration.isTasksHeapIndexed()) {
+            tasksHeap = new IndexedTasksHeap(brokerConfiguration.getTasksHeapSize(), mapper,
+                brokerConfiguration.getTasksHeapStorage());
+        } else {
+            tasksHeap = new TasksHeap(brokerConfiguration.getTasksHeapSize(), mapper,
+                brokerConfiguration.getTasksHeapStorage());
+        }
+        broker = new Broker(brokerConfiguration, statusChangesLog, tasksHeap);
         broker.setAuthenticationManager(authenticationManager);
         broker.setGlobalResourceLimitsConfiguration(globalResourceLimitsConfiguration);
         broker.setBrokerId(id);
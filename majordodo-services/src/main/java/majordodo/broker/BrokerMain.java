@@ -19,10 +19,12 @@
  */
 package majordodo.broker;
 
+import majordodo.task.DurabilityPolicy;
 import majordodo.task.FileCommitLog;
 import majordodo.task.TaskPropertiesMapperFunction;
 import majordodo.task.StatusChangesLog;
 import majordodo.task.TasksHeap;
+import majordodo.task.IndexedTasksHeap;
 import majordodo.network.netty.NettyChannelAcceptor;
 import majordodo.task.Broker;
 import majordodo.task.BrokerConfiguration;
@@ -205,7 +207,10 @@ public class BrokerMain implements AutoCloseable {
                 String logsdir = configuration.getProperty("logs.dir", "txlog");
                 String snapdir = configuration.getProperty("data.dir", "data");
                 long maxFileSize = Long.parseLong(configuration.getProperty("logs.maxfilesize", (1024 * 1024) + ""));
-                log = new FileCommitLog(Paths.get(snapdir), Paths.get(logsdir), maxFileSize);
+                FileCommitLog _log = new FileCommitLog(Paths.get(snapdir), Paths.get(logsdir), maxFileSize);
+                _log.setPreallocateSegments(Boolean.parseBoolean(configuration.getProperty("logs.preallocate", "false")));
+                _log.setTruncateOnCorruption(Boolean.parseBoolean(configuration.getProperty("logs.truncateoncorruption", "false")));
+                log = _log;
                 break;
             }
             case "clustered": {
@@ -241,13 +246,22 @@ public class BrokerMain implements AutoCloseable {
             default:
                 throw new RuntimeException("bad value for clustering.mode property, only valid values are singleserver|clustered");
         }
+        log.setDurabilityPolicy(DurabilityPolicy.parse(configuration));
+        System.out.println("Transaction log durability: " + log.getDurabilityPolicy());
 
         BrokerConfiguration config = new BrokerConfiguration();
         Map<String, Object> props = new HashMap<>();
         configuration.keySet().forEach(k -> props.put(k.toString(), configuration.get(k)));
         config.setSharedSecret(sharedsecret);
         config.read(props);
-        broker = new Broker(config, log, new TasksHeap(taskheapsize, mapper));
+        mapper = config.applyTaskPropertiesCache(mapper);
+        TasksHeap tasksHeap;
+        if (config.isTasksHeapIndexed()) {
+            tasksHeap = new IndexedTasksHeap(taskheapsize, mapper, config.getTasksHeapStorage());
+        } else {
+            tasksHeap = new TasksHeap(taskheapsize, mapper, config.getTasksHeapStorage());
+        }
+        broker = new Broker(config, log, tasksHeap);
         broker.setAuthenticationManager(new SingleUserAuthenticationManager(adminuser, adminpassword));
         broker.setBrokerId(id);
         broker.setExternalProcessChecker(() -> {